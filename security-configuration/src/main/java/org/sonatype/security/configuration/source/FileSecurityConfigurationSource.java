@@ -14,21 +14,20 @@ package org.sonatype.security.configuration.source;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 import javax.enterprise.inject.Typed;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 
-import org.codehaus.plexus.util.FileUtils;
-import org.codehaus.plexus.util.IOUtil;
 import org.codehaus.plexus.util.StringUtils;
 import org.sonatype.configuration.ConfigurationException;
 import org.sonatype.plexus.components.cipher.PlexusCipherException;
 import org.sonatype.security.configuration.model.SecurityConfiguration;
+import org.sonatype.security.model.source.AtomicFileWriter;
 
 /**
  * The default configuration source powered by Modello. It will try to load configuration, upgrade if needed and
@@ -234,62 +233,63 @@ public class FileSecurityConfigurationSource
     private void saveConfiguration( File file )
         throws IOException
     {
-        FileOutputStream fos = null;
+        // Create the dir if doesn't exist, throw runtime exception on failure
+        // bad bad bad
+        if ( !file.getParentFile().exists() && !file.getParentFile().mkdirs() )
+        {
+            String message =
+                "\r\n******************************************************************************\r\n"
+                    + "* Could not create configuration file [ "
+                    + file.toString()
+                    + "]!!!! *\r\n"
+                    + "* Application cannot start properly until the process has read+write permissions to this folder *\r\n"
+                    + "******************************************************************************";
+
+            this.getLogger().error( message );
+        }
 
-        File backupFile = new File( file.getParentFile(), file.getName() + ".old" );
+        SecurityConfiguration configuration = getConfiguration();
 
+        String clearPassword = configuration.getAnonymousPassword();
         try
         {
-            // Create the dir if doesn't exist, throw runtime exception on failure
-            // bad bad bad
-            if ( !file.getParentFile().exists() && !file.getParentFile().mkdirs() )
-            {
-                String message =
-                    "\r\n******************************************************************************\r\n"
-                        + "* Could not create configuration file [ "
-                        + file.toString()
-                        + "]!!!! *\r\n"
-                        + "* Application cannot start properly until the process has read+write permissions to this folder *\r\n"
-                        + "******************************************************************************";
-
-                this.getLogger().error( message );
-            }
-
-            // copy the current security config file as file.bak
-            if ( file.exists() )
-            {
-                FileUtils.copyFile( file, backupFile );
-            }
-
-            SecurityConfiguration configuration = getConfiguration();
-
-            String clearPassword = configuration.getAnonymousPassword();
-            try
-            {
-                String encryptedPassword = this.passwordHelper.encrypt( clearPassword );
-                configuration.setAnonymousPassword( encryptedPassword );
-            }
-            catch ( PlexusCipherException e )
-            {
-                this.getLogger().error( "Filed to encrypte the anonymous users password, using clear text: " + e );
-            }
-
-            fos = new FileOutputStream( file );
-
-            saveConfiguration( fos, configuration );
-
-            // set back to clear text
-            configuration.setAnonymousPassword( clearPassword );
+            String encryptedPassword = this.passwordHelper.encrypt( clearPassword );
+            configuration.setAnonymousPassword( encryptedPassword );
+        }
+        catch ( PlexusCipherException e )
+        {
+            this.getLogger().error( "Filed to encrypte the anonymous users password, using clear text: " + e );
+        }
 
-            fos.flush();
+        try
+        {
+            writeConfiguration( file, configuration );
         }
         finally
         {
-            IOUtil.close( fos );
+            // set back to clear text
+            configuration.setAnonymousPassword( clearPassword );
         }
+    }
 
-        // if all went well, delete the bak file
-        backupFile.delete();
+    /**
+     * Writes the file atomically, see {@link AtomicFileWriter}.
+     * 
+     * @param file the file
+     * @param configuration the configuration to write
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void writeConfiguration( File file, final SecurityConfiguration configuration )
+        throws IOException
+    {
+        new AtomicFileWriter( file ).write( new AtomicFileWriter.Content()
+        {
+            public void writeTo( OutputStream os )
+                throws IOException
+            {
+                saveConfiguration( os, configuration );
+            }
+        } );
     }
 
     /**
@@ -0,0 +1,113 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.configuration.source;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.sonatype.guice.bean.containers.InjectedTestCase;
+import org.sonatype.inject.BeanScanning;
+import org.sonatype.security.configuration.model.SecurityConfiguration;
+
+public class FileSecurityConfigurationSourceTest
+    extends InjectedTestCase
+{
+    private final File confDir = new File( "./target/file-source-test/conf" );
+
+    @Override
+    public BeanScanning scanning()
+    {
+        return BeanScanning.INDEX;
+    }
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        FileUtils.deleteDirectory( confDir );
+
+        super.setUp();
+    }
+
+    public void testInterruptedStoreKeepsConfiguration()
+        throws Exception
+    {
+        File file = new File( confDir, "security-configuration.xml" );
+
+        // a source that dies after writing half of the configuration, once asked to
+        KillableSource source =
+            new KillableSource( lookup( SecurityConfigurationSource.class, "static" ), file,
+                                lookup( PasswordHelper.class ) );
+
+        // writes the defaults in place
+        source.loadConfiguration();
+
+        final String original = FileUtils.fileRead( file );
+        assertTrue( original.contains( "</security-configuration>" ) );
+
+        SecurityConfiguration configuration = source.getConfiguration();
+        String password = configuration.getAnonymousPassword();
+        configuration.setAnonymousUsername( "interrupted" );
+
+        source.kill = true;
+        try
+        {
+            source.storeConfiguration();
+            fail( "Expected IOException" );
+        }
+        catch ( IOException e )
+        {
+            assertEquals( "Killed", e.getMessage() );
+        }
+
+        // the old file is untouched, no temporary file is left behind, and the password is clear text again
+        assertEquals( original, FileUtils.fileRead( file ) );
+        assertEquals( 1, confDir.list().length );
+        assertEquals( password, configuration.getAnonymousPassword() );
+
+        source.kill = false;
+        source.storeConfiguration();
+
+        assertTrue( FileUtils.fileRead( file ).contains( "interrupted" ) );
+        assertEquals( 1, confDir.list().length );
+    }
+
+    private static class KillableSource
+        extends FileSecurityConfigurationSource
+    {
+        private boolean kill;
+
+        private KillableSource( SecurityConfigurationSource securityDefaults, File configurationFile,
+                                PasswordHelper passwordHelper )
+        {
+            super( securityDefaults, configurationFile, passwordHelper );
+        }
+
+        @Override
+        protected void saveConfiguration( OutputStream os, SecurityConfiguration configuration )
+            throws IOException
+        {
+            if ( !kill )
+            {
+                super.saveConfiguration( os, configuration );
+                return;
+            }
+
+            os.write( "<?xml version=\"1.0\"?>\n<security-configuration>".getBytes( "UTF-8" ) );
+            os.flush();
+            throw new IOException( "Killed" );
+        }
+    }
+}
@@ -0,0 +1,352 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.model.io.stax;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.sonatype.security.model.CPrivilege;
+import org.sonatype.security.model.CProperty;
+import org.sonatype.security.model.CRole;
+import org.sonatype.security.model.CUser;
+import org.sonatype.security.model.CUserRoleMapping;
+import org.sonatype.security.model.Configuration;
+
+/**
+ * Streaming reader of the security model, an alternative to the generated
+ * {@link org.sonatype.security.model.io.xpp3.SecurityConfigurationXpp3Reader} for very large security.xml files. The
+ * model objects are created in a single pass over the StAX events, and the encoding is detected from the XML
+ * declaration. Like the XPP3 reader in strict mode, it fails on unknown elements, so older model versions are left to
+ * the upgraders.
+ * 
+ * @since 2.8
+ */
+public class SecurityConfigurationStaxReader
+{
+    private final XMLInputFactory factory;
+
+    public SecurityConfigurationStaxReader()
+    {
+        factory = XMLInputFactory.newInstance();
+        factory.setProperty( XMLInputFactory.SUPPORT_DTD, Boolean.FALSE );
+        factory.setProperty( XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE );
+    }
+
+    public Configuration read( InputStream is )
+        throws XMLStreamException
+    {
+        XMLStreamReader reader = factory.createXMLStreamReader( is );
+        try
+        {
+            reader.nextTag();
+            expect( reader, "security" );
+
+            Configuration configuration = new Configuration();
+            if ( reader.getEncoding() != null )
+            {
+                configuration.setModelEncoding( reader.getEncoding() );
+            }
+
+            while ( reader.nextTag() == XMLStreamConstants.START_ELEMENT )
+            {
+                String name = reader.getLocalName();
+                if ( "version".equals( name ) )
+                {
+                    configuration.setVersion( text( reader ) );
+                }
+                else if ( "users".equals( name ) )
+                {
+                    List<CUser> users = new ArrayList<CUser>();
+                    while ( reader.nextTag() == XMLStreamConstants.START_ELEMENT )
+                    {
+                        expect( reader, "user" );
+                        users.add( readUser( reader ) );
+                    }
+                    configuration.setUsers( users );
+                }
+                else if ( "roles".equals( name ) )
+                {
+                    List<CRole> roles = new ArrayList<CRole>();
+                    while ( reader.nextTag() == XMLStreamConstants.START_ELEMENT )
+                    {
+                        expect( reader, "role" );
+                        roles.add( readRole( reader ) );
+                    }
+                    configuration.setRoles( roles );
+                }
+                else if ( "privileges".equals( name ) )
+                {
+                    List<CPrivilege> privileges = new ArrayList<CPrivilege>();
+                    while ( reader.nextTag() == XMLStreamConstants.START_ELEMENT )
+                    {
+                        expect( reader, "privilege" );
+                        privileges.add( readPrivilege( reader ) );
+                    }
+                    configuration.setPrivileges( privileges );
+                }
+                else if ( "userRoleMappings".equals( name ) )
+                {
+                    List<CUserRoleMapping> mappings = new ArrayList<CUserRoleMapping>();
+                    while ( reader.nextTag() == XMLStreamConstants.START_ELEMENT )
+                    {
+                        expect( reader, "userRoleMapping" );
+                        mappings.add( readUserRoleMapping( reader ) );
+                    }
+                    configuration.setUserRoleMappings( mappings );
+                }
+                else
+                {
+                    throw unknown( reader );
+                }
+            }
+
+            return configuration;
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    private CUser readUser( XMLStreamReader reader )
+        throws XMLStreamException
+    {
+        CUser user = new CUser();
+        while ( reader.nextTag() == XMLStreamConstants.START_ELEMENT )
+        {
+            String name = reader.getLocalName();
+            if ( "id".equals( name ) )
+            {
+                user.setId( text( reader ) );
+            }
+            else if ( "firstName".equals( name ) )
+            {
+                user.setFirstName( text( reader ) );
+            }
+            else if ( "lastName".equals( name ) )
+            {
+                user.setLastName( text( reader ) );
+            }
+            else if ( "password".equals( name ) )
+            {
+                user.setPassword( text( reader ) );
+            }
+            else if ( "status".equals( name ) )
+            {
+                user.setStatus( text( reader ) );
+            }
+            else if ( "email".equals( name ) )
+            {
+                user.setEmail( text( reader ) );
+            }
+            else
+            {
+                throw unknown( reader );
+            }
+        }
+        return user;
+    }
+
+    private CRole readRole( XMLStreamReader reader )
+        throws XMLStreamException
+    {
+        CRole role = new CRole();
+        while ( reader.nextTag() == XMLStreamConstants.START_ELEMENT )
+        {
+            String name = reader.getLocalName();
+            if ( "id".equals( name ) )
+            {
+                role.setId( text( reader ) );
+            }
+            else if ( "name".equals( name ) )
+            {
+                role.setName( text( reader ) );
+            }
+            else if ( "description".equals( name ) )
+            {
+                role.setDescription( text( reader ) );
+            }
+            else if ( "sessionTimeout".equals( name ) )
+            {
+                role.setSessionTimeout( integer( reader ) );
+            }
+            else if ( "privileges".equals( name ) )
+            {
+                role.setPrivileges( strings( reader, "privilege" ) );
+            }
+            else if ( "roles".equals( name ) )
+            {
+                role.setRoles( strings( reader, "role" ) );
+            }
+            else if ( "readOnly".equals( name ) )
+            {
+                role.setReadOnly( Boolean.valueOf( text( reader ) ).booleanValue() );
+            }
+            else
+            {
+                throw unknown( reader );
+            }
+        }
+        return role;
+    }
+
+    private CPrivilege readPrivilege( XMLStreamReader reader )
+        throws XMLStreamException
+    {
+        CPrivilege privilege = new CPrivilege();
+        while ( reader.nextTag() == XMLStreamConstants.START_ELEMENT )
+        {
+            String name = reader.getLocalName();
+            if ( "id".equals( name ) )
+            {
+                privilege.setId( text( reader ) );
+            }
+            else if ( "name".equals( name ) )
+            {
+                privilege.setName( text( reader ) );
+            }
+            else if ( "description".equals( name ) )
+            {
+                privilege.setDescription( text( reader ) );
+            }
+            else if ( "type".equals( name ) )
+            {
+                privilege.setType( text( reader ) );
+            }
+            else if ( "properties".equals( name ) )
+            {
+                List<CProperty> properties = new ArrayList<CProperty>();
+                while ( reader.nextTag() == XMLStreamConstants.START_ELEMENT )
+                {
+                    expect( reader, "property" );
+                    properties.add( readProperty( reader ) );
+                }
+                privilege.setProperties( properties );
+            }
+            else if ( "readOnly".equals( name ) )
+            {
+                privilege.setReadOnly( Boolean.valueOf( text( reader ) ).booleanValue() );
+            }
+            else
+            {
+                throw unknown( reader );
+            }
+        }
+        return privilege;
+    }
+
+    private CProperty readProperty( XMLStreamReader reader )
+        throws XMLStreamException
+    {
+        CProperty property = new CProperty();
+        while ( reader.nextTag() == XMLStreamConstants.START_ELEMENT )
+        {
+            String name = reader.getLocalName();
+            if ( "key".equals( name ) )
+            {
+                property.setKey( text( reader ) );
+            }
+            else if ( "value".equals( name ) )
+            {
+                property.setValue( text( reader ) );
+            }
+            else
+            {
+                throw unknown( reader );
+            }
+        }
+        return property;
+    }
+
+    private CUserRoleMapping readUserRoleMapping( XMLStreamReader reader )
+        throws XMLStreamException
+    {
+        CUserRoleMapping mapping = new CUserRoleMapping();
+        while ( reader.nextTag() == XMLStreamConstants.START_ELEMENT )
+        {
+            String name = reader.getLocalName();
+            if ( "userId".equals( name ) )
+            {
+                mapping.setUserId( text( reader ) );
+            }
+            else if ( "source".equals( name ) )
+            {
+                mapping.setSource( text( reader ) );
+            }
+            else if ( "roles".equals( name ) )
+            {
+                mapping.setRoles( strings( reader, "role" ) );
+            }
+            else
+            {
+                throw unknown( reader );
+            }
+        }
+        return mapping;
+    }
+
+    // ==
+
+    private static String text( XMLStreamReader reader )
+        throws XMLStreamException
+    {
+        return reader.getElementText().trim();
+    }
+
+    private static int integer( XMLStreamReader reader )
+        throws XMLStreamException
+    {
+        String value = text( reader );
+        try
+        {
+            return Integer.parseInt( value );
+        }
+        catch ( NumberFormatException e )
+        {
+            throw new XMLStreamException( "Unable to parse element '" + reader.getLocalName()
+                + "', must be an integer but was '" + value + "'", reader.getLocation(), e );
+        }
+    }
+
+    private static List<String> strings( XMLStreamReader reader, String element )
+        throws XMLStreamException
+    {
+        List<String> values = new ArrayList<String>();
+        while ( reader.nextTag() == XMLStreamConstants.START_ELEMENT )
+        {
+            expect( reader, element );
+            values.add( text( reader ) );
+        }
+        return values;
+    }
+
+    private static void expect( XMLStreamReader reader, String element )
+        throws XMLStreamException
+    {
+        if ( !element.equals( reader.getLocalName() ) )
+        {
+            throw unknown( reader );
+        }
+    }
+
+    private static XMLStreamException unknown( XMLStreamReader reader )
+    {
+        return new XMLStreamException( "Unrecognised tag: '" + reader.getLocalName() + "'", reader.getLocation() );
+    }
+}
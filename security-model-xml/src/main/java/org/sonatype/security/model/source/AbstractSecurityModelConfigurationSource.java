@@ -12,12 +12,11 @@
  */
 package org.sonatype.security.model.source;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.Reader;
 import java.io.Writer;
 
 import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
@@ -74,15 +73,9 @@ public abstract class AbstractSecurityModelConfigurationSource
     {
         setConfigurationUpgraded( false );
 
-        Reader fr = null;
-
         try
         {
-            SecurityConfigurationXpp3Reader reader = new SecurityConfigurationXpp3Reader();
-
-            fr = new InputStreamReader( is );
-
-            configuration = reader.read( fr );
+            configuration = readConfiguration( new BufferedInputStream( is ) );
         }
         catch ( XmlPullParserException e )
         {
@@ -95,10 +88,7 @@ public abstract class AbstractSecurityModelConfigurationSource
         }
         finally
         {
-            if ( fr != null )
-            {
-                fr.close();
-            }
+            is.close();
         }
 
         // check the model version if loaded
@@ -113,6 +103,21 @@ public abstract class AbstractSecurityModelConfigurationSource
         }
     }
 
+    /**
+     * Parses the configuration, using the encoding declared by the XML.
+     * 
+     * @param is the buffered stream to read
+     * @return the configuration
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws XmlPullParserException if the configuration has the wrong structure.
+     * @since 2.8
+     */
+    protected Configuration readConfiguration( InputStream is )
+        throws IOException, XmlPullParserException
+    {
+        return new SecurityConfigurationXpp3Reader().read( is );
+    }
+
     /**
      * Save configuration.
      * 
@@ -0,0 +1,431 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.model.source;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.plexus.util.IOUtil;
+import org.sonatype.security.model.CPrivilege;
+import org.sonatype.security.model.CProperty;
+import org.sonatype.security.model.CRole;
+import org.sonatype.security.model.CUser;
+import org.sonatype.security.model.CUserRoleMapping;
+import org.sonatype.security.model.Configuration;
+
+/**
+ * Compact binary copy of a parsed security model, stored next to the XML file it was read from. The snapshot is keyed
+ * by the size, modification time and SHA-1 of the XML file, and is only used while all three match.
+ * <p>
+ * The model fields are copied one by one, hence the fields of the model classes are checked against the ones copied
+ * here: if the model has other fields, snapshots are neither read nor written, so no field is ever lost. The number of
+ * fields copied is part of the snapshot header, snapshots written for another model are ignored.
+ * 
+ * @since 2.8
+ */
+class ConfigurationSnapshot
+{
+    private static final int MAGIC = 0x53454358;
+
+    private static final int FORMAT_VERSION = 2;
+
+    /**
+     * The instance fields of the model classes copied by {@link #writeConfiguration} and {@link #readConfiguration}.
+     */
+    private static final Map<Class<?>, List<String>> COPIED_FIELDS = new LinkedHashMap<Class<?>, List<String>>();
+
+    static
+    {
+        COPIED_FIELDS.put( Configuration.class, Arrays.asList( "version", "modelEncoding", "users", "roles",
+                                                               "privileges", "userRoleMappings" ) );
+        COPIED_FIELDS.put( CUser.class, Arrays.asList( "id", "firstName", "lastName", "password", "status", "email" ) );
+        COPIED_FIELDS.put( CRole.class, Arrays.asList( "id", "name", "description", "sessionTimeout", "privileges",
+                                                       "roles", "readOnly" ) );
+        COPIED_FIELDS.put( CPrivilege.class,
+                           Arrays.asList( "id", "name", "description", "type", "properties", "readOnly" ) );
+        COPIED_FIELDS.put( CProperty.class, Arrays.asList( "key", "value" ) );
+        COPIED_FIELDS.put( CUserRoleMapping.class, Arrays.asList( "userId", "source", "roles" ) );
+    }
+
+    private static final boolean MODEL_SUPPORTED = isModelSupported();
+
+    private static final int MODEL_FIELDS = countCopiedFields();
+
+    private final File xmlFile;
+
+    private final File snapshotFile;
+
+    ConfigurationSnapshot( File xmlFile )
+    {
+        this.xmlFile = xmlFile;
+        this.snapshotFile = new File( xmlFile.getParentFile(), xmlFile.getName() + ".snapshot" );
+    }
+
+    File getSnapshotFile()
+    {
+        return snapshotFile;
+    }
+
+    /**
+     * Returns the model of the snapshot, or {@code null} if there is no snapshot of the current XML file.
+     */
+    Configuration read()
+        throws IOException
+    {
+        if ( !MODEL_SUPPORTED || !snapshotFile.isFile() )
+        {
+            return null;
+        }
+
+        DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( snapshotFile ) ) );
+        try
+        {
+            if ( in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION || in.readInt() != MODEL_FIELDS )
+            {
+                return null;
+            }
+
+            // cheap checks first
+            long length = in.readLong();
+            long lastModified = in.readLong();
+            if ( length != xmlFile.length() || lastModified != xmlFile.lastModified() )
+            {
+                return null;
+            }
+
+            byte[] hash = new byte[in.readInt()];
+            in.readFully( hash );
+            if ( !Arrays.equals( hash, hash( xmlFile ) ) )
+            {
+                return null;
+            }
+
+            return readConfiguration( in );
+        }
+        finally
+        {
+            IOUtil.close( in );
+        }
+    }
+
+    /**
+     * Writes the snapshot of the model, that must be the one of the current XML file.
+     */
+    void write( final Configuration configuration )
+        throws IOException
+    {
+        if ( !MODEL_SUPPORTED )
+        {
+            return;
+        }
+
+        // not forced to disk, a lost snapshot is read from the XML file again
+        new AtomicFileWriter( snapshotFile, false ).write( new AtomicFileWriter.Content()
+        {
+            public void writeTo( OutputStream os )
+                throws IOException
+            {
+                DataOutputStream out = new DataOutputStream( os );
+                try
+                {
+                    out.writeInt( MAGIC );
+                    out.writeInt( FORMAT_VERSION );
+                    out.writeInt( MODEL_FIELDS );
+                    out.writeLong( xmlFile.length() );
+                    out.writeLong( xmlFile.lastModified() );
+                    byte[] hash = hash( xmlFile );
+                    out.writeInt( hash.length );
+                    out.write( hash );
+
+                    writeConfiguration( out, configuration );
+                }
+                finally
+                {
+                    out.close();
+                }
+            }
+        } );
+    }
+
+    void delete()
+    {
+        snapshotFile.delete();
+    }
+
+    // ==
+
+    /**
+     * Returns {@code true} if the model classes have exactly the instance fields copied by the snapshot.
+     */
+    static boolean isModelSupported()
+    {
+        for ( Map.Entry<Class<?>, List<String>> entry : COPIED_FIELDS.entrySet() )
+        {
+            Set<String> fields = new HashSet<String>();
+            for ( Field field : entry.getKey().getDeclaredFields() )
+            {
+                if ( !Modifier.isStatic( field.getModifiers() ) && !field.isSynthetic() )
+                {
+                    fields.add( field.getName() );
+                }
+            }
+
+            if ( !fields.equals( new HashSet<String>( entry.getValue() ) ) )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int countCopiedFields()
+    {
+        int count = 0;
+        for ( List<String> fields : COPIED_FIELDS.values() )
+        {
+            count += fields.size();
+        }
+        return count;
+    }
+
+    private static byte[] hash( File file )
+        throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance( "SHA-1" );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( "SHA-1 not supported", e );
+        }
+
+        InputStream in = new FileInputStream( file );
+        try
+        {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ( ( read = in.read( buffer ) ) != -1 )
+            {
+                digest.update( buffer, 0, read );
+            }
+        }
+        finally
+        {
+            IOUtil.close( in );
+        }
+
+        return digest.digest();
+    }
+
+    private static void writeConfiguration( DataOutputStream out, Configuration configuration )
+        throws IOException
+    {
+        writeString( out, configuration.getVersion() );
+        writeString( out, configuration.getModelEncoding() );
+
+        out.writeInt( configuration.getUsers().size() );
+        for ( CUser user : configuration.getUsers() )
+        {
+            writeString( out, user.getId() );
+            writeString( out, user.getFirstName() );
+            writeString( out, user.getLastName() );
+            writeString( out, user.getPassword() );
+            writeString( out, user.getStatus() );
+            writeString( out, user.getEmail() );
+        }
+
+        out.writeInt( configuration.getRoles().size() );
+        for ( CRole role : configuration.getRoles() )
+        {
+            writeString( out, role.getId() );
+            writeString( out, role.getName() );
+            writeString( out, role.getDescription() );
+            out.writeInt( role.getSessionTimeout() );
+            writeStrings( out, role.getPrivileges() );
+            writeStrings( out, role.getRoles() );
+            out.writeBoolean( role.isReadOnly() );
+        }
+
+        out.writeInt( configuration.getPrivileges().size() );
+        for ( CPrivilege privilege : configuration.getPrivileges() )
+        {
+            writeString( out, privilege.getId() );
+            writeString( out, privilege.getName() );
+            writeString( out, privilege.getDescription() );
+            writeString( out, privilege.getType() );
+            out.writeInt( privilege.getProperties().size() );
+            for ( CProperty property : privilege.getProperties() )
+            {
+                writeString( out, property.getKey() );
+                writeString( out, property.getValue() );
+            }
+            out.writeBoolean( privilege.isReadOnly() );
+        }
+
+        out.writeInt( configuration.getUserRoleMappings().size() );
+        for ( CUserRoleMapping mapping : configuration.getUserRoleMappings() )
+        {
+            writeString( out, mapping.getUserId() );
+            writeString( out, mapping.getSource() );
+            writeStrings( out, mapping.getRoles() );
+        }
+    }
+
+    private static Configuration readConfiguration( DataInputStream in )
+        throws IOException
+    {
+        Configuration configuration = new Configuration();
+        configuration.setVersion( readString( in ) );
+        configuration.setModelEncoding( readString( in ) );
+
+        int count = in.readInt();
+        List<CUser> users = new ArrayList<CUser>( count );
+        for ( int i = 0; i < count; i++ )
+        {
+            CUser user = new CUser();
+            user.setId( readString( in ) );
+            user.setFirstName( readString( in ) );
+            user.setLastName( readString( in ) );
+            user.setPassword( readString( in ) );
+            user.setStatus( readString( in ) );
+            user.setEmail( readString( in ) );
+            users.add( user );
+        }
+        configuration.setUsers( users );
+
+        count = in.readInt();
+        List<CRole> roles = new ArrayList<CRole>( count );
+        for ( int i = 0; i < count; i++ )
+        {
+            CRole role = new CRole();
+            role.setId( readString( in ) );
+            role.setName( readString( in ) );
+            role.setDescription( readString( in ) );
+            role.setSessionTimeout( in.readInt() );
+            role.setPrivileges( readStrings( in ) );
+            role.setRoles( readStrings( in ) );
+            role.setReadOnly( in.readBoolean() );
+            roles.add( role );
+        }
+        configuration.setRoles( roles );
+
+        count = in.readInt();
+        List<CPrivilege> privileges = new ArrayList<CPrivilege>( count );
+        for ( int i = 0; i < count; i++ )
+        {
+            CPrivilege privilege = new CPrivilege();
+            privilege.setId( readString( in ) );
+            privilege.setName( readString( in ) );
+            privilege.setDescription( readString( in ) );
+            privilege.setType( readString( in ) );
+            int propertyCount = in.readInt();
+            List<CProperty> properties = new ArrayList<CProperty>( propertyCount );
+            for ( int j = 0; j < propertyCount; j++ )
+            {
+                CProperty property = new CProperty();
+                property.setKey( readString( in ) );
+                property.setValue( readString( in ) );
+                properties.add( property );
+            }
+            privilege.setProperties( properties );
+            privilege.setReadOnly( in.readBoolean() );
+            privileges.add( privilege );
+        }
+        configuration.setPrivileges( privileges );
+
+        count = in.readInt();
+        List<CUserRoleMapping> mappings = new ArrayList<CUserRoleMapping>( count );
+        for ( int i = 0; i < count; i++ )
+        {
+            CUserRoleMapping mapping = new CUserRoleMapping();
+            mapping.setUserId( readString( in ) );
+            mapping.setSource( readString( in ) );
+            mapping.setRoles( readStrings( in ) );
+            mappings.add( mapping );
+        }
+        configuration.setUserRoleMappings( mappings );
+
+        return configuration;
+    }
+
+    private static void writeStrings( DataOutputStream out, List<String> values )
+        throws IOException
+    {
+        out.writeInt( values.size() );
+        for ( String value : values )
+        {
+            writeString( out, value );
+        }
+    }
+
+    private static List<String> readStrings( DataInputStream in )
+        throws IOException
+    {
+        int count = in.readInt();
+        List<String> values = new ArrayList<String>( count );
+        for ( int i = 0; i < count; i++ )
+        {
+            values.add( readString( in ) );
+        }
+        return values;
+    }
+
+    private static void writeString( DataOutputStream out, String value )
+        throws IOException
+    {
+        if ( value == null )
+        {
+            out.writeInt( -1 );
+        }
+        else
+        {
+            byte[] bytes = value.getBytes( "UTF-8" );
+            out.writeInt( bytes.length );
+            out.write( bytes );
+        }
+    }
+
+    private static String readString( DataInputStream in )
+        throws IOException
+    {
+        int length = in.readInt();
+        if ( length < 0 )
+        {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully( bytes );
+        return new String( bytes, "UTF-8" );
+    }
+}
@@ -14,19 +14,21 @@ package org.sonatype.security.model.source;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 import javax.enterprise.inject.Typed;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
+import javax.xml.stream.XMLStreamException;
 
 import org.codehaus.plexus.util.FileUtils;
-import org.codehaus.plexus.util.IOUtil;
+import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
 import org.sonatype.configuration.ConfigurationException;
 import org.sonatype.security.model.Configuration;
+import org.sonatype.security.model.io.stax.SecurityConfigurationStaxReader;
 import org.sonatype.security.model.upgrade.SecurityConfigurationUpgrader;
 
 /**
@@ -41,6 +43,10 @@ import org.sonatype.security.model.upgrade.SecurityConfigurationUpgrader;
 public class FileModelConfigurationSource
     extends AbstractSecurityModelConfigurationSource
 {
+    public static final String XPP3_READER = "xpp3";
+
+    public static final String STAX_READER = "stax";
+
     /**
      * The configuration file.
      */
@@ -59,14 +65,43 @@ public class FileModelConfigurationSource
     /** Flag to mark defaulted config */
     private boolean configurationDefaulted;
 
+    /**
+     * The reader of the configuration file, "xpp3" (the default) or "stax" for the streaming reader.
+     */
+    private final String reader;
+
+    /**
+     * Whether a binary snapshot of the model is kept next to the configuration file, and loaded instead of it while
+     * the file is unchanged.
+     */
+    private final boolean snapshotEnabled;
+
+    public FileModelConfigurationSource( File configurationFile, SecurityModelConfigurationSource securityDefaults,
+                                         SecurityConfigurationUpgrader configurationUpgrader )
+    {
+        this( configurationFile, securityDefaults, configurationUpgrader, XPP3_READER, false );
+    }
+
+    /**
+     * @since 2.8
+     */
     @Inject
     public FileModelConfigurationSource( @Named( "${security-xml-file}" ) File configurationFile,
                                          @Named( "static" ) SecurityModelConfigurationSource securityDefaults,
-                                         SecurityConfigurationUpgrader configurationUpgrader )
+                                         SecurityConfigurationUpgrader configurationUpgrader,
+                                         @Named( "${security-xml-reader:-xpp3}" ) String reader,
+                                         @Named( "${security-xml-snapshot:-false}" ) boolean snapshotEnabled )
     {
         this.configurationFile = configurationFile;
         this.securityDefaults = securityDefaults;
         this.configurationUpgrader = configurationUpgrader;
+
+        if ( !XPP3_READER.equals( reader ) && !STAX_READER.equals( reader ) )
+        {
+            throw new IllegalArgumentException( "Unknown security.xml reader: " + reader );
+        }
+        this.reader = reader;
+        this.snapshotEnabled = snapshotEnabled;
     }
 
     /**
@@ -128,6 +163,11 @@ public class FileModelConfigurationSource
             configurationDefaulted = false;
         }
 
+        if ( readSnapshot() )
+        {
+            return getConfiguration();
+        }
+
         loadConfiguration( getConfigurationFile() );
 
         // check for loaded model
@@ -138,6 +178,8 @@ public class FileModelConfigurationSource
             loadConfiguration( getConfigurationFile() );
         }
 
+        writeSnapshot();
+
         return getConfiguration();
     }
 
@@ -184,6 +226,25 @@ public class FileModelConfigurationSource
         saveConfiguration( file );
     }
 
+    @Override
+    protected Configuration readConfiguration( InputStream is )
+        throws IOException, XmlPullParserException
+    {
+        if ( STAX_READER.equals( reader ) )
+        {
+            try
+            {
+                return new SecurityConfigurationStaxReader().read( is );
+            }
+            catch ( XMLStreamException e )
+            {
+                throw new XmlPullParserException( e.getMessage(), null, e );
+            }
+        }
+
+        return super.readConfiguration( is );
+    }
+
     /**
      * Load configuration.
      * 
@@ -221,46 +282,102 @@ public class FileModelConfigurationSource
     private void saveConfiguration( File file )
         throws IOException
     {
-        FileOutputStream fos = null;
+        // Create the dir if doesn't exist, throw runtime exception on failure
+        // bad bad bad
+        if ( !file.getParentFile().exists() && !file.getParentFile().mkdirs() )
+        {
+            String message =
+                "\r\n******************************************************************************\r\n"
+                    + "* Could not create configuration file [ "
+                    + file.toString()
+                    + "]!!!! *\r\n"
+                    + "* Application cannot start properly until the process has read+write permissions to this folder *\r\n"
+                    + "******************************************************************************";
+
+            getLogger().error( message );
+        }
+
+        writeConfiguration( file, getConfiguration() );
 
-        File backupFile = new File( file.getParentFile(), file.getName() + ".old" );
+        writeSnapshot();
+    }
+
+    /**
+     * Loads the snapshot of the configuration file, if enabled and up to date.
+     * 
+     * @return true if the configuration was loaded from the snapshot
+     */
+    private boolean readSnapshot()
+    {
+        if ( !snapshotEnabled )
+        {
+            return false;
+        }
 
         try
         {
-            // Create the dir if doesn't exist, throw runtime exception on failure
-            // bad bad bad
-            if ( !file.getParentFile().exists() && !file.getParentFile().mkdirs() )
-            {
-                String message =
-                    "\r\n******************************************************************************\r\n"
-                        + "* Could not create configuration file [ "
-                        + file.toString()
-                        + "]!!!! *\r\n"
-                        + "* Application cannot start properly until the process has read+write permissions to this folder *\r\n"
-                        + "******************************************************************************";
-
-                getLogger().error( message );
-            }
+            Configuration configuration = new ConfigurationSnapshot( getConfigurationFile() ).read();
 
-            // copy the current security config file as file.bak
-            if ( file.exists() )
+            if ( configuration != null && Configuration.MODEL_VERSION.equals( configuration.getVersion() ) )
             {
-                FileUtils.copyFile( file, backupFile );
+                getLogger().info( "Loading Security configuration from snapshot of "
+                                      + getConfigurationFile().getAbsolutePath() );
+
+                setConfigurationUpgraded( false );
+                setConfiguration( configuration );
+
+                return true;
             }
+        }
+        catch ( IOException e )
+        {
+            getLogger().warn( "Could not read the snapshot of " + getConfigurationFile().getAbsolutePath(), e );
+        }
 
-            fos = new FileOutputStream( file );
+        return false;
+    }
 
-            saveConfiguration( fos, getConfiguration() );
+    /**
+     * Writes the snapshot of the configuration, if enabled. Failures are not fatal, the next load reads the file.
+     */
+    private void writeSnapshot()
+    {
+        if ( !snapshotEnabled || getConfiguration() == null )
+        {
+            return;
+        }
 
-            fos.flush();
+        ConfigurationSnapshot snapshot = new ConfigurationSnapshot( getConfigurationFile() );
+        try
+        {
+            snapshot.write( getConfiguration() );
         }
-        finally
+        catch ( IOException e )
         {
-            IOUtil.close( fos );
+            getLogger().warn( "Could not write the snapshot of " + getConfigurationFile().getAbsolutePath(), e );
+
+            snapshot.delete();
         }
+    }
 
-        // if all went well, delete the bak file
-        backupFile.delete();
+    /**
+     * Writes the file atomically, see {@link AtomicFileWriter}.
+     * 
+     * @param file the file
+     * @param configuration the configuration to write
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void writeConfiguration( File file, final Configuration configuration )
+        throws IOException
+    {
+        new AtomicFileWriter( file ).write( new AtomicFileWriter.Content()
+        {
+            public void writeTo( OutputStream os )
+                throws IOException
+            {
+                saveConfiguration( os, configuration );
+            }
+        } );
     }
 
     /**
@@ -12,6 +12,7 @@
  */
 package org.sonatype.security.model.upgrade;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
@@ -23,8 +24,9 @@ import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 
-import org.codehaus.plexus.util.xml.Xpp3Dom;
-import org.codehaus.plexus.util.xml.Xpp3DomBuilder;
+import org.codehaus.plexus.util.IOUtil;
+import org.codehaus.plexus.util.xml.pull.MXParser;
+import org.codehaus.plexus.util.xml.pull.XmlPullParser;
 import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -69,20 +71,7 @@ public class DefaultSecurityConfigurationUpgrader
         throws IOException, ConfigurationIsCorruptedException, UnsupportedConfigurationVersionException
     {
         // try to find out the model version
-        String modelVersion = null;
-
-        try
-        {
-            Reader r = new FileReader( file );
-
-            Xpp3Dom dom = Xpp3DomBuilder.build( r );
-
-            modelVersion = dom.getChild( "version" ).getValue();
-        }
-        catch ( XmlPullParserException e )
-        {
-            throw new ConfigurationIsCorruptedException( file.getAbsolutePath(), e );
-        }
+        String modelVersion = readModelVersion( file );
 
         if ( Configuration.MODEL_VERSION.equals( modelVersion ) )
         {
@@ -138,4 +127,42 @@ public class DefaultSecurityConfigurationUpgrader
             throw new UnsupportedConfigurationVersionException( modelVersion, file );
         }
     }
+
+    /**
+     * Reads the version element of the root element, parsing the file only up to it, without building a DOM of the
+     * whole file. Returns {@code null} if there is no version element.
+     */
+    private String readModelVersion( File file )
+        throws IOException, ConfigurationIsCorruptedException
+    {
+        Reader r = new BufferedReader( new FileReader( file ) );
+
+        try
+        {
+            XmlPullParser parser = new MXParser();
+
+            parser.setInput( r );
+
+            for ( int eventType = parser.getEventType(); eventType != XmlPullParser.END_DOCUMENT; eventType =
+                parser.next() )
+            {
+                // the version is a child of the root element, the nested elements are skipped without being kept
+                if ( eventType == XmlPullParser.START_TAG && parser.getDepth() == 2
+                    && "version".equals( parser.getName() ) )
+                {
+                    return parser.nextText().trim();
+                }
+            }
+
+            return null;
+        }
+        catch ( XmlPullParserException e )
+        {
+            throw new ConfigurationIsCorruptedException( file.getAbsolutePath(), e );
+        }
+        finally
+        {
+            IOUtil.close( r );
+        }
+    }
 }
@@ -93,10 +93,12 @@ public class Upgrade200to201
 
         List<RoleMap> roleMapList = new ArrayList<RoleMap>();
 
+        Set<String> rolesToRemove = getRolesToRemove();
+
         for ( CRole oldr : (List<CRole>) oldc.getRoles() )
         {
             // Simplest case, not an internal role, just copy
-            if ( !getRolesToRemove().contains( oldr.getId() ) )
+            if ( !rolesToRemove.contains( oldr.getId() ) )
             {
                 org.sonatype.security.model.v2_0_1.CRole newr = new org.sonatype.security.model.v2_0_1.CRole();
 
@@ -128,9 +130,11 @@ public class Upgrade200to201
             // else the role will be removed, if it is now internal, and the user hasn't changed it
         }
 
+        Set<String> privsToRemove = getPrivsToRemove();
+
         for ( CPrivilege oldp : (List<CPrivilege>) oldc.getPrivileges() )
         {
-            if ( !getPrivsToRemove().contains( oldp.getId() ) )
+            if ( !privsToRemove.contains( oldp.getId() ) )
             {
                 org.sonatype.security.model.v2_0_1.CPrivilege newp =
                     new org.sonatype.security.model.v2_0_1.CPrivilege();
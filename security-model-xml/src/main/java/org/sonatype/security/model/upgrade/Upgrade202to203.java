@@ -15,7 +15,9 @@ package org.sonatype.security.model.upgrade;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Set;
 
 import javax.enterprise.inject.Typed;
 import javax.inject.Named;
@@ -29,7 +31,6 @@ import org.sonatype.configuration.upgrade.UpgradeMessage;
 import org.sonatype.security.model.v2_0_2.io.xpp3.SecurityConfigurationXpp3Reader;
 import org.sonatype.security.model.v2_0_3.CUser;
 import org.sonatype.security.model.v2_0_3.CUserRoleMapping;
-import org.sonatype.security.model.v2_0_3.Configuration;
 import org.sonatype.security.model.v2_0_3.upgrade.BasicVersionUpgrade;
 
 @Singleton
@@ -78,13 +79,19 @@ public class Upgrade202to203
         org.sonatype.security.model.v2_0_3.Configuration newc = new BasicVersionUpgrade().upgradeConfiguration( oldc );
 
         // now strip out all the unused role mappings
+        Set<String> userIds = new HashSet<String>();
+
+        for ( CUser user : newc.getUsers() )
+        {
+            userIds.add( user.getId() );
+        }
 
         for ( Iterator<CUserRoleMapping> iter = newc.getUserRoleMappings().iterator(); iter.hasNext(); )
         {
             CUserRoleMapping roleMapping = iter.next();
 
             if ( DEFAULT_SOURCE.equalsIgnoreCase( roleMapping.getSource() )
-                && !this.hasUser( roleMapping.getUserId(), newc ) )
+                && !userIds.contains( roleMapping.getUserId() ) )
             {
                 logger.info( "Removing orphaned user role mapping for user: '" + roleMapping.getUserId() + "'." );
                 iter.remove();
@@ -96,16 +103,4 @@ public class Upgrade202to203
         message.setConfiguration( newc );
     }
 
-    private boolean hasUser( String userId, Configuration configuration )
-    {
-        for ( CUser user : configuration.getUsers() )
-        {
-            if ( user.getId().equals( userId ) )
-            {
-                return true;
-            }
-        }
-        return false;
-    }
-
 }
@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.model.io.stax;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.codehaus.plexus.util.IOUtil;
+import org.sonatype.security.model.Configuration;
+import org.sonatype.security.model.io.xpp3.SecurityConfigurationXpp3Reader;
+import org.sonatype.security.model.io.xpp3.SecurityConfigurationXpp3Writer;
+
+/**
+ * Compares the load times of the XPP3 and StAX readers on generated configurations. Not run by the build, run the
+ * main method with the user counts as arguments (default 10000, 100000 and 1000000, the latter needs a few GB of
+ * heap).
+ */
+public class SecurityConfigurationReaderBenchmark
+{
+    private static final int ROUNDS = 5;
+
+    public static void main( String[] args )
+        throws Exception
+    {
+        if ( args.length == 0 )
+        {
+            args = new String[] { "10000", "100000", "1000000" };
+        }
+
+        for ( String arg : args )
+        {
+            int users = Integer.parseInt( arg );
+
+            File file = File.createTempFile( "security-" + users, ".xml" );
+            file.deleteOnExit();
+
+            OutputStream out = new FileOutputStream( file );
+            try
+            {
+                Configuration configuration = SecurityConfigurationStaxReaderTest.generate( users );
+                new SecurityConfigurationXpp3Writer().write( out, configuration );
+            }
+            finally
+            {
+                IOUtil.close( out );
+            }
+
+            System.out.println( users + " users, " + ( file.length() / 1024 ) + " KB" );
+
+            for ( int round = 0; round < ROUNDS; round++ )
+            {
+                long xpp3 = time( file, false );
+                long stax = time( file, true );
+                System.out.println( "  round " + round + ": xpp3 " + xpp3 + " ms, stax " + stax + " ms" );
+            }
+
+            file.delete();
+        }
+    }
+
+    private static long time( File file, boolean stax )
+        throws Exception
+    {
+        long start = System.nanoTime();
+
+        InputStream in = new BufferedInputStream( new FileInputStream( file ) );
+        try
+        {
+            Configuration configuration;
+            if ( stax )
+            {
+                configuration = new SecurityConfigurationStaxReader().read( in );
+            }
+            else
+            {
+                configuration = new SecurityConfigurationXpp3Reader().read( in );
+            }
+            if ( configuration.getUsers().isEmpty() )
+            {
+                throw new IllegalStateException( "Nothing read" );
+            }
+        }
+        finally
+        {
+            IOUtil.close( in );
+        }
+
+        return ( System.nanoTime() - start ) / 1000000;
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.model.io.stax;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLStreamException;
+
+import junit.framework.TestCase;
+
+import org.codehaus.plexus.util.IOUtil;
+import org.sonatype.security.model.CPrivilege;
+import org.sonatype.security.model.CProperty;
+import org.sonatype.security.model.CRole;
+import org.sonatype.security.model.CUser;
+import org.sonatype.security.model.CUserRoleMapping;
+import org.sonatype.security.model.Configuration;
+import org.sonatype.security.model.io.xpp3.SecurityConfigurationXpp3Reader;
+import org.sonatype.security.model.io.xpp3.SecurityConfigurationXpp3Writer;
+
+public class SecurityConfigurationStaxReaderTest
+    extends TestCase
+{
+    private static final String UPGRADE = "/org/sonatype/security/model/upgrade/";
+
+    public void testReadsLikeXpp3Reader()
+        throws Exception
+    {
+        assertReadsLikeXpp3Reader( IOUtil.toByteArray( resource( "/META-INF/security/security.xml" ) ) );
+        assertReadsLikeXpp3Reader( IOUtil.toByteArray( resource( UPGRADE + "security-202.xml.result" ) ) );
+    }
+
+    public void testReadsAllFields()
+        throws Exception
+    {
+        Configuration configuration = generate( 10 );
+
+        CPrivilege privilege = new CPrivilege();
+        privilege.setId( "priv" );
+        privilege.setName( "Privilege" );
+        privilege.setDescription( "A privilege with ünicode & entities" );
+        privilege.setType( "method" );
+        privilege.setReadOnly( true );
+        CProperty property = new CProperty();
+        property.setKey( "method" );
+        property.setValue( "read" );
+        privilege.addProperty( property );
+        configuration.addPrivilege( privilege );
+
+        assertReadsLikeXpp3Reader( write( configuration ) );
+    }
+
+    public void testFailsOnUnknownElement()
+        throws Exception
+    {
+        // the 1.0.0 model has elements the current one does not know
+        try
+        {
+            new SecurityConfigurationStaxReader().read( resource( UPGRADE + "security-100.xml" ) );
+            fail( "Expected XMLStreamException" );
+        }
+        catch ( XMLStreamException e )
+        {
+            // expected
+        }
+    }
+
+    private void assertReadsLikeXpp3Reader( byte[] xml )
+        throws Exception
+    {
+        Configuration expected = new SecurityConfigurationXpp3Reader().read( new ByteArrayInputStream( xml ) );
+        Configuration actual = new SecurityConfigurationStaxReader().read( new ByteArrayInputStream( xml ) );
+
+        assertEquals( new String( write( expected ), "UTF-8" ), new String( write( actual ), "UTF-8" ) );
+    }
+
+    private InputStream resource( String name )
+    {
+        return getClass().getResourceAsStream( name );
+    }
+
+    static byte[] write( Configuration configuration )
+        throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SecurityConfigurationXpp3Writer().write( out, configuration );
+        return out.toByteArray();
+    }
+
+    /**
+     * Generates a configuration with the given number of users, each one having its own role and user role mapping.
+     */
+    static Configuration generate( int users )
+    {
+        Configuration configuration = new Configuration();
+        configuration.setVersion( Configuration.MODEL_VERSION );
+
+        for ( int i = 0; i < users; i++ )
+        {
+            CUser user = new CUser();
+            user.setId( "user-" + i );
+            user.setFirstName( "First" + i );
+            user.setLastName( "Last" + i );
+            user.setEmail( "user-" + i + "@example.com" );
+            user.setPassword( Integer.toHexString( i * 31 ) );
+            user.setStatus( "active" );
+            configuration.addUser( user );
+
+            CRole role = new CRole();
+            role.setId( "role-" + i );
+            role.setName( "Role " + i );
+            role.setDescription( "Role of user " + i );
+            role.setSessionTimeout( 60 );
+            role.addPrivilege( "priv-" + ( i % 100 ) );
+            if ( i > 0 )
+            {
+                role.addRole( "role-" + ( i - 1 ) );
+            }
+            configuration.addRole( role );
+
+            CUserRoleMapping mapping = new CUserRoleMapping();
+            mapping.setUserId( user.getId() );
+            mapping.setSource( "default" );
+            mapping.addRole( role.getId() );
+            configuration.addUserRoleMapping( mapping );
+        }
+
+        return configuration;
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.model.source;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.sonatype.security.model.Configuration;
+
+/**
+ * Fills every field of the model through reflection, so a field added to the model and not copied by the snapshot
+ * fails here.
+ */
+public class ConfigurationSnapshotTest
+    extends TestCase
+{
+    private final File dir = new File( "target/ConfigurationSnapshotTest" );
+
+    private int counter;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        FileUtils.deleteDirectory( dir );
+        dir.mkdirs();
+    }
+
+    public void testModelIsSupported()
+    {
+        assertTrue( "The model has fields not copied by ConfigurationSnapshot",
+                    ConfigurationSnapshot.isModelSupported() );
+    }
+
+    public void testEveryFieldRoundTrips()
+        throws Exception
+    {
+        File xmlFile = new File( dir, "security.xml" );
+        FileUtils.fileWrite( xmlFile.getAbsolutePath(), "<security/>" );
+
+        Configuration configuration = new Configuration();
+        fill( configuration );
+
+        ConfigurationSnapshot snapshot = new ConfigurationSnapshot( xmlFile );
+        snapshot.write( configuration );
+
+        assertEqualFields( configuration, snapshot.read() );
+    }
+
+    public void testSnapshotOfChangedFileIsIgnored()
+        throws Exception
+    {
+        File xmlFile = new File( dir, "security.xml" );
+        FileUtils.fileWrite( xmlFile.getAbsolutePath(), "<security/>" );
+
+        ConfigurationSnapshot snapshot = new ConfigurationSnapshot( xmlFile );
+        snapshot.write( new Configuration() );
+        assertNotNull( snapshot.read() );
+
+        FileUtils.fileWrite( xmlFile.getAbsolutePath(), "<security></security>" );
+        assertNull( snapshot.read() );
+    }
+
+    private void fill( Object object )
+        throws Exception
+    {
+        for ( Field field : instanceFields( object.getClass() ) )
+        {
+            Class<?> type = field.getType();
+
+            if ( type == String.class )
+            {
+                field.set( object, field.getName() + "-" + ( ++counter ) );
+            }
+            else if ( type == int.class )
+            {
+                field.setInt( object, ++counter );
+            }
+            else if ( type == boolean.class )
+            {
+                field.setBoolean( object, true );
+            }
+            else if ( type == List.class )
+            {
+                Class<?> elementType =
+                    (Class<?>) ( (ParameterizedType) field.getGenericType() ).getActualTypeArguments()[0];
+                List<Object> values = new ArrayList<Object>();
+                for ( int i = 0; i < 2; i++ )
+                {
+                    if ( elementType == String.class )
+                    {
+                        values.add( field.getName() + "-" + ( ++counter ) );
+                    }
+                    else
+                    {
+                        Object value = elementType.newInstance();
+                        fill( value );
+                        values.add( value );
+                    }
+                }
+                field.set( object, values );
+            }
+            else
+            {
+                fail( "Field " + object.getClass().getSimpleName() + "." + field.getName() + " of type " + type
+                    + " is not filled by this test" );
+            }
+        }
+    }
+
+    private void assertEqualFields( Object expected, Object actual )
+        throws Exception
+    {
+        assertNotNull( actual );
+        assertEquals( expected.getClass(), actual.getClass() );
+
+        for ( Field field : instanceFields( expected.getClass() ) )
+        {
+            String name = expected.getClass().getSimpleName() + "." + field.getName();
+            Object expectedValue = field.get( expected );
+            Object actualValue = field.get( actual );
+
+            if ( expectedValue instanceof List )
+            {
+                List<?> expectedValues = (List<?>) expectedValue;
+                List<?> actualValues = (List<?>) actualValue;
+                assertEquals( name, expectedValues.size(), actualValues.size() );
+                for ( int i = 0; i < expectedValues.size(); i++ )
+                {
+                    if ( expectedValues.get( i ) instanceof String )
+                    {
+                        assertEquals( name, expectedValues.get( i ), actualValues.get( i ) );
+                    }
+                    else
+                    {
+                        assertEqualFields( expectedValues.get( i ), actualValues.get( i ) );
+                    }
+                }
+            }
+            else
+            {
+                assertEquals( name, expectedValue, actualValue );
+            }
+        }
+    }
+
+    private static List<Field> instanceFields( Class<?> type )
+    {
+        List<Field> fields = new ArrayList<Field>();
+        for ( Field field : type.getDeclaredFields() )
+        {
+            if ( !Modifier.isStatic( field.getModifiers() ) && !field.isSynthetic() )
+            {
+                field.setAccessible( true );
+                fields.add( field );
+            }
+        }
+        return fields;
+    }
+}
@@ -15,6 +15,16 @@ package org.sonatype.security.model.source;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.List;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.sonatype.security.model.CRole;
+import org.sonatype.security.model.CUser;
+import org.sonatype.security.model.Configuration;
+import org.sonatype.security.model.io.xpp3.SecurityConfigurationXpp3Writer;
+import org.sonatype.security.model.upgrade.SecurityConfigurationUpgrader;
 
 public class FileConfigurationSourceTest
     extends AbstractSecurityConfigurationSourceTest
@@ -86,6 +96,130 @@ public class FileConfigurationSourceTest
         assertEquals( false, configurationSource.isConfigurationDefaulted() );
     }
 
+    public void testStaxReader()
+        throws Exception
+    {
+        copyDefaultSecurityConfigToPlace();
+
+        configurationSource =
+            new FileModelConfigurationSource( new File( getSecurityConfiguration() ),
+                                              lookup( SecurityModelConfigurationSource.class, "static" ),
+                                              lookup( SecurityConfigurationUpgrader.class ),
+                                              FileModelConfigurationSource.STAX_READER, false );
+
+        configurationSource.loadConfiguration();
+
+        Configuration configuration = configurationSource.getConfiguration();
+        assertNotNull( configuration );
+        assertEquals( Configuration.MODEL_VERSION, configuration.getVersion() );
+        assertEquals( 3, configuration.getUsers().size() );
+        assertFalse( configurationSource.isConfigurationUpgraded() );
+    }
+
+    public void testSnapshot()
+        throws Exception
+    {
+        copyDefaultSecurityConfigToPlace();
+        File file = new File( getSecurityConfiguration() );
+        ConfigurationSnapshot snapshot = new ConfigurationSnapshot( file );
+
+        // first load writes the snapshot
+        configurationSource = getSnapshotConfigurationSource();
+        configurationSource.loadConfiguration();
+        assertTrue( snapshot.getSnapshotFile().isFile() );
+        Configuration parsed = configurationSource.getConfiguration();
+
+        // a snapshot of the unchanged file is used instead of it
+        Configuration changed = snapshot.read();
+        assertEquals( write( parsed ), write( changed ) );
+        CUser user = new CUser();
+        user.setId( "from-snapshot" );
+        changed.addUser( user );
+        snapshot.write( changed );
+
+        configurationSource = getSnapshotConfigurationSource();
+        configurationSource.loadConfiguration();
+        assertEquals( 4, configurationSource.getConfiguration().getUsers().size() );
+
+        // but not once the file changed, even if its size and modification time are the same
+        long lastModified = file.lastModified();
+        String content = FileUtils.fileRead( file );
+        FileUtils.fileWrite( file.getAbsolutePath(), content.replace( "changeme1", "changeme9" ) );
+        file.setLastModified( lastModified );
+
+        configurationSource = getSnapshotConfigurationSource();
+        configurationSource.loadConfiguration();
+        List<CUser> users = configurationSource.getConfiguration().getUsers();
+        assertEquals( 3, users.size() );
+        assertEquals( "changeme9@yourcompany.com", users.get( 1 ).getEmail() );
+
+        // storing updates the snapshot
+        configurationSource.getConfiguration().addUser( user );
+        configurationSource.storeConfiguration();
+        assertEquals( write( configurationSource.getConfiguration() ), write( snapshot.read() ) );
+    }
+
+    private SecurityModelConfigurationSource getSnapshotConfigurationSource()
+        throws Exception
+    {
+        return new FileModelConfigurationSource( new File( getSecurityConfiguration() ),
+                                                 lookup( SecurityModelConfigurationSource.class, "static" ),
+                                                 lookup( SecurityConfigurationUpgrader.class ),
+                                                 FileModelConfigurationSource.XPP3_READER, true );
+    }
+
+    private String write( Configuration configuration )
+        throws IOException
+    {
+        StringWriter writer = new StringWriter();
+        new SecurityConfigurationXpp3Writer().write( writer, configuration );
+        return writer.toString();
+    }
+
+    public void testInterruptedStoreKeepsConfiguration()
+        throws Exception
+    {
+        copyDefaultSecurityConfigToPlace();
+
+        File file = new File( getSecurityConfiguration() );
+        final String original = FileUtils.fileRead( file );
+
+        // a source that dies after writing half of the configuration
+        configurationSource =
+            new FileModelConfigurationSource( file, lookup( SecurityModelConfigurationSource.class, "static" ),
+                                              lookup( SecurityConfigurationUpgrader.class ) )
+            {
+                @Override
+                protected void saveConfiguration( OutputStream os, Configuration configuration )
+                    throws IOException
+                {
+                    os.write( original.substring( 0, original.length() / 2 ).getBytes( "UTF-8" ) );
+                    os.flush();
+                    throw new IOException( "Killed" );
+                }
+            };
+
+        configurationSource.loadConfiguration();
+
+        CRole role = new CRole();
+        role.setId( "interrupted" );
+        configurationSource.getConfiguration().addRole( role );
+
+        try
+        {
+            configurationSource.storeConfiguration();
+            fail( "Expected IOException" );
+        }
+        catch ( IOException e )
+        {
+            assertEquals( "Killed", e.getMessage() );
+        }
+
+        // the old file is untouched, and no temporary file is left behind
+        assertEquals( original, FileUtils.fileRead( file ) );
+        assertEquals( 1, file.getParentFile().list().length );
+    }
+
     // NOT EXPOSED
     // public void testGetDefaultsSource()
     // throws Exception
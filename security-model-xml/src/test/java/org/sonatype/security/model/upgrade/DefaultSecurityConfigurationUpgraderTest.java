@@ -12,11 +12,17 @@
  */
 package org.sonatype.security.model.upgrade;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.StringWriter;
+import java.io.Writer;
 
 import org.codehaus.plexus.util.FileUtils;
 import org.codehaus.plexus.util.IOUtil;
+import org.sonatype.configuration.upgrade.UnsupportedConfigurationVersionException;
 import org.sonatype.security.model.AbstractSecurityConfigTest;
 import org.sonatype.security.model.Configuration;
 import org.sonatype.security.model.io.xpp3.SecurityConfigurationXpp3Writer;
@@ -103,4 +109,62 @@ public class DefaultSecurityConfigurationUpgraderTest
 
         resultIsFine( "/org/sonatype/security/model/upgrade/security-202.xml", configuration );
     }
+
+    public void testLargeFrom100()
+        throws Exception
+    {
+        int users = 50000;
+
+        write100( new File( getSecurityConfiguration() ), users );
+
+        Configuration configuration =
+            configurationUpgrader.loadOldConfiguration( new File( getSecurityConfiguration() ) );
+
+        assertEquals( Configuration.MODEL_VERSION, configuration.getVersion() );
+        assertEquals( users, configuration.getUsers().size() );
+        assertEquals( users, configuration.getUserRoleMappings().size() );
+        assertEquals( "First" + ( users - 1 ), configuration.getUsers().get( users - 1 ).getFirstName() );
+    }
+
+    public void testMissingVersion()
+        throws Exception
+    {
+        FileUtils.fileWrite( getSecurityConfiguration(), "UTF-8", "<nexusSecurity><users/></nexusSecurity>" );
+
+        try
+        {
+            configurationUpgrader.loadOldConfiguration( new File( getSecurityConfiguration() ) );
+            fail( "No version, nothing to upgrade from" );
+        }
+        catch ( UnsupportedConfigurationVersionException e )
+        {
+            // expected
+        }
+    }
+
+    /**
+     * Writes a 1.0.0 security configuration of the given number of users, each having a role.
+     */
+    static void write100( File file, int users )
+        throws IOException
+    {
+        Writer w = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( file ), "UTF-8" ) );
+        try
+        {
+            w.write( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<nexusSecurity>\n  <version>1.0.0</version>\n" );
+            w.write( "  <users>\n" );
+            for ( int i = 0; i < users; i++ )
+            {
+                w.write( "    <user>\n      <userId>user" + i + "</userId>\n      <name>First" + i + " Last" + i
+                    + "</name>\n      <password>b2a0e378437817cebdf753d7dff3dd75483af9e0</password>\n"
+                    + "      <status>active</status>\n      <email>user" + i + "@example.com</email>\n"
+                    + "      <roles>\n        <role>role" + ( i % 10 ) + "</role>\n      </roles>\n    </user>\n" );
+            }
+            w.write( "  </users>\n</nexusSecurity>\n" );
+        }
+        finally
+        {
+            IOUtil.close( w );
+        }
+    }
 }
@@ -0,0 +1,72 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.model.upgrade;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+
+import org.sonatype.security.model.Configuration;
+
+/**
+ * Times upgrading generated 1.0.0 configurations to the current model, and reports the heap used afterwards. Not run
+ * by the build, run the main method with the user counts as arguments (default 100000 and 500000, the latter needs
+ * about 2 GB of heap).
+ */
+public class SecurityConfigurationUpgraderBenchmark
+{
+    private static final int ROUNDS = 3;
+
+    public static void main( String[] args )
+        throws Exception
+    {
+        if ( args.length == 0 )
+        {
+            args = new String[] { "100000", "500000" };
+        }
+
+        Map<String, SecurityDataUpgrader> dataUpgraders = Collections.emptyMap();
+        Map<String, SecurityUpgrader> upgraders = SecurityConfigurationUpgraderMemoryTest.upgraders();
+        SecurityConfigurationUpgrader upgrader = new DefaultSecurityConfigurationUpgrader( upgraders, dataUpgraders );
+
+        for ( String arg : args )
+        {
+            int users = Integer.parseInt( arg );
+
+            File file = File.createTempFile( "security-100-" + users, ".xml" );
+            file.deleteOnExit();
+
+            DefaultSecurityConfigurationUpgraderTest.write100( file, users );
+
+            System.out.println( users + " users, " + ( file.length() / 1024 ) + " KB" );
+
+            for ( int round = 0; round < ROUNDS; round++ )
+            {
+                long start = System.nanoTime();
+
+                Configuration configuration = upgrader.loadOldConfiguration( file );
+
+                long time = ( System.nanoTime() - start ) / 1000000;
+
+                System.gc();
+                Runtime runtime = Runtime.getRuntime();
+                long heap = ( runtime.totalMemory() - runtime.freeMemory() ) / ( 1024 * 1024 );
+
+                System.out.println( "  round " + round + ": " + time + " ms, " + configuration.getUsers().size()
+                    + " users, " + heap + " MB heap in use" );
+            }
+
+            file.delete();
+        }
+    }
+}
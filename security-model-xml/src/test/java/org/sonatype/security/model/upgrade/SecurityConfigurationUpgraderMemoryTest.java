@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.model.upgrade;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.sonatype.configuration.upgrade.ConfigurationIsCorruptedException;
+import org.sonatype.configuration.upgrade.UpgradeMessage;
+import org.sonatype.security.model.Configuration;
+
+/**
+ * Checks that upgrading holds no more than two adjacent model versions at a time. The build runs this test in a JVM of
+ * its own with a 112 MB heap: upgrading 100000 users needs about 96 MB, keeping every intermediate model needs more
+ * than 128 MB.
+ */
+public class SecurityConfigurationUpgraderMemoryTest
+    extends TestCase
+{
+    private final File dir = new File( "target/SecurityConfigurationUpgraderMemoryTest" );
+
+    private final Map<String, SecurityDataUpgrader> dataUpgraders = Collections.emptyMap();
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        FileUtils.deleteDirectory( dir );
+        dir.mkdirs();
+    }
+
+    public void testLargeFileUpgradesInBoundedHeap()
+        throws Exception
+    {
+        File file = new File( dir, "security.xml" );
+        DefaultSecurityConfigurationUpgraderTest.write100( file, 100000 );
+
+        Configuration configuration =
+            new DefaultSecurityConfigurationUpgrader( upgraders(), dataUpgraders ).loadOldConfiguration( file );
+
+        assertEquals( Configuration.MODEL_VERSION, configuration.getVersion() );
+        assertEquals( 100000, configuration.getUsers().size() );
+    }
+
+    public void testEachStepReleasesTheModelBeforeIt()
+        throws Exception
+    {
+        File file = new File( dir, "security.xml" );
+        DefaultSecurityConfigurationUpgraderTest.write100( file, 1000 );
+
+        final List<WeakReference<Object>> models = new ArrayList<WeakReference<Object>>();
+
+        Map<String, SecurityUpgrader> upgraders = new HashMap<String, SecurityUpgrader>();
+        for ( Map.Entry<String, SecurityUpgrader> entry : upgraders().entrySet() )
+        {
+            final String version = entry.getKey();
+            final SecurityUpgrader upgrader = entry.getValue();
+
+            upgraders.put( version, new SecurityUpgrader()
+            {
+                public Object loadConfiguration( File file )
+                    throws IOException, ConfigurationIsCorruptedException
+                {
+                    Object configuration = upgrader.loadConfiguration( file );
+                    models.add( new WeakReference<Object>( configuration ) );
+                    return configuration;
+                }
+
+                public void upgrade( UpgradeMessage message )
+                    throws ConfigurationIsCorruptedException
+                {
+                    assertOnlyLastReachable( "upgrading " + version, models );
+                    upgrader.upgrade( message );
+                    models.add( new WeakReference<Object>( message.getConfiguration() ) );
+                }
+            } );
+        }
+
+        Configuration configuration =
+            new DefaultSecurityConfigurationUpgrader( upgraders, dataUpgraders ).loadOldConfiguration( file );
+
+        assertEquals( 1000, configuration.getUsers().size() );
+        assertEquals( 7, models.size() );
+        assertOnlyLastReachable( "upgraded", models );
+        assertSame( configuration, models.get( models.size() - 1 ).get() );
+    }
+
+    private static void assertOnlyLastReachable( String message, List<WeakReference<Object>> models )
+    {
+        for ( int i = 0; i < 10 && !onlyLastReachable( models ); i++ )
+        {
+            System.gc();
+        }
+
+        assertTrue( message + ": a model of an earlier version is still reachable", onlyLastReachable( models ) );
+    }
+
+    private static boolean onlyLastReachable( List<WeakReference<Object>> models )
+    {
+        for ( int i = 0; i < models.size() - 1; i++ )
+        {
+            if ( models.get( i ).get() != null )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static Map<String, SecurityUpgrader> upgraders()
+    {
+        Map<String, SecurityUpgrader> upgraders = new HashMap<String, SecurityUpgrader>();
+        upgraders.put( "1.0.0", new Upgrade100to200() );
+        upgraders.put( "2.0.0", new Upgrade200to201() );
+        upgraders.put( "2.0.1", new Upgrade201to202() );
+        upgraders.put( "2.0.2", new Upgrade202to203() );
+        upgraders.put( "2.0.3", new Upgrade203to204() );
+        upgraders.put( "2.0.4", new Upgrade204to205() );
+        return upgraders;
+    }
+}
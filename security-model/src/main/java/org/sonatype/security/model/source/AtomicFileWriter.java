@@ -0,0 +1,139 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.model.source;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+/**
+ * Replaces a file through a temporary file in the same directory, that is forced to disk and then moved in place, so a
+ * crash while writing leaves either the old or the new file, but never a partially written one.
+ * <p>
+ * The move itself is not forced to disk, as the directory cannot be synced from Java 6: after a power loss right after
+ * the write, the old file may be found again. Where a rename cannot replace the file (Windows) it is deleted first,
+ * and a crash in between leaves only the temporary file.
+ * 
+ * @since 2.8
+ */
+public class AtomicFileWriter
+{
+    /**
+     * The content of a file.
+     */
+    public interface Content
+    {
+        /**
+         * Writes the content to the stream, that may be closed or not.
+         */
+        void writeTo( OutputStream os )
+            throws IOException;
+    }
+
+    private final File file;
+
+    private final boolean force;
+
+    /**
+     * Creates a writer forcing the content to disk before moving it in place.
+     */
+    public AtomicFileWriter( final File file )
+    {
+        this( file, true );
+    }
+
+    /**
+     * Creates a writer, forcing the content to disk or not, as files that can be rebuilt do not need to be durable.
+     */
+    public AtomicFileWriter( final File file, final boolean force )
+    {
+        this.file = file;
+        this.force = force;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Writes the content to a temporary file and moves it in place, the temporary file is deleted if anything fails.
+     */
+    public void write( final Content content )
+        throws IOException
+    {
+        final File tempFile = File.createTempFile( file.getName(), ".tmp", file.getParentFile() );
+
+        try
+        {
+            final FileChannel channel = new FileOutputStream( tempFile ).getChannel();
+
+            // the content may close the stream, force it to disk right before that
+            final OutputStream os = new BufferedOutputStream( Channels.newOutputStream( channel ) )
+            {
+                private boolean closed;
+
+                @Override
+                public void close()
+                    throws IOException
+                {
+                    if ( closed )
+                    {
+                        return;
+                    }
+                    closed = true;
+
+                    try
+                    {
+                        flush();
+                        if ( force )
+                        {
+                            channel.force( true );
+                        }
+                    }
+                    finally
+                    {
+                        super.close();
+                    }
+                }
+            };
+
+            try
+            {
+                content.writeTo( os );
+                os.close();
+            }
+            finally
+            {
+                // no-op if the stream was closed, the content is not forced then
+                channel.close();
+            }
+
+            // File.renameTo replaces the target atomically on POSIX, but not at all on Windows
+            if ( !tempFile.renameTo( file ) && !( file.delete() && tempFile.renameTo( file ) ) )
+            {
+                throw new IOException( "Could not move " + tempFile.getAbsolutePath() + " to "
+                    + file.getAbsolutePath() );
+            }
+        }
+        finally
+        {
+            // left over only if something failed
+            tempFile.delete();
+        }
+    }
+}
@@ -13,6 +13,10 @@
 package org.sonatype.security.realms.validator;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -94,16 +98,32 @@ public class DefaultConfigurationValidator
 
         if ( users != null )
         {
-            for ( CUser user : users )
+            // the roles of the users from the default source, indexed once instead of scanning mappings per user
+            Map<String, Set<String>> userRoles = new HashMap<String, Set<String>>();
+
+            for ( CUserRoleMapping userRoleMapping : (List<CUserRoleMapping>) model.getUserRoleMappings() )
             {
-                Set<String> roleIds = new HashSet<String>();
-                for ( CUserRoleMapping userRoleMapping : (List<CUserRoleMapping>) model.getUserRoleMappings() )
+                if ( userRoleMapping.getUserId() != null && DEFAULT_SOURCE.equals( userRoleMapping.getSource() ) )
                 {
-                    if ( userRoleMapping.getUserId() != null && userRoleMapping.getUserId().equals( user.getId() )
-                        && ( DEFAULT_SOURCE.equals( userRoleMapping.getSource() ) ) )
+                    Set<String> roleIds = userRoles.get( userRoleMapping.getUserId() );
+
+                    if ( roleIds == null )
                     {
-                        roleIds.addAll( userRoleMapping.getRoles() );
+                        roleIds = new HashSet<String>();
+                        userRoles.put( userRoleMapping.getUserId(), roleIds );
                     }
+
+                    roleIds.addAll( userRoleMapping.getRoles() );
+                }
+            }
+
+            for ( CUser user : users )
+            {
+                Set<String> roleIds = userRoles.get( user.getId() );
+
+                if ( roleIds == null )
+                {
+                    roleIds = new HashSet<String>();
                 }
 
                 response.append( validateUser( context, user, roleIds, false ) );
@@ -193,84 +213,263 @@ public class DefaultConfigurationValidator
 
         if ( context.getExistingRoleIds() != null )
         {
+            final Set<String> existingIds = new HashSet<String>( context.getExistingRoleIds() );
+
+            final Map<String, List<String>> containment = getRoleContainment( existingIds, context );
+
+            final Map<String, String> recursiveRoles = findRecursiveRoles( containment );
+
             for ( String roleId : context.getExistingRoleIds() )
             {
-                response.append( isRecursive( roleId, roleId, ctx ) );
+                validateContainedRoles( response, roleId, containment.get( roleId ), existingIds,
+                                        recursiveRoles.get( roleId ), context );
             }
         }
 
         return response;
     }
 
-    private boolean isRoleNameAlreadyInUse( Map<String, String> existingRoleNameMap, CRole role )
+    /**
+     * Validates the roles contained by one role, within the full context, walking the roles it contains once. Only the
+     * roles visited are read from the containment map of the context, as reading a role may copy its contained roles.
+     */
+    private ValidationResponse validateRoleContainment( SecurityValidationContext ctx, String roleId )
     {
-        for ( String roleId : existingRoleNameMap.keySet() )
+        ValidationResponse response = new ValidationResponse();
+
+        // the lists of the contexts look up their elements in constant time
+        final Collection<String> existingIds = ctx.getExistingRoleIds();
+
+        final Map<String, List<String>> containment = ctx.getRoleContainmentMap();
+
+        validateContainedRoles( response, roleId, containment.get( roleId ), existingIds,
+                                findContainingRole( containment, existingIds, roleId ), ctx );
+
+        return response;
+    }
+
+    /**
+     * Returns the roles contained by each existing role, reading the containment map of the context once per role.
+     */
+    private Map<String, List<String>> getRoleContainment( Set<String> existingIds, SecurityValidationContext ctx )
+    {
+        final Map<String, List<String>> containment = new HashMap<String, List<String>>( existingIds.size() * 2 );
+
+        for ( String roleId : existingIds )
         {
-            if ( roleId.equals( role.getId() ) )
+            final List<String> containedRoles = ctx.getRoleContainmentMap().get( roleId );
+
+            if ( containedRoles == null )
             {
-                continue;
+                containment.put( roleId, Collections.<String> emptyList() );
             }
-            if ( existingRoleNameMap.get( roleId ).equals( role.getName() ) )
+            else
             {
-                return true;
+                containment.put( roleId, containedRoles );
             }
         }
-        return false;
+
+        return containment;
     }
 
-    private String getRoleTextForDisplay( String roleId, SecurityValidationContext ctx )
+    /**
+     * Finds the roles containing themselves, as the roles of the strongly connected components of the containment
+     * graph that have a cycle, with Tarjan's algorithm. Iterative, as role hierarchies may be too deep to recurse.
+     * Returns for each such role the role of its component that contains it directly, the role itself for a role
+     * containing itself.
+     */
+    private Map<String, String> findRecursiveRoles( Map<String, List<String>> containment )
     {
-        String name = ctx.getExistingRoleNameMap().get( roleId );
+        final int count = containment.size();
+        final String[] ids = containment.keySet().toArray( new String[count] );
+        final Map<String, Integer> numbers = new HashMap<String, Integer>( count * 2 );
 
-        if ( StringUtils.isEmpty( name ) )
+        for ( int i = 0; i < count; i++ )
         {
-            return roleId;
+            numbers.put( ids[i], i );
         }
 
-        return name;
-    }
+        // contained roles by number, invalid ones left out
+        final int[][] edges = new int[count][];
 
-    private ValidationResponse isRecursive( String baseRoleId, String roleId, SecurityValidationContext ctx )
-    {
-        ValidationResponse response = new ValidationResponse();
+        for ( int i = 0; i < count; i++ )
+        {
+            final List<String> containedRoles = containment.get( ids[i] );
+            final int[] targets = new int[containedRoles.size()];
+            int length = 0;
 
-        List<String> containedRoles = ctx.getRoleContainmentMap().get( roleId );
+            for ( String containedRoleId : containedRoles )
+            {
+                final Integer target = numbers.get( containedRoleId );
 
-        for ( String containedRoleId : containedRoles )
+                if ( target != null )
+                {
+                    targets[length++] = target;
+                }
+            }
+
+            edges[i] = length == targets.length ? targets : Arrays.copyOf( targets, length );
+        }
+
+        final int[] index = new int[count];
+        final int[] lowLink = new int[count];
+        final int[] component = new int[count];
+        final boolean[] onStack = new boolean[count];
+        final int[] stack = new int[count];
+        final int[] callNodes = new int[count];
+        final int[] callEdges = new int[count];
+
+        Arrays.fill( index, -1 );
+
+        int stackSize = 0;
+        int nextIndex = 0;
+        int nextComponent = 0;
+
+        for ( int root = 0; root < count; root++ )
         {
-            // Only need to do this on the first level
-            if ( baseRoleId.equals( roleId ) )
+            if ( index[root] != -1 )
             {
-                if ( !ctx.getExistingRoleIds().contains( roleId ) )
+                continue;
+            }
+
+            index[root] = lowLink[root] = nextIndex++;
+            stack[stackSize++] = root;
+            onStack[root] = true;
+            callNodes[0] = root;
+            callEdges[0] = 0;
+            int depth = 1;
+
+            while ( depth > 0 )
+            {
+                final int node = callNodes[depth - 1];
+
+                if ( callEdges[depth - 1] < edges[node].length )
                 {
-                    ValidationMessage message =
-                        new ValidationMessage( "roles", "Role '" + getRoleTextForDisplay( baseRoleId, ctx )
-                            + "' contains an invalid role", "Role cannot contain invalid role '"
-                            + getRoleTextForDisplay( roleId, ctx ) + "'." );
+                    final int target = edges[node][callEdges[depth - 1]++];
 
-                    response.addValidationWarning( message );
+                    if ( index[target] == -1 )
+                    {
+                        index[target] = lowLink[target] = nextIndex++;
+                        stack[stackSize++] = target;
+                        onStack[target] = true;
+                        callNodes[depth] = target;
+                        callEdges[depth] = 0;
+                        depth++;
+                    }
+                    else if ( onStack[target] )
+                    {
+                        lowLink[node] = Math.min( lowLink[node], index[target] );
+                    }
+                }
+                else
+                {
+                    depth--;
+
+                    if ( lowLink[node] == index[node] )
+                    {
+                        int member;
+                        do
+                        {
+                            member = stack[--stackSize];
+                            onStack[member] = false;
+                            component[member] = nextComponent;
+                        }
+                        while ( member != node );
+
+                        nextComponent++;
+                    }
+
+                    if ( depth > 0 )
+                    {
+                        final int parent = callNodes[depth - 1];
+                        lowLink[parent] = Math.min( lowLink[parent], lowLink[node] );
+                    }
                 }
             }
+        }
 
-            if ( containedRoleId.equals( baseRoleId ) )
+        // a role is on a cycle if and only if a role of its own component contains it
+        final Map<String, String> recursiveRoles = new HashMap<String, String>();
+
+        for ( int i = 0; i < count; i++ )
+        {
+            for ( int target : edges[i] )
             {
-                ValidationMessage message =
-                    new ValidationMessage( "roles", "Role '" + getRoleTextForDisplay( baseRoleId, ctx )
-                        + "' contains itself through Role '" + getRoleTextForDisplay( roleId, ctx )
-                        + "'.  This is not valid.", "Role cannot contain itself recursively (via role '"
-                        + getRoleTextForDisplay( roleId, ctx ) + "')." );
+                if ( component[i] == component[target] && !recursiveRoles.containsKey( ids[target] ) )
+                {
+                    recursiveRoles.put( ids[target], ids[i] );
+                }
+            }
+        }
 
-                response.addValidationError( message );
+        return recursiveRoles;
+    }
 
-                break;
+    /**
+     * Returns the role containing the given role that the given role contains, directly or not, {@code null} if the
+     * role does not contain itself. Each role is visited once.
+     */
+    private String findContainingRole( Map<String, List<String>> containment, Collection<String> existingIds,
+                                       String roleId )
+    {
+        final Set<String> visited = new HashSet<String>();
+        final List<String> pending = new ArrayList<String>();
+
+        visited.add( roleId );
+        pending.add( roleId );
+
+        while ( !pending.isEmpty() )
+        {
+            final String current = pending.remove( pending.size() - 1 );
+            final List<String> containedRoles = containment.get( current );
+
+            if ( containedRoles == null )
+            {
+                continue;
             }
 
-            if ( ctx.getExistingRoleIds().contains( containedRoleId ) )
+            for ( String containedRoleId : containedRoles )
             {
-                response.append( isRecursive( baseRoleId, containedRoleId, ctx ) );
+                if ( containedRoleId.equals( roleId ) )
+                {
+                    return current;
+                }
+
+                if ( existingIds.contains( containedRoleId ) && visited.add( containedRoleId ) )
+                {
+                    pending.add( containedRoleId );
+                }
             }
-            // Only need to do this on the first level
-            else if ( baseRoleId.equals( roleId ) )
+        }
+
+        return null;
+    }
+
+    /**
+     * Reports the invalid roles a role contains, and the role it contains itself through if any.
+     */
+    private void validateContainedRoles( ValidationResponse response, String roleId, List<String> containedRoles,
+                                         Collection<String> existingIds, String containingRoleId,
+                                         SecurityValidationContext ctx )
+    {
+        if ( containedRoles == null )
+        {
+            return;
+        }
+
+        for ( String containedRoleId : containedRoles )
+        {
+            if ( !existingIds.contains( roleId ) )
+            {
+                ValidationMessage message =
+                    new ValidationMessage( "roles", "Role '" + getRoleTextForDisplay( roleId, ctx )
+                        + "' contains an invalid role", "Role cannot contain invalid role '"
+                        + getRoleTextForDisplay( roleId, ctx ) + "'." );
+
+                response.addValidationWarning( message );
+            }
+
+            if ( !existingIds.contains( containedRoleId ) )
             {
                 ValidationMessage message =
                     new ValidationMessage( "roles", "Role '" + getRoleTextForDisplay( roleId, ctx )
@@ -282,7 +481,44 @@ public class DefaultConfigurationValidator
             }
         }
 
-        return response;
+        if ( containingRoleId != null )
+        {
+            ValidationMessage message =
+                new ValidationMessage( "roles", "Role '" + getRoleTextForDisplay( roleId, ctx )
+                    + "' contains itself through Role '" + getRoleTextForDisplay( containingRoleId, ctx )
+                    + "'.  This is not valid.", "Role cannot contain itself recursively (via role '"
+                    + getRoleTextForDisplay( containingRoleId, ctx ) + "')." );
+
+            response.addValidationError( message );
+        }
+    }
+
+    private boolean isRoleNameAlreadyInUse( Map<String, String> existingRoleNameMap, CRole role )
+    {
+        for ( String roleId : existingRoleNameMap.keySet() )
+        {
+            if ( roleId.equals( role.getId() ) )
+            {
+                continue;
+            }
+            if ( existingRoleNameMap.get( roleId ).equals( role.getName() ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String getRoleTextForDisplay( String roleId, SecurityValidationContext ctx )
+    {
+        String name = ctx.getExistingRoleNameMap().get( roleId );
+
+        if ( StringUtils.isEmpty( name ) )
+        {
+            return roleId;
+        }
+
+        return name;
     }
 
     public ValidationResponse validateRole( SecurityValidationContext ctx, CRole role, boolean update )
@@ -392,7 +628,7 @@ public class DefaultConfigurationValidator
         // It is expected that a full context is built upon update
         if ( update )
         {
-            response.append( isRecursive( role.getId(), role.getId(), context ) );
+            response.append( validateRoleContainment( context, role.getId() ) );
         }
 
         existingIds.add( role.getId() );
@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.realms.validator;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * A list that counts its elements in a hash map, so {@link #contains(Object)} does not scan it. Validating a model
+ * checks every id against the ids validated so far, that made validating large models quadratic.
+ * 
+ * @since 2.8
+ */
+class IndexedList<E>
+    extends AbstractList<E>
+    implements RandomAccess
+{
+    private final List<E> elements = new ArrayList<E>();
+
+    private final Map<Object, Integer> counts = new HashMap<Object, Integer>();
+
+    @Override
+    public E get( final int index )
+    {
+        return elements.get( index );
+    }
+
+    @Override
+    public int size()
+    {
+        return elements.size();
+    }
+
+    @Override
+    public boolean contains( final Object o )
+    {
+        return counts.containsKey( o );
+    }
+
+    @Override
+    public int indexOf( final Object o )
+    {
+        return contains( o ) ? elements.indexOf( o ) : -1;
+    }
+
+    @Override
+    public int lastIndexOf( final Object o )
+    {
+        return contains( o ) ? elements.lastIndexOf( o ) : -1;
+    }
+
+    @Override
+    public E set( final int index, final E element )
+    {
+        final E previous = elements.set( index, element );
+
+        uncount( previous );
+        count( element );
+
+        return previous;
+    }
+
+    @Override
+    public void add( final int index, final E element )
+    {
+        elements.add( index, element );
+        modCount++;
+
+        count( element );
+    }
+
+    @Override
+    public E remove( final int index )
+    {
+        final E previous = elements.remove( index );
+        modCount++;
+
+        uncount( previous );
+
+        return previous;
+    }
+
+    @Override
+    public void clear()
+    {
+        elements.clear();
+        counts.clear();
+        modCount++;
+    }
+
+    private void count( final E element )
+    {
+        final Integer count = counts.get( element );
+
+        counts.put( element, count == null ? 1 : count + 1 );
+    }
+
+    private void uncount( final E element )
+    {
+        final Integer count = counts.get( element );
+
+        if ( count == null || count == 1 )
+        {
+            counts.remove( element );
+        }
+        else
+        {
+            counts.put( element, count - 1 );
+        }
+    }
+}
@@ -12,7 +12,6 @@
  */
 package org.sonatype.security.realms.validator;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -40,7 +39,7 @@ public class SecurityValidationContext
     {
         if ( this.existingPrivilegeIds == null )
         {
-            this.existingPrivilegeIds = new ArrayList<String>();
+            this.existingPrivilegeIds = new IndexedList<String>();
         }
     }
 
@@ -48,7 +47,7 @@ public class SecurityValidationContext
     {
         if ( this.existingRoleIds == null )
         {
-            this.existingRoleIds = new ArrayList<String>();
+            this.existingRoleIds = new IndexedList<String>();
         }
 
         if ( this.roleContainmentMap == null )
@@ -71,7 +70,7 @@ public class SecurityValidationContext
     {
         if ( this.existingUserIds == null )
         {
-            this.existingUserIds = new ArrayList<String>();
+            this.existingUserIds = new IndexedList<String>();
         }
 
         if ( this.existingEmailMap == null )
@@ -30,7 +30,6 @@ import org.apache.shiro.authc.UsernamePasswordToken;
 import org.apache.shiro.authz.AuthorizationException;
 import org.apache.shiro.authz.AuthorizationInfo;
 import org.apache.shiro.authz.SimpleAuthorizationInfo;
-import org.apache.shiro.realm.AuthorizingRealm;
 import org.apache.shiro.realm.Realm;
 import org.apache.shiro.subject.PrincipalCollection;
 import org.codehaus.plexus.util.StringUtils;
@@ -45,9 +44,11 @@ import org.restlet.data.Method;
 import org.restlet.data.Protocol;
 import org.restlet.data.Request;
 import org.restlet.data.Response;
+import org.restlet.data.Status;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonatype.inject.Description;
+import org.sonatype.security.authorization.AbstractDecidingRealm;
 import org.sonatype.security.realms.kenai.config.KenaiRealmConfiguration;
 
 /**
@@ -60,7 +61,7 @@ import org.sonatype.security.realms.kenai.config.KenaiRealmConfiguration;
 @Named( "kenai" )
 @Description( "Kenai Realm" )
 public class KenaiRealm
-    extends AuthorizingRealm
+    extends AbstractDecidingRealm
 {
     private final Logger logger = LoggerFactory.getLogger( getClass() );
 
@@ -166,8 +167,18 @@ public class KenaiRealm
 
     // ------------ AUTHORIZATION ------------
 
+    /**
+     * Returns {@code true} only for the principals authenticated by this realm, so users of other realms are not
+     * looked up remotely.
+     */
     @Override
-    protected AuthorizationInfo doGetAuthorizationInfo( PrincipalCollection principals )
+    public boolean isAuthorizing( String realmName )
+    {
+        return getName().equals( realmName );
+    }
+
+    @Override
+    protected AuthorizationInfo doGetApplicableAuthorizationInfo( PrincipalCollection principals )
     {
         try
         {
@@ -207,9 +218,15 @@ public class KenaiRealm
             }
         }
 
+        // only a user unknown by kenai is not managed here, other failures must not be cached as such
+        if ( Status.CLIENT_ERROR_NOT_FOUND.equals( response.getStatus() ) )
+        {
+            this.logger.debug( "User: {} is not known for url: {}", username, response.getRequest().getResourceRef() );
+            return null;
+        }
+
         throw new AuthorizationException( "Failed to authorize user: " + username + " for url: "
             + response.getRequest().getResourceRef() + " status:" + response.getStatus() );
-
     }
 
     private AuthorizationInfo buildAuthorizationInfo( String username, String responseText )
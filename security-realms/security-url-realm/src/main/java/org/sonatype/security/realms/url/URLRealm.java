@@ -26,10 +26,8 @@ import org.apache.shiro.authc.AuthenticationInfo;
 import org.apache.shiro.authc.AuthenticationToken;
 import org.apache.shiro.authc.SimpleAuthenticationInfo;
 import org.apache.shiro.authc.UsernamePasswordToken;
-import org.apache.shiro.authz.AuthorizationException;
 import org.apache.shiro.authz.AuthorizationInfo;
 import org.apache.shiro.authz.SimpleAuthorizationInfo;
-import org.apache.shiro.realm.AuthorizingRealm;
 import org.apache.shiro.realm.Realm;
 import org.apache.shiro.subject.PrincipalCollection;
 import org.restlet.Client;
@@ -43,6 +41,7 @@ import org.restlet.data.Response;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonatype.inject.Description;
+import org.sonatype.security.authorization.AbstractDecidingRealm;
 import org.sonatype.security.realms.url.config.UrlRealmConfiguration;
 import org.sonatype.security.usermanagement.UserManager;
 import org.sonatype.security.usermanagement.UserNotFoundException;
@@ -59,7 +58,7 @@ import org.sonatype.security.usermanagement.UserNotFoundException;
 @Named( "url" )
 @Description( "URL Realm" )
 public class URLRealm
-    extends AuthorizingRealm
+    extends AbstractDecidingRealm
 {
     private final Logger logger = LoggerFactory.getLogger( getClass() );
 
@@ -145,14 +144,8 @@ public class URLRealm
     }
 
     @Override
-    protected AuthorizationInfo doGetAuthorizationInfo( PrincipalCollection principals )
+    protected AuthorizationInfo doGetApplicableAuthorizationInfo( PrincipalCollection principals )
     {
-
-        if ( principals == null )
-        {
-            throw new AuthorizationException( "Cannot authorize with no principals." );
-        }
-
         String username = (String) principals.iterator().next();
 
         // we need to make sure the user can be managed by this realm
@@ -160,12 +153,14 @@ public class URLRealm
         {
             if ( this.userManager.getUser( username ) == null )
             {
-                throw new AuthorizationException( "User '" + username + "' is not managed by this realm." );
+                this.logger.trace( "User '" + username + "' is not managed by this realm." );
+                return null;
             }
         }
         catch ( UserNotFoundException e )
         {
-            throw new AuthorizationException( "User '" + username + "' is not managed by this realm.", e );
+            this.logger.trace( "User '" + username + "' is not managed by this realm." );
+            return null;
         }
 
         // we don't have a list of users for this realm, so the default role effects ALL users
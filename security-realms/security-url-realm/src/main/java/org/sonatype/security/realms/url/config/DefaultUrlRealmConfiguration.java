@@ -37,6 +37,7 @@ import org.sonatype.configuration.validation.InvalidConfigurationException;
 import org.sonatype.configuration.validation.ValidationMessage;
 import org.sonatype.configuration.validation.ValidationResponse;
 import org.sonatype.security.SecuritySystem;
+import org.sonatype.security.watch.SecurityFileWatcher;
 
 import com.sonatype.security.realms.url.config.model.Configuration;
 import com.sonatype.security.realms.url.config.model.io.xpp3.UrlRealmConfigurationXpp3Reader;
@@ -58,12 +59,24 @@ public class DefaultUrlRealmConfiguration
 
     private ReentrantLock lock = new ReentrantLock();
 
+    private final SecurityFileWatcher fileWatcher;
+
     @Inject
     public DefaultUrlRealmConfiguration( SecuritySystem securitySystem,
-                                         @Named( "${application-conf}/url-realm.xml" ) File configurationFile )
+                                         @Named( "${application-conf}/url-realm.xml" ) File configurationFile,
+                                         SecurityFileWatcher fileWatcher )
     {
         this.securitySystem = securitySystem;
         this.configurationFile = configurationFile;
+        this.fileWatcher = fileWatcher;
+
+        fileWatcher.watch( configurationFile, new SecurityFileWatcher.Listener()
+        {
+            public void fileChanged( File file )
+            {
+                reload();
+            }
+        } );
     }
 
     public Configuration getConfiguration()
@@ -126,6 +139,10 @@ public class DefaultUrlRealmConfiguration
 
             UrlRealmConfigurationXpp3Writer writer = new UrlRealmConfigurationXpp3Writer();
             writer.write( fileWriter, this.configuration );
+            fileWriter.close();
+
+            // our own write is not an external change
+            fileWatcher.acknowledge( configFile );
         }
         catch ( IOException e )
         {
@@ -133,6 +150,7 @@ public class DefaultUrlRealmConfiguration
         }
         finally
         {
+            IOUtil.close( fileWriter );
             lock.unlock();
         }
 
@@ -165,6 +183,48 @@ public class DefaultUrlRealmConfiguration
 
     }
 
+    /**
+     * Swaps in the configuration file changed outside of the application. The file is parsed without holding the lock,
+     * and the current configuration is kept if it cannot be read.
+     */
+    private void reload()
+    {
+        Reader fileReader = null;
+        try
+        {
+            fileReader = new FileReader( this.getConfigFile() );
+            Configuration newConfig = new UrlRealmConfigurationXpp3Reader().read( fileReader );
+
+            lock.lock();
+            try
+            {
+                // not loaded yet, the next read will pick the new file
+                if ( configuration != null )
+                {
+                    configuration = newConfig;
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            logger.info( "Reloaded Url Realm configuration file: " + this.getConfigFile().getAbsolutePath() );
+        }
+        catch ( IOException e )
+        {
+            logger.error( "IOException while reloading configuration file, keeping the current configuration", e );
+        }
+        catch ( XmlPullParserException e )
+        {
+            logger.error( "Invalid XML Configuration, keeping the current configuration", e );
+        }
+        finally
+        {
+            IOUtil.close( fileReader );
+        }
+    }
+
     private ValidationResponse validateConfig( Configuration config )
     {
         ValidationResponse response = new ValidationResponse();
@@ -0,0 +1,218 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.realms;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.sonatype.security.model.CPrivilege;
+import org.sonatype.security.model.CRole;
+
+/**
+ * Dictionary encoding of the privileges of a (merged) security configuration. Every privilege gets a dense int ID, in
+ * the order the privileges are listed, and the effective privileges of every role (the privileges of the role and of
+ * all the roles it contains, recursively) are kept as a {@link BitSet} of those IDs. Roles having the same effective
+ * privileges have equal bitsets, so whatever is built from the privileges of a role can be shared among them.
+ * <p>
+ * Instances are immutable, and describe the configuration they were built from only.
+ * 
+ * @since 2.8
+ */
+public class PrivilegeDictionary
+{
+    private final String[] privilegeIds;
+
+    private final Map<String, Integer> privilegeIndex;
+
+    private final Map<String, BitSet> rolePrivileges;
+
+    public PrivilegeDictionary( Collection<CPrivilege> privileges, Collection<CRole> roles )
+    {
+        this.privilegeIds = new String[privileges.size()];
+        this.privilegeIndex = new HashMap<String, Integer>( privileges.size() * 2 );
+
+        int id = 0;
+        for ( CPrivilege privilege : privileges )
+        {
+            if ( !privilegeIndex.containsKey( privilege.getId() ) )
+            {
+                privilegeIds[id] = privilege.getId();
+                privilegeIndex.put( privilege.getId(), id++ );
+            }
+        }
+
+        // the privileges each role has on its own
+        final Map<String, CRole> roleMap = new HashMap<String, CRole>( roles.size() * 2 );
+        final Map<String, BitSet> directPrivileges = new HashMap<String, BitSet>( roles.size() * 2 );
+        for ( CRole role : roles )
+        {
+            roleMap.put( role.getId(), role );
+
+            BitSet bits = new BitSet( id );
+            for ( String privilegeId : role.getPrivileges() )
+            {
+                Integer privilege = privilegeIndex.get( privilegeId );
+                if ( privilege != null )
+                {
+                    bits.set( privilege );
+                }
+            }
+            directPrivileges.put( role.getId(), bits );
+        }
+
+        this.rolePrivileges = closures( roleMap, directPrivileges );
+    }
+
+    /**
+     * Computes the effective privileges of all the roles at once, with an iterative Tarjan walk of the role graph. The
+     * roles of a cycle share the same privileges, and every strongly connected component is completed before the ones
+     * containing it, so each role is visited once and each containment is a single bitwise or.
+     */
+    private static Map<String, BitSet> closures( Map<String, CRole> roleMap, Map<String, BitSet> directPrivileges )
+    {
+        final Map<String, BitSet> result = new HashMap<String, BitSet>( roleMap.size() * 2 );
+
+        final Map<String, Integer> index = new HashMap<String, Integer>( roleMap.size() * 2 );
+        final Map<String, Integer> lowLink = new HashMap<String, Integer>( roleMap.size() * 2 );
+        final LinkedList<String> component = new LinkedList<String>();
+        final Set<String> onComponent = new HashSet<String>();
+
+        final LinkedList<String> path = new LinkedList<String>();
+        final LinkedList<Iterator<String>> pathChildren = new LinkedList<Iterator<String>>();
+
+        for ( String rootId : roleMap.keySet() )
+        {
+            if ( index.containsKey( rootId ) )
+            {
+                continue;
+            }
+
+            visit( rootId, roleMap, index, lowLink, component, onComponent, path, pathChildren );
+
+            while ( !path.isEmpty() )
+            {
+                final String roleId = path.getLast();
+                final Iterator<String> children = pathChildren.getLast();
+
+                if ( children.hasNext() )
+                {
+                    final String childId = children.next();
+
+                    // skip unknown roles
+                    if ( !roleMap.containsKey( childId ) )
+                    {
+                        continue;
+                    }
+
+                    if ( !index.containsKey( childId ) )
+                    {
+                        visit( childId, roleMap, index, lowLink, component, onComponent, path, pathChildren );
+                    }
+                    else if ( onComponent.contains( childId ) )
+                    {
+                        lowLink.put( roleId, Math.min( lowLink.get( roleId ), index.get( childId ) ) );
+                    }
+                    continue;
+                }
+
+                path.removeLast();
+                pathChildren.removeLast();
+
+                if ( lowLink.get( roleId ).equals( index.get( roleId ) ) )
+                {
+                    // roleId is the root of a component, the components it contains are complete already
+                    final List<String> members = new ArrayList<String>();
+                    String memberId;
+                    do
+                    {
+                        memberId = component.removeLast();
+                        onComponent.remove( memberId );
+                        members.add( memberId );
+                    }
+                    while ( !memberId.equals( roleId ) );
+
+                    final BitSet bits = new BitSet();
+                    for ( String member : members )
+                    {
+                        bits.or( directPrivileges.get( member ) );
+                        for ( String childId : roleMap.get( member ).getRoles() )
+                        {
+                            BitSet childBits = result.get( childId );
+                            if ( childBits != null )
+                            {
+                                bits.or( childBits );
+                            }
+                        }
+                    }
+                    for ( String member : members )
+                    {
+                        result.put( member, bits );
+                    }
+                }
+
+                if ( !path.isEmpty() )
+                {
+                    final String parentId = path.getLast();
+                    lowLink.put( parentId, Math.min( lowLink.get( parentId ), lowLink.get( roleId ) ) );
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private static void visit( String roleId, Map<String, CRole> roleMap, Map<String, Integer> index,
+                               Map<String, Integer> lowLink, LinkedList<String> component, Set<String> onComponent,
+                               LinkedList<String> path, LinkedList<Iterator<String>> pathChildren )
+    {
+        final Integer id = index.size();
+        index.put( roleId, id );
+        lowLink.put( roleId, id );
+        component.add( roleId );
+        onComponent.add( roleId );
+        path.add( roleId );
+        pathChildren.add( roleMap.get( roleId ).getRoles().iterator() );
+    }
+
+    /**
+     * Returns the count of privileges, the IDs are in the range of 0 (inclusive) and this value (exclusive).
+     */
+    public int size()
+    {
+        return privilegeIndex.size();
+    }
+
+    /**
+     * Returns the privilege ID for the int ID.
+     */
+    public String getPrivilegeId( int id )
+    {
+        return privilegeIds[id];
+    }
+
+    /**
+     * Returns the role to effective privileges map, for use by this package only, bitsets must not be modified.
+     */
+    Map<String, BitSet> getRolePrivileges()
+    {
+        return rolePrivileges;
+    }
+}
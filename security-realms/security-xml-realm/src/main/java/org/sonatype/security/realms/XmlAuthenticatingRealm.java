@@ -12,6 +12,10 @@
  */
 package org.sonatype.security.realms;
 
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+
 import javax.enterprise.inject.Typed;
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -23,20 +27,38 @@ import org.apache.shiro.authc.AuthenticationInfo;
 import org.apache.shiro.authc.AuthenticationToken;
 import org.apache.shiro.authc.DisabledAccountException;
 import org.apache.shiro.authc.SimpleAuthenticationInfo;
+import org.apache.shiro.authc.UnknownAccountException;
 import org.apache.shiro.authc.UsernamePasswordToken;
 import org.apache.shiro.authz.AuthorizationInfo;
 import org.apache.shiro.realm.AuthorizingRealm;
 import org.apache.shiro.realm.Realm;
 import org.apache.shiro.subject.PrincipalCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.sonatype.inject.Description;
+import org.sonatype.plexus.appevents.ApplicationEventMulticaster;
+import org.sonatype.plexus.appevents.Event;
+import org.sonatype.plexus.appevents.EventListener;
+import org.sonatype.security.events.UserPrincipalsExpiredEvent;
 import org.sonatype.security.model.CUser;
+import org.sonatype.security.model.CUserRoleMapping;
+import org.sonatype.security.realms.tools.CachingCredentialsMatcher;
 import org.sonatype.security.realms.tools.ConfigurationManager;
-import org.sonatype.security.realms.tools.Sha1ThenMd5CredentialsMatcher;
+import org.sonatype.security.realms.tools.NoSuchRoleMappingException;
+import org.sonatype.security.usermanagement.PasswordService;
 import org.sonatype.security.usermanagement.UserNotFoundException;
+import org.sonatype.security.usermanagement.xml.SecurityXmlUserManager;
 
 /**
  * An Authentication Realm backed by an XML file see the security-model-xml module. This model defines users, roles, and
  * privileges. This realm ONLY handles authentication.
+ * <p>
+ * Recently verified credentials are remembered (see {@link CachingCredentialsMatcher}), up to the count of users set by
+ * the {@code security-xml-verified-credentials} property (1000 by default, 0 disables it). They are forgotten on
+ * {@link UserPrincipalsExpiredEvent}, and when the stored password of the user changes.
+ * <p>
+ * Passwords are verified by the {@link PasswordService}. When it reports the stored hash of a user who just logged in
+ * as outdated, the password is hashed again and stored.
  * 
  * @author Brian Demers
  */
@@ -46,17 +68,29 @@ import org.sonatype.security.usermanagement.UserNotFoundException;
 @Description( "Xml Authenticating Realm" )
 public class XmlAuthenticatingRealm
     extends AuthorizingRealm
-    implements Realm
+    implements Realm, EventListener
 {
     public static final String ROLE = "XmlAuthenticatingRealm";
 
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
     private ConfigurationManager configuration;
 
+    private final PasswordService passwordService;
+
+    private final CachingCredentialsMatcher credentialsMatcher;
+
     @Inject
-    public XmlAuthenticatingRealm( @Named( "resourceMerging" ) ConfigurationManager configuration )
+    public XmlAuthenticatingRealm( @Named( "resourceMerging" ) ConfigurationManager configuration,
+                                   ApplicationEventMulticaster eventMulticaster, PasswordService passwordService,
+                                   @Named( "${security-xml-verified-credentials:-1000}" ) int verifiedCredentials )
     {
         this.configuration = configuration;
-        setCredentialsMatcher( new Sha1ThenMd5CredentialsMatcher() );
+        this.passwordService = passwordService;
+        this.credentialsMatcher = new CachingCredentialsMatcher( passwordService, verifiedCredentials );
+        setCredentialsMatcher( credentialsMatcher );
+
+        eventMulticaster.addEventListener( this );
     }
 
     @Override
@@ -78,7 +112,7 @@ public class XmlAuthenticatingRealm
         }
         catch ( UserNotFoundException e )
         {
-            throw new AccountException( "User '" + upToken.getUsername() + "' cannot be retrieved.", e );
+            throw new UnknownAccountException( "User '" + upToken.getUsername() + "' cannot be retrieved.", e );
         }
 
         if ( user.getPassword() == null )
@@ -101,6 +135,73 @@ public class XmlAuthenticatingRealm
         }
     }
 
+    @Override
+    protected void assertCredentialsMatch( AuthenticationToken token, AuthenticationInfo info )
+        throws AuthenticationException
+    {
+        try
+        {
+            super.assertCredentialsMatch( token, info );
+        }
+        catch ( RejectedExecutionException e )
+        {
+            throw new AuthenticationException( "Too many pending logins, cannot authenticate.", e );
+        }
+
+        String hashedPassword = new String( (char[]) info.getCredentials() );
+
+        if ( passwordService.needsRehash( hashedPassword ) )
+        {
+            UsernamePasswordToken upToken = (UsernamePasswordToken) token;
+            rehashPassword( upToken.getUsername(), hashedPassword, new String( upToken.getPassword() ) );
+        }
+    }
+
+    /**
+     * Stores the password of the user hashed again, unless the stored hash changed meanwhile. Failing to do so does not
+     * fail the login, the password will be hashed again on a later one.
+     */
+    private void rehashPassword( String userId, String hashedPassword, String clearPassword )
+    {
+        try
+        {
+            CUser user = configuration.readUser( userId );
+
+            if ( !hashedPassword.equals( user.getPassword() ) )
+            {
+                return;
+            }
+
+            Set<String> roles = new HashSet<String>();
+            try
+            {
+                CUserRoleMapping userRoleMapping =
+                    configuration.readUserRoleMapping( userId, SecurityXmlUserManager.SOURCE );
+                roles.addAll( userRoleMapping.getRoles() );
+            }
+            catch ( NoSuchRoleMappingException e )
+            {
+                logger.debug( "User: " + userId + " has no roles." );
+            }
+
+            // the user read is the one of the current configuration, update a copy
+            CUser rehashed = new CUser();
+            rehashed.setId( user.getId() );
+            rehashed.setFirstName( user.getFirstName() );
+            rehashed.setLastName( user.getLastName() );
+            rehashed.setEmail( user.getEmail() );
+            rehashed.setStatus( user.getStatus() );
+            rehashed.setPassword( passwordService.hashPassword( clearPassword ) );
+
+            configuration.updateUser( rehashed, roles );
+            configuration.save();
+        }
+        catch ( Exception e )
+        {
+            logger.warn( "Could not store the password of user '" + userId + "' hashed again.", e );
+        }
+    }
+
     @Override
     protected AuthorizationInfo doGetAuthorizationInfo( PrincipalCollection arg0 )
     {
@@ -111,4 +212,22 @@ public class XmlAuthenticatingRealm
     {
         return configuration;
     }
+
+    public void onEvent( Event<?> evt )
+    {
+        if ( UserPrincipalsExpiredEvent.class.isInstance( evt ) )
+        {
+            UserPrincipalsExpiredEvent expiredEvent = (UserPrincipalsExpiredEvent) evt;
+
+            if ( expiredEvent.getUserId() == null )
+            {
+                credentialsMatcher.invalidateAll();
+            }
+            else if ( expiredEvent.getSource() == null
+                || SecurityXmlUserManager.SOURCE.equals( expiredEvent.getSource() ) )
+            {
+                credentialsMatcher.invalidate( expiredEvent.getUserId() );
+            }
+        }
+    }
 }
@@ -12,7 +12,6 @@
  */
 package org.sonatype.security.realms;
 
-import java.util.Collection;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -26,20 +25,26 @@ import org.apache.shiro.authc.AuthenticationException;
 import org.apache.shiro.authc.AuthenticationInfo;
 import org.apache.shiro.authc.AuthenticationToken;
 import org.apache.shiro.authc.credential.Sha1CredentialsMatcher;
-import org.apache.shiro.authz.AuthorizationException;
 import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.authz.Authorizer;
 import org.apache.shiro.authz.SimpleAuthorizationInfo;
-import org.apache.shiro.realm.AuthorizingRealm;
+import org.apache.shiro.authz.permission.PermissionResolver;
+import org.apache.shiro.mgt.AuthorizingSecurityManager;
+import org.apache.shiro.mgt.RealmSecurityManager;
 import org.apache.shiro.realm.Realm;
 import org.apache.shiro.subject.PrincipalCollection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonatype.inject.Description;
 import org.sonatype.security.SecuritySystem;
+import org.sonatype.security.authorization.AbstractDecidingRealm;
+import org.sonatype.security.authorization.ExceptionCatchingModularRealmAuthorizer;
+import org.sonatype.security.authorization.PermissionFactory;
 import org.sonatype.security.usermanagement.RoleIdentifier;
 import org.sonatype.security.usermanagement.RoleMappingUserManager;
 import org.sonatype.security.usermanagement.UserManager;
 import org.sonatype.security.usermanagement.UserNotFoundException;
+import org.sonatype.security.usermanagement.xml.SecurityXmlUserManager;
 
 /**
  * An Authorizing Realm backed by an XML file see the security-model-xml module. This model defines users, roles, and
@@ -52,7 +57,7 @@ import org.sonatype.security.usermanagement.UserNotFoundException;
 @Named( XmlAuthorizingRealm.ROLE )
 @Description( "Xml Authorizing Realm" )
 public class XmlAuthorizingRealm
-    extends AuthorizingRealm
+    extends AbstractDecidingRealm
     implements Realm
 {
     private final Logger logger = LoggerFactory.getLogger( getClass() );
@@ -67,12 +72,19 @@ public class XmlAuthorizingRealm
 
     @Inject
     public XmlAuthorizingRealm( UserManager userManager, SecuritySystem securitySystem,
-                                Map<String, UserManager> userManagerMap )
+                                Map<String, UserManager> userManagerMap,
+                                @Named( "compiled" ) PermissionFactory permissionFactory )
     {
         this.userManager = userManager;
         this.securitySystem = securitySystem;
         this.userManagerMap = userManagerMap;
         setCredentialsMatcher( new Sha1CredentialsMatcher() );
+
+        // checked permissions should be of same kind as the ones resolved from roles, to be matched fast
+        if ( permissionFactory instanceof PermissionResolver )
+        {
+            setPermissionResolver( (PermissionResolver) permissionFactory );
+        }
     }
 
     @Override
@@ -95,13 +107,8 @@ public class XmlAuthorizingRealm
     }
 
     @Override
-    protected AuthorizationInfo doGetAuthorizationInfo( PrincipalCollection principals )
+    protected AuthorizationInfo doGetApplicableAuthorizationInfo( PrincipalCollection principals )
     {
-        if ( principals == null )
-        {
-            throw new AuthorizationException( "Cannot authorize with no principals." );
-        }
-
         String username = principals.getPrimaryPrincipal().toString();
         Set<String> roles = new HashSet<String>();
 
@@ -111,28 +118,46 @@ public class XmlAuthorizingRealm
         if ( !realmNames.contains( this.getName() ) )
         {
             // make sure the realm is enabled
-            Collection<Realm> configureadRealms = this.securitySystem.getSecurityManager().getRealms();
-            boolean foundRealm = false;
-            for ( Realm realm : configureadRealms )
-            {
-                if ( realmNames.contains( realm.getName() ) )
-                {
-                    foundRealm = true;
-                    break;
-                }
-            }
-            if ( !foundRealm )
+            if ( !isEnabledRealm( realmNames ) )
             {
                 // user is from a realm that is NOT enabled
-                throw new AuthorizationException( "User for principals: " + principals.getPrimaryPrincipal()
-                    + " belongs to a disabled realm(s): " + principals.getRealmNames() + "." );
+                logger.trace( "User for principals: {} belongs to a disabled realm(s): {}.",
+                              principals.getPrimaryPrincipal(), principals.getRealmNames() );
+                return null;
             }
         }
 
         // clean up the realm names for processing (replace the Xml*Realm with default)
         cleanUpRealmList( realmNames );
 
-        if ( RoleMappingUserManager.class.isInstance( userManager ) )
+        if ( SecurityXmlUserManager.class.isInstance( userManager ) )
+        {
+            // users with no role mapping in any of the realms are not managed here, found without any exception
+            boolean mapped = false;
+
+            for ( String realmName : realmNames )
+            {
+                Set<RoleIdentifier> roleIdentifiers =
+                    ( (SecurityXmlUserManager) userManager ).findUsersRoles( username, realmName );
+
+                if ( roleIdentifiers != null )
+                {
+                    mapped = true;
+
+                    for ( RoleIdentifier roleIdentifier : roleIdentifiers )
+                    {
+                        roles.add( roleIdentifier.getRoleId() );
+                    }
+                }
+            }
+
+            if ( !mapped )
+            {
+                logger.trace( "User for principals: {} has no role mapping.", principals.getPrimaryPrincipal() );
+                return null;
+            }
+        }
+        else if ( RoleMappingUserManager.class.isInstance( userManager ) )
         {
             for ( String realmName : realmNames )
             {
@@ -165,16 +190,16 @@ public class XmlAuthorizingRealm
             }
             catch ( UserNotFoundException e )
             {
-                throw new AuthorizationException( "User for principals: " + principals.getPrimaryPrincipal()
-                    + " could not be found.", e );
+                logger.trace( "User for principals: {} could not be found.", principals.getPrimaryPrincipal() );
+                return null;
             }
 
         }
         else
         // user not managed by this Realm
         {
-            throw new AuthorizationException( "User for principals: " + principals.getPrimaryPrincipal()
-                + " not manged by XML realm." );
+            logger.trace( "User for principals: {} not managed by XML realm.", principals.getPrimaryPrincipal() );
+            return null;
         }
 
         SimpleAuthorizationInfo info = new SimpleAuthorizationInfo( roles );
@@ -182,6 +207,57 @@ public class XmlAuthorizingRealm
         return info;
     }
 
+    /**
+     * Returns no roles for the users of enabled realms having no role mapping, so the plain Shiro API answers
+     * {@code false} for them as it always did, and throws for the users of disabled realms.
+     */
+    @Override
+    protected AuthorizationInfo getNotApplicableAuthorizationInfo( PrincipalCollection principals )
+    {
+        Set<String> realmNames = principals.getRealmNames();
+
+        if ( SecurityXmlUserManager.class.isInstance( userManager )
+            && ( realmNames.contains( getName() ) || isEnabledRealm( realmNames ) ) )
+        {
+            return new SimpleAuthorizationInfo();
+        }
+
+        return super.getNotApplicableAuthorizationInfo( principals );
+    }
+
+    private boolean isEnabledRealm( Set<String> realmNames )
+    {
+        RealmSecurityManager securityManager = this.securitySystem.getSecurityManager();
+
+        Authorizer authorizer = null;
+        if ( AuthorizingSecurityManager.class.isInstance( securityManager ) )
+        {
+            authorizer = ( (AuthorizingSecurityManager) securityManager ).getAuthorizer();
+        }
+
+        // the authorizer routing table already knows the configured realms
+        if ( ExceptionCatchingModularRealmAuthorizer.class.isInstance( authorizer ) )
+        {
+            for ( String realmName : realmNames )
+            {
+                if ( ( (ExceptionCatchingModularRealmAuthorizer) authorizer ).isRoutedRealm( realmName ) )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        for ( Realm realm : securityManager.getRealms() )
+        {
+            if ( realmNames.contains( realm.getName() ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void cleanUpRealmList( Set<String> realmNames )
     {
         for ( UserManager userManager : this.userManagerMap.values() )
@@ -12,11 +12,14 @@
  */
 package org.sonatype.security.realms;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.enterprise.inject.Typed;
@@ -26,11 +29,16 @@ import javax.inject.Singleton;
 
 import org.apache.shiro.authz.Permission;
 import org.apache.shiro.authz.permission.RolePermissionResolver;
+import org.sonatype.plexus.appevents.ApplicationEventMulticaster;
+import org.sonatype.plexus.appevents.Event;
+import org.sonatype.plexus.appevents.EventListener;
+import org.sonatype.security.authorization.CompiledPermissionFactory;
 import org.sonatype.security.authorization.NoSuchPrivilegeException;
-import org.sonatype.security.authorization.NoSuchRoleException;
 import org.sonatype.security.authorization.PermissionFactory;
+import org.sonatype.security.events.AuthorizationConfigurationChangedEvent;
+import org.sonatype.security.events.AuthorizationConfigurationReloadedEvent;
+import org.sonatype.security.events.SecurityConfigurationChangedEvent;
 import org.sonatype.security.model.CPrivilege;
-import org.sonatype.security.model.CRole;
 import org.sonatype.security.realms.privileges.PrivilegeDescriptor;
 import org.sonatype.security.realms.tools.ConfigurationManager;
 import org.sonatype.security.realms.tools.StaticSecurityResource;
@@ -39,6 +47,16 @@ import org.sonatype.security.realms.tools.StaticSecurityResource;
  * The default implementation of the RolePermissionResolver which reads roles from {@link StaticSecurityResource}s to
  * resolve a role into a collection of permissions. This class allows Realm implementations to no know what/how there
  * roles are used.
+ * <p>
+ * The transitive closure of every role (the role itself and all the roles it contains, recursively) is flattened into
+ * an index of effective permissions, built from the merged configuration on first use. The index is dropped whenever
+ * an {@link AuthorizationConfigurationChangedEvent} or {@link SecurityConfigurationChangedEvent} is received, and is
+ * rebuilt on the next lookup, hence resolving a role is a single map lookup as long as the configuration does not
+ * change. On an {@link AuthorizationConfigurationReloadedEvent} changing roles or privileges, the index is rebuilt
+ * right away and replaces the previous one once ready. Effective role privileges are computed by a
+ * {@link PrivilegeDictionary}, and roles having the same effective privileges share the same permission instances.
+ * When the permission factory is a {@link CompiledPermissionFactory}, the permissions of a role are merged into one
+ * permission too, so checking it does not depend on the number of permissions the role has.
  * 
  * @author Brian Demers
  */
@@ -46,7 +64,7 @@ import org.sonatype.security.realms.tools.StaticSecurityResource;
 @Typed( RolePermissionResolver.class )
 @Named( "default" )
 public class XmlRolePermissionResolver
-    implements RolePermissionResolver
+    implements RolePermissionResolver, EventListener
 {
     private final ConfigurationManager configuration;
 
@@ -54,55 +72,149 @@ public class XmlRolePermissionResolver
 
     private final PermissionFactory permissionFactory;
 
+    /**
+     * Role ID to effective permissions index, {@code null} when it needs to be (re)built.
+     */
+    private volatile Map<String, Collection<Permission>> rolePermissions;
+
     @Inject
     public XmlRolePermissionResolver( @Named( "resourceMerging" ) ConfigurationManager configuration,
                                       List<PrivilegeDescriptor> privilegeDescriptors,
-                                      @Named( "caching" ) PermissionFactory permissionFactory )
+                                      @Named( "compiled" ) PermissionFactory permissionFactory,
+                                      ApplicationEventMulticaster eventMulticaster )
     {
         this.configuration = configuration;
         this.privilegeDescriptors = privilegeDescriptors;
         this.permissionFactory = permissionFactory;
+
+        eventMulticaster.addEventListener( this );
     }
 
     public Collection<Permission> resolvePermissionsInRole( String roleString )
     {
+        final Collection<Permission> permissions = getRolePermissions().get( roleString );
+
+        if ( permissions != null )
+        {
+            return permissions;
+        }
+
+        return Collections.emptySet();
+    }
+
+    public void onEvent( Event<?> evt )
+    {
+        if ( AuthorizationConfigurationChangedEvent.class.isInstance( evt )
+            || SecurityConfigurationChangedEvent.class.isInstance( evt ) )
+        {
+            clearCache();
+        }
+        else if ( AuthorizationConfigurationReloadedEvent.class.isInstance( evt ) )
+        {
+            AuthorizationConfigurationReloadedEvent reloadedEvent = (AuthorizationConfigurationReloadedEvent) evt;
+
+            // user changes do not affect role permissions, and the event is not fired on the request path
+            if ( !reloadedEvent.getRoleIds().isEmpty() || !reloadedEvent.getPrivilegeIds().isEmpty() )
+            {
+                rebuild();
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the role permission index from the current configuration right away, lookups keep using the previous
+     * index until the new one is ready.
+     */
+    public synchronized void rebuild()
+    {
+        rolePermissions = buildRolePermissions();
+    }
 
-        LinkedList<String> rolesToProcess = new LinkedList<String>();
+    /**
+     * Drops the role permission index, it will be rebuilt from the current configuration on next lookup.
+     */
+    public synchronized void clearCache()
+    {
+        rolePermissions = null;
+    }
 
-        rolesToProcess.add( roleString ); // inital role
+    protected Map<String, Collection<Permission>> getRolePermissions()
+    {
+        Map<String, Collection<Permission>> result = rolePermissions;
 
-        Set<String> roleIds = new LinkedHashSet<String>();
-        Set<Permission> permissions = new LinkedHashSet<Permission>();
-        while ( !rolesToProcess.isEmpty() )
+        if ( result == null )
         {
-            String roleId = rolesToProcess.removeFirst();
-            if ( !roleIds.contains( roleId ) )
+            synchronized ( this )
             {
-                CRole role;
-                try
+                result = rolePermissions;
+
+                if ( result == null )
                 {
-                    role = configuration.readRole( roleId );
-                    roleIds.add( roleId );
-
-                    // process the roles this role has
-                    rolesToProcess.addAll( role.getRoles() );
-
-                    // add the permissions this role has
-                    List<String> privilegeIds = role.getPrivileges();
-                    for ( String privilegeId : privilegeIds )
-                    {
-                        Set<Permission> set = getPermissions( privilegeId );
-                        permissions.addAll( set );
-                    }
+                    result = buildRolePermissions();
+
+                    rolePermissions = result;
                 }
-                catch ( NoSuchRoleException e )
+            }
+        }
+
+        return result;
+    }
+
+    private Map<String, Collection<Permission>> buildRolePermissions()
+    {
+        // the merged view, static roles override the ones with same ID from security.xml
+        return buildRolePermissions( new PrivilegeDictionary( getConfigurationManager().listPrivileges(),
+                                                              getConfigurationManager().listRoles() ) );
+    }
+
+    protected Map<String, Collection<Permission>> buildRolePermissions( PrivilegeDictionary dictionary )
+    {
+        // every privilege is converted only once, no matter how many roles are referencing it
+        final List<Set<Permission>> privilegePermissions = new ArrayList<Set<Permission>>( dictionary.size() );
+        for ( int id = 0; id < dictionary.size(); id++ )
+        {
+            privilegePermissions.add( getPermissions( dictionary.getPrivilegeId( id ) ) );
+        }
+
+        // roles having the same effective privileges share the same permissions
+        final Map<BitSet, Collection<Permission>> sharedPermissions = new HashMap<BitSet, Collection<Permission>>();
+
+        final Map<String, BitSet> rolePrivileges = dictionary.getRolePrivileges();
+
+        final Map<String, Collection<Permission>> result =
+            new HashMap<String, Collection<Permission>>( rolePrivileges.size() );
+
+        for ( Map.Entry<String, BitSet> entry : rolePrivileges.entrySet() )
+        {
+            BitSet privileges = entry.getValue();
+
+            Collection<Permission> permissions = sharedPermissions.get( privileges );
+            if ( permissions == null )
+            {
+                Set<Permission> set = new LinkedHashSet<Permission>();
+                for ( int id = privileges.nextSetBit( 0 ); id >= 0; id = privileges.nextSetBit( id + 1 ) )
                 {
-                    // skip
+                    set.addAll( privilegePermissions.get( id ) );
                 }
+
+                permissions = compile( set );
+                sharedPermissions.put( privileges, permissions );
             }
+
+            result.put( entry.getKey(), permissions );
+        }
+
+        return result;
+    }
+
+    protected Collection<Permission> compile( Set<Permission> permissions )
+    {
+        if ( permissions.size() > 1 && permissionFactory instanceof CompiledPermissionFactory )
+        {
+            return Collections.singleton( ( (CompiledPermissionFactory) permissionFactory ).compile( permissions ) );
         }
 
-        return permissions;
+        return Collections.unmodifiableSet( permissions );
     }
 
     protected Set<Permission> getPermissions( String privilegeId )
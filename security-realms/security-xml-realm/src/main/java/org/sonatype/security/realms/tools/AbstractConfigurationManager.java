@@ -12,10 +12,24 @@
  */
 package org.sonatype.security.realms.tools;
 
+import java.util.concurrent.locks.ReentrantLock;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.sonatype.security.model.CUserRoleMapping;
 import org.sonatype.security.model.Configuration;
 
+/**
+ * Base class of configuration managers, holding the configuration as a copy-on-write {@link EnhancedConfiguration}
+ * snapshot. Readers get the current snapshot without any locking. Writers bracket their changes with
+ * {@link #beginUpdate()} and {@link #endUpdate()}: the first makes a private copy of the snapshot, that is returned by
+ * {@link #getConfiguration()} to the writing thread only, and the latter publishes the copy as the new snapshot.
+ * Updates may nest, only the outermost one copies and publishes. Note that the model objects (roles, users, etc.)
+ * are shared by the copies, they are replaced rather than changed in place, hence a published snapshot never changes.
+ * Copying takes constant time, the first change of the users, roles, privileges or user role mappings of the copy
+ * copies their list, and each change copies the shards of the lookup maps and indices it touches (see
+ * {@link EnhancedConfiguration}). {@link #rollbackUpdate()} discards the copy instead of publishing it.
+ */
 public abstract class AbstractConfigurationManager
     implements ConfigurationManager
 {
@@ -30,24 +44,193 @@ public abstract class AbstractConfigurationManager
 
     private volatile EnhancedConfiguration configuration = null;
 
-    public synchronized void clearCache()
+    /**
+     * Guards loading, clearing and updating the configuration.
+     */
+    private final ReentrantLock updateLock = new ReentrantLock();
+
+    /**
+     * The private copy of the writer holding the update lock, {@code null} if there is no update in progress.
+     */
+    private EnhancedConfiguration updatedConfiguration;
+
+    /**
+     * Whether the private copy of the writer is to be discarded, guarded by the update lock.
+     */
+    private boolean rollback;
+
+    /**
+     * Waits until what was saved is written to disk, relevant when the implementation writes asynchronously. Does
+     * nothing by default.
+     * 
+     * @since 2.8
+     */
+    public void flush()
+    {
+    }
+
+    /**
+     * Returns the user role mapping, or {@code null} if the user has none. Unlike
+     * {@link #readUserRoleMapping(String, String)} no exception is thrown for the users not mapped here.
+     * 
+     * @since 2.8
+     */
+    public CUserRoleMapping findUserRoleMapping( String userId, String source )
+    {
+        return getConfiguration().getUserRoleMappingByUserId( userId, source );
+    }
+
+    public void clearCache()
+    {
+        updateLock.lock();
+        try
+        {
+            configuration = null;
+        }
+        finally
+        {
+            updateLock.unlock();
+        }
+    }
+
+    protected EnhancedConfiguration getConfiguration()
     {
-        configuration = null;
+        if ( updateLock.isHeldByCurrentThread() && updatedConfiguration != null )
+        {
+            return updatedConfiguration;
+        }
+
+        final EnhancedConfiguration result = configuration;
+
+        if ( result != null )
+        {
+            return result;
+        }
+
+        return loadConfiguration();
     }
 
-    protected synchronized EnhancedConfiguration getConfiguration()
+    private EnhancedConfiguration loadConfiguration()
     {
-        if ( configuration != null )
+        updateLock.lock();
+        try
         {
+            if ( configuration == null )
+            {
+                final Configuration newConfiguration = doGetConfiguration();
+
+                // enhancing it
+                publishConfiguration( new EnhancedConfiguration( newConfiguration ) );
+            }
+
             return configuration;
         }
+        finally
+        {
+            updateLock.unlock();
+        }
+    }
 
-        final Configuration newConfiguration = doGetConfiguration();
+    /**
+     * Starts an update, returning the private copy of the configuration to be changed. Every call must be followed by
+     * a call of {@link #endUpdate()} in a finally block.
+     */
+    protected EnhancedConfiguration beginUpdate()
+    {
+        updateLock.lock();
+        try
+        {
+            if ( updatedConfiguration == null )
+            {
+                updatedConfiguration = loadConfiguration().copy();
+            }
+
+            return updatedConfiguration;
+        }
+        catch ( RuntimeException e )
+        {
+            updateLock.unlock();
+
+            throw e;
+        }
+    }
+
+    /**
+     * Ends an update, publishing the changed configuration if this is the outermost update. Changes made before a
+     * failure are published too.
+     */
+    protected void endUpdate()
+    {
+        try
+        {
+            if ( updateLock.getHoldCount() == 1 )
+            {
+                final EnhancedConfiguration changed = updatedConfiguration;
 
-        // enhancing it
-        this.configuration = new EnhancedConfiguration( newConfiguration );
+                updatedConfiguration = null;
+
+                if ( rollback )
+                {
+                    rollback = false;
+                }
+                else
+                {
+                    publishConfiguration( changed );
+                }
+            }
+        }
+        finally
+        {
+            updateLock.unlock();
+        }
+    }
 
-        return this.configuration;
+    /**
+     * Marks the current update to be discarded: the outermost {@link #endUpdate()} drops the private copy instead of
+     * publishing it, hence none of the changes made since the outermost {@link #beginUpdate()} are visible. Changes
+     * made to model objects themselves are not undone. Must be called while updating.
+     */
+    protected void rollbackUpdate()
+    {
+        if ( !updateLock.isHeldByCurrentThread() || updatedConfiguration == null )
+        {
+            throw new IllegalStateException( "No update in progress" );
+        }
+
+        rollback = true;
+    }
+
+    /**
+     * Returns true if the current thread is updating the configuration, hence {@link #getConfiguration()} returns its
+     * private copy, that keeps changing.
+     */
+    protected boolean isUpdating()
+    {
+        return updateLock.isHeldByCurrentThread() && updatedConfiguration != null;
+    }
+
+    /**
+     * Returns the current snapshot without loading it, {@code null} if the configuration is not loaded.
+     */
+    protected EnhancedConfiguration getLoadedConfiguration()
+    {
+        return configuration;
+    }
+
+    /**
+     * Returns the lock that guards loading, clearing and updating the configuration.
+     */
+    protected ReentrantLock getUpdateLock()
+    {
+        return updateLock;
+    }
+
+    /**
+     * Makes the configuration the current snapshot, called with the update lock held.
+     */
+    protected void publishConfiguration( final EnhancedConfiguration configuration )
+    {
+        this.configuration = configuration;
     }
 
     protected abstract Configuration doGetConfiguration();
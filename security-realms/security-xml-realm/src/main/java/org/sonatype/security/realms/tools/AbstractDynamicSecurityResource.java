@@ -12,18 +12,27 @@
  */
 package org.sonatype.security.realms.tools;
 
+import java.util.concurrent.CopyOnWriteArrayList;
+
 import org.sonatype.security.model.Configuration;
 
 /**
- * An abstract class that removes the boiler plate code of reading in the dynamic security configuration.
+ * An abstract class that removes the boiler plate code of reading in the dynamic security configuration. Setting the
+ * resource dirty notifies the listeners, hence subclasses should call {@link #setDirty(boolean)} rather than assign
+ * the {@code dirty} field. A resource assigning the field is only noticed when {@link #isDirty()} is polled.
  * 
  * @author Brian Demers
  */
 public abstract class AbstractDynamicSecurityResource
-    implements DynamicSecurityResource
+    implements ObservableDynamicSecurityResource
 {
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
 
-    protected boolean dirty = true;
+    /**
+     * @deprecated assigning the field does not notify the listeners, use {@link #setDirty(boolean)}.
+     */
+    @Deprecated
+    protected volatile boolean dirty = true;
 
     public boolean isDirty()
     {
@@ -33,6 +42,24 @@ public abstract class AbstractDynamicSecurityResource
     protected void setDirty( boolean dirty )
     {
         this.dirty = dirty;
+
+        if ( dirty )
+        {
+            for ( Listener listener : listeners )
+            {
+                listener.resourceChanged( this );
+            }
+        }
+    }
+
+    public void addListener( Listener listener )
+    {
+        listeners.addIfAbsent( listener );
+    }
+
+    public void removeListener( Listener listener )
+    {
+        listeners.remove( listener );
     }
 
     protected abstract Configuration doGetConfiguration();
@@ -0,0 +1,209 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.realms.tools;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.authc.AuthenticationToken;
+import org.apache.shiro.authc.credential.CredentialsMatcher;
+import org.sonatype.security.usermanagement.PasswordService;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * A {@link CredentialsMatcher} verifying credentials with a {@link PasswordService}, remembering the credentials it
+ * recently verified, per user. A user presenting the same secret again, while the stored password hash did not change,
+ * is matched without hashing the secret again. The secret itself is not kept, only an HMAC of it, keyed with a random
+ * key of this instance, compared in constant time.
+ * 
+ * @since 2.8
+ */
+public class CachingCredentialsMatcher
+    implements CredentialsMatcher
+{
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    private final PasswordService passwordService;
+
+    private final SecretKeySpec key;
+
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>();
+
+    /**
+     * User ID to the credentials last verified, {@code null} if nothing is cached.
+     */
+    private final ConcurrentMap<Object, VerifiedCredentials> verified;
+
+    /**
+     * @param passwordService The service verifying the credentials not cached.
+     * @param maximumSize The maximum count of users having their verified credentials cached, 0 disables the cache.
+     */
+    public CachingCredentialsMatcher( PasswordService passwordService, int maximumSize )
+    {
+        this.passwordService = passwordService;
+
+        byte[] keyBytes = new byte[32];
+        new SecureRandom().nextBytes( keyBytes );
+        this.key = new SecretKeySpec( keyBytes, HMAC_ALGORITHM );
+
+        if ( maximumSize > 0 )
+        {
+            this.verified = new MapMaker().maximumSize( maximumSize ).makeMap();
+        }
+        else
+        {
+            this.verified = null;
+        }
+    }
+
+    public boolean doCredentialsMatch( AuthenticationToken token, AuthenticationInfo info )
+    {
+        final Object userId = info.getPrincipals() != null ? info.getPrincipals().getPrimaryPrincipal() : null;
+        final char[] secret = toChars( token.getCredentials() );
+        final String storedCredentials = toString( info.getCredentials() );
+
+        if ( secret == null || storedCredentials == null )
+        {
+            return false;
+        }
+
+        if ( verified == null || userId == null )
+        {
+            return passwordService.passwordsMatch( secret, storedCredentials );
+        }
+
+        final byte[] mac = mac( secret );
+
+        final VerifiedCredentials last = verified.get( userId );
+
+        if ( last != null && last.storedCredentials.equals( storedCredentials ) && isEqual( last.mac, mac ) )
+        {
+            return true;
+        }
+
+        if ( !passwordService.passwordsMatch( secret, storedCredentials ) )
+        {
+            return false;
+        }
+
+        verified.put( userId, new VerifiedCredentials( storedCredentials, mac ) );
+
+        return true;
+    }
+    /**
+     * Forgets the credentials verified for the user.
+     */
+    public void invalidate( Object userId )
+    {
+        if ( verified != null )
+        {
+            verified.remove( userId );
+        }
+    }
+
+    /**
+     * Forgets the credentials verified for all users.
+     */
+    public void invalidateAll()
+    {
+        if ( verified != null )
+        {
+            verified.clear();
+        }
+    }
+
+    private byte[] mac( final char[] secret )
+    {
+        try
+        {
+            Mac mac = macs.get();
+
+            if ( mac == null )
+            {
+                mac = Mac.getInstance( HMAC_ALGORITHM );
+                mac.init( key );
+                macs.set( mac );
+            }
+
+            return mac.doFinal( new String( secret ).getBytes( "UTF-8" ) );
+        }
+        catch ( GeneralSecurityException e )
+        {
+            throw new IllegalStateException( HMAC_ALGORITHM + " is not available", e );
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            throw new IllegalStateException( "UTF-8 is not supported", e );
+        }
+    }
+
+    private static char[] toChars( final Object credentials )
+    {
+        if ( credentials instanceof char[] )
+        {
+            return (char[]) credentials;
+        }
+
+        return credentials != null ? credentials.toString().toCharArray() : null;
+    }
+
+    private static String toString( final Object credentials )
+    {
+        if ( credentials instanceof char[] )
+        {
+            return new String( (char[]) credentials );
+        }
+
+        return credentials != null ? credentials.toString() : null;
+    }
+
+    /**
+     * Compares the arrays in time depending on their length only.
+     */
+    private static boolean isEqual( final byte[] a, final byte[] b )
+    {
+        if ( a.length != b.length )
+        {
+            return false;
+        }
+
+        int result = 0;
+
+        for ( int i = 0; i < a.length; i++ )
+        {
+            result |= a[i] ^ b[i];
+        }
+
+        return result == 0;
+    }
+
+    private static final class VerifiedCredentials
+    {
+        private final String storedCredentials;
+
+        private final byte[] mac;
+
+        private VerifiedCredentials( final String storedCredentials, final byte[] mac )
+        {
+            this.storedCredentials = storedCredentials;
+            this.mac = mac;
+        }
+    }
+}
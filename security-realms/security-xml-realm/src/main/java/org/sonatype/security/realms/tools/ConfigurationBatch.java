@@ -0,0 +1,173 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.realms.tools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.sonatype.security.model.CPrivilege;
+import org.sonatype.security.model.CRole;
+import org.sonatype.security.model.CUser;
+import org.sonatype.security.model.CUserRoleMapping;
+
+/**
+ * An ordered list of mixed mutations, applied by {@link ConfigurationManager#apply(ConfigurationBatch)} as a unit:
+ * every mutation is validated against one validation context, that is updated as the mutations are applied, and
+ * either all of them are applied or none.
+ * 
+ * @since 2.8
+ */
+public class ConfigurationBatch
+{
+    public enum Type
+    {
+        CREATE_USER, UPDATE_USER, DELETE_USER, CREATE_ROLE, UPDATE_ROLE, DELETE_ROLE, CREATE_PRIVILEGE,
+        UPDATE_PRIVILEGE, DELETE_PRIVILEGE, CREATE_USER_ROLE_MAPPING, UPDATE_USER_ROLE_MAPPING,
+        DELETE_USER_ROLE_MAPPING
+    }
+
+    /**
+     * One mutation of the batch, carrying the model object for creates and updates, the ID (and source, for user role
+     * mappings) for deletes.
+     */
+    public static class Mutation
+    {
+        private final Type type;
+
+        private final Object object;
+
+        private final String password;
+
+        private final Set<String> roles;
+
+        private final String id;
+
+        private final String source;
+
+        private Mutation( Type type, Object object, String password, Set<String> roles, String id, String source )
+        {
+            this.type = type;
+            this.object = object;
+            this.password = password;
+            this.roles = roles;
+            this.id = id;
+            this.source = source;
+        }
+
+        public Type getType()
+        {
+            return type;
+        }
+
+        public Object getObject()
+        {
+            return object;
+        }
+
+        public String getPassword()
+        {
+            return password;
+        }
+
+        public Set<String> getRoles()
+        {
+            return roles;
+        }
+
+        public String getId()
+        {
+            return id;
+        }
+
+        public String getSource()
+        {
+            return source;
+        }
+    }
+
+    private final List<Mutation> mutations = new ArrayList<Mutation>();
+
+    public void createUser( CUser user, String password, Set<String> roles )
+    {
+        mutations.add( new Mutation( Type.CREATE_USER, user, password, roles, user.getId(), null ) );
+    }
+
+    public void updateUser( CUser user, Set<String> roles )
+    {
+        mutations.add( new Mutation( Type.UPDATE_USER, user, null, roles, user.getId(), null ) );
+    }
+
+    public void deleteUser( String id )
+    {
+        mutations.add( new Mutation( Type.DELETE_USER, null, null, null, id, null ) );
+    }
+
+    public void createRole( CRole role )
+    {
+        mutations.add( new Mutation( Type.CREATE_ROLE, role, null, null, role.getId(), null ) );
+    }
+
+    public void updateRole( CRole role )
+    {
+        mutations.add( new Mutation( Type.UPDATE_ROLE, role, null, null, role.getId(), null ) );
+    }
+
+    public void deleteRole( String id )
+    {
+        mutations.add( new Mutation( Type.DELETE_ROLE, null, null, null, id, null ) );
+    }
+
+    public void createPrivilege( CPrivilege privilege )
+    {
+        mutations.add( new Mutation( Type.CREATE_PRIVILEGE, privilege, null, null, privilege.getId(), null ) );
+    }
+
+    public void updatePrivilege( CPrivilege privilege )
+    {
+        mutations.add( new Mutation( Type.UPDATE_PRIVILEGE, privilege, null, null, privilege.getId(), null ) );
+    }
+
+    public void deletePrivilege( String id )
+    {
+        mutations.add( new Mutation( Type.DELETE_PRIVILEGE, null, null, null, id, null ) );
+    }
+
+    public void createUserRoleMapping( CUserRoleMapping userRoleMapping )
+    {
+        mutations.add( new Mutation( Type.CREATE_USER_ROLE_MAPPING, userRoleMapping, null, null,
+                                     userRoleMapping.getUserId(), userRoleMapping.getSource() ) );
+    }
+
+    public void updateUserRoleMapping( CUserRoleMapping userRoleMapping )
+    {
+        mutations.add( new Mutation( Type.UPDATE_USER_ROLE_MAPPING, userRoleMapping, null, null,
+                                     userRoleMapping.getUserId(), userRoleMapping.getSource() ) );
+    }
+
+    public void deleteUserRoleMapping( String userId, String source )
+    {
+        mutations.add( new Mutation( Type.DELETE_USER_ROLE_MAPPING, null, null, null, userId, source ) );
+    }
+
+    public List<Mutation> getMutations()
+    {
+        return Collections.unmodifiableList( mutations );
+    }
+
+    public boolean isEmpty()
+    {
+        return mutations.isEmpty();
+    }
+}
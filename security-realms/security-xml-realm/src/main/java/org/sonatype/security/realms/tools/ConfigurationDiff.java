@@ -0,0 +1,223 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.realms.tools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.plexus.util.StringUtils;
+import org.sonatype.security.model.CPrivilege;
+import org.sonatype.security.model.CProperty;
+import org.sonatype.security.model.CRole;
+import org.sonatype.security.model.CUser;
+import org.sonatype.security.model.CUserRoleMapping;
+import org.sonatype.security.model.Configuration;
+
+/**
+ * The differences between two security configurations, by ID: the users (including the users whose role mappings
+ * differ), roles and privileges that were added, removed or changed. Model objects are compared field by field, and
+ * the {@link #getMerged() merged} configuration is the new one, where every unchanged object is replaced by its
+ * instance from the old configuration, so anything keyed by those instances stays valid.
+ * 
+ * @since 2.8
+ */
+public class ConfigurationDiff
+{
+    private final Set<String> userIds = new HashSet<String>();
+
+    private final Set<String> roleIds = new HashSet<String>();
+
+    private final Set<String> privilegeIds = new HashSet<String>();
+
+    private final Configuration merged;
+
+    public ConfigurationDiff( final Configuration oldConfiguration, final Configuration newConfiguration )
+    {
+        merged = new Configuration();
+        merged.setVersion( newConfiguration.getVersion() );
+        merged.setModelEncoding( newConfiguration.getModelEncoding() );
+
+        final Map<String, CUser> oldUsers = new HashMap<String, CUser>();
+        for ( CUser user : oldConfiguration.getUsers() )
+        {
+            oldUsers.put( user.getId(), user );
+        }
+        for ( CUser user : newConfiguration.getUsers() )
+        {
+            final CUser old = oldUsers.remove( user.getId() );
+            if ( old != null && equals( old, user ) )
+            {
+                merged.addUser( old );
+            }
+            else
+            {
+                merged.addUser( user );
+                userIds.add( user.getId() );
+            }
+        }
+        userIds.addAll( oldUsers.keySet() );
+
+        final Map<String, CUserRoleMapping> oldMappings = new HashMap<String, CUserRoleMapping>();
+        for ( CUserRoleMapping mapping : oldConfiguration.getUserRoleMappings() )
+        {
+            oldMappings.put( key( mapping ), mapping );
+        }
+        for ( CUserRoleMapping mapping : newConfiguration.getUserRoleMappings() )
+        {
+            final CUserRoleMapping old = oldMappings.remove( key( mapping ) );
+            if ( old != null && equals( old, mapping ) )
+            {
+                merged.addUserRoleMapping( old );
+            }
+            else
+            {
+                merged.addUserRoleMapping( mapping );
+                userIds.add( mapping.getUserId() );
+            }
+        }
+        for ( CUserRoleMapping mapping : oldMappings.values() )
+        {
+            userIds.add( mapping.getUserId() );
+        }
+
+        final Map<String, CRole> oldRoles = new HashMap<String, CRole>();
+        for ( CRole role : oldConfiguration.getRoles() )
+        {
+            oldRoles.put( role.getId(), role );
+        }
+        for ( CRole role : newConfiguration.getRoles() )
+        {
+            final CRole old = oldRoles.remove( role.getId() );
+            if ( old != null && equals( old, role ) )
+            {
+                merged.addRole( old );
+            }
+            else
+            {
+                merged.addRole( role );
+                roleIds.add( role.getId() );
+            }
+        }
+        roleIds.addAll( oldRoles.keySet() );
+
+        final Map<String, CPrivilege> oldPrivileges = new HashMap<String, CPrivilege>();
+        for ( CPrivilege privilege : oldConfiguration.getPrivileges() )
+        {
+            oldPrivileges.put( privilege.getId(), privilege );
+        }
+        for ( CPrivilege privilege : newConfiguration.getPrivileges() )
+        {
+            final CPrivilege old = oldPrivileges.remove( privilege.getId() );
+            if ( old != null && equals( old, privilege ) )
+            {
+                merged.addPrivilege( old );
+            }
+            else
+            {
+                merged.addPrivilege( privilege );
+                privilegeIds.add( privilege.getId() );
+            }
+        }
+        privilegeIds.addAll( oldPrivileges.keySet() );
+    }
+
+    /**
+     * Returns the IDs of the users added, removed or changed, or whose role mappings were.
+     */
+    public Set<String> getUserIds()
+    {
+        return Collections.unmodifiableSet( userIds );
+    }
+
+    /**
+     * Returns the IDs of the roles added, removed or changed.
+     */
+    public Set<String> getRoleIds()
+    {
+        return Collections.unmodifiableSet( roleIds );
+    }
+
+    /**
+     * Returns the IDs of the privileges added, removed or changed.
+     */
+    public Set<String> getPrivilegeIds()
+    {
+        return Collections.unmodifiableSet( privilegeIds );
+    }
+
+    public boolean isEmpty()
+    {
+        return userIds.isEmpty() && roleIds.isEmpty() && privilegeIds.isEmpty();
+    }
+
+    /**
+     * Returns the new configuration, sharing the unchanged model objects with the old one.
+     */
+    public Configuration getMerged()
+    {
+        return merged;
+    }
+
+    // ==
+
+    private static String key( final CUserRoleMapping mapping )
+    {
+        return mapping.getUserId() + '\0' + mapping.getSource();
+    }
+
+    private static boolean equals( final CUser a, final CUser b )
+    {
+        return StringUtils.equals( a.getFirstName(), b.getFirstName() )
+            && StringUtils.equals( a.getLastName(), b.getLastName() )
+            && StringUtils.equals( a.getEmail(), b.getEmail() )
+            && StringUtils.equals( a.getPassword(), b.getPassword() )
+            && StringUtils.equals( a.getStatus(), b.getStatus() );
+    }
+
+    private static boolean equals( final CUserRoleMapping a, final CUserRoleMapping b )
+    {
+        return a.getRoles().equals( b.getRoles() );
+    }
+
+    private static boolean equals( final CRole a, final CRole b )
+    {
+        return StringUtils.equals( a.getName(), b.getName() )
+            && StringUtils.equals( a.getDescription(), b.getDescription() )
+            && a.getSessionTimeout() == b.getSessionTimeout() && a.isReadOnly() == b.isReadOnly()
+            && a.getPrivileges().equals( b.getPrivileges() ) && a.getRoles().equals( b.getRoles() );
+    }
+
+    private static boolean equals( final CPrivilege a, final CPrivilege b )
+    {
+        return StringUtils.equals( a.getName(), b.getName() )
+            && StringUtils.equals( a.getDescription(), b.getDescription() )
+            && StringUtils.equals( a.getType(), b.getType() ) && a.isReadOnly() == b.isReadOnly()
+            && properties( a ).equals( properties( b ) );
+    }
+
+    private static List<String> properties( final CPrivilege privilege )
+    {
+        final List<String> result = new ArrayList<String>( privilege.getProperties().size() * 2 );
+        for ( CProperty property : privilege.getProperties() )
+        {
+            result.add( property.getKey() );
+            result.add( property.getValue() );
+        }
+        return result;
+    }
+}
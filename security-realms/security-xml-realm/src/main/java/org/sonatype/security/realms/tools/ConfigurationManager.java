@@ -204,6 +204,20 @@ public interface ConfigurationManager
 
     List<CUserRoleMapping> listUserRoleMappings();
 
+    /**
+     * Retrieve the user role mappings (of any source) having the role.
+     * 
+     * @since 2.8
+     */
+    List<CUserRoleMapping> listUserRoleMappingsByRoleId( String roleId );
+
+    /**
+     * Retrieve the users having the email address, ignoring case.
+     * 
+     * @since 2.8
+     */
+    List<CUser> listUsersByEmail( String email );
+
     void deleteUserRoleMapping( String userId, String source )
         throws NoSuchRoleMappingException;
 
@@ -223,6 +237,24 @@ public interface ConfigurationManager
     void updatePrivilege( CPrivilege privilege, SecurityValidationContext context )
         throws InvalidConfigurationException, NoSuchPrivilegeException;
 
+    /**
+     * Applies the mutations of the batch in order, validating them against one context that is updated as they are
+     * applied. Either all the mutations are applied or, if any of them is invalid or refers to a missing object, none
+     * is. As for single mutations, {@link #save()} must be called afterwards.
+     * 
+     * @since 2.8
+     */
+    void apply( ConfigurationBatch batch )
+        throws InvalidConfigurationException;
+
+    /**
+     * Applies the batch with a context to validate in, see {@link #apply(ConfigurationBatch)}.
+     * 
+     * @since 2.8
+     */
+    void apply( ConfigurationBatch batch, SecurityValidationContext context )
+        throws InvalidConfigurationException;
+
     /**
      * Delete an existing user
      * 
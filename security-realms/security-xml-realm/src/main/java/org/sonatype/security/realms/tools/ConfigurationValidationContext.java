@@ -0,0 +1,531 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.realms.tools;
+
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.sonatype.security.model.CRole;
+import org.sonatype.security.model.CUser;
+import org.sonatype.security.model.CUserRoleMapping;
+import org.sonatype.security.realms.validator.SecurityValidationContext;
+import org.sonatype.security.usermanagement.xml.SecurityXmlUserManager;
+
+/**
+ * A validation context over a published {@link EnhancedConfiguration} snapshot, that is never changed, instead of a
+ * copy of it: the existing IDs and the maps are views of the lookup maps the configuration maintains on every add and
+ * remove, hence creating a context does not depend on the size of the model. What the validator (or a batch) records
+ * in the context is kept in an overlay of its own, so the snapshot is never changed.
+ * 
+ * @since 2.8
+ */
+class ConfigurationValidationContext
+    extends SecurityValidationContext
+{
+    private final List<String> existingPrivilegeIds;
+
+    private final List<String> existingRoleIds;
+
+    private final List<String> existingUserIds;
+
+    private final Map<String, String> existingEmailMap;
+
+    private final Map<String, List<String>> roleContainmentMap;
+
+    private final Map<String, String> existingRoleNameMap;
+
+    private final Map<String, List<String>> existingUserRoleMap;
+
+    ConfigurationValidationContext( final EnhancedConfiguration configuration )
+    {
+        existingPrivilegeIds = new OverlayList( configuration.getPrivilegeMap().keySet() );
+        existingRoleIds = new OverlayList( configuration.getRoleMap().keySet() );
+        existingUserIds = new OverlayList( configuration.getUserMap().keySet() );
+
+        existingEmailMap = new OverlayMap<String>( new DerivedMap<CUser, String>( configuration.getUserMap() )
+        {
+            @Override
+            protected String value( CUser user )
+            {
+                return user.getEmail();
+            }
+        } );
+
+        existingRoleNameMap = new OverlayMap<String>( new DerivedMap<CRole, String>( configuration.getRoleMap() )
+        {
+            @Override
+            protected String value( CRole role )
+            {
+                return role.getName();
+            }
+        } );
+
+        roleContainmentMap =
+            new OverlayMap<List<String>>( new DerivedMap<CRole, List<String>>( configuration.getRoleMap() )
+            {
+                @Override
+                protected List<String> value( CRole role )
+                {
+                    // the validator adds to the contained roles, the role itself must not change
+                    return new ArrayList<String>( role.getRoles() );
+                }
+            } )
+            {
+                @Override
+                protected boolean copyOnRead()
+                {
+                    return true;
+                }
+            };
+
+        existingUserRoleMap = new OverlayMap<List<String>>( new UserRoleMap( configuration ) );
+    }
+
+    @Override
+    public void addExistingPrivilegeIds()
+    {
+        // always present
+    }
+
+    @Override
+    public void addExistingRoleIds()
+    {
+        // always present
+    }
+
+    @Override
+    public void addExistingUserIds()
+    {
+        // always present
+    }
+
+    @Override
+    public List<String> getExistingPrivilegeIds()
+    {
+        return existingPrivilegeIds;
+    }
+
+    @Override
+    public List<String> getExistingRoleIds()
+    {
+        return existingRoleIds;
+    }
+
+    @Override
+    public List<String> getExistingUserIds()
+    {
+        return existingUserIds;
+    }
+
+    @Override
+    public Map<String, String> getExistingEmailMap()
+    {
+        return existingEmailMap;
+    }
+
+    @Override
+    public Map<String, List<String>> getRoleContainmentMap()
+    {
+        return roleContainmentMap;
+    }
+
+    @Override
+    public Map<String, String> getExistingRoleNameMap()
+    {
+        return existingRoleNameMap;
+    }
+
+    @Override
+    public Map<String, List<String>> getExistingUserRoleMap()
+    {
+        return existingUserRoleMap;
+    }
+
+    // ==
+
+    /**
+     * A list of IDs over a read-only set of IDs, recording additions and removals on its own. Lookups are constant
+     * time, positional access is linear.
+     */
+    static class OverlayList
+        extends AbstractList<String>
+    {
+        private final Set<String> base;
+
+        private final Set<String> removed = new HashSet<String>();
+
+        private final List<String> added = new ArrayList<String>();
+
+        private final Set<String> addedSet = new HashSet<String>();
+
+        OverlayList( final Set<String> base )
+        {
+            this.base = base;
+        }
+
+        @Override
+        public boolean contains( final Object o )
+        {
+            return addedSet.contains( o ) || ( base.contains( o ) && !removed.contains( o ) );
+        }
+
+        @Override
+        public boolean add( final String e )
+        {
+            added.add( e );
+            addedSet.add( e );
+            return true;
+        }
+
+        @Override
+        public boolean remove( final Object o )
+        {
+            if ( added.remove( o ) )
+            {
+                if ( !added.contains( o ) )
+                {
+                    addedSet.remove( o );
+                }
+                return true;
+            }
+
+            return base.contains( o ) && removed.add( (String) o );
+        }
+
+        @Override
+        public boolean removeAll( final Collection<?> c )
+        {
+            boolean changed = false;
+            for ( Object o : c )
+            {
+                while ( remove( o ) )
+                {
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+
+        @Override
+        public int size()
+        {
+            return base.size() - removed.size() + added.size();
+        }
+
+        @Override
+        public String get( final int index )
+        {
+            if ( index < 0 )
+            {
+                throw new IndexOutOfBoundsException( String.valueOf( index ) );
+            }
+
+            int i = 0;
+            for ( String id : this )
+            {
+                if ( i++ == index )
+                {
+                    return id;
+                }
+            }
+
+            throw new IndexOutOfBoundsException( String.valueOf( index ) );
+        }
+
+        @Override
+        public Iterator<String> iterator()
+        {
+            final Iterator<String> baseIterator = base.iterator();
+            final Iterator<String> addedIterator = added.iterator();
+
+            return new Iterator<String>()
+            {
+                private String next = advance();
+
+                private String advance()
+                {
+                    while ( baseIterator.hasNext() )
+                    {
+                        String id = baseIterator.next();
+                        if ( !removed.contains( id ) )
+                        {
+                            return id;
+                        }
+                    }
+                    return addedIterator.hasNext() ? addedIterator.next() : null;
+                }
+
+                public boolean hasNext()
+                {
+                    return next != null;
+                }
+
+                public String next()
+                {
+                    if ( next == null )
+                    {
+                        throw new NoSuchElementException();
+                    }
+                    String result = next;
+                    next = advance();
+                    return result;
+                }
+
+                public void remove()
+                {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+
+    /**
+     * A map over a read-only base map, recording puts and removals on its own.
+     */
+    static class OverlayMap<V>
+        extends AbstractMap<String, V>
+    {
+        private final Map<String, V> base;
+
+        private final Map<String, V> overlay = new HashMap<String, V>();
+
+        private final Set<String> removed = new HashSet<String>();
+
+        OverlayMap( final Map<String, V> base )
+        {
+            this.base = base;
+        }
+
+        /**
+         * Whether values read from the base are kept in the overlay, so changes made to them are seen by later reads.
+         */
+        protected boolean copyOnRead()
+        {
+            return false;
+        }
+
+        @Override
+        public V get( final Object key )
+        {
+            if ( overlay.containsKey( key ) )
+            {
+                return overlay.get( key );
+            }
+            if ( removed.contains( key ) )
+            {
+                return null;
+            }
+
+            final V value = base.get( key );
+            if ( value != null && copyOnRead() )
+            {
+                overlay.put( (String) key, value );
+            }
+            return value;
+        }
+
+        @Override
+        public boolean containsKey( final Object key )
+        {
+            return overlay.containsKey( key ) || ( !removed.contains( key ) && base.containsKey( key ) );
+        }
+
+        @Override
+        public V put( final String key, final V value )
+        {
+            final V previous = get( key );
+            overlay.put( key, value );
+            return previous;
+        }
+
+        @Override
+        public V remove( final Object key )
+        {
+            final V previous = get( key );
+            overlay.remove( key );
+            removed.add( (String) key );
+            return previous;
+        }
+
+        @Override
+        public Set<Entry<String, V>> entrySet()
+        {
+            return new AbstractSet<Entry<String, V>>()
+            {
+                @Override
+                public Iterator<Entry<String, V>> iterator()
+                {
+                    final List<Entry<String, V>> entries = new ArrayList<Entry<String, V>>();
+                    for ( Entry<String, V> entry : base.entrySet() )
+                    {
+                        if ( !overlay.containsKey( entry.getKey() ) && !removed.contains( entry.getKey() ) )
+                        {
+                            entries.add( entry );
+                        }
+                    }
+                    entries.addAll( overlay.entrySet() );
+                    return entries.iterator();
+                }
+
+                @Override
+                public int size()
+                {
+                    int size = overlay.size();
+                    for ( String key : base.keySet() )
+                    {
+                        if ( !overlay.containsKey( key ) && !removed.contains( key ) )
+                        {
+                            size++;
+                        }
+                    }
+                    return size;
+                }
+            };
+        }
+    }
+
+    /**
+     * A read-only map deriving its values from the model objects of another map.
+     */
+    abstract static class DerivedMap<T, V>
+        extends AbstractMap<String, V>
+    {
+        private final Map<String, T> source;
+
+        DerivedMap( final Map<String, T> source )
+        {
+            this.source = source;
+        }
+
+        protected abstract V value( T object );
+
+        @Override
+        public V get( final Object key )
+        {
+            final T object = source.get( key );
+            return object != null ? value( object ) : null;
+        }
+
+        @Override
+        public boolean containsKey( final Object key )
+        {
+            return source.containsKey( key );
+        }
+
+        @Override
+        public Set<Entry<String, V>> entrySet()
+        {
+            return new AbstractSet<Entry<String, V>>()
+            {
+                @Override
+                public Iterator<Entry<String, V>> iterator()
+                {
+                    final Iterator<Entry<String, T>> iterator = source.entrySet().iterator();
+
+                    return new Iterator<Entry<String, V>>()
+                    {
+                        public boolean hasNext()
+                        {
+                            return iterator.hasNext();
+                        }
+
+                        public Entry<String, V> next()
+                        {
+                            final Entry<String, T> entry = iterator.next();
+                            return new SimpleImmutableEntry<String, V>( entry.getKey(), value( entry.getValue() ) );
+                        }
+
+                        public void remove()
+                        {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size()
+                {
+                    return source.size();
+                }
+            };
+        }
+    }
+
+    /**
+     * The roles of the users having a user role mapping, looked up in the indices of the configuration. A mapping from
+     * security.xml wins over the ones from other sources.
+     */
+    private static class UserRoleMap
+        extends AbstractMap<String, List<String>>
+    {
+        private final EnhancedConfiguration configuration;
+
+        private UserRoleMap( final EnhancedConfiguration configuration )
+        {
+            this.configuration = configuration;
+        }
+
+        @Override
+        public List<String> get( final Object key )
+        {
+            final CUserRoleMapping mapping = find( (String) key );
+            return mapping != null ? mapping.getRoles() : null;
+        }
+
+        @Override
+        public boolean containsKey( final Object key )
+        {
+            return find( (String) key ) != null;
+        }
+
+        private CUserRoleMapping find( final String userId )
+        {
+            if ( userId == null )
+            {
+                return null;
+            }
+
+            final CUserRoleMapping mapping =
+                configuration.getUserRoleMappingByUserId( userId, SecurityXmlUserManager.SOURCE );
+            // the lookup ignores the case of the user ID
+            if ( mapping != null && userId.equals( mapping.getUserId() ) )
+            {
+                return mapping;
+            }
+
+            final List<CUserRoleMapping> mappings = configuration.getUserRoleMappingsByUserId( userId );
+            return mappings.isEmpty() ? null : mappings.get( 0 );
+        }
+
+        @Override
+        public Set<Entry<String, List<String>>> entrySet()
+        {
+            final Map<String, List<String>> result = new HashMap<String, List<String>>();
+            for ( CUserRoleMapping mapping : configuration.getUserRoleMappings() )
+            {
+                result.put( mapping.getUserId(), mapping.getRoles() );
+            }
+            return result.entrySet();
+        }
+    }
+}
@@ -12,11 +12,18 @@
  */
 package org.sonatype.security.realms.tools;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.enterprise.inject.Typed;
 import javax.inject.Inject;
@@ -31,25 +38,54 @@ import org.sonatype.configuration.validation.ValidationMessage;
 import org.sonatype.configuration.validation.ValidationResponse;
 import org.sonatype.security.authorization.NoSuchPrivilegeException;
 import org.sonatype.security.authorization.NoSuchRoleException;
+import org.sonatype.plexus.appevents.ApplicationEventMulticaster;
+import org.sonatype.plexus.appevents.Event;
+import org.sonatype.plexus.appevents.EventListener;
+import org.sonatype.security.events.AuthorizationConfigurationReloadedEvent;
+import org.sonatype.security.events.SecuritySystemStoppingEvent;
 import org.sonatype.security.model.CPrivilege;
 import org.sonatype.security.model.CProperty;
 import org.sonatype.security.model.CRole;
 import org.sonatype.security.model.CUser;
 import org.sonatype.security.model.CUserRoleMapping;
 import org.sonatype.security.model.Configuration;
+import org.sonatype.security.model.source.FileModelConfigurationSource;
 import org.sonatype.security.model.source.SecurityModelConfigurationSource;
+import org.sonatype.security.realms.tools.ConfigurationBatch.Mutation;
 import org.sonatype.security.realms.privileges.PrivilegeDescriptor;
+import org.sonatype.security.realms.tools.SecurityConfigurationJournal.Entry;
+import org.sonatype.security.realms.tools.SecurityConfigurationJournal.Operation;
 import org.sonatype.security.realms.validator.SecurityConfigurationValidator;
 import org.sonatype.security.realms.validator.SecurityValidationContext;
-import org.sonatype.security.usermanagement.StringDigester;
+import org.sonatype.security.usermanagement.PasswordService;
 import org.sonatype.security.usermanagement.UserNotFoundException;
 import org.sonatype.security.usermanagement.xml.SecurityXmlUserManager;
+import org.sonatype.security.watch.SecurityFileWatcher;
 
+/**
+ * The default configuration manager, backed by the security.xml file.
+ * <p>
+ * When the {@code security-xml-journal} property is {@code true}, {@link #save()} does not rewrite security.xml, but
+ * appends the changes made since the last save to a {@link SecurityConfigurationJournal} next to it. The journal is
+ * folded into security.xml in the background once it grows over {@link #JOURNAL_COMPACTION_THRESHOLD} bytes, and is
+ * replayed whenever the configuration is loaded. A journal left behind is replayed even if journaling is disabled.
+ * <p>
+ * When the {@code security-xml-write-behind-interval} property is positive, {@link #save()} only marks the
+ * configuration dirty, and a writer thread persists the latest configuration at most once per that many milliseconds.
+ * {@link #flush()} writes pending saves right away, and is called when the security system stops. The writer thread
+ * is stopped then too, saves made afterwards are written synchronously.
+ * <p>
+ * When security.xml is changed outside of the application, the {@link SecurityFileWatcher} notices and the file is
+ * {@link #reload() reloaded} from the watcher thread. The new configuration is compared with the current one, and an
+ * {@link AuthorizationConfigurationReloadedEvent} tells which users, roles and privileges changed, so only the
+ * affected cache entries are dropped.
+ */
 @Singleton
 @Typed( ConfigurationManager.class )
 @Named( "default" )
 public class DefaultConfigurationManager
     extends AbstractConfigurationManager
+    implements EventListener
 {
 
     private final Logger logger = LoggerFactory.getLogger( getClass() );
@@ -64,18 +100,106 @@ public class DefaultConfigurationManager
 
     private final List<SecurityConfigurationModifier> configurationModifiers;
 
+    /**
+     * Journal size in bytes over which it is folded into security.xml.
+     */
+    public static final long JOURNAL_COMPACTION_THRESHOLD = 1024 * 1024;
+
+    /**
+     * The journal next to security.xml, {@code null} if the configuration source is not file based.
+     */
+    private final SecurityConfigurationJournal journal;
+
+    private final boolean journalEnabled;
+
+    /**
+     * Changes not yet saved to the journal, guarded by the update lock.
+     */
+    private final List<Entry> journalEntries = new ArrayList<Entry>();
+
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+
+    /**
+     * Milliseconds between asynchronous writes, or 0 if {@link #save()} writes synchronously.
+     */
+    private final long writeBehindInterval;
+
+    /**
+     * Whether there is a save not yet written, guarded by the update lock.
+     */
+    private boolean dirty;
+
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+
+    private final ApplicationEventMulticaster eventMulticaster;
+
+    /**
+     * The security.xml file, {@code null} if the configuration source is not file based.
+     */
+    private final File configurationFile;
+
+    private final SecurityFileWatcher fileWatcher;
+
+    private final PasswordService passwordService;
+
+    private final ScheduledThreadPoolExecutor writer = new ScheduledThreadPoolExecutor( 1, new ThreadFactory()
+    {
+        public Thread newThread( final Runnable r )
+        {
+            final Thread thread = new Thread( r, "security-xml-writer" );
+            thread.setDaemon( true );
+            return thread;
+        }
+    } );
+
     @Inject
     public DefaultConfigurationManager( List<SecurityConfigurationModifier> configurationModifiers,
                                         SecurityConfigurationCleaner configCleaner,
                                         SecurityConfigurationValidator validator,
                                         @Named( "file" ) SecurityModelConfigurationSource configurationSource,
-                                        List<PrivilegeDescriptor> privilegeDescriptors )
+                                        List<PrivilegeDescriptor> privilegeDescriptors,
+                                        @Named( "${security-xml-journal:-false}" ) boolean journalEnabled,
+                                        @Named( "${security-xml-write-behind-interval:-0}" ) long writeBehindInterval,
+                                        ApplicationEventMulticaster eventMulticaster,
+                                        SecurityFileWatcher fileWatcher, PasswordService passwordService )
     {
         this.configurationModifiers = configurationModifiers;
         this.configCleaner = configCleaner;
         this.validator = validator;
         this.configurationSource = configurationSource;
         this.privilegeDescriptors = privilegeDescriptors;
+
+        if ( configurationSource instanceof FileModelConfigurationSource
+            && ( (FileModelConfigurationSource) configurationSource ).getConfigurationFile() != null )
+        {
+            File file = ( (FileModelConfigurationSource) configurationSource ).getConfigurationFile();
+            this.configurationFile = file;
+            this.journal =
+                new SecurityConfigurationJournal( new File( file.getParentFile(), file.getName() + ".journal" ) );
+        }
+        else
+        {
+            this.configurationFile = null;
+            this.journal = null;
+        }
+        this.journalEnabled = journalEnabled && journal != null;
+        this.writeBehindInterval = writeBehindInterval;
+        this.eventMulticaster = eventMulticaster;
+        this.fileWatcher = fileWatcher;
+        this.passwordService = passwordService;
+
+        if ( configurationFile != null )
+        {
+            fileWatcher.watch( configurationFile, new SecurityFileWatcher.Listener()
+            {
+                public void fileChanged( final File file )
+                {
+                    reload();
+                }
+            } );
+        }
+
+        eventMulticaster.addEventListener( this );
     }
 
     public List<CPrivilege> listPrivileges()
@@ -111,7 +235,16 @@ public class DefaultConfigurationManager
 
         if ( vr.isValid() )
         {
-            getConfiguration().addPrivilege( privilege );
+            beginUpdate();
+            try
+            {
+                getConfiguration().addPrivilege( privilege );
+                journal( privilege );
+            }
+            finally
+            {
+                endUpdate();
+            }
             logValidationWarnings( vr );
         }
         else
@@ -138,7 +271,16 @@ public class DefaultConfigurationManager
 
         if ( vr.isValid() )
         {
-            getConfiguration().addRole( role );
+            beginUpdate();
+            try
+            {
+                getConfiguration().addRole( role );
+                journal( role );
+            }
+            finally
+            {
+                endUpdate();
+            }
             logValidationWarnings( vr );
         }
         else
@@ -176,15 +318,24 @@ public class DefaultConfigurationManager
         // set the password if its not null
         if ( password != null && password.trim().length() > 0 )
         {
-            user.setPassword( StringDigester.getSha1Digest( password ) );
+            user.setPassword( passwordService.hashPassword( password ) );
         }
 
         ValidationResponse vr = validator.validateUser( context, user, roles, false );
 
         if ( vr.isValid() )
         {
-            getConfiguration().addUser( user );
-            createOrUpdateUserRoleMapping( buildUserRoleMapping( user.getId(), roles ) );
+            beginUpdate();
+            try
+            {
+                getConfiguration().addUser( user );
+                journal( user );
+                createOrUpdateUserRoleMapping( buildUserRoleMapping( user.getId(), roles ) );
+            }
+            finally
+            {
+                endUpdate();
+            }
             logValidationWarnings( vr );
         }
         else
@@ -195,21 +346,30 @@ public class DefaultConfigurationManager
 
     private void createOrUpdateUserRoleMapping( CUserRoleMapping roleMapping )
     {
-        // delete first, ask questions later
-        // we are always updating, its possible that this object could have already existed, because we cannot fully
-        // sync with external realms.
+        beginUpdate();
         try
         {
-            deleteUserRoleMapping( roleMapping.getUserId(), roleMapping.getSource() );
+            // delete first, ask questions later
+            // we are always updating, its possible that this object could have already existed, because we cannot fully
+            // sync with external realms.
+            try
+            {
+                deleteUserRoleMapping( roleMapping.getUserId(), roleMapping.getSource() );
+            }
+            catch ( NoSuchRoleMappingException e )
+            {
+                // it didn't exist, thats ok.
+            }
+
+            // now add it
+            getConfiguration().addUserRoleMapping( roleMapping );
+            journal( roleMapping );
         }
-        catch ( NoSuchRoleMappingException e )
+        finally
         {
-            // it didn't exist, thats ok.
+            endUpdate();
         }
 
-        // now add it
-        getConfiguration().addUserRoleMapping( roleMapping );
-
     }
 
     private CUserRoleMapping buildUserRoleMapping( String userId, Set<String> roles )
@@ -233,16 +393,25 @@ public class DefaultConfigurationManager
     public void deletePrivilege( String id, boolean clean )
         throws NoSuchPrivilegeException
     {
-        boolean found = getConfiguration().removePrivilegeById( id );
-
-        if ( !found )
+        beginUpdate();
+        try
         {
-            throw new NoSuchPrivilegeException( id );
-        }
+            boolean found = getConfiguration().removePrivilegeById( id );
+
+            if ( !found )
+            {
+                throw new NoSuchPrivilegeException( id );
+            }
+            journal( Entry.of( Operation.DELETE_PRIVILEGE, id ) );
 
-        if ( clean )
+            if ( clean )
+            {
+                cleanRemovedPrivilege( id );
+            }
+        }
+        finally
         {
-            cleanRemovedPrivilege( id );
+            endUpdate();
         }
     }
 
@@ -255,38 +424,56 @@ public class DefaultConfigurationManager
     protected void deleteRole( String id, boolean clean )
         throws NoSuchRoleException
     {
-        boolean found = getConfiguration().removeRoleById( id );
-
-        if ( !found )
+        beginUpdate();
+        try
         {
-            throw new NoSuchRoleException( id );
-        }
+            boolean found = getConfiguration().removeRoleById( id );
 
-        if ( clean )
+            if ( !found )
+            {
+                throw new NoSuchRoleException( id );
+            }
+            journal( Entry.of( Operation.DELETE_ROLE, id ) );
+
+            if ( clean )
+            {
+                cleanRemovedRole( id );
+            }
+        }
+        finally
         {
-            cleanRemovedRole( id );
+            endUpdate();
         }
     }
 
     public void deleteUser( String id )
         throws UserNotFoundException
     {
-        boolean found = getConfiguration().removeUserById( id );
-
-        if ( !found )
-        {
-            throw new UserNotFoundException( id );
-        }
-
-        // delete the user role mapping for this user too
+        beginUpdate();
         try
         {
-            deleteUserRoleMapping( id, SecurityXmlUserManager.SOURCE );
+            boolean found = getConfiguration().removeUserById( id );
+
+            if ( !found )
+            {
+                throw new UserNotFoundException( id );
+            }
+            journal( Entry.of( Operation.DELETE_USER, id ) );
+
+            // delete the user role mapping for this user too
+            try
+            {
+                deleteUserRoleMapping( id, SecurityXmlUserManager.SOURCE );
+            }
+            catch ( NoSuchRoleMappingException e )
+            {
+                this.getLogger().debug( "User role mapping for user: " + id + " source: " + SecurityXmlUserManager.SOURCE
+                                            + " could not be deleted because it does not exist." );
+            }
         }
-        catch ( NoSuchRoleMappingException e )
+        finally
         {
-            this.getLogger().debug( "User role mapping for user: " + id + " source: " + SecurityXmlUserManager.SOURCE
-                                        + " could not be deleted because it does not exist." );
+            endUpdate();
         }
     }
 
@@ -353,8 +540,17 @@ public class DefaultConfigurationManager
 
         if ( vr.isValid() )
         {
-            deletePrivilege( privilege.getId(), false );
-            getConfiguration().addPrivilege( privilege );
+            beginUpdate();
+            try
+            {
+                deletePrivilege( privilege.getId(), false );
+                getConfiguration().addPrivilege( privilege );
+                journal( privilege );
+            }
+            finally
+            {
+                endUpdate();
+            }
             logValidationWarnings( vr );
         }
         else
@@ -381,8 +577,17 @@ public class DefaultConfigurationManager
 
         if ( vr.isValid() )
         {
-            deleteRole( role.getId(), false );
-            getConfiguration().addRole( role );
+            beginUpdate();
+            try
+            {
+                deleteRole( role.getId(), false );
+                getConfiguration().addRole( role );
+                journal( role );
+            }
+            finally
+            {
+                endUpdate();
+            }
             logValidationWarnings( vr );
         }
         else
@@ -409,9 +614,18 @@ public class DefaultConfigurationManager
 
         if ( vr.isValid() )
         {
-            deleteUser( user.getId() );
-            getConfiguration().addUser( user );
-            this.createOrUpdateUserRoleMapping( this.buildUserRoleMapping( user.getId(), roles ) );
+            beginUpdate();
+            try
+            {
+                deleteUser( user.getId() );
+                getConfiguration().addUser( user );
+                journal( user );
+                this.createOrUpdateUserRoleMapping( this.buildUserRoleMapping( user.getId(), roles ) );
+            }
+            finally
+            {
+                endUpdate();
+            }
             logValidationWarnings( vr );
         }
         else
@@ -473,7 +687,16 @@ public class DefaultConfigurationManager
             throw new InvalidConfigurationException( vr );
         }
 
-        getConfiguration().addUserRoleMapping( userRoleMapping );
+        beginUpdate();
+        try
+        {
+            getConfiguration().addUserRoleMapping( userRoleMapping );
+            journal( userRoleMapping );
+        }
+        finally
+        {
+            endUpdate();
+        }
         logValidationWarnings( vr );
     }
 
@@ -546,8 +769,17 @@ public class DefaultConfigurationManager
             throw new InvalidConfigurationException( vr );
         }
 
-        deleteUserRoleMapping( userRoleMapping.getUserId(), userRoleMapping.getSource() );
-        getConfiguration().addUserRoleMapping( userRoleMapping );
+        beginUpdate();
+        try
+        {
+            deleteUserRoleMapping( userRoleMapping.getUserId(), userRoleMapping.getSource() );
+            getConfiguration().addUserRoleMapping( userRoleMapping );
+            journal( userRoleMapping );
+        }
+        finally
+        {
+            endUpdate();
+        }
     }
 
     public List<CUserRoleMapping> listUserRoleMappings()
@@ -555,14 +787,33 @@ public class DefaultConfigurationManager
         return Collections.unmodifiableList( getConfiguration().getUserRoleMappings() );
     }
 
+    public List<CUserRoleMapping> listUserRoleMappingsByRoleId( String roleId )
+    {
+        return Collections.unmodifiableList( getConfiguration().getUserRoleMappingsByRoleId( roleId ) );
+    }
+
+    public List<CUser> listUsersByEmail( String email )
+    {
+        return Collections.unmodifiableList( getConfiguration().getUsersByEmail( email ) );
+    }
+
     public void deleteUserRoleMapping( String userId, String source )
         throws NoSuchRoleMappingException
     {
-        boolean found = getConfiguration().removeUserRoleMappingByUserId( userId, source );
+        beginUpdate();
+        try
+        {
+            boolean found = getConfiguration().removeUserRoleMappingByUserId( userId, source );
 
-        if ( !found )
+            if ( !found )
+            {
+                throw new NoSuchRoleMappingException( "No User Role Mapping for user: " + userId );
+            }
+            journal( Entry.deleteUserRoleMapping( userId, source ) );
+        }
+        finally
         {
-            throw new NoSuchRoleMappingException( "No User Role Mapping for user: " + userId );
+            endUpdate();
         }
     }
 
@@ -572,92 +823,573 @@ public class DefaultConfigurationManager
         return getPrivilegeProperty( readPrivilege( id ), key );
     }
 
-    public synchronized void save()
+    public void apply( ConfigurationBatch batch )
+        throws InvalidConfigurationException
+    {
+        apply( batch, initializeContext() );
+    }
+
+    public void apply( ConfigurationBatch batch, SecurityValidationContext context )
+        throws InvalidConfigurationException
+    {
+        if ( context == null )
+        {
+            context = initializeContext();
+        }
+
+        // cleaning changes roles and mappings in place, hence it is done once nothing can fail anymore
+        final Set<String> removedRoleIds = new LinkedHashSet<String>();
+        final Set<String> removedPrivilegeIds = new LinkedHashSet<String>();
+
+        beginUpdate();
+        final int journaled = journalEntries.size();
+        boolean applied = false;
+        try
+        {
+            for ( Mutation mutation : batch.getMutations() )
+            {
+                apply( mutation, context, removedRoleIds, removedPrivilegeIds );
+            }
+
+            for ( String roleId : removedRoleIds )
+            {
+                cleanRemovedRole( roleId );
+            }
+            for ( String privilegeId : removedPrivilegeIds )
+            {
+                cleanRemovedPrivilege( privilegeId );
+            }
+
+            applied = true;
+        }
+        finally
+        {
+            if ( !applied )
+            {
+                rollbackUpdate();
+                journalEntries.subList( journaled, journalEntries.size() ).clear();
+            }
+
+            endUpdate();
+        }
+    }
+
+    /**
+     * Applies one mutation of a batch, and updates the context with what the validator does not record itself.
+     */
+    private void apply( Mutation mutation, SecurityValidationContext context, Set<String> removedRoleIds,
+                        Set<String> removedPrivilegeIds )
+        throws InvalidConfigurationException
+    {
+        try
+        {
+            switch ( mutation.getType() )
+            {
+                case CREATE_USER:
+                case UPDATE_USER:
+                    CUser user = (CUser) mutation.getObject();
+                    if ( mutation.getType() == ConfigurationBatch.Type.CREATE_USER )
+                    {
+                        createUser( user, mutation.getPassword(), mutation.getRoles(), context );
+                    }
+                    else
+                    {
+                        updateUser( user, mutation.getRoles(), context );
+                    }
+                    context.getExistingEmailMap().put( user.getId(), user.getEmail() );
+                    context.getExistingUserRoleMap().put( user.getId(), new ArrayList<String>( mutation.getRoles() ) );
+                    break;
+
+                case DELETE_USER:
+                    deleteUser( mutation.getId() );
+                    context.getExistingUserIds().removeAll( Collections.singleton( mutation.getId() ) );
+                    context.getExistingEmailMap().remove( mutation.getId() );
+                    context.getExistingUserRoleMap().remove( mutation.getId() );
+                    break;
+
+                case CREATE_ROLE:
+                    CRole role = (CRole) mutation.getObject();
+                    createRole( role, context );
+                    // the references to the removed role now refer to this one
+                    removedRoleIds.remove( role.getId() );
+                    break;
+
+                case UPDATE_ROLE:
+                    // the validator adds the contained roles to the existing ones
+                    context.getRoleContainmentMap().remove( mutation.getId() );
+                    updateRole( (CRole) mutation.getObject(), context );
+                    break;
+
+                case DELETE_ROLE:
+                    deleteRole( mutation.getId(), false );
+                    context.getExistingRoleIds().removeAll( Collections.singleton( mutation.getId() ) );
+                    context.getExistingRoleNameMap().remove( mutation.getId() );
+                    context.getRoleContainmentMap().remove( mutation.getId() );
+                    removedRoleIds.add( mutation.getId() );
+                    break;
+
+                case CREATE_PRIVILEGE:
+                    CPrivilege privilege = (CPrivilege) mutation.getObject();
+                    createPrivilege( privilege, context );
+                    removedPrivilegeIds.remove( privilege.getId() );
+                    break;
+
+                case UPDATE_PRIVILEGE:
+                    updatePrivilege( (CPrivilege) mutation.getObject(), context );
+                    break;
+
+                case DELETE_PRIVILEGE:
+                    deletePrivilege( mutation.getId(), false );
+                    context.getExistingPrivilegeIds().removeAll( Collections.singleton( mutation.getId() ) );
+                    removedPrivilegeIds.add( mutation.getId() );
+                    break;
+
+                case CREATE_USER_ROLE_MAPPING:
+                case UPDATE_USER_ROLE_MAPPING:
+                    CUserRoleMapping userRoleMapping = (CUserRoleMapping) mutation.getObject();
+                    if ( mutation.getType() == ConfigurationBatch.Type.CREATE_USER_ROLE_MAPPING )
+                    {
+                        createUserRoleMapping( userRoleMapping, context );
+                    }
+                    else
+                    {
+                        updateUserRoleMapping( userRoleMapping, context );
+                    }
+                    context.getExistingUserRoleMap().put( userRoleMapping.getUserId(), userRoleMapping.getRoles() );
+                    break;
+
+                case DELETE_USER_ROLE_MAPPING:
+                    deleteUserRoleMapping( mutation.getId(), mutation.getSource() );
+                    context.getExistingUserRoleMap().remove( mutation.getId() );
+                    break;
+
+                default:
+                    throw new IllegalArgumentException( "Unknown mutation: " + mutation.getType() );
+            }
+        }
+        catch ( UserNotFoundException e )
+        {
+            throw missing( "User '" + mutation.getId() + "' not found." );
+        }
+        catch ( NoSuchRoleException e )
+        {
+            throw missing( "Role '" + mutation.getId() + "' not found." );
+        }
+        catch ( NoSuchPrivilegeException e )
+        {
+            throw missing( "Privilege '" + mutation.getId() + "' not found." );
+        }
+        catch ( NoSuchRoleMappingException e )
+        {
+            throw missing( "No User Role Mapping found for user '" + mutation.getId() + "'." );
+        }
+    }
+
+    private static InvalidConfigurationException missing( String message )
+    {
+        ValidationResponse vr = new ValidationResponse();
+        vr.addValidationError( new ValidationMessage( "*", message ) );
+        return new InvalidConfigurationException( vr );
+    }
+
+    public void save()
+    {
+        if ( writeBehindInterval > 0 )
+        {
+            getUpdateLock().lock();
+            try
+            {
+                dirty = true;
+            }
+            finally
+            {
+                getUpdateLock().unlock();
+            }
+
+            if ( writeScheduled.compareAndSet( false, true ) )
+            {
+                try
+                {
+                    writer.schedule( new Runnable()
+                    {
+                        public void run()
+                        {
+                            writeScheduled.set( false );
+                            flush();
+                        }
+                    }, writeBehindInterval, TimeUnit.MILLISECONDS );
+                }
+                catch ( RejectedExecutionException e )
+                {
+                    // stopped, write synchronously
+                    writeScheduled.set( false );
+                    flush();
+                }
+            }
+        }
+        else
+        {
+            write();
+        }
+    }
+
+    public void flush()
     {
+        getUpdateLock().lock();
         try
         {
-            this.configurationSource.storeConfiguration();
+            if ( dirty )
+            {
+                dirty = false;
+                write();
+            }
+        }
+        finally
+        {
+            getUpdateLock().unlock();
+        }
+    }
+
+    public void onEvent( final Event<?> evt )
+    {
+        if ( evt instanceof SecuritySystemStoppingEvent )
+        {
+            flush();
+            stopWriter();
+        }
+    }
+
+    /**
+     * Stops the writer thread, dropping the scheduled write (everything is flushed already) but letting a running or
+     * queued journal compaction complete.
+     */
+    private void stopWriter()
+    {
+        writer.setExecuteExistingDelayedTasksAfterShutdownPolicy( false );
+        writer.shutdown();
+        writeScheduled.set( false );
+
+        try
+        {
+            if ( !writer.awaitTermination( 30, TimeUnit.SECONDS ) )
+            {
+                getLogger().warn( "Security configuration writer did not stop in time" );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes the current configuration (or the journal of its changes) to disk.
+     */
+    private void write()
+    {
+        // published snapshots are not changed, but a new one must not be published while storing
+        getUpdateLock().lock();
+        try
+        {
+            if ( journalEnabled )
+            {
+                journal.append( journalEntries );
+                journalEntries.clear();
+
+                if ( journal.length() > JOURNAL_COMPACTION_THRESHOLD )
+                {
+                    scheduleJournalCompaction();
+                }
+            }
+            else
+            {
+                storeConfiguration();
+            }
         }
         catch ( IOException e )
         {
             getLogger().error( "IOException while storing configuration file", e );
         }
+        finally
+        {
+            getUpdateLock().unlock();
+        }
     }
 
     @Override
-    protected Configuration doGetConfiguration()
+    public void clearCache()
     {
+        getUpdateLock().lock();
         try
         {
-            this.configurationSource.loadConfiguration();
+            // saved changes must not be lost with the configuration, unsaved ones are dropped
+            flush();
+            journalEntries.clear();
 
-            boolean modified = false;
-            for ( SecurityConfigurationModifier modifier : configurationModifiers )
+            super.clearCache();
+        }
+        finally
+        {
+            getUpdateLock().unlock();
+        }
+    }
+
+    /**
+     * Reloads security.xml changed outside of the application, keeping the current configuration if the new one cannot
+     * be loaded. Does nothing if the configuration is not loaded yet. Saved changes still waiting for the writer are
+     * written first, as in {@link #clearCache()}, unsaved ones are dropped.
+     */
+    public void reload()
+    {
+        ConfigurationDiff diff = null;
+
+        getUpdateLock().lock();
+        try
+        {
+            final EnhancedConfiguration current = getLoadedConfiguration();
+            if ( current == null )
             {
-                modified |= modifier.apply( configurationSource.getConfiguration() );
+                return;
             }
 
-            if ( modified )
+            // an acknowledged save must not be lost, it is written over the changed file
+            flush();
+            if ( !journalEntries.isEmpty() )
             {
-                configurationSource.backupConfiguration();
-                configurationSource.storeConfiguration();
+                getLogger().warn( "Security configuration file changed on disk, dropping unsaved changes" );
+                journalEntries.clear();
             }
 
-            return this.configurationSource.getConfiguration();
+            final Configuration loaded;
+            try
+            {
+                loaded = doGetConfiguration();
+            }
+            catch ( IllegalStateException e )
+            {
+                // the current configuration stays, the source must hold it again
+                publishConfiguration( current );
+                return;
+            }
+
+            diff = new ConfigurationDiff( current.getDelegate(), loaded );
+            publishConfiguration( new EnhancedConfiguration( diff.getMerged() ) );
+        }
+        finally
+        {
+            getUpdateLock().unlock();
+        }
+
+        if ( !diff.isEmpty() )
+        {
+            getLogger().info( "Reloaded security configuration, changed users: " + diff.getUserIds() + ", roles: "
+                                  + diff.getRoleIds() + ", privileges: " + diff.getPrivilegeIds() );
+
+            eventMulticaster.notifyEventListeners( new AuthorizationConfigurationReloadedEvent(
+                this, diff.getUserIds(), diff.getRoleIds(), diff.getPrivilegeIds() ) );
+        }
+    }
+
+    /**
+     * Folds the journal into security.xml, by storing the current configuration as a whole and clearing the journal.
+     */
+    public void compactJournal()
+    {
+        getUpdateLock().lock();
+        try
+        {
+            storeConfiguration();
         }
         catch ( IOException e )
         {
-            getLogger().error( "IOException while retrieving configuration file", e );
+            getLogger().error( "IOException while compacting security configuration journal", e );
+        }
+        finally
+        {
+            getUpdateLock().unlock();
+        }
+    }
 
-            throw new IllegalStateException( "Cannot load configuration!", e );
+    private void scheduleJournalCompaction()
+    {
+        if ( compactionScheduled.compareAndSet( false, true ) )
+        {
+            try
+            {
+                writer.execute( new Runnable()
+                {
+                    public void run()
+                    {
+                        compactionScheduled.set( false );
+                        compactJournal();
+                    }
+                } );
+            }
+            catch ( RejectedExecutionException e )
+            {
+                // stopped, compact synchronously
+                compactionScheduled.set( false );
+                compactJournal();
+            }
         }
-        catch ( ConfigurationException e )
+    }
+
+    /**
+     * Stores the configuration as a whole, making the journal obsolete.
+     */
+    private void storeConfiguration()
+        throws IOException
+    {
+        this.configurationSource.storeConfiguration();
+
+        if ( journal != null )
         {
-            getLogger().error( "Invalid Configuration", e );
+            journal.clear();
+        }
 
-            throw new IllegalStateException( "Invalid configuration!", e );
+        if ( configurationFile != null )
+        {
+            // our own write is not an external change
+            fileWatcher.acknowledge( configurationFile );
         }
     }
 
-    public SecurityValidationContext initializeContext()
+    private void journal( Entry entry )
     {
-        SecurityValidationContext context = new SecurityValidationContext();
+        if ( journalEnabled )
+        {
+            journalEntries.add( entry );
+        }
+    }
 
-        context.addExistingUserIds();
-        context.addExistingRoleIds();
-        context.addExistingPrivilegeIds();
+    private void journal( CPrivilege privilege )
+    {
+        // the entry serializes the model, not worth it when journaling is disabled
+        if ( journalEnabled )
+        {
+            journalEntries.add( Entry.put( privilege ) );
+        }
+    }
 
-        for ( CUser user : listUsers() )
+    private void journal( CRole role )
+    {
+        if ( journalEnabled )
         {
-            context.getExistingUserIds().add( user.getId() );
+            journalEntries.add( Entry.put( role ) );
+        }
+    }
 
-            context.getExistingEmailMap().put( user.getId(), user.getEmail() );
+    private void journal( CUser user )
+    {
+        if ( journalEnabled )
+        {
+            journalEntries.add( Entry.put( user ) );
         }
+    }
 
-        for ( CRole role : listRoles() )
+    private void journal( CUserRoleMapping mapping )
+    {
+        if ( journalEnabled )
         {
-            context.getExistingRoleIds().add( role.getId() );
+            journalEntries.add( Entry.put( mapping ) );
+        }
+    }
 
-            ArrayList<String> containedRoles = new ArrayList<String>();
+    private int replayJournal()
+        throws IOException
+    {
+        if ( journal == null )
+        {
+            return 0;
+        }
 
-            containedRoles.addAll( role.getRoles() );
+        List<Entry> entries = journal.read();
 
-            context.getRoleContainmentMap().put( role.getId(), containedRoles );
+        if ( !entries.isEmpty() )
+        {
+            getLogger().info( "Replaying " + entries.size() + " changes from security configuration journal "
+                                  + journal.getFile() );
 
-            context.getExistingRoleNameMap().put( role.getId(), role.getName() );
+            EnhancedConfiguration configuration = new EnhancedConfiguration( configurationSource.getConfiguration() );
+            for ( Entry entry : entries )
+            {
+                SecurityConfigurationJournal.apply( entry, configuration, configCleaner );
+            }
         }
 
-        for ( CPrivilege priv : listPrivileges() )
+        return entries.size();
+    }
+
+    @Override
+    protected void publishConfiguration( final EnhancedConfiguration configuration )
+    {
+        super.publishConfiguration( configuration );
+
+        // the source stores the current snapshot
+        this.configurationSource.setConfiguration( configuration.getDelegate() );
+    }
+
+    @Override
+    protected Configuration doGetConfiguration()
+    {
+        try
         {
-            context.getExistingPrivilegeIds().add( priv.getId() );
+            this.configurationSource.loadConfiguration();
+
+            int replayed = replayJournal();
+
+            boolean modified = false;
+            for ( SecurityConfigurationModifier modifier : configurationModifiers )
+            {
+                modified |= modifier.apply( configurationSource.getConfiguration() );
+            }
+
+            if ( modified )
+            {
+                configurationSource.backupConfiguration();
+                storeConfiguration();
+            }
+            else if ( replayed > 0 )
+            {
+                // fold the replayed journal right away, loading is rare
+                storeConfiguration();
+            }
+            else if ( configurationFile != null )
+            {
+                fileWatcher.acknowledge( configurationFile );
+            }
+
+            return this.configurationSource.getConfiguration();
+        }
+        catch ( IOException e )
+        {
+            getLogger().error( "IOException while retrieving configuration file", e );
+
+            throw new IllegalStateException( "Cannot load configuration!", e );
         }
+        catch ( ConfigurationException e )
+        {
+            getLogger().error( "Invalid Configuration", e );
+
+            throw new IllegalStateException( "Invalid configuration!", e );
+        }
+    }
+
+    /**
+     * Returns a context over the current configuration snapshot, see {@link ConfigurationValidationContext}. Creating
+     * it does not depend on the size of the configuration, unless called while updating, as the private copy of the
+     * updating thread keeps changing.
+     */
+    public SecurityValidationContext initializeContext()
+    {
+        EnhancedConfiguration configuration = getConfiguration();
 
-        for ( CUserRoleMapping roleMappings : listUserRoleMappings() )
+        if ( isUpdating() )
         {
-            context.getExistingUserRoleMap().put( roleMappings.getUserId(), roleMappings.getRoles() );
+            configuration = configuration.copy();
         }
 
-        return context;
+        return new ConfigurationValidationContext( configuration );
     }
 
     public List<PrivilegeDescriptor> listPrivilegeDescriptors()
@@ -667,11 +1399,29 @@ public class DefaultConfigurationManager
 
     public void cleanRemovedPrivilege( String privilegeId )
     {
-        configCleaner.privilegeRemoved( getConfiguration(), privilegeId );
+        beginUpdate();
+        try
+        {
+            configCleaner.privilegeRemoved( getConfiguration(), privilegeId );
+            journal( Entry.of( Operation.CLEAN_PRIVILEGE, privilegeId ) );
+        }
+        finally
+        {
+            endUpdate();
+        }
     }
 
     public void cleanRemovedRole( String roleId )
     {
-        configCleaner.roleRemoved( getConfiguration(), roleId );
+        beginUpdate();
+        try
+        {
+            configCleaner.roleRemoved( getConfiguration(), roleId );
+            journal( Entry.of( Operation.CLEAN_ROLE, roleId ) );
+        }
+        finally
+        {
+            endUpdate();
+        }
     }
 }
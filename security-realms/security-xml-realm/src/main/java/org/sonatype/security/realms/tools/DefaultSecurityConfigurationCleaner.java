@@ -12,6 +12,7 @@
  */
 package org.sonatype.security.realms.tools;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.enterprise.inject.Typed;
@@ -27,7 +28,8 @@ import org.sonatype.security.model.Configuration;
 /**
  * Removes dead references to roles and permissions in the security model. When a permission is removed all roles will
  * be updated so the permission reference can removed. When a Role is removed references are removed from other roles
- * and users.
+ * and users. The reverse indices of an {@link EnhancedConfiguration} are used to find the references, other
+ * configurations are scanned.
  * 
  * @author Brian Demers
  */
@@ -42,6 +44,20 @@ public class DefaultSecurityConfigurationCleaner
     public void privilegeRemoved( Configuration configuration, String privilegeId )
     {
         logger.debug( "Cleaning privilege id " + privilegeId + " from roles." );
+
+        if ( configuration instanceof EnhancedConfiguration )
+        {
+            EnhancedConfiguration enhanced = (EnhancedConfiguration) configuration;
+
+            for ( CRole role : enhanced.getRolesByPrivilegeId( privilegeId ) )
+            {
+                logger.debug( "removing from role " + role.getId() );
+                enhanced.setRolePrivileges( role, without( role.getPrivileges(), privilegeId ) );
+            }
+
+            return;
+        }
+
         List<CRole> roles = configuration.getRoles();
 
         for ( CRole role : roles )
@@ -49,7 +65,7 @@ public class DefaultSecurityConfigurationCleaner
             if ( role.getPrivileges().contains( privilegeId ) )
             {
                 logger.debug( "removing from role " + role.getId() );
-                role.getPrivileges().remove( privilegeId );
+                role.setPrivileges( without( role.getPrivileges(), privilegeId ) );
             }
         }
     }
@@ -57,6 +73,26 @@ public class DefaultSecurityConfigurationCleaner
     public void roleRemoved( Configuration configuration, String roleId )
     {
         logger.debug( "Cleaning role id " + roleId + " from users and roles." );
+
+        if ( configuration instanceof EnhancedConfiguration )
+        {
+            EnhancedConfiguration enhanced = (EnhancedConfiguration) configuration;
+
+            for ( CRole role : enhanced.getParentRoles( roleId ) )
+            {
+                logger.debug( "removing from role " + role.getId() );
+                enhanced.setRoleRoles( role, without( role.getRoles(), roleId ) );
+            }
+
+            for ( CUserRoleMapping mapping : enhanced.getUserRoleMappingsByRoleId( roleId ) )
+            {
+                logger.debug( "removing from user " + mapping.getUserId() );
+                enhanced.setUserRoleMappingRoles( mapping, without( mapping.getRoles(), roleId ) );
+            }
+
+            return;
+        }
+
         List<CRole> roles = configuration.getRoles();
 
         for ( CRole role : roles )
@@ -64,7 +100,7 @@ public class DefaultSecurityConfigurationCleaner
             if ( role.getRoles().contains( roleId ) )
             {
                 logger.debug( "removing from role " + role.getId() );
-                role.getRoles().remove( roleId );
+                role.setRoles( without( role.getRoles(), roleId ) );
             }
         }
 
@@ -75,8 +111,19 @@ public class DefaultSecurityConfigurationCleaner
             if ( mapping.getRoles().contains( roleId ) )
             {
                 logger.debug( "removing from user " + mapping.getUserId() );
-                mapping.removeRole( roleId );
+                mapping.setRoles( without( mapping.getRoles(), roleId ) );
             }
         }
     }
+
+    /**
+     * Returns a copy of the list without the element, the list itself is not modified as readers of the configuration
+     * might be iterating it.
+     */
+    private static List<String> without( List<String> list, String element )
+    {
+        List<String> result = new ArrayList<String>( list );
+        result.remove( element );
+        return result;
+    }
 }
@@ -12,9 +12,14 @@
  */
 package org.sonatype.security.realms.tools;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.sonatype.security.model.CPrivilege;
 import org.sonatype.security.model.CRole;
@@ -22,6 +27,22 @@ import org.sonatype.security.model.CUser;
 import org.sonatype.security.model.CUserRoleMapping;
 import org.sonatype.security.model.Configuration;
 
+/**
+ * A {@link Configuration} with lookup maps: users, roles, privileges and user role mappings by ID, and the reverse
+ * indices of the roles containing a privilege or a role, the user role mappings of a user or having a role and the
+ * users having an email address, maintained on every add and remove. The roles of a role or of a user role mapping, and the privileges
+ * of a role, should be changed through this class once added, for the reverse indices to stay correct. A model object
+ * changed in place is still unindexed from the keys it was indexed under when it is removed, so replacing it (like
+ * the configuration managers do on update) corrects the indices.
+ * <p>
+ * A {@link #copy()} shares the lists, the lookup maps and the indices with this configuration. Each of the two copies
+ * the list of privileges, roles, users or user role mappings on the first change of those, which is a copy of
+ * references only. The lookup maps and indices are {@link SnapshotMap}s, copying the one shard a change touches, and
+ * the sets of the reverse indices are copied only when changed. Changing a user hence costs the users list and a few
+ * shards, but nothing of the roles, privileges and user role mappings. The model objects are shared too, they must not be
+ * changed in place once added: {@link #setRolePrivileges(CRole, List)}, {@link #setRoleRoles(CRole, List)} and
+ * {@link #setUserRoleMappingRoles(CUserRoleMapping, List)} replace the changed object with a changed copy.
+ */
 @SuppressWarnings( "serial" )
 public class EnhancedConfiguration
     extends Configuration
@@ -38,10 +59,65 @@ public class EnhancedConfiguration
         rebuildId2RoleMappingsLookupMap();
     }
 
+    private EnhancedConfiguration( final EnhancedConfiguration configuration )
+    {
+        this.delegate = new Configuration();
+
+        delegate.setVersion( configuration.getVersion() );
+        delegate.setModelEncoding( configuration.getModelEncoding() );
+        delegate.setPrivileges( configuration.delegate.getPrivileges() );
+        delegate.setRoles( configuration.delegate.getRoles() );
+        delegate.setUsers( configuration.delegate.getUsers() );
+        delegate.setUserRoleMappings( configuration.delegate.getUserRoleMappings() );
+
+        id2users = configuration.id2users.copy();
+        id2roles = configuration.id2roles.copy();
+        id2privileges = configuration.id2privileges.copy();
+        id2roleMappings = configuration.id2roleMappings.copy();
+        privilege2roles = configuration.privilege2roles.copy();
+        role2parentRoles = configuration.role2parentRoles.copy();
+        role2roleMappings = configuration.role2roleMappings.copy();
+        user2roleMappings = configuration.user2roleMappings.copy();
+        email2users = configuration.email2users.copy();
+        indexedRolePrivileges = configuration.indexedRolePrivileges.copy();
+        indexedRoleRoles = configuration.indexedRoleRoles.copy();
+        indexedMappingRoles = configuration.indexedMappingRoles.copy();
+        indexedUserEmails = configuration.indexedUserEmails.copy();
+
+        privilegesShared = true;
+        rolesShared = true;
+        usersShared = true;
+        roleMappingsShared = true;
+    }
+
+    /**
+     * Returns a copy of this configuration, that shares the model objects with this one. It takes constant time, the
+     * lists, lookup maps and indices are shared until either configuration changes them, see above.
+     */
+    public EnhancedConfiguration copy()
+    {
+        privilegesShared = true;
+        rolesShared = true;
+        usersShared = true;
+        roleMappingsShared = true;
+        ownedIndexSets.clear();
+
+        return new EnhancedConfiguration( this );
+    }
+
+    /**
+     * Returns the configuration this instance is delegating to.
+     */
+    Configuration getDelegate()
+    {
+        return delegate;
+    }
+
     // ==
 
     public void addPrivilege( CPrivilege cPrivilege )
     {
+        unsharePrivileges();
         delegate.addPrivilege( cPrivilege );
 
         id2privileges.put( cPrivilege.getId(), cPrivilege );
@@ -49,24 +125,30 @@ public class EnhancedConfiguration
 
     public void addRole( CRole cRole )
     {
+        unshareRoles();
         delegate.addRole( cRole );
 
         id2roles.put( cRole.getId(), cRole );
+        indexRole( cRole );
     }
 
     public void addUser( CUser cUser )
     {
+        unshareUsers();
         delegate.addUser( cUser );
 
         id2users.put( cUser.getId(), cUser );
+        indexUser( cUser );
     }
 
     public void addUserRoleMapping( CUserRoleMapping cUserRoleMapping )
     {
+        unshareUserRoleMappings();
         delegate.addUserRoleMapping( cUserRoleMapping );
 
         id2roleMappings.put( getUserRoleMappingKey( cUserRoleMapping.getUserId(), cUserRoleMapping.getSource() ),
                              cUserRoleMapping );
+        indexUserRoleMapping( cUserRoleMapping );
     }
 
     public String getModelEncoding()
@@ -109,6 +191,7 @@ public class EnhancedConfiguration
 
     public void removePrivilege( CPrivilege cPrivilege )
     {
+        unsharePrivileges();
         id2privileges.remove( cPrivilege.getId() );
 
         delegate.removePrivilege( cPrivilege );
@@ -116,21 +199,27 @@ public class EnhancedConfiguration
 
     public void removeRole( CRole cRole )
     {
+        unshareRoles();
         id2roles.remove( cRole.getId() );
+        unindexRole( cRole );
 
         delegate.removeRole( cRole );
     }
 
     public void removeUser( CUser cUser )
     {
+        unshareUsers();
         id2users.remove( cUser.getId() );
+        unindexUser( cUser );
 
         delegate.removeUser( cUser );
     }
 
     public void removeUserRoleMapping( CUserRoleMapping cUserRoleMapping )
     {
+        unshareUserRoleMappings();
         id2roleMappings.remove( getUserRoleMappingKey( cUserRoleMapping.getUserId(), cUserRoleMapping.getSource() ) );
+        unindexUserRoleMapping( cUserRoleMapping );
 
         delegate.removeUserRoleMapping( cUserRoleMapping );
     }
@@ -192,7 +281,9 @@ public class EnhancedConfiguration
 
         if ( user != null )
         {
+            unshareUsers();
             delegate.removeUser( user );
+            unindexUser( user );
             return id2users.remove( id ) != null;
         }
         else
@@ -212,7 +303,9 @@ public class EnhancedConfiguration
 
         if ( role != null )
         {
+            unshareRoles();
             delegate.removeRole( role );
+            unindexRole( role );
             return id2roles.remove( id ) != null;
         }
         else
@@ -232,6 +325,7 @@ public class EnhancedConfiguration
 
         if ( privilege != null )
         {
+            unsharePrivileges();
             delegate.removePrivilege( privilege );
             return id2privileges.remove( id ) != null;
         }
@@ -252,7 +346,9 @@ public class EnhancedConfiguration
 
         if ( mapping != null )
         {
+            unshareUserRoleMappings();
             delegate.removeUserRoleMapping( mapping );
+            unindexUserRoleMapping( mapping );
             return id2roleMappings.remove( getUserRoleMappingKey( id, source ) ) != null;
         }
         else
@@ -261,39 +357,277 @@ public class EnhancedConfiguration
         }
     }
 
+    /**
+     * Returns the roles directly containing the privilege.
+     */
+    public List<CRole> getRolesByPrivilegeId( final String privilegeId )
+    {
+        return copyOf( privilege2roles.get( privilegeId ) );
+    }
+
+    /**
+     * Returns the roles directly containing the role.
+     */
+    public List<CRole> getParentRoles( final String roleId )
+    {
+        return copyOf( role2parentRoles.get( roleId ) );
+    }
+
+    /**
+     * Returns the user role mappings (of any source) having the role.
+     */
+    public List<CUserRoleMapping> getUserRoleMappingsByRoleId( final String roleId )
+    {
+        return copyOf( role2roleMappings.get( roleId ) );
+    }
+
+    /**
+     * Returns the user role mappings (of any source) of the user, the user ID is case sensitive.
+     */
+    public List<CUserRoleMapping> getUserRoleMappingsByUserId( final String userId )
+    {
+        return copyOf( user2roleMappings.get( userId ) );
+    }
+
+    /**
+     * Returns the users having the email address, ignoring case.
+     */
+    public List<CUser> getUsersByEmail( final String email )
+    {
+        return email != null ? copyOf( email2users.get( email.toLowerCase() ) ) : Collections.<CUser> emptyList();
+    }
+
+    /**
+     * Replaces a role of this configuration with a copy having the privileges, the role itself is not changed.
+     * 
+     * @return the copy
+     */
+    public CRole setRolePrivileges( final CRole role, final List<String> privileges )
+    {
+        final CRole changed = copyRole( role );
+        changed.setPrivileges( privileges );
+        replaceRole( role, changed );
+        return changed;
+    }
+
+    /**
+     * Replaces a role of this configuration with a copy containing the roles, the role itself is not changed.
+     * 
+     * @return the copy
+     */
+    public CRole setRoleRoles( final CRole role, final List<String> roles )
+    {
+        final CRole changed = copyRole( role );
+        changed.setRoles( roles );
+        replaceRole( role, changed );
+        return changed;
+    }
+
+    /**
+     * Replaces a user role mapping of this configuration with a copy having the roles, the mapping itself is not
+     * changed.
+     * 
+     * @return the copy
+     */
+    public CUserRoleMapping setUserRoleMappingRoles( final CUserRoleMapping mapping, final List<String> roles )
+    {
+        final CUserRoleMapping changed = copyUserRoleMapping( mapping );
+        changed.setRoles( roles );
+
+        unshareUserRoleMappings();
+        replace( delegate.getUserRoleMappings(), mapping, changed );
+        unindexUserRoleMapping( mapping );
+        id2roleMappings.put( getUserRoleMappingKey( changed.getUserId(), changed.getSource() ), changed );
+        indexUserRoleMapping( changed );
+        return changed;
+    }
+
+    private void replaceRole( final CRole role, final CRole changed )
+    {
+        unshareRoles();
+        replace( delegate.getRoles(), role, changed );
+        unindexRole( role );
+        id2roles.put( changed.getId(), changed );
+        indexRole( changed );
+    }
+
+    private static <T> void replace( final List<T> list, final T value, final T replacement )
+    {
+        // model objects do not override equals(), this finds the instance
+        final int index = list.indexOf( value );
+        if ( index < 0 )
+        {
+            throw new IllegalArgumentException( "Not in this configuration: " + value );
+        }
+        list.set( index, replacement );
+    }
+
+    private static CRole copyRole( final CRole role )
+    {
+        final CRole copy = new CRole();
+        copy.setId( role.getId() );
+        copy.setName( role.getName() );
+        copy.setDescription( role.getDescription() );
+        copy.setSessionTimeout( role.getSessionTimeout() );
+        copy.setPrivileges( new ArrayList<String>( role.getPrivileges() ) );
+        copy.setRoles( new ArrayList<String>( role.getRoles() ) );
+        copy.setReadOnly( role.isReadOnly() );
+        return copy;
+    }
+
+    private static CUserRoleMapping copyUserRoleMapping( final CUserRoleMapping mapping )
+    {
+        final CUserRoleMapping copy = new CUserRoleMapping();
+        copy.setUserId( mapping.getUserId() );
+        copy.setSource( mapping.getSource() );
+        copy.setRoles( new ArrayList<String>( mapping.getRoles() ) );
+        return copy;
+    }
+
+    /**
+     * Returns the read-only users by ID, maintained on every add and remove.
+     */
+    Map<String, CUser> getUserMap()
+    {
+        return Collections.unmodifiableMap( id2users );
+    }
+
+    /**
+     * Returns the read-only roles by ID, maintained on every add and remove.
+     */
+    Map<String, CRole> getRoleMap()
+    {
+        return Collections.unmodifiableMap( id2roles );
+    }
+
+    /**
+     * Returns the read-only privileges by ID, maintained on every add and remove.
+     */
+    Map<String, CPrivilege> getPrivilegeMap()
+    {
+        return Collections.unmodifiableMap( id2privileges );
+    }
+
     // ==
 
-    private HashMap<String, CUser> id2users = new HashMap<String, CUser>();
+    private SnapshotMap<String, CUser> id2users = new SnapshotMap<String, CUser>( false );
+
+    private SnapshotMap<String, CRole> id2roles = new SnapshotMap<String, CRole>( false );
+
+    private SnapshotMap<String, CPrivilege> id2privileges = new SnapshotMap<String, CPrivilege>( false );
+
+    private SnapshotMap<String, CUserRoleMapping> id2roleMappings =
+        new SnapshotMap<String, CUserRoleMapping>( false );
+
+    private SnapshotMap<String, Set<CRole>> privilege2roles = new SnapshotMap<String, Set<CRole>>( false );
+
+    private SnapshotMap<String, Set<CRole>> role2parentRoles = new SnapshotMap<String, Set<CRole>>( false );
+
+    private SnapshotMap<String, Set<CUserRoleMapping>> role2roleMappings =
+        new SnapshotMap<String, Set<CUserRoleMapping>>( false );
+
+    private SnapshotMap<String, Set<CUserRoleMapping>> user2roleMappings =
+        new SnapshotMap<String, Set<CUserRoleMapping>>( false );
+
+    private SnapshotMap<String, Set<CUser>> email2users = new SnapshotMap<String, Set<CUser>>( false );
+
+    // the keys the model objects were indexed under, as they may have been changed in place since
+
+    private SnapshotMap<CRole, List<String>> indexedRolePrivileges = new SnapshotMap<CRole, List<String>>( true );
+
+    private SnapshotMap<CRole, List<String>> indexedRoleRoles = new SnapshotMap<CRole, List<String>>( true );
+
+    private SnapshotMap<CUserRoleMapping, List<String>> indexedMappingRoles =
+        new SnapshotMap<CUserRoleMapping, List<String>>( true );
+
+    private SnapshotMap<CUser, String> indexedUserEmails = new SnapshotMap<CUser, String>( true );
+
+    // whether the lists are shared with a copy (the maps above track their shards on their own), and the index sets
+    // that are not
+
+    private boolean privilegesShared;
+
+    private boolean rolesShared;
+
+    private boolean usersShared;
+
+    private boolean roleMappingsShared;
 
-    private HashMap<String, CRole> id2roles = new HashMap<String, CRole>();
+    private final Set<Set<?>> ownedIndexSets = Collections.newSetFromMap( new IdentityHashMap<Set<?>, Boolean>() );
 
-    private HashMap<String, CPrivilege> id2privileges = new HashMap<String, CPrivilege>();
+    private void unsharePrivileges()
+    {
+        if ( privilegesShared )
+        {
+            delegate.setPrivileges( new ArrayList<CPrivilege>( delegate.getPrivileges() ) );
+            privilegesShared = false;
+        }
+    }
 
-    private HashMap<String, CUserRoleMapping> id2roleMappings = new HashMap<String, CUserRoleMapping>();
+    private void unshareRoles()
+    {
+        if ( rolesShared )
+        {
+            delegate.setRoles( new ArrayList<CRole>( delegate.getRoles() ) );
+            rolesShared = false;
+        }
+    }
+
+    private void unshareUsers()
+    {
+        if ( usersShared )
+        {
+            delegate.setUsers( new ArrayList<CUser>( delegate.getUsers() ) );
+            usersShared = false;
+        }
+    }
+
+    private void unshareUserRoleMappings()
+    {
+        if ( roleMappingsShared )
+        {
+            delegate.setUserRoleMappings( new ArrayList<CUserRoleMapping>( delegate.getUserRoleMappings() ) );
+            roleMappingsShared = false;
+        }
+    }
 
     protected void rebuildId2UsersLookupMap()
     {
-        id2users.clear();
+        disown( email2users );
+        id2users = new SnapshotMap<String, CUser>( false );
+        email2users = new SnapshotMap<String, Set<CUser>>( false );
+        indexedUserEmails = new SnapshotMap<CUser, String>( true );
+        usersShared = false;
 
         for ( CUser user : getUsers() )
         {
             id2users.put( user.getId(), user );
+            indexUser( user );
         }
     }
 
     protected void rebuildId2RolesLookupMap()
     {
-        id2roles.clear();
+        disown( privilege2roles );
+        disown( role2parentRoles );
+        id2roles = new SnapshotMap<String, CRole>( false );
+        privilege2roles = new SnapshotMap<String, Set<CRole>>( false );
+        role2parentRoles = new SnapshotMap<String, Set<CRole>>( false );
+        indexedRolePrivileges = new SnapshotMap<CRole, List<String>>( true );
+        indexedRoleRoles = new SnapshotMap<CRole, List<String>>( true );
+        rolesShared = false;
 
         for ( CRole role : getRoles() )
         {
             id2roles.put( role.getId(), role );
+            indexRole( role );
         }
     }
 
     protected void rebuildId2PrivilegesLookupMap()
     {
-        id2privileges.clear();
+        id2privileges = new SnapshotMap<String, CPrivilege>( false );
+        privilegesShared = false;
 
         for ( CPrivilege privilege : getPrivileges() )
         {
@@ -303,14 +637,164 @@ public class EnhancedConfiguration
 
     protected void rebuildId2RoleMappingsLookupMap()
     {
-        id2roleMappings.clear();
+        disown( role2roleMappings );
+        disown( user2roleMappings );
+        id2roleMappings = new SnapshotMap<String, CUserRoleMapping>( false );
+        role2roleMappings = new SnapshotMap<String, Set<CUserRoleMapping>>( false );
+        user2roleMappings = new SnapshotMap<String, Set<CUserRoleMapping>>( false );
+        indexedMappingRoles = new SnapshotMap<CUserRoleMapping, List<String>>( true );
+        roleMappingsShared = false;
 
         for ( CUserRoleMapping user2role : getUserRoleMappings() )
         {
             id2roleMappings.put( getUserRoleMappingKey( user2role.getUserId(), user2role.getSource() ), user2role );
+            indexUserRoleMapping( user2role );
         }
     }
 
+    private void indexRole( final CRole role )
+    {
+        final List<String> privilegeIds = new ArrayList<String>( role.getPrivileges() );
+        for ( String privilegeId : privilegeIds )
+        {
+            add( privilege2roles, privilegeId, role );
+        }
+        indexedRolePrivileges.put( role, privilegeIds );
+
+        final List<String> roleIds = new ArrayList<String>( role.getRoles() );
+        for ( String roleId : roleIds )
+        {
+            add( role2parentRoles, roleId, role );
+        }
+        indexedRoleRoles.put( role, roleIds );
+    }
+
+    private void unindexRole( final CRole role )
+    {
+        final List<String> privilegeIds = indexedRolePrivileges.remove( role );
+        if ( privilegeIds != null )
+        {
+            for ( String privilegeId : privilegeIds )
+            {
+                remove( privilege2roles, privilegeId, role );
+            }
+        }
+
+        final List<String> roleIds = indexedRoleRoles.remove( role );
+        if ( roleIds != null )
+        {
+            for ( String roleId : roleIds )
+            {
+                remove( role2parentRoles, roleId, role );
+            }
+        }
+    }
+
+    private void indexUser( final CUser user )
+    {
+        if ( user.getEmail() != null )
+        {
+            final String email = user.getEmail().toLowerCase();
+            add( email2users, email, user );
+            indexedUserEmails.put( user, email );
+        }
+    }
+
+    private void unindexUser( final CUser user )
+    {
+        final String email = indexedUserEmails.remove( user );
+        if ( email != null )
+        {
+            remove( email2users, email, user );
+        }
+    }
+
+    private void indexUserRoleMapping( final CUserRoleMapping mapping )
+    {
+        final List<String> roleIds = new ArrayList<String>( mapping.getRoles() );
+        for ( String roleId : roleIds )
+        {
+            add( role2roleMappings, roleId, mapping );
+        }
+        indexedMappingRoles.put( mapping, roleIds );
+
+        add( user2roleMappings, mapping.getUserId(), mapping );
+    }
+
+    private void unindexUserRoleMapping( final CUserRoleMapping mapping )
+    {
+        final List<String> roleIds = indexedMappingRoles.remove( mapping );
+        if ( roleIds != null )
+        {
+            for ( String roleId : roleIds )
+            {
+                remove( role2roleMappings, roleId, mapping );
+            }
+        }
+
+        remove( user2roleMappings, mapping.getUserId(), mapping );
+    }
+
+    // model objects do not override equals(), the sets hold the instances
+
+    private <T> void add( final Map<String, Set<T>> index, final String key, final T value )
+    {
+        final Set<T> values = index.get( key );
+        if ( values == null || !values.contains( value ) )
+        {
+            ownedIndexSet( index, key, values ).add( value );
+        }
+    }
+
+    private <T> void remove( final Map<String, Set<T>> index, final String key, final T value )
+    {
+        final Set<T> values = index.get( key );
+        if ( values != null && values.contains( value ) )
+        {
+            if ( values.size() == 1 )
+            {
+                index.remove( key );
+                ownedIndexSets.remove( values );
+            }
+            else
+            {
+                ownedIndexSet( index, key, values ).remove( value );
+            }
+        }
+    }
+
+    /**
+     * Returns the set of the key to be changed, copying it first if it might be shared with a copy.
+     */
+    private <T> Set<T> ownedIndexSet( final Map<String, Set<T>> index, final String key, final Set<T> values )
+    {
+        if ( values != null && ownedIndexSets.contains( values ) )
+        {
+            return values;
+        }
+
+        final Set<T> owned = values != null ? new LinkedHashSet<T>( values ) : new LinkedHashSet<T>();
+        index.put( key, owned );
+        ownedIndexSets.add( owned );
+        return owned;
+    }
+
+    private void disown( final Map<String, ? extends Set<?>> index )
+    {
+        if ( !ownedIndexSets.isEmpty() )
+        {
+            for ( Set<?> values : index.values() )
+            {
+                ownedIndexSets.remove( values );
+            }
+        }
+    }
+
+    private static <T> List<T> copyOf( final Collection<T> values )
+    {
+        return values != null ? new ArrayList<T>( values ) : Collections.<T> emptyList();
+    }
+
     // ==
 
     protected String getUserRoleMappingKey( final String userId, final String source )
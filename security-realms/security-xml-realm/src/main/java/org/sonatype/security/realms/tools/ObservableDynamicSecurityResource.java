@@ -0,0 +1,44 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.realms.tools;
+
+/**
+ * A {@link DynamicSecurityResource} that announces its changes to listeners, so its configuration does not have to be
+ * polled with {@link #isDirty()}, and only its own contribution has to be merged again.
+ * 
+ * @since 2.8
+ */
+public interface ObservableDynamicSecurityResource
+    extends DynamicSecurityResource
+{
+    /**
+     * Listener of a dynamic security resource.
+     */
+    interface Listener
+    {
+        /**
+         * Called when the configuration of the resource changed, from the thread that changed it.
+         */
+        void resourceChanged( DynamicSecurityResource resource );
+    }
+
+    /**
+     * Adds a listener to be notified on changes, adding the same listener again has no effect.
+     */
+    void addListener( Listener listener );
+
+    /**
+     * Removes the listener.
+     */
+    void removeListener( Listener listener );
+}
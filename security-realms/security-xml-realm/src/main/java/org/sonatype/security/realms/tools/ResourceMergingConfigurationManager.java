@@ -12,11 +12,19 @@
  */
 package org.sonatype.security.realms.tools;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.enterprise.inject.Typed;
 import javax.inject.Inject;
@@ -25,8 +33,10 @@ import javax.inject.Singleton;
 
 import org.codehaus.plexus.util.StringUtils;
 import org.sonatype.configuration.validation.InvalidConfigurationException;
+import org.sonatype.plexus.appevents.ApplicationEventMulticaster;
 import org.sonatype.security.authorization.NoSuchPrivilegeException;
 import org.sonatype.security.authorization.NoSuchRoleException;
+import org.sonatype.security.events.AuthorizationConfigurationReloadedEvent;
 import org.sonatype.security.model.CPrivilege;
 import org.sonatype.security.model.CRole;
 import org.sonatype.security.model.CUser;
@@ -39,6 +49,16 @@ import org.sonatype.security.usermanagement.UserNotFoundException;
 /**
  * ConfigurationManager that aggregates {@link StaticSecurityResource}s and {@link DynamicSecurityResource}s with
  * default ConfigurationManager.
+ * <p>
+ * The roles and privileges of the resources are merged once, into a configuration cached until a dynamic resource is
+ * dirty or the cache is cleared, and are flagged read only when merged. Listing roles and privileges returns a
+ * read-only view over the lists of the default ConfigurationManager and the merged ones, nothing is copied or changed.
+ * <p>
+ * Dynamic resources implementing {@link ObservableDynamicSecurityResource} announce their changes. All dynamic
+ * resources are still polled for {@link DynamicSecurityResource#isDirty()} on read, as subclasses of
+ * {@link AbstractDynamicSecurityResource} may flag themselves dirty without announcing it. Only the contributions of the changed resources are
+ * replaced in the merged configuration, and an {@link AuthorizationConfigurationReloadedEvent} names the changed roles
+ * and privileges. Dynamic resources appearing later are merged once the cache is cleared.
  * 
  * @author Brian Demers
  */
@@ -55,17 +75,51 @@ public class ResourceMergingConfigurationManager
 
     private final List<DynamicSecurityResource> dynamicResources;
 
+    private final ApplicationEventMulticaster eventMulticaster;
+
+    /**
+     * The configurations of the static resources, guarded by the update lock.
+     */
+    private final List<Configuration> staticContributions = new ArrayList<Configuration>();
+
+    /**
+     * The configurations of the dynamic resources in merge order, guarded by the update lock.
+     */
+    private final List<Contribution> dynamicContributions = new ArrayList<Contribution>();
+
+    /**
+     * The dynamic resources polled on read, announcing their changes or not.
+     */
+    private volatile List<DynamicSecurityResource> polledResources = Collections.emptyList();
+
+    /**
+     * The dynamic resources changed since their configuration was merged.
+     */
+    private final Set<DynamicSecurityResource> changedResources =
+        Collections.newSetFromMap( new ConcurrentHashMap<DynamicSecurityResource, Boolean>() );
+
+    private final ObservableDynamicSecurityResource.Listener resourceListener =
+        new ObservableDynamicSecurityResource.Listener()
+        {
+            public void resourceChanged( final DynamicSecurityResource resource )
+            {
+                changedResources.add( resource );
+            }
+        };
+
     @Inject
     public ResourceMergingConfigurationManager( List<DynamicSecurityResource> dynamicResources,
                                                 @Named( "default" ) ConfigurationManager manager,
-                                                List<StaticSecurityResource> staticResources )
+                                                List<StaticSecurityResource> staticResources,
+                                                ApplicationEventMulticaster eventMulticaster )
     {
         this.dynamicResources = dynamicResources;
         this.manager = manager;
         this.staticResources = staticResources;
+        this.eventMulticaster = eventMulticaster;
     }
 
-    public synchronized void clearCache()
+    public void clearCache()
     {
         super.clearCache();
         manager.clearCache();
@@ -158,6 +212,24 @@ public class ResourceMergingConfigurationManager
         manager.deleteUser( id );
     }
 
+    public void apply( ConfigurationBatch batch )
+        throws InvalidConfigurationException
+    {
+        manager.apply( batch, initializeContext() );
+    }
+
+    public void apply( ConfigurationBatch batch, SecurityValidationContext context )
+        throws InvalidConfigurationException
+    {
+        if ( context == null )
+        {
+            context = initializeContext();
+        }
+
+        // The static config can't be updated, so delegate to xml file
+        manager.apply( batch, context );
+    }
+
     public String getPrivilegeProperty( CPrivilege privilege, String key )
     {
         return manager.getPrivilegeProperty( privilege, key );
@@ -171,22 +243,14 @@ public class ResourceMergingConfigurationManager
 
     public SecurityValidationContext initializeContext()
     {
-        SecurityValidationContext context = new SecurityValidationContext();
+        // users and the roles and privileges of security.xml, the static ones are added on top
+        SecurityValidationContext context = manager.initializeContext();
 
         context.addExistingUserIds();
         context.addExistingRoleIds();
         context.addExistingPrivilegeIds();
 
-        List<CUser> users = new ArrayList<CUser>( listUsers() );
-        for ( CUser user : users )
-        {
-            context.getExistingUserIds().add( user.getId() );
-
-            context.getExistingEmailMap().put( user.getId(), user.getEmail() );
-        }
-
-        List<CRole> roles = new ArrayList<CRole>( listRoles() );
-        for ( CRole role : roles )
+        for ( CRole role : getConfiguration().getRoles() )
         {
             context.getExistingRoleIds().add( role.getId() );
 
@@ -199,8 +263,7 @@ public class ResourceMergingConfigurationManager
             context.getExistingRoleNameMap().put( role.getId(), role.getName() );
         }
 
-        List<CPrivilege> privs = new ArrayList<CPrivilege>( listPrivileges() );
-        for ( CPrivilege priv : privs )
+        for ( CPrivilege priv : getConfiguration().getPrivileges() )
         {
             context.getExistingPrivilegeIds().add( priv.getId() );
         }
@@ -210,33 +273,12 @@ public class ResourceMergingConfigurationManager
 
     public List<CPrivilege> listPrivileges()
     {
-        List<CPrivilege> list = new ArrayList<CPrivilege>( manager.listPrivileges() );
-
-        for ( CPrivilege item : (List<CPrivilege>) getConfiguration().getPrivileges() )
-        {
-            // ALL privileges that come from StaticSecurityResources are NOT editable
-            // only roles defined in the security.xml can be updated.
-            item.setReadOnly( true );
-            list.add( item );
-        }
-
-        return list;
+        return new ConcatenatedList<CPrivilege>( manager.listPrivileges(), getConfiguration().getPrivileges() );
     }
 
     public List<CRole> listRoles()
     {
-        List<CRole> list = new ArrayList<CRole>( manager.listRoles() );
-
-        for ( CRole item : (List<CRole>) getConfiguration().getRoles() )
-        {
-            CRole role = item;
-            // ALL roles that come from StaticSecurityResources are NOT editable
-            // only roles defined in the security.xml can be updated.
-            item.setReadOnly( true );
-            list.add( role );
-        }
-
-        return list;
+        return new ConcatenatedList<CRole>( manager.listRoles(), getConfiguration().getRoles() );
     }
 
     private CRole mergeRolesContents( CRole roleA, CRole roleB )
@@ -314,8 +356,6 @@ public class ResourceMergingConfigurationManager
 
         if ( privilege != null )
         {
-            privilege.setReadOnly( true );
-
             return privilege;
         }
         else
@@ -331,8 +371,6 @@ public class ResourceMergingConfigurationManager
 
         if ( role != null )
         {
-            role.setReadOnly( true );
-
             return role;
         }
         else
@@ -377,12 +415,41 @@ public class ResourceMergingConfigurationManager
         return manager.listUserRoleMappings();
     }
 
+    public List<CUserRoleMapping> listUserRoleMappingsByRoleId( String roleId )
+    {
+        return manager.listUserRoleMappingsByRoleId( roleId );
+    }
+
+    public List<CUser> listUsersByEmail( String email )
+    {
+        // users can only come from the security.xml
+        return manager.listUsersByEmail( email );
+    }
+
     public CUserRoleMapping readUserRoleMapping( String userId, String source )
         throws NoSuchRoleMappingException
     {
         return manager.readUserRoleMapping( userId, source );
     }
 
+    @Override
+    public CUserRoleMapping findUserRoleMapping( String userId, String source )
+    {
+        if ( manager instanceof AbstractConfigurationManager )
+        {
+            return ( (AbstractConfigurationManager) manager ).findUserRoleMapping( userId, source );
+        }
+
+        try
+        {
+            return manager.readUserRoleMapping( userId, source );
+        }
+        catch ( NoSuchRoleMappingException e )
+        {
+            return null;
+        }
+    }
+
     public void updateUserRoleMapping( CUserRoleMapping userRoleMapping, SecurityValidationContext context )
         throws InvalidConfigurationException, NoSuchRoleMappingException
     {
@@ -477,28 +544,188 @@ public class ResourceMergingConfigurationManager
         manager.save();
     }
 
+    @Override
+    public void flush()
+    {
+        if ( manager instanceof AbstractConfigurationManager )
+        {
+            ( (AbstractConfigurationManager) manager ).flush();
+        }
+    }
+
     // ==
 
     protected EnhancedConfiguration getConfiguration()
     {
-        for ( DynamicSecurityResource resource : dynamicResources )
+        // resources are not merged again while merging, if one reads the configuration
+        if ( !isUpdating() )
         {
-            if ( resource.isDirty() )
+            for ( DynamicSecurityResource resource : polledResources )
+            {
+                if ( resource.isDirty() )
+                {
+                    changedResources.add( resource );
+                }
+            }
+
+            if ( !changedResources.isEmpty() )
             {
-                // forcing reload since some of static ones are "dirty"
-                // TODO: is this isDirty() method used at all? I did not find any references to real uses
-                // Note: not this.clearCache() since it would invoke delegate's clearCache too!
-                super.clearCache();
-                break;
+                mergeChangedResources();
             }
         }
 
         return super.getConfiguration();
     }
 
+    /**
+     * Replaces the contributions of the changed resources in the merged configuration. The other resources are not
+     * asked for their configuration again, and only the roles contributed by the changed resources are merged again.
+     */
+    private void mergeChangedResources()
+    {
+        final Set<String> roleIds = new HashSet<String>();
+
+        final Set<String> privilegeIds = new HashSet<String>();
+
+        final ReentrantLock lock = getUpdateLock();
+
+        lock.lock();
+        try
+        {
+            final EnhancedConfiguration current = getLoadedConfiguration();
+
+            if ( current == null )
+            {
+                // not merged yet, the full merge will get the configuration of every resource anyway
+                changedResources.clear();
+
+                return;
+            }
+
+            final Set<CPrivilege> removedPrivileges = identitySet();
+            final Set<CUser> removedUsers = identitySet();
+            final List<CPrivilege> addedPrivileges = new ArrayList<CPrivilege>();
+            final List<CUser> addedUsers = new ArrayList<CUser>();
+
+            for ( Iterator<DynamicSecurityResource> iterator = changedResources.iterator(); iterator.hasNext(); )
+            {
+                final DynamicSecurityResource resource = iterator.next();
+
+                // removed before getting the configuration, so a change made meanwhile is merged next time
+                iterator.remove();
+
+                for ( Contribution contribution : dynamicContributions )
+                {
+                    if ( contribution.resource != resource )
+                    {
+                        continue;
+                    }
+
+                    final Configuration oldConfig = contribution.configuration;
+                    final Configuration newConfig = resource.getConfiguration();
+
+                    contribution.configuration = newConfig;
+
+                    if ( oldConfig != null )
+                    {
+                        collectIds( oldConfig, roleIds, privilegeIds );
+                        removedPrivileges.addAll( oldConfig.getPrivileges() );
+                        removedUsers.addAll( oldConfig.getUsers() );
+                    }
+
+                    if ( newConfig != null )
+                    {
+                        collectIds( newConfig, roleIds, privilegeIds );
+                        addedPrivileges.addAll( newConfig.getPrivileges() );
+                        addedUsers.addAll( newConfig.getUsers() );
+                    }
+                }
+            }
+
+            if ( roleIds.isEmpty() && privilegeIds.isEmpty() && removedUsers.isEmpty() && addedUsers.isEmpty() )
+            {
+                return;
+            }
+
+            final Configuration configuration = new Configuration();
+
+            for ( CPrivilege privilege : current.getPrivileges() )
+            {
+                if ( !removedPrivileges.contains( privilege ) )
+                {
+                    configuration.addPrivilege( privilege );
+                }
+            }
+
+            for ( CPrivilege privilege : addedPrivileges )
+            {
+                privilege.setReadOnly( true );
+                configuration.addPrivilege( privilege );
+            }
+
+            for ( CRole role : current.getRoles() )
+            {
+                if ( !roleIds.contains( role.getId() ) )
+                {
+                    configuration.addRole( role );
+                }
+            }
+
+            // the changed roles are merged again from the contributions of all the resources
+            final Map<String, CRole> roles = new LinkedHashMap<String, CRole>();
+
+            for ( Configuration resConfig : contributions() )
+            {
+                for ( CRole role : resConfig.getRoles() )
+                {
+                    if ( roleIds.contains( role.getId() ) )
+                    {
+                        mergeRole( roles, role );
+                    }
+                }
+            }
+
+            for ( CRole role : roles.values() )
+            {
+                role.setReadOnly( true );
+                configuration.addRole( role );
+            }
+
+            for ( CUser user : current.getUsers() )
+            {
+                if ( !removedUsers.contains( user ) )
+                {
+                    configuration.addUser( user );
+                }
+            }
+
+            for ( CUser user : addedUsers )
+            {
+                configuration.addUser( user );
+            }
+
+            publishConfiguration( new EnhancedConfiguration( configuration ) );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        if ( !roleIds.isEmpty() || !privilegeIds.isEmpty() )
+        {
+            // let components caching roles and privileges (like the role permission index) know what changed
+            eventMulticaster.notifyEventListeners( new AuthorizationConfigurationReloadedEvent(
+                this, Collections.<String> emptySet(), roleIds, privilegeIds ) );
+        }
+    }
+
     protected Configuration doGetConfiguration()
     {
-        final Configuration configuration = new Configuration();
+        // everything is merged, the changes announced so far included
+        changedResources.clear();
+
+        staticContributions.clear();
+        dynamicContributions.clear();
 
         for ( StaticSecurityResource resource : staticResources )
         {
@@ -506,53 +733,164 @@ public class ResourceMergingConfigurationManager
 
             if ( resConfig != null )
             {
-                appendConfig( configuration, resConfig );
+                staticContributions.add( resConfig );
             }
         }
 
         for ( DynamicSecurityResource resource : dynamicResources )
         {
-            Configuration resConfig = resource.getConfiguration();
-
-            if ( resConfig != null )
+            if ( resource instanceof ObservableDynamicSecurityResource )
             {
-                appendConfig( configuration, resConfig );
+                // registered before getting the configuration, so no change is missed
+                ( (ObservableDynamicSecurityResource) resource ).addListener( resourceListener );
             }
+
+            dynamicContributions.add( new Contribution( resource, resource.getConfiguration() ) );
+        }
+
+        polledResources = new ArrayList<DynamicSecurityResource>( dynamicResources );
+
+        final Configuration configuration = new Configuration();
+
+        // merged roles by ID, a merged role moves to the end, as it is appended after the ones merged before
+        final Map<String, CRole> roles = new LinkedHashMap<String, CRole>();
+
+        for ( Configuration resConfig : contributions() )
+        {
+            appendConfig( configuration, roles, resConfig );
+        }
+
+        // ALL roles and privileges that come from resources are NOT editable
+        // only roles defined in the security.xml can be updated.
+        for ( CRole role : roles.values() )
+        {
+            role.setReadOnly( true );
+            configuration.addRole( role );
+        }
+
+        for ( CPrivilege privilege : configuration.getPrivileges() )
+        {
+            privilege.setReadOnly( true );
         }
 
         return configuration;
     }
 
-    private Configuration appendConfig( final Configuration configuration, final Configuration config )
+    /**
+     * Returns the configurations of the static resources followed by the ones of the dynamic resources, in merge
+     * order, called with the update lock held.
+     */
+    private List<Configuration> contributions()
+    {
+        final List<Configuration> result = new ArrayList<Configuration>( staticContributions );
+
+        for ( Contribution contribution : dynamicContributions )
+        {
+            if ( contribution.configuration != null )
+            {
+                result.add( contribution.configuration );
+            }
+        }
+
+        return result;
+    }
+
+    private void appendConfig( final Configuration configuration, final Map<String, CRole> roles,
+                               final Configuration config )
     {
         for ( CPrivilege privilege : (List<CPrivilege>) config.getPrivileges() )
         {
             configuration.addPrivilege( privilege );
         }
 
-        for ( Iterator<CRole> iterator = config.getRoles().iterator(); iterator.hasNext(); )
+        for ( CRole role : config.getRoles() )
         {
-            CRole role = iterator.next();
-
-            // need to check if we need to merge the static config
-            for ( CRole eachRole : configuration.getRoles() )
-            {
-                if ( eachRole.getId().equals( role.getId() ) )
-                {
-                    role = this.mergeRolesContents( role, eachRole );
-                    configuration.removeRole( eachRole );
-                    break;
-                }
-            }
-
-            configuration.addRole( role );
+            mergeRole( roles, role );
         }
 
         for ( CUser user : (List<CUser>) config.getUsers() )
         {
             configuration.addUser( user );
         }
+    }
+
+    private void mergeRole( final Map<String, CRole> roles, CRole role )
+    {
+        // need to check if we need to merge the static config
+        CRole eachRole = roles.remove( role.getId() );
+
+        if ( eachRole != null )
+        {
+            role = this.mergeRolesContents( role, eachRole );
+        }
 
-        return configuration;
+        roles.put( role.getId(), role );
+    }
+
+    private static void collectIds( final Configuration config, final Set<String> roleIds,
+                                    final Set<String> privilegeIds )
+    {
+        for ( CRole role : config.getRoles() )
+        {
+            roleIds.add( role.getId() );
+        }
+
+        for ( CPrivilege privilege : config.getPrivileges() )
+        {
+            privilegeIds.add( privilege.getId() );
+        }
+    }
+
+    private static <E> Set<E> identitySet()
+    {
+        return Collections.newSetFromMap( new IdentityHashMap<E, Boolean>() );
+    }
+
+    /**
+     * The configuration a dynamic resource contributed, a resource bound more than once contributes more than once.
+     */
+    private static class Contribution
+    {
+        private final DynamicSecurityResource resource;
+
+        private Configuration configuration;
+
+        private Contribution( final DynamicSecurityResource resource, final Configuration configuration )
+        {
+            this.resource = resource;
+            this.configuration = configuration;
+        }
+    }
+
+    /**
+     * Read-only view of two lists, one after the other.
+     */
+    private static class ConcatenatedList<E>
+        extends AbstractList<E>
+        implements RandomAccess
+    {
+        private final List<E> first;
+
+        private final List<E> second;
+
+        private ConcatenatedList( final List<E> first, final List<E> second )
+        {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public E get( final int index )
+        {
+            final int size = first.size();
+
+            return index < size ? first.get( index ) : second.get( index - size );
+        }
+
+        @Override
+        public int size()
+        {
+            return first.size() + second.size();
+        }
     }
 }
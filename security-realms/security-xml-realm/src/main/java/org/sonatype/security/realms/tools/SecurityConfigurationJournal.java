@@ -0,0 +1,443 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.realms.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.codehaus.plexus.util.IOUtil;
+import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonatype.security.model.CPrivilege;
+import org.sonatype.security.model.CRole;
+import org.sonatype.security.model.CUser;
+import org.sonatype.security.model.CUserRoleMapping;
+import org.sonatype.security.model.Configuration;
+import org.sonatype.security.model.io.xpp3.SecurityConfigurationXpp3Reader;
+import org.sonatype.security.model.io.xpp3.SecurityConfigurationXpp3Writer;
+
+/**
+ * Append-only journal of the changes made to the security configuration since it was last stored as a whole. Every
+ * record is one change of the {@link ConfigurationManager} API (put or delete of one privilege, role, user or user role
+ * mapping, or the cleanup after a removed privilege or role), so replaying the journal in order on top of the stored
+ * configuration restores the exact state. Replaying a record twice has no effect, hence a crash between storing the
+ * configuration and clearing the journal is harmless.
+ * <p>
+ * Records are length prefixed and checksummed, and are forced to disk on append. A torn record at the end of the
+ * journal (left by a crash during append) is dropped on read.
+ * 
+ * @since 2.8
+ */
+public class SecurityConfigurationJournal
+{
+    public enum Operation
+    {
+        PUT_PRIVILEGE, DELETE_PRIVILEGE, CLEAN_PRIVILEGE, PUT_ROLE, DELETE_ROLE, CLEAN_ROLE, PUT_USER, DELETE_USER,
+        PUT_USER_ROLE_MAPPING, DELETE_USER_ROLE_MAPPING
+    }
+
+    /**
+     * One journaled change. Put operations carry the model object, serialized when the entry is created, the other
+     * ones the ID (and source, for user role mappings) of the object.
+     */
+    public static class Entry
+    {
+        private final Operation operation;
+
+        private final String id;
+
+        private final String source;
+
+        private final byte[] payload;
+
+        private Entry( Operation operation, String id, String source, byte[] payload )
+        {
+            this.operation = operation;
+            this.id = id;
+            this.source = source;
+            this.payload = payload;
+        }
+
+        public static Entry put( CPrivilege privilege )
+        {
+            Configuration payload = new Configuration();
+            payload.addPrivilege( privilege );
+            return new Entry( Operation.PUT_PRIVILEGE, privilege.getId(), null, serialize( payload ) );
+        }
+
+        public static Entry put( CRole role )
+        {
+            Configuration payload = new Configuration();
+            payload.addRole( role );
+            return new Entry( Operation.PUT_ROLE, role.getId(), null, serialize( payload ) );
+        }
+
+        public static Entry put( CUser user )
+        {
+            Configuration payload = new Configuration();
+            payload.addUser( user );
+            return new Entry( Operation.PUT_USER, user.getId(), null, serialize( payload ) );
+        }
+
+        public static Entry put( CUserRoleMapping mapping )
+        {
+            Configuration payload = new Configuration();
+            payload.addUserRoleMapping( mapping );
+            return new Entry( Operation.PUT_USER_ROLE_MAPPING, mapping.getUserId(), mapping.getSource(),
+                              serialize( payload ) );
+        }
+
+        public static Entry of( Operation operation, String id )
+        {
+            return new Entry( operation, id, null, null );
+        }
+
+        public static Entry deleteUserRoleMapping( String userId, String source )
+        {
+            return new Entry( Operation.DELETE_USER_ROLE_MAPPING, userId, source, null );
+        }
+
+        public Operation getOperation()
+        {
+            return operation;
+        }
+
+        public String getId()
+        {
+            return id;
+        }
+
+        public String getSource()
+        {
+            return source;
+        }
+
+        public CPrivilege getPrivilege()
+        {
+            return deserialize( payload ).getPrivileges().get( 0 );
+        }
+
+        public CRole getRole()
+        {
+            return deserialize( payload ).getRoles().get( 0 );
+        }
+
+        public CUser getUser()
+        {
+            return deserialize( payload ).getUsers().get( 0 );
+        }
+
+        public CUserRoleMapping getUserRoleMapping()
+        {
+            return deserialize( payload ).getUserRoleMappings().get( 0 );
+        }
+    }
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final File file;
+
+    public SecurityConfigurationJournal( File file )
+    {
+        this.file = file;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Returns the size of the journal in bytes.
+     */
+    public long length()
+    {
+        return file.length();
+    }
+
+    /**
+     * Appends the entries and forces them to disk.
+     */
+    public void append( List<Entry> entries )
+        throws IOException
+    {
+        if ( entries.isEmpty() )
+        {
+            return;
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream( buffer );
+        for ( Entry entry : entries )
+        {
+            byte[] record = toBytes( entry );
+
+            CRC32 crc = new CRC32();
+            crc.update( record );
+
+            out.writeInt( record.length );
+            out.write( record );
+            out.writeLong( crc.getValue() );
+        }
+        out.flush();
+
+        if ( file.getParentFile() != null )
+        {
+            file.getParentFile().mkdirs();
+        }
+
+        FileOutputStream fos = new FileOutputStream( file, true );
+        try
+        {
+            fos.write( buffer.toByteArray() );
+            fos.flush();
+            fos.getChannel().force( false );
+        }
+        finally
+        {
+            IOUtil.close( fos );
+        }
+    }
+
+    /**
+     * Reads all the entries of the journal, dropping a torn record at its end if any.
+     */
+    public List<Entry> read()
+        throws IOException
+    {
+        if ( !file.isFile() )
+        {
+            return Collections.emptyList();
+        }
+
+        final List<Entry> entries = new ArrayList<Entry>();
+        long validLength = 0;
+
+        DataInputStream in = new DataInputStream( new FileInputStream( file ) );
+        try
+        {
+            while ( true )
+            {
+                int length = in.readInt();
+                if ( length < 0 || length > file.length() )
+                {
+                    break;
+                }
+
+                byte[] record = new byte[length];
+                in.readFully( record );
+
+                CRC32 crc = new CRC32();
+                crc.update( record );
+                if ( crc.getValue() != in.readLong() )
+                {
+                    break;
+                }
+
+                entries.add( fromBytes( record ) );
+                validLength += 4 + length + 8;
+            }
+        }
+        catch ( EOFException e )
+        {
+            // end of journal, or a torn record
+        }
+        finally
+        {
+            IOUtil.close( in );
+        }
+
+        if ( validLength < file.length() )
+        {
+            logger.warn( "Dropping torn record at the end of security configuration journal " + file );
+
+            RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+            try
+            {
+                raf.setLength( validLength );
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+
+        return entries;
+    }
+
+    /**
+     * Removes all entries, should be called once the configuration they describe was stored as a whole.
+     */
+    public void clear()
+        throws IOException
+    {
+        if ( file.exists() && !file.delete() )
+        {
+            throw new IOException( "Could not delete security configuration journal " + file );
+        }
+    }
+
+    /**
+     * Applies the entry on the configuration.
+     */
+    public static void apply( Entry entry, EnhancedConfiguration configuration, SecurityConfigurationCleaner cleaner )
+    {
+        switch ( entry.getOperation() )
+        {
+            case PUT_PRIVILEGE:
+                configuration.removePrivilegeById( entry.getId() );
+                configuration.addPrivilege( entry.getPrivilege() );
+                break;
+            case DELETE_PRIVILEGE:
+                configuration.removePrivilegeById( entry.getId() );
+                break;
+            case CLEAN_PRIVILEGE:
+                cleaner.privilegeRemoved( configuration, entry.getId() );
+                break;
+            case PUT_ROLE:
+                configuration.removeRoleById( entry.getId() );
+                configuration.addRole( entry.getRole() );
+                break;
+            case DELETE_ROLE:
+                configuration.removeRoleById( entry.getId() );
+                break;
+            case CLEAN_ROLE:
+                cleaner.roleRemoved( configuration, entry.getId() );
+                break;
+            case PUT_USER:
+                configuration.removeUserById( entry.getId() );
+                configuration.addUser( entry.getUser() );
+                break;
+            case DELETE_USER:
+                configuration.removeUserById( entry.getId() );
+                break;
+            case PUT_USER_ROLE_MAPPING:
+                configuration.removeUserRoleMappingByUserId( entry.getId(), entry.getSource() );
+                configuration.addUserRoleMapping( entry.getUserRoleMapping() );
+                break;
+            case DELETE_USER_ROLE_MAPPING:
+                configuration.removeUserRoleMappingByUserId( entry.getId(), entry.getSource() );
+                break;
+            default:
+                throw new IllegalArgumentException( "Unknown journal operation: " + entry.getOperation() );
+        }
+    }
+
+    // ==
+
+    private static byte[] toBytes( Entry entry )
+        throws IOException
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream( buffer );
+
+        out.writeUTF( entry.getOperation().name() );
+        writeNullable( out, entry.getId() );
+        writeNullable( out, entry.getSource() );
+
+        if ( entry.payload != null )
+        {
+            out.writeInt( entry.payload.length );
+            out.write( entry.payload );
+        }
+        else
+        {
+            out.writeInt( -1 );
+        }
+
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    private static Entry fromBytes( byte[] record )
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream( new ByteArrayInputStream( record ) );
+
+        Operation operation = Operation.valueOf( in.readUTF() );
+        String id = readNullable( in );
+        String source = readNullable( in );
+
+        byte[] payload = null;
+        int length = in.readInt();
+        if ( length >= 0 )
+        {
+            payload = new byte[length];
+            in.readFully( payload );
+        }
+
+        return new Entry( operation, id, source, payload );
+    }
+
+    private static byte[] serialize( Configuration configuration )
+    {
+        try
+        {
+            configuration.setVersion( Configuration.MODEL_VERSION );
+
+            ByteArrayOutputStream xml = new ByteArrayOutputStream();
+            new SecurityConfigurationXpp3Writer().write( xml, configuration );
+            return xml.toByteArray();
+        }
+        catch ( IOException e )
+        {
+            // in memory
+            throw new IllegalStateException( "Could not serialize journal entry", e );
+        }
+    }
+
+    private static Configuration deserialize( byte[] xml )
+    {
+        try
+        {
+            return new SecurityConfigurationXpp3Reader().read( new ByteArrayInputStream( xml ) );
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalStateException( "Broken security configuration journal entry", e );
+        }
+        catch ( XmlPullParserException e )
+        {
+            throw new IllegalStateException( "Broken security configuration journal entry", e );
+        }
+    }
+
+    private static void writeNullable( DataOutputStream out, String value )
+        throws IOException
+    {
+        out.writeBoolean( value != null );
+        if ( value != null )
+        {
+            out.writeUTF( value );
+        }
+    }
+
+    private static String readNullable( DataInputStream in )
+        throws IOException
+    {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.realms.tools;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A map split into a fixed count of shards by key hash, that {@link #copy()} shares with the copy in constant time.
+ * Either map copies a shard on its first change after the copy, so a change costs the size of one shard and not the
+ * size of the map. Keys are compared by equality, or by identity like an {@link IdentityHashMap}. Not thread safe,
+ * the configuration snapshots holding these maps are changed by one writer before they are published.
+ * 
+ * @since 2.8
+ */
+class SnapshotMap<K, V>
+    extends AbstractMap<K, V>
+{
+    private static final int SHARDS = 256;
+
+    private final boolean identity;
+
+    private final Map<K, V>[] shards;
+
+    /**
+     * Whether the shard at the same index was created or copied by this map, the others may be shared with a copy.
+     */
+    private final boolean[] owned;
+
+    private int size;
+
+    SnapshotMap( final boolean identity )
+    {
+        this.identity = identity;
+        this.shards = newShards();
+        this.owned = new boolean[SHARDS];
+    }
+
+    private SnapshotMap( final SnapshotMap<K, V> map )
+    {
+        this.identity = map.identity;
+        this.shards = map.shards.clone();
+        this.owned = new boolean[SHARDS];
+        this.size = map.size;
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private static <K, V> Map<K, V>[] newShards()
+    {
+        return new Map[SHARDS];
+    }
+
+    /**
+     * Returns a copy of this map, sharing all the shards with it.
+     */
+    SnapshotMap<K, V> copy()
+    {
+        for ( int i = 0; i < SHARDS; i++ )
+        {
+            owned[i] = false;
+        }
+
+        return new SnapshotMap<K, V>( this );
+    }
+
+    private int shard( final Object key )
+    {
+        int h = identity ? System.identityHashCode( key ) : ( key != null ? key.hashCode() : 0 );
+        h ^= h >>> 16;
+        h ^= h >>> 8;
+        return h & ( SHARDS - 1 );
+    }
+
+    private Map<K, V> ownedShard( final int index )
+    {
+        if ( !owned[index] )
+        {
+            final Map<K, V> shard = shards[index];
+            if ( identity )
+            {
+                shards[index] = shard != null ? new IdentityHashMap<K, V>( shard ) : new IdentityHashMap<K, V>();
+            }
+            else
+            {
+                shards[index] = shard != null ? new HashMap<K, V>( shard ) : new HashMap<K, V>();
+            }
+            owned[index] = true;
+        }
+        return shards[index];
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public V get( final Object key )
+    {
+        final Map<K, V> shard = shards[shard( key )];
+        return shard != null ? shard.get( key ) : null;
+    }
+
+    @Override
+    public boolean containsKey( final Object key )
+    {
+        final Map<K, V> shard = shards[shard( key )];
+        return shard != null && shard.containsKey( key );
+    }
+
+    @Override
+    public V put( final K key, final V value )
+    {
+        final Map<K, V> shard = ownedShard( shard( key ) );
+        final int before = shard.size();
+        final V previous = shard.put( key, value );
+        size += shard.size() - before;
+        return previous;
+    }
+
+    @Override
+    public V remove( final Object key )
+    {
+        final int index = shard( key );
+        if ( shards[index] == null || !shards[index].containsKey( key ) )
+        {
+            return null;
+        }
+
+        size--;
+        return ownedShard( index ).remove( key );
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet()
+    {
+        return new AbstractSet<Entry<K, V>>()
+        {
+            @Override
+            public Iterator<Entry<K, V>> iterator()
+            {
+                return new Iterator<Entry<K, V>>()
+                {
+                    private int index = -1;
+
+                    private Iterator<Entry<K, V>> current;
+
+                    public boolean hasNext()
+                    {
+                        while ( current == null || !current.hasNext() )
+                        {
+                            if ( ++index >= SHARDS )
+                            {
+                                return false;
+                            }
+                            current = shards[index] != null ? shards[index].entrySet().iterator() : null;
+                        }
+                        return true;
+                    }
+
+                    public Entry<K, V> next()
+                    {
+                        if ( !hasNext() )
+                        {
+                            throw new NoSuchElementException();
+                        }
+                        // the shard may be shared, its entries must not be changed through this map
+                        final Entry<K, V> entry = current.next();
+                        return new SimpleImmutableEntry<K, V>( entry.getKey(), entry.getValue() );
+                    }
+
+                    public void remove()
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size()
+            {
+                return size;
+            }
+        };
+    }
+}
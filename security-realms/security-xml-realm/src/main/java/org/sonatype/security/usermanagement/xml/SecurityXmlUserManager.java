@@ -12,7 +12,9 @@
  */
 package org.sonatype.security.usermanagement.xml;
 
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -21,6 +23,7 @@ import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 
+import org.codehaus.plexus.util.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonatype.configuration.validation.InvalidConfigurationException;
@@ -30,14 +33,15 @@ import org.sonatype.security.authorization.NoSuchRoleException;
 import org.sonatype.security.model.CRole;
 import org.sonatype.security.model.CUser;
 import org.sonatype.security.model.CUserRoleMapping;
+import org.sonatype.security.realms.tools.AbstractConfigurationManager;
 import org.sonatype.security.realms.tools.ConfigurationManager;
 import org.sonatype.security.realms.tools.NoSuchRoleMappingException;
 import org.sonatype.security.usermanagement.AbstractUserManager;
 import org.sonatype.security.usermanagement.DefaultUser;
 import org.sonatype.security.usermanagement.NoSuchUserManagerException;
+import org.sonatype.security.usermanagement.PasswordService;
 import org.sonatype.security.usermanagement.RoleIdentifier;
 import org.sonatype.security.usermanagement.RoleMappingUserManager;
-import org.sonatype.security.usermanagement.StringDigester;
 import org.sonatype.security.usermanagement.User;
 import org.sonatype.security.usermanagement.UserManager;
 import org.sonatype.security.usermanagement.UserNotFoundException;
@@ -65,12 +69,15 @@ public class SecurityXmlUserManager
 
     private final SecuritySystem securitySystem;
 
+    private final PasswordService passwordService;
+
     @Inject
     public SecurityXmlUserManager( @Named( "resourceMerging" ) ConfigurationManager configuration,
-                                   SecuritySystem securitySystem )
+                                   SecuritySystem securitySystem, PasswordService passwordService )
     {
         this.configuration = configuration;
         this.securitySystem = securitySystem;
+        this.passwordService = passwordService;
     }
 
     protected CUser toUser( User user )
@@ -238,30 +245,61 @@ public class SecurityXmlUserManager
     public Set<RoleIdentifier> getUsersRoles( String userId, String source )
         throws UserNotFoundException
     {
-        Set<RoleIdentifier> roles = new HashSet<RoleIdentifier>();
+        Set<RoleIdentifier> roles = findUsersRoles( userId, source );
 
-        CUserRoleMapping roleMapping;
-        try
+        if ( roles == null )
+        {
+            this.logger.debug( "No user role mapping found for user: " + userId );
+            return new HashSet<RoleIdentifier>();
+        }
+
+        return roles;
+    }
+
+    /**
+     * Returns the roles of the user of the source, or {@code null} if the user has no role mapping, not throwing an
+     * exception for the users not known here.
+     * 
+     * @since 2.8
+     */
+    public Set<RoleIdentifier> findUsersRoles( String userId, String source )
+    {
+        CUserRoleMapping roleMapping = findUserRoleMapping( userId, source );
+
+        if ( roleMapping == null )
         {
-            roleMapping = this.configuration.readUserRoleMapping( userId, source );
+            return null;
+        }
+
+        Set<RoleIdentifier> roles = new HashSet<RoleIdentifier>();
 
-            if ( roleMapping != null )
+        for ( String roleId : (List<String>) roleMapping.getRoles() )
+        {
+            RoleIdentifier role = toRole( roleId );
+            if ( role != null )
             {
-                for ( String roleId : (List<String>) roleMapping.getRoles() )
-                {
-                    RoleIdentifier role = toRole( roleId );
-                    if ( role != null )
-                    {
-                        roles.add( role );
-                    }
-                }
+                roles.add( role );
             }
         }
+
+        return roles;
+    }
+
+    private CUserRoleMapping findUserRoleMapping( String userId, String source )
+    {
+        if ( this.configuration instanceof AbstractConfigurationManager )
+        {
+            return ( (AbstractConfigurationManager) this.configuration ).findUserRoleMapping( userId, source );
+        }
+
+        try
+        {
+            return this.configuration.readUserRoleMapping( userId, source );
+        }
         catch ( NoSuchRoleMappingException e )
         {
-            this.logger.debug( "No user role mapping found for user: " + userId );
+            return null;
         }
-        return roles;
     }
 
     private void saveConfiguration()
@@ -272,11 +310,11 @@ public class SecurityXmlUserManager
     public Set<User> searchUsers( UserSearchCriteria criteria )
     {
         Set<User> users = new HashSet<User>();
-        users.addAll( this.filterListInMemeory( this.listUsers(), criteria ) );
+        users.addAll( this.filterListInMemeory( this.listCandidateUsers( criteria ), criteria ) );
 
         // we also need to search through the user role mappings.
 
-        List<CUserRoleMapping> roleMappings = this.configuration.listUserRoleMappings();
+        Collection<CUserRoleMapping> roleMappings = this.listCandidateRoleMappings( criteria );
         for ( CUserRoleMapping roleMapping : roleMappings )
         {
             if ( !SOURCE.equals( roleMapping.getSource() ) )
@@ -307,6 +345,66 @@ public class SecurityXmlUserManager
         return users;
     }
 
+    /**
+     * Returns the users that may match the criteria, narrowed down by the email address or the roles using the indices
+     * of the configuration, the criteria are still to be checked.
+     */
+    private Set<User> listCandidateUsers( UserSearchCriteria criteria )
+    {
+        if ( StringUtils.isNotEmpty( criteria.getEmail() ) )
+        {
+            Set<User> users = new HashSet<User>();
+            for ( CUser user : configuration.listUsersByEmail( criteria.getEmail() ) )
+            {
+                users.add( toUser( user ) );
+            }
+            return users;
+        }
+
+        if ( criteria.getOneOfRoleIds() != null && !criteria.getOneOfRoleIds().isEmpty() )
+        {
+            Set<User> users = new HashSet<User>();
+            for ( CUserRoleMapping roleMapping : listCandidateRoleMappings( criteria ) )
+            {
+                if ( SOURCE.equals( roleMapping.getSource() ) )
+                {
+                    try
+                    {
+                        users.add( getUser( roleMapping.getUserId() ) );
+                    }
+                    catch ( UserNotFoundException e )
+                    {
+                        this.logger.debug( "User: '" + roleMapping.getUserId()
+                            + "' has a role mapping but could not be found." );
+                    }
+                }
+            }
+            return users;
+        }
+
+        return listUsers();
+    }
+
+    /**
+     * Returns the user role mappings that may match the criteria, narrowed down by the roles using the indices of the
+     * configuration.
+     */
+    private Collection<CUserRoleMapping> listCandidateRoleMappings( UserSearchCriteria criteria )
+    {
+        if ( criteria.getOneOfRoleIds() != null && !criteria.getOneOfRoleIds().isEmpty() )
+        {
+            // model objects do not override equals(), so this removes the mappings having several of the roles
+            Set<CUserRoleMapping> roleMappings = new LinkedHashSet<CUserRoleMapping>();
+            for ( String roleId : criteria.getOneOfRoleIds() )
+            {
+                roleMappings.addAll( configuration.listUserRoleMappingsByRoleId( roleId ) );
+            }
+            return roleMappings;
+        }
+
+        return configuration.listUserRoleMappings();
+    }
+
     private SecuritySystem getSecuritySystem()
     {
         return this.securitySystem;
@@ -317,7 +415,7 @@ public class SecurityXmlUserManager
         // set the password if its not null
         if ( clearPassword != null && clearPassword.trim().length() > 0 )
         {
-            return StringDigester.getSha1Digest( clearPassword );
+            return passwordService.hashPassword( clearPassword );
         }
 
         return clearPassword;
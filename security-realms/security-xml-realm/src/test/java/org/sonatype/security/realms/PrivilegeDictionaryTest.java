@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.realms;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.sonatype.security.model.CPrivilege;
+import org.sonatype.security.model.CRole;
+
+public class PrivilegeDictionaryTest
+    extends TestCase
+{
+    private PrivilegeDictionary dictionary;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        List<CPrivilege> privileges = new ArrayList<CPrivilege>();
+        for ( String id : new String[] { "priv-a", "priv-b", "priv-c", "priv-d" } )
+        {
+            CPrivilege privilege = new CPrivilege();
+            privilege.setId( id );
+            privileges.add( privilege );
+        }
+
+        List<CRole> roles = new ArrayList<CRole>();
+        roles.add( role( "role-a", new String[] { "priv-a", "missing-priv" }, new String[] { "role-b" } ) );
+        roles.add( role( "role-b", new String[] { "priv-b" }, new String[] { "role-c", "missing-role" } ) );
+        roles.add( role( "role-c", new String[] { "priv-c" }, new String[] { "role-a" } ) );
+        roles.add( role( "role-d", new String[] { "priv-d" }, new String[0] ) );
+        roles.add( role( "role-e", new String[0], new String[] { "role-c", "role-d" } ) );
+
+        dictionary = new PrivilegeDictionary( privileges, roles );
+    }
+
+    public void testIds()
+    {
+        assertEquals( 4, dictionary.size() );
+        assertEquals( "priv-a", dictionary.getPrivilegeId( 0 ) );
+        assertEquals( "priv-d", dictionary.getPrivilegeId( 3 ) );
+    }
+
+    public void testEffectivePrivileges()
+    {
+        Map<String, BitSet> rolePrivileges = dictionary.getRolePrivileges();
+        assertEquals( 5, rolePrivileges.size() );
+
+        // recursive roles all end up having the same privileges
+        BitSet expected = bits( 0, 1, 2 );
+        assertEquals( expected, rolePrivileges.get( "role-a" ) );
+        assertEquals( expected, rolePrivileges.get( "role-b" ) );
+        assertEquals( expected, rolePrivileges.get( "role-c" ) );
+
+        // containing a cycle, missing roles are skipped
+        assertEquals( bits( 0, 1, 2, 3 ), rolePrivileges.get( "role-e" ) );
+        assertFalse( rolePrivileges.containsKey( "missing-role" ) );
+    }
+
+    public void testLongRoleChain()
+    {
+        List<CPrivilege> privileges = new ArrayList<CPrivilege>();
+        List<CRole> roles = new ArrayList<CRole>();
+
+        // each role contains the next one, deep enough to overflow the stack if walked recursively
+        final int count = 20000;
+        for ( int i = 0; i < count; i++ )
+        {
+            CPrivilege privilege = new CPrivilege();
+            privilege.setId( "priv-" + i );
+            privileges.add( privilege );
+
+            roles.add( role( "role-" + i, new String[] { "priv-" + i },
+                             i + 1 < count ? new String[] { "role-" + ( i + 1 ) } : new String[0] ) );
+        }
+
+        Map<String, BitSet> rolePrivileges = new PrivilegeDictionary( privileges, roles ).getRolePrivileges();
+
+        assertEquals( count, rolePrivileges.get( "role-0" ).cardinality() );
+        assertEquals( 1, rolePrivileges.get( "role-" + ( count - 1 ) ).cardinality() );
+    }
+
+    private static BitSet bits( int... ids )
+    {
+        BitSet result = new BitSet();
+        for ( int id : ids )
+        {
+            result.set( id );
+        }
+        return result;
+    }
+
+    private static CRole role( String id, String[] privileges, String[] roles )
+    {
+        CRole role = new CRole();
+        role.setId( id );
+        for ( String privilege : privileges )
+        {
+            role.addPrivilege( privilege );
+        }
+        for ( String containedRole : roles )
+        {
+            role.addRole( containedRole );
+        }
+        return role;
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.realms;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Properties;
+
+import org.apache.shiro.authc.AuthenticationException;
+import org.apache.shiro.authc.UsernamePasswordToken;
+import org.apache.shiro.realm.Realm;
+import org.sonatype.guice.bean.containers.InjectedTestCase;
+import org.sonatype.security.model.CPrivilege;
+import org.sonatype.security.model.CProperty;
+import org.sonatype.security.model.CRole;
+import org.sonatype.security.model.CUser;
+import org.sonatype.security.realms.tools.ConfigurationManager;
+import org.sonatype.security.realms.tools.DefaultConfigurationManager;
+import org.sonatype.security.usermanagement.StringDigester;
+import org.sonatype.security.usermanagement.xml.SecurityXmlUserManager;
+
+public class XmlAuthenticatingRealmRehashTest
+    extends InjectedTestCase
+{
+    private final File securityXml = new File( getBasedir(), "target/XmlAuthenticatingRealmRehashTest/security.xml" );
+
+    private XmlAuthenticatingRealm realm;
+
+    private DefaultConfigurationManager configurationManager;
+
+    @Override
+    public void configure( Properties properties )
+    {
+        super.configure( properties );
+        properties.put( "security-xml-file", securityXml.getAbsolutePath() );
+        properties.put( "security-password-iterations", "1000" );
+    }
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        securityXml.delete();
+
+        realm = (XmlAuthenticatingRealm) lookup( Realm.class, "XmlAuthenticatingRealm" );
+
+        configurationManager = (DefaultConfigurationManager) lookup( ConfigurationManager.class, "default" );
+        configurationManager.clearCache();
+
+        CPrivilege priv = new CPrivilege();
+        priv.setId( "priv" );
+        priv.setName( "name" );
+        priv.setDescription( "desc" );
+        priv.setType( "method" );
+
+        CProperty prop = new CProperty();
+        prop.setKey( "method" );
+        prop.setValue( "read" );
+        priv.addProperty( prop );
+
+        prop = new CProperty();
+        prop.setKey( "permission" );
+        prop.setValue( "somevalue" );
+        priv.addProperty( prop );
+
+        configurationManager.createPrivilege( priv );
+
+        CRole role = new CRole();
+        role.setName( "name" );
+        role.setId( "role" );
+        role.setDescription( "desc" );
+        role.setSessionTimeout( 50 );
+        role.addPrivilege( "priv" );
+
+        configurationManager.createRole( role );
+    }
+
+    public void testLegacyHashIsRehashedOnLogin()
+        throws Exception
+    {
+        CUser user = user( "legacy" );
+        user.setPassword( StringDigester.getSha1Digest( "password" ) );
+        configurationManager.createUser( user, Collections.singleton( "role" ) );
+
+        assertNotNull( realm.getAuthenticationInfo( new UsernamePasswordToken( "legacy", "password" ) ) );
+
+        String rehashed = configurationManager.readUser( "legacy" ).getPassword();
+        assertTrue( rehashed, rehashed.startsWith( "$pbkdf2-sha1$1000$" ) );
+        assertEquals( Collections.singletonList( "role" ),
+                      configurationManager.readUserRoleMapping( "legacy", SecurityXmlUserManager.SOURCE ).getRoles() );
+
+        assertNotNull( realm.getAuthenticationInfo( new UsernamePasswordToken( "legacy", "password" ) ) );
+        assertEquals( rehashed, configurationManager.readUser( "legacy" ).getPassword() );
+
+        try
+        {
+            realm.getAuthenticationInfo( new UsernamePasswordToken( "legacy", "badpassword" ) );
+
+            fail( "Authentication should have failed" );
+        }
+        catch ( AuthenticationException e )
+        {
+            // good
+        }
+    }
+
+    public void testNewPasswordsAreSalted()
+        throws Exception
+    {
+        configurationManager.createUser( user( "first" ), "password", Collections.singleton( "role" ) );
+        configurationManager.createUser( user( "second" ), "password", Collections.singleton( "role" ) );
+
+        String first = configurationManager.readUser( "first" ).getPassword();
+        String second = configurationManager.readUser( "second" ).getPassword();
+
+        assertTrue( first, first.startsWith( "$pbkdf2-sha1$1000$" ) );
+        assertFalse( first.equals( second ) );
+
+        assertNotNull( realm.getAuthenticationInfo( new UsernamePasswordToken( "first", "password" ) ) );
+        assertNotNull( realm.getAuthenticationInfo( new UsernamePasswordToken( "second", "password" ) ) );
+        assertEquals( first, configurationManager.readUser( "first" ).getPassword() );
+    }
+
+    private static CUser user( String id )
+    {
+        CUser user = new CUser();
+        user.setEmail( id + "@somewhere" );
+        user.setFirstName( id );
+        user.setLastName( id );
+        user.setStatus( CUser.STATUS_ACTIVE );
+        user.setId( id );
+        return user;
+    }
+}
@@ -13,6 +13,7 @@
 package org.sonatype.security.realms;
 
 import java.io.File;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Properties;
 import java.util.Set;
@@ -127,6 +128,31 @@ public class XmlAuthenticatingRealmTest
         }
     }
 
+    public void testChangedPasswordAuthentication()
+        throws Exception
+    {
+        buildTestAuthenticationConfig( CUser.STATUS_ACTIVE );
+
+        realm.getAuthenticationInfo( new UsernamePasswordToken( "username", "password" ) );
+
+        CUser user = configurationManager.readUser( "username" );
+        user.setPassword( StringDigester.getSha1Digest( "changed" ) );
+        configurationManager.updateUser( user, Collections.singleton( "role" ) );
+
+        try
+        {
+            realm.getAuthenticationInfo( new UsernamePasswordToken( "username", "password" ) );
+
+            fail( "Authentication with the old password should have failed" );
+        }
+        catch ( AuthenticationException e )
+        {
+            // good
+        }
+
+        assertNotNull( realm.getAuthenticationInfo( new UsernamePasswordToken( "username", "changed" ) ) );
+    }
+
     public void testDisabledAuthentication()
         throws Exception
     {
@@ -13,30 +13,45 @@
 package org.sonatype.security.realms;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.Assert;
 
+import org.apache.shiro.authz.AuthorizationInfo;
 import org.apache.shiro.authz.Permission;
 import org.apache.shiro.authz.permission.RolePermissionResolver;
 import org.apache.shiro.authz.permission.WildcardPermission;
+import org.apache.shiro.mgt.RealmSecurityManager;
 import org.apache.shiro.realm.Realm;
+import org.apache.shiro.realm.SimpleAccountRealm;
+import org.apache.shiro.subject.PrincipalCollection;
 import org.apache.shiro.subject.SimplePrincipalCollection;
 import org.sonatype.configuration.validation.InvalidConfigurationException;
 import org.sonatype.security.AbstractSecurityTestCase;
 import org.sonatype.security.SecuritySystem;
+import org.sonatype.security.authorization.AuthorizationDecision;
+import org.sonatype.security.authorization.ExceptionCatchingModularRealmAuthorizer;
+import org.sonatype.security.authorization.PermissionFactory;
 import org.sonatype.security.model.CPrivilege;
 import org.sonatype.security.model.CProperty;
 import org.sonatype.security.model.CRole;
 import org.sonatype.security.model.CUser;
+import org.sonatype.security.model.CUserRoleMapping;
 import org.sonatype.security.realms.privileges.application.ApplicationPrivilegeDescriptor;
 import org.sonatype.security.realms.privileges.application.ApplicationPrivilegeMethodPropertyDescriptor;
 import org.sonatype.security.realms.privileges.application.ApplicationPrivilegePermissionPropertyDescriptor;
 import org.sonatype.security.realms.tools.ConfigurationManager;
 import org.sonatype.security.realms.tools.DefaultConfigurationManager;
+import org.sonatype.security.usermanagement.UserManager;
 import org.sonatype.security.usermanagement.UserStatus;
 
 public class XmlAuthorizingRealmTest
@@ -141,6 +156,82 @@ public class XmlAuthorizingRealmTest
         Assert.assertFalse( realm.isPermitted( principal, new WildcardPermission( "app:ui:delete" ) ) );
     }
 
+    public void testRealmWithoutUserManagerKeepsRoleMappings()
+        throws Exception
+    {
+        buildTestAuthorizationConfig();
+
+        // the users of a realm having no UserManager may still be mapped to roles in security.xml
+        CUserRoleMapping mapping = new CUserRoleMapping();
+        mapping.setUserId( "username" );
+        mapping.setSource( "foreign" );
+        mapping.addRole( "role" );
+        configurationManager.createUserRoleMapping( mapping );
+
+        Map<String, UserManager> userManagers = new HashMap<String, UserManager>();
+        userManagers.put( "default", lookup( UserManager.class ) );
+
+        final AtomicInteger asked = new AtomicInteger();
+
+        XmlAuthorizingRealm countingRealm =
+            new XmlAuthorizingRealm( lookup( UserManager.class ), lookup( SecuritySystem.class ), userManagers,
+                                     lookup( PermissionFactory.class, "compiled" ) )
+            {
+                @Override
+                protected AuthorizationInfo doGetApplicableAuthorizationInfo( PrincipalCollection principals )
+                {
+                    asked.incrementAndGet();
+                    return super.doGetApplicableAuthorizationInfo( principals );
+                }
+            };
+        countingRealm.setRolePermissionResolver( this.lookup( RolePermissionResolver.class ) );
+
+        assertTrue( countingRealm.isAuthorizing( "foreign" ) );
+
+        SimpleAccountRealm foreignRealm = new SimpleAccountRealm( "foreign" );
+        foreignRealm.addAccount( "username", "password" );
+        foreignRealm.addAccount( "unmapped", "password" );
+
+        // enabled
+        RealmSecurityManager securityManager = lookup( SecuritySystem.class ).getSecurityManager();
+        List<Realm> realms = new ArrayList<Realm>( securityManager.getRealms() );
+        realms.add( foreignRealm );
+        securityManager.setRealms( realms );
+
+        ExceptionCatchingModularRealmAuthorizer authorizer =
+            new ExceptionCatchingModularRealmAuthorizer( Arrays.<Realm> asList( countingRealm, foreignRealm ) );
+
+        assertTrue( authorizer.isPermitted( new SimplePrincipalCollection( "username", "foreign" ),
+                                            "app:config:read" ) );
+        assertTrue( authorizer.hasRole( new SimplePrincipalCollection( "username", "foreign" ), "role" ) );
+
+        // an unmapped user of that realm is not applicable, and answered without any exception
+        assertFalse( authorizer.isPermitted( new SimplePrincipalCollection( "unmapped", "foreign" ),
+                                             "app:config:read" ) );
+        assertEquals( AuthorizationDecision.NOT_APPLICABLE,
+                      countingRealm.decidePermission( new SimplePrincipalCollection( "unmapped", "foreign" ),
+                                                      "app:config:read" ) );
+        assertTrue( asked.get() > 0 );
+    }
+
+    public void testUnmappedUserIsNotApplicable()
+        throws Exception
+    {
+        buildTestAuthorizationConfig();
+
+        SimplePrincipalCollection principal = new SimplePrincipalCollection( "unknown", XmlAuthenticatingRealm.ROLE );
+
+        assertEquals( AuthorizationDecision.NOT_APPLICABLE, realm.decidePermission( principal, "app:config:read" ) );
+        assertEquals( AuthorizationDecision.NOT_APPLICABLE, realm.decideRole( principal, "role" ) );
+        assertEquals( AuthorizationDecision.GRANTED,
+                      realm.decidePermission( new SimplePrincipalCollection( "username", XmlAuthenticatingRealm.ROLE ),
+                                              "app:config:read" ) );
+
+        // the plain Shiro API answers false, without any exception
+        assertFalse( realm.isPermitted( principal, "app:config:read" ) );
+        assertFalse( realm.hasRole( principal, "role" ) );
+    }
+
     private void buildTestAuthorizationConfig()
         throws InvalidConfigurationException
     {
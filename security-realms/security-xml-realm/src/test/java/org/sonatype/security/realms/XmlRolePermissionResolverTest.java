@@ -0,0 +1,179 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.realms;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Properties;
+
+import org.apache.shiro.authz.Permission;
+import org.apache.shiro.authz.permission.RolePermissionResolver;
+import org.apache.shiro.authz.permission.WildcardPermission;
+import org.codehaus.plexus.util.FileUtils;
+import org.sonatype.configuration.validation.InvalidConfigurationException;
+import org.sonatype.guice.bean.containers.InjectedTestCase;
+import org.sonatype.plexus.appevents.ApplicationEventMulticaster;
+import org.sonatype.security.events.AuthorizationConfigurationChangedEvent;
+import org.sonatype.security.model.CPrivilege;
+import org.sonatype.security.model.CProperty;
+import org.sonatype.security.model.CRole;
+import org.sonatype.security.realms.privileges.application.ApplicationPrivilegeDescriptor;
+import org.sonatype.security.realms.privileges.application.ApplicationPrivilegeMethodPropertyDescriptor;
+import org.sonatype.security.realms.privileges.application.ApplicationPrivilegePermissionPropertyDescriptor;
+import org.sonatype.security.realms.tools.ConfigurationManager;
+
+public class XmlRolePermissionResolverTest
+    extends InjectedTestCase
+{
+    private final File configDir = new File( "target/XmlRolePermissionResolverTest" );
+
+    private ConfigurationManager configurationManager;
+
+    private RolePermissionResolver resolver;
+
+    @Override
+    public void configure( Properties properties )
+    {
+        super.configure( properties );
+        properties.put( "security-xml-file", new File( configDir, "security.xml" ).getAbsolutePath() );
+    }
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        FileUtils.deleteDirectory( configDir );
+
+        super.setUp();
+
+        configurationManager = lookup( ConfigurationManager.class, "default" );
+        resolver = lookup( RolePermissionResolver.class );
+    }
+
+    public void testNestedRoles()
+        throws Exception
+    {
+        createPrivilege( "priv-a", "app:a" );
+        createPrivilege( "priv-b", "app:b" );
+        createPrivilege( "priv-c", "app:c" );
+
+        createRole( "role-c", new String[] { "priv-c" }, new String[0] );
+        createRole( "role-b", new String[] { "priv-b" }, new String[] { "role-c", "missing-role" } );
+        createRole( "role-a", new String[] { "priv-a" }, new String[] { "role-b" } );
+
+        Collection<Permission> permissions = resolver.resolvePermissionsInRole( "role-a" );
+        assertImplied( permissions, "app:a:read" );
+        assertImplied( permissions, "app:b:read" );
+        assertImplied( permissions, "app:c:read" );
+        assertNotImplied( permissions, "app:a:create" );
+        assertNotImplied( permissions, "app:d:read" );
+
+        permissions = resolver.resolvePermissionsInRole( "role-b" );
+        assertImplied( permissions, "app:b:read" );
+        assertImplied( permissions, "app:c:read" );
+        assertNotImplied( permissions, "app:a:read" );
+
+        assertTrue( resolver.resolvePermissionsInRole( "missing-role" ).isEmpty() );
+    }
+
+    public void testRecursiveRoles()
+        throws Exception
+    {
+        createPrivilege( "priv-a", "app:a" );
+        createPrivilege( "priv-b", "app:b" );
+
+        createRole( "role-a", new String[] { "priv-a" }, new String[] { "role-b" } );
+        createRole( "role-b", new String[] { "priv-b" }, new String[] { "role-a" } );
+
+        Collection<Permission> permissions = resolver.resolvePermissionsInRole( "role-a" );
+        assertImplied( permissions, "app:a:read" );
+        assertImplied( permissions, "app:b:read" );
+        assertNotImplied( permissions, "app:c:read" );
+    }
+
+    public void testIndexRebuiltOnAuthorizationConfigurationChange()
+        throws Exception
+    {
+        createPrivilege( "priv-a", "app:a" );
+        createPrivilege( "priv-b", "app:b" );
+
+        createRole( "role-a", new String[] { "priv-a" }, new String[0] );
+
+        assertNotImplied( resolver.resolvePermissionsInRole( "role-a" ), "app:b:read" );
+        assertTrue( resolver.resolvePermissionsInRole( "role-b" ).isEmpty() );
+
+        createRole( "role-b", new String[] { "priv-b" }, new String[0] );
+        CRole roleA = configurationManager.readRole( "role-a" );
+        roleA.addRole( "role-b" );
+        configurationManager.updateRole( roleA );
+
+        lookup( ApplicationEventMulticaster.class ).notifyEventListeners( new AuthorizationConfigurationChangedEvent( null ) );
+
+        Collection<Permission> permissions = resolver.resolvePermissionsInRole( "role-a" );
+        assertImplied( permissions, "app:a:read" );
+        assertImplied( permissions, "app:b:read" );
+        assertImplied( resolver.resolvePermissionsInRole( "role-b" ), "app:b:read" );
+    }
+
+    private void createPrivilege( String id, String permission )
+        throws InvalidConfigurationException
+    {
+        CProperty permissionProp = new CProperty();
+        permissionProp.setKey( ApplicationPrivilegePermissionPropertyDescriptor.ID );
+        permissionProp.setValue( permission );
+
+        CProperty methodProp = new CProperty();
+        methodProp.setKey( ApplicationPrivilegeMethodPropertyDescriptor.ID );
+        methodProp.setValue( "read" );
+
+        CPrivilege priv = new CPrivilege();
+        priv.setId( id );
+        priv.setName( id );
+        priv.setType( ApplicationPrivilegeDescriptor.TYPE );
+        priv.setDescription( id );
+        priv.addProperty( permissionProp );
+        priv.addProperty( methodProp );
+
+        configurationManager.createPrivilege( priv );
+    }
+
+    private void createRole( String id, String[] privileges, String[] roles )
+        throws InvalidConfigurationException
+    {
+        CRole role = new CRole();
+        role.setId( id );
+        role.setName( id );
+        role.setDescription( id );
+        role.setSessionTimeout( 60 );
+        for ( String privilege : privileges )
+        {
+            role.addPrivilege( privilege );
+        }
+        for ( String containedRole : roles )
+        {
+            role.addRole( containedRole );
+        }
+
+        configurationManager.createRole( role );
+    }
+
+    private void assertImplied( Collection<Permission> permissions, String permission )
+    {
+        XmlAuthorizingRealmTest.assertImplied( new WildcardPermission( permission ), permissions );
+    }
+
+    private void assertNotImplied( Collection<Permission> permissions, String permission )
+    {
+        XmlAuthorizingRealmTest.assertNotImplied( new WildcardPermission( permission ), permissions );
+    }
+}
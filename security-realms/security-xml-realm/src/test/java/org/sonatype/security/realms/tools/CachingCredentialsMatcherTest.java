@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.realms.tools;
+
+import junit.framework.TestCase;
+
+import org.apache.shiro.authc.SimpleAuthenticationInfo;
+import org.apache.shiro.authc.UsernamePasswordToken;
+import org.sonatype.security.usermanagement.DefaultPasswordService;
+import org.sonatype.security.usermanagement.PasswordService;
+import org.sonatype.security.usermanagement.StringDigester;
+
+public class CachingCredentialsMatcherTest
+    extends TestCase
+{
+    private final PasswordService passwordService = new DefaultPasswordService( 0, 1, 10 );
+
+    private final CachingCredentialsMatcher matcher = new CachingCredentialsMatcher( passwordService, 10 );
+
+    public void testVerifiedCredentialsAreRemembered()
+    {
+        SimpleAuthenticationInfo info = info( StringDigester.getSha1Digest( "secret" ) );
+
+        assertTrue( matcher.doCredentialsMatch( token( "secret" ), info ) );
+        assertTrue( matcher.doCredentialsMatch( token( "secret" ), info ) );
+        assertFalse( matcher.doCredentialsMatch( token( "other" ), info ) );
+        assertTrue( matcher.doCredentialsMatch( token( "secret" ), info ) );
+
+        matcher.invalidate( "user" );
+        assertTrue( matcher.doCredentialsMatch( token( "secret" ), info ) );
+
+        matcher.invalidateAll();
+        assertFalse( matcher.doCredentialsMatch( token( "other" ), info ) );
+    }
+
+    public void testChangedPasswordIsNotMatchedFromCache()
+    {
+        assertTrue( matcher.doCredentialsMatch( token( "secret" ), info( StringDigester.getSha1Digest( "secret" ) ) ) );
+
+        SimpleAuthenticationInfo changed = info( StringDigester.getSha1Digest( "changed" ) );
+
+        assertFalse( matcher.doCredentialsMatch( token( "secret" ), changed ) );
+        assertTrue( matcher.doCredentialsMatch( token( "changed" ), changed ) );
+    }
+
+    public void testMd5Password()
+    {
+        SimpleAuthenticationInfo info = info( StringDigester.getMd5Digest( "secret" ) );
+
+        assertTrue( matcher.doCredentialsMatch( token( "secret" ), info ) );
+        assertFalse( matcher.doCredentialsMatch( token( "other" ), info ) );
+        assertTrue( matcher.doCredentialsMatch( token( "secret" ), info ) );
+    }
+
+    public void testIteratedPassword()
+    {
+        SimpleAuthenticationInfo info = info( new DefaultPasswordService( 1000, 1, 10 ).hashPassword( "secret" ) );
+
+        assertTrue( matcher.doCredentialsMatch( token( "secret" ), info ) );
+        assertFalse( matcher.doCredentialsMatch( token( "other" ), info ) );
+        assertTrue( matcher.doCredentialsMatch( token( "secret" ), info ) );
+    }
+
+    public void testDisabledCache()
+    {
+        CachingCredentialsMatcher uncached = new CachingCredentialsMatcher( passwordService, 0 );
+
+        SimpleAuthenticationInfo info = info( StringDigester.getSha1Digest( "secret" ) );
+
+        assertTrue( uncached.doCredentialsMatch( token( "secret" ), info ) );
+        assertTrue( uncached.doCredentialsMatch( token( "secret" ), info ) );
+        assertFalse( uncached.doCredentialsMatch( token( "other" ), info ) );
+    }
+
+    private static UsernamePasswordToken token( String password )
+    {
+        return new UsernamePasswordToken( "user", password );
+    }
+
+    private static SimpleAuthenticationInfo info( String hash )
+    {
+        return new SimpleAuthenticationInfo( "user", hash.toCharArray(), "realm" );
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.realms.tools;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Properties;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.sonatype.configuration.validation.InvalidConfigurationException;
+import org.sonatype.guice.bean.containers.InjectedTestCase;
+import org.sonatype.security.authorization.NoSuchRoleException;
+import org.sonatype.security.model.CRole;
+import org.sonatype.security.model.CUser;
+import org.sonatype.security.usermanagement.UserNotFoundException;
+import org.sonatype.security.usermanagement.xml.SecurityXmlUserManager;
+
+public class ConfigurationBatchTest
+    extends InjectedTestCase
+{
+    private final File configDir = new File( "target/ConfigurationBatchTest" );
+
+    private ConfigurationManager manager;
+
+    @Override
+    public void configure( Properties properties )
+    {
+        super.configure( properties );
+        properties.put( "security-xml-file", new File( configDir, "security.xml" ).getAbsolutePath() );
+        properties.put( "application-conf", configDir.getAbsolutePath() );
+    }
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        FileUtils.deleteDirectory( configDir );
+
+        super.setUp();
+
+        manager = lookup( ConfigurationManager.class, "resourceMerging" );
+    }
+
+    public void testMixedBatch()
+        throws Exception
+    {
+        ConfigurationBatch batch = new ConfigurationBatch();
+        batch.createRole( role( "batch-role" ) );
+        for ( int i = 0; i < 100; i++ )
+        {
+            batch.createUser( user( "batch-user-" + i ), "password", Collections.singleton( "batch-role" ) );
+        }
+        batch.deleteUser( "batch-user-0" );
+
+        manager.apply( batch );
+
+        assertNotNull( manager.readRole( "batch-role" ) );
+        assertNotNull( manager.readUser( "batch-user-99" ) );
+        assertEquals( Collections.singletonList( "batch-role" ),
+                      manager.readUserRoleMapping( "batch-user-99", SecurityXmlUserManager.SOURCE ).getRoles() );
+        try
+        {
+            manager.readUser( "batch-user-0" );
+            fail( "Expected UserNotFoundException" );
+        }
+        catch ( UserNotFoundException e )
+        {
+            // expected
+        }
+    }
+
+    public void testInvalidMutationRollsBackBatch()
+        throws Exception
+    {
+        ConfigurationBatch batch = new ConfigurationBatch();
+        batch.createRole( role( "batch-role" ) );
+        batch.createUser( user( "batch-user" ), "password", Collections.singleton( "batch-role" ) );
+        // the role does not exist
+        batch.createUser( user( "invalid-user" ), "password", Collections.singleton( "missing-role" ) );
+
+        try
+        {
+            manager.apply( batch );
+            fail( "Expected InvalidConfigurationException" );
+        }
+        catch ( InvalidConfigurationException e )
+        {
+            // expected
+        }
+
+        try
+        {
+            manager.readRole( "batch-role" );
+            fail( "Expected NoSuchRoleException" );
+        }
+        catch ( NoSuchRoleException e )
+        {
+            // expected
+        }
+        try
+        {
+            manager.readUser( "batch-user" );
+            fail( "Expected UserNotFoundException" );
+        }
+        catch ( UserNotFoundException e )
+        {
+            // expected
+        }
+    }
+
+    public void testDeletedRolesAreCleanedOnlyIfBatchSucceeds()
+        throws Exception
+    {
+        CRole parent = role( "parent-role" );
+        parent.addRole( "child-role" );
+        manager.createRole( role( "child-role" ) );
+        manager.createRole( parent );
+
+        ConfigurationBatch batch = new ConfigurationBatch();
+        batch.deleteRole( "child-role" );
+        batch.deleteUser( "missing-user" );
+
+        try
+        {
+            manager.apply( batch );
+            fail( "Expected InvalidConfigurationException" );
+        }
+        catch ( InvalidConfigurationException e )
+        {
+            // expected
+        }
+
+        assertNotNull( manager.readRole( "child-role" ) );
+        assertEquals( Collections.singletonList( "child-role" ), manager.readRole( "parent-role" ).getRoles() );
+
+        batch = new ConfigurationBatch();
+        batch.deleteRole( "child-role" );
+        manager.apply( batch );
+
+        assertTrue( manager.readRole( "parent-role" ).getRoles().isEmpty() );
+    }
+
+    private CRole role( String id )
+    {
+        CRole role = new CRole();
+        role.setId( id );
+        role.setName( id );
+        role.setDescription( id );
+        role.setSessionTimeout( 60 );
+        return role;
+    }
+
+    private CUser user( String id )
+    {
+        CUser user = new CUser();
+        user.setId( id );
+        user.setFirstName( id );
+        user.setLastName( id );
+        user.setEmail( id + "@example.com" );
+        user.setStatus( CUser.STATUS_ACTIVE );
+        return user;
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.realms.tools;
+
+import java.io.File;
+import java.util.Properties;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.sonatype.guice.bean.containers.InjectedTestCase;
+import org.sonatype.security.authorization.NoSuchRoleException;
+import org.sonatype.security.model.CRole;
+
+public class ConfigurationSnapshotTest
+    extends InjectedTestCase
+{
+    private final File configDir = new File( "target/ConfigurationSnapshotTest" );
+
+    private DefaultConfigurationManager manager;
+
+    @Override
+    public void configure( Properties properties )
+    {
+        super.configure( properties );
+        properties.put( "security-xml-file", new File( configDir, "security.xml" ).getAbsolutePath() );
+    }
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        FileUtils.deleteDirectory( configDir );
+
+        super.setUp();
+
+        manager = (DefaultConfigurationManager) lookup( ConfigurationManager.class, "default" );
+    }
+
+    public void testPublishedSnapshotIsNotChanged()
+        throws Exception
+    {
+        EnhancedConfiguration before = manager.getConfiguration();
+        int roleCount = before.getRoles().size();
+
+        manager.createRole( role( "snapshot-role" ) );
+
+        EnhancedConfiguration after = manager.getConfiguration();
+        assertNotSame( before, after );
+        assertNull( before.getRoleById( "snapshot-role" ) );
+        assertEquals( roleCount, before.getRoles().size() );
+        assertNotNull( after.getRoleById( "snapshot-role" ) );
+        assertEquals( roleCount + 1, after.getRoles().size() );
+
+        // the stored configuration is the published one
+        manager.save();
+        manager.clearCache();
+        assertNotNull( manager.readRole( "snapshot-role" ) );
+    }
+
+    public void testFailedUpdateReleasesLock()
+        throws Exception
+    {
+        try
+        {
+            manager.deleteRole( "missing-role" );
+            fail( "Expected NoSuchRoleException" );
+        }
+        catch ( NoSuchRoleException e )
+        {
+            // expected
+        }
+
+        assertFalse( manager.getUpdateLock().isLocked() );
+
+        manager.createRole( role( "snapshot-role" ) );
+        manager.updateRole( manager.readRole( "snapshot-role" ) );
+        assertFalse( manager.getUpdateLock().isLocked() );
+        assertNotNull( manager.readRole( "snapshot-role" ) );
+    }
+
+    private CRole role( String id )
+    {
+        CRole role = new CRole();
+        role.setId( id );
+        role.setName( id );
+        role.setDescription( id );
+        role.setSessionTimeout( 60 );
+        return role;
+    }
+}
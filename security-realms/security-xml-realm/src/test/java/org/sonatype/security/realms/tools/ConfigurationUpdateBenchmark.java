@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.realms.tools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.sonatype.security.model.CPrivilege;
+import org.sonatype.security.model.CRole;
+import org.sonatype.security.model.CUser;
+import org.sonatype.security.model.CUserRoleMapping;
+import org.sonatype.security.model.Configuration;
+
+/**
+ * Times the copy-on-write updates of an {@link EnhancedConfiguration} like the configuration managers make them: copy
+ * the snapshot, then replace a user, replace a role or clean a privilege from the roles having it. Not run by the
+ * build, run the main method with the user counts as arguments (default 10000 and 100000), there are a tenth as many
+ * roles and privileges. The cost per write is compared with copying the lists and rebuilding all lookup maps and
+ * indices.
+ */
+public class ConfigurationUpdateBenchmark
+{
+    private static final int ROUNDS = 5;
+
+    private static final int UPDATES = 200;
+
+    private static final int REBUILDS = 10;
+
+    public static void main( String[] args )
+    {
+        if ( args.length == 0 )
+        {
+            args = new String[] { "10000", "100000" };
+        }
+
+        DefaultSecurityConfigurationCleaner cleaner = new DefaultSecurityConfigurationCleaner();
+
+        for ( String arg : args )
+        {
+            int users = Integer.parseInt( arg );
+            EnhancedConfiguration configuration = new EnhancedConfiguration( generate( users ) );
+
+            System.out.println( users + " users, " + users / 10 + " roles" );
+
+            for ( int round = 0; round < ROUNDS; round++ )
+            {
+                long start = System.nanoTime();
+                for ( int i = 0; i < UPDATES; i++ )
+                {
+                    configuration = configuration.copy();
+                    CUser user = configuration.getUserById( "user-" + i );
+                    configuration.removeUser( user );
+                    configuration.addUser( user );
+                }
+                long user = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for ( int i = 0; i < UPDATES; i++ )
+                {
+                    configuration = configuration.copy();
+                    CRole role = configuration.getRoleById( "role-" + i );
+                    configuration.removeRole( role );
+                    configuration.addRole( role );
+                }
+                long role = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for ( int i = 0; i < UPDATES; i++ )
+                {
+                    configuration = configuration.copy();
+                    cleaner.privilegeRemoved( configuration, "priv-" + ( round * UPDATES + i ) );
+                }
+                long clean = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for ( int i = 0; i < REBUILDS; i++ )
+                {
+                    configuration = rebuild( configuration );
+                }
+                long rebuild = ( System.nanoTime() - start ) * UPDATES / REBUILDS;
+
+                System.out.println( "  round " + round + ": per write, user " + micros( user ) + " us, role "
+                    + micros( role ) + " us, clean privilege " + micros( clean ) + " us, full rebuild "
+                    + micros( rebuild ) + " us" );
+            }
+        }
+    }
+
+    private static long micros( long nanos )
+    {
+        return nanos / UPDATES / 1000;
+    }
+
+    /**
+     * Copies the lists and rebuilds every lookup map and index.
+     */
+    private static EnhancedConfiguration rebuild( EnhancedConfiguration configuration )
+    {
+        Configuration copy = new Configuration();
+        copy.setPrivileges( new ArrayList<CPrivilege>( configuration.getPrivileges() ) );
+        copy.setRoles( new ArrayList<CRole>( configuration.getRoles() ) );
+        copy.setUsers( new ArrayList<CUser>( configuration.getUsers() ) );
+        copy.setUserRoleMappings( new ArrayList<CUserRoleMapping>( configuration.getUserRoleMappings() ) );
+        return new EnhancedConfiguration( copy );
+    }
+
+    /**
+     * Each user is mapped to one role, each role has ten privileges and contains the next role.
+     */
+    private static Configuration generate( int users )
+    {
+        Configuration configuration = new Configuration();
+        int roles = Math.max( users / 10, ROUNDS * UPDATES );
+
+        for ( int i = 0; i < roles; i++ )
+        {
+            CPrivilege privilege = new CPrivilege();
+            privilege.setId( "priv-" + i );
+            configuration.addPrivilege( privilege );
+
+            CRole role = new CRole();
+            role.setId( "role-" + i );
+            for ( int j = 0; j < 10; j++ )
+            {
+                role.addPrivilege( "priv-" + ( ( i + j ) % roles ) );
+            }
+            role.setRoles( i + 1 < roles ? Collections.singletonList( "role-" + ( i + 1 ) )
+                            : Collections.<String> emptyList() );
+            configuration.addRole( role );
+        }
+
+        for ( int i = 0; i < users; i++ )
+        {
+            CUser user = new CUser();
+            user.setId( "user-" + i );
+            user.setEmail( "user-" + i + "@example.com" );
+            configuration.addUser( user );
+
+            CUserRoleMapping mapping = new CUserRoleMapping();
+            mapping.setUserId( user.getId() );
+            mapping.setSource( "default" );
+            List<String> mapped = new ArrayList<String>();
+            mapped.add( "role-" + ( i % roles ) );
+            mapping.setRoles( mapped );
+            configuration.addUserRoleMapping( mapping );
+        }
+
+        return configuration;
+    }
+}
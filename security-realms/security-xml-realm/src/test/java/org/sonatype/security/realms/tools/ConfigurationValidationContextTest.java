@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.realms.tools;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import junit.framework.TestCase;
+
+import org.sonatype.security.model.CRole;
+import org.sonatype.security.model.CUser;
+import org.sonatype.security.model.CUserRoleMapping;
+import org.sonatype.security.model.Configuration;
+import org.sonatype.security.realms.validator.SecurityValidationContext;
+
+public class ConfigurationValidationContextTest
+    extends TestCase
+{
+    private EnhancedConfiguration configuration;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        Configuration model = new Configuration();
+
+        CUser user = new CUser();
+        user.setId( "user1" );
+        user.setEmail( "user1@example.com" );
+        model.addUser( user );
+
+        CRole role1 = new CRole();
+        role1.setId( "role1" );
+        role1.setName( "Role 1" );
+        model.addRole( role1 );
+
+        CRole role2 = new CRole();
+        role2.setId( "role2" );
+        role2.setName( "Role 2" );
+        role2.addRole( "role1" );
+        model.addRole( role2 );
+
+        CUserRoleMapping mapping = new CUserRoleMapping();
+        mapping.setUserId( "user1" );
+        mapping.setSource( "default" );
+        mapping.addRole( "role2" );
+        model.addUserRoleMapping( mapping );
+
+        configuration = new EnhancedConfiguration( model );
+    }
+
+    public void testViewOfConfiguration()
+    {
+        SecurityValidationContext context = new ConfigurationValidationContext( configuration );
+
+        assertTrue( context.getExistingUserIds().contains( "user1" ) );
+        assertFalse( context.getExistingUserIds().contains( "user2" ) );
+        assertEquals( "user1@example.com", context.getExistingEmailMap().get( "user1" ) );
+        assertEquals( new HashSet<String>( Arrays.asList( "role1", "role2" ) ),
+                      new HashSet<String>( context.getExistingRoleIds() ) );
+        assertEquals( "Role 2", context.getExistingRoleNameMap().get( "role2" ) );
+        assertEquals( Collections.singletonList( "role1" ), context.getRoleContainmentMap().get( "role2" ) );
+        assertEquals( Collections.singletonList( "role2" ), context.getExistingUserRoleMap().get( "user1" ) );
+        assertTrue( context.getExistingPrivilegeIds().isEmpty() );
+    }
+
+    public void testUserRoleMappingsOfOtherSources()
+    {
+        CUserRoleMapping mapping = new CUserRoleMapping();
+        mapping.setUserId( "user3" );
+        mapping.setSource( "ldap" );
+        mapping.addRole( "role1" );
+        configuration.addUserRoleMapping( mapping );
+
+        SecurityValidationContext context = new ConfigurationValidationContext( configuration );
+        assertEquals( Collections.singletonList( "role1" ), context.getExistingUserRoleMap().get( "user3" ) );
+        assertNull( context.getExistingUserRoleMap().get( "USER3" ) );
+
+        configuration.setUserRoleMappingRoles( mapping, Collections.singletonList( "role2" ) );
+        context = new ConfigurationValidationContext( configuration );
+        assertEquals( Collections.singletonList( "role2" ), context.getExistingUserRoleMap().get( "user3" ) );
+
+        configuration.removeUserRoleMappingByUserId( "user3", "ldap" );
+        context = new ConfigurationValidationContext( configuration );
+        assertFalse( context.getExistingUserRoleMap().containsKey( "user3" ) );
+    }
+
+    public void testChangesDoNotLeakIntoConfiguration()
+    {
+        SecurityValidationContext context = new ConfigurationValidationContext( configuration );
+
+        context.getExistingUserIds().add( "user2" );
+        context.getExistingUserIds().remove( "user1" );
+        context.getExistingRoleNameMap().put( "role3", "Role 3" );
+        context.getExistingRoleNameMap().remove( "role1" );
+        // the validator adds to the contained roles it gets
+        context.getRoleContainmentMap().get( "role2" ).add( "role3" );
+
+        assertTrue( context.getExistingUserIds().contains( "user2" ) );
+        assertFalse( context.getExistingUserIds().contains( "user1" ) );
+        assertEquals( Collections.singletonList( "user2" ), context.getExistingUserIds() );
+        assertEquals( "Role 3", context.getExistingRoleNameMap().get( "role3" ) );
+        assertNull( context.getExistingRoleNameMap().get( "role1" ) );
+        assertEquals( 2, context.getExistingRoleNameMap().size() );
+        assertEquals( Arrays.asList( "role1", "role3" ), context.getRoleContainmentMap().get( "role2" ) );
+
+        assertNotNull( configuration.getUserById( "user1" ) );
+        assertNull( configuration.getUserById( "user2" ) );
+        assertEquals( Collections.singletonList( "role1" ), configuration.getRoleById( "role2" ).getRoles() );
+
+        // a new context does not see the changes of the other one
+        context = new ConfigurationValidationContext( configuration );
+        assertTrue( context.getExistingUserIds().contains( "user1" ) );
+        assertEquals( Collections.singletonList( "role1" ), context.getRoleContainmentMap().get( "role2" ) );
+    }
+}
@@ -74,4 +74,75 @@ public class DefaultSecurityConfigurationCleanerTest
             assertFalse( mapping.getRoles().contains( role.getId() ) );
         }
     }
+
+    public void testRemovePrivilegeFromEnhancedConfiguration()
+        throws Exception
+    {
+        EnhancedConfiguration configuration =
+            new EnhancedConfiguration(
+                getConfigurationFromStream( getClass().getResourceAsStream( "/org/sonatype/security/realms/tools/cleaner-security.xml" ) ) );
+
+        CPrivilege priv = configuration.getPrivileges().get( 0 );
+        assertFalse( configuration.getRolesByPrivilegeId( priv.getId() ).isEmpty() );
+
+        configuration.removePrivilege( priv );
+
+        cleaner.privilegeRemoved( configuration, priv.getId() );
+
+        for ( CRole role : configuration.getRoles() )
+        {
+            assertFalse( role.getPrivileges().contains( priv.getId() ) );
+        }
+        assertTrue( configuration.getRolesByPrivilegeId( priv.getId() ).isEmpty() );
+    }
+
+    public void testRemoveRoleFromEnhancedConfiguration()
+        throws Exception
+    {
+        EnhancedConfiguration configuration =
+            new EnhancedConfiguration(
+                getConfigurationFromStream( getClass().getResourceAsStream( "/org/sonatype/security/realms/tools/cleaner-security.xml" ) ) );
+
+        CRole role = configuration.getRoles().get( 0 );
+
+        configuration.removeRole( role );
+
+        cleaner.roleRemoved( configuration, role.getId() );
+
+        for ( CRole crole : configuration.getRoles() )
+        {
+            assertFalse( crole.getRoles().contains( role.getId() ) );
+        }
+        for ( CUserRoleMapping mapping : configuration.getUserRoleMappings() )
+        {
+            assertFalse( mapping.getRoles().contains( role.getId() ) );
+        }
+        assertTrue( configuration.getParentRoles( role.getId() ).isEmpty() );
+        assertTrue( configuration.getUserRoleMappingsByRoleId( role.getId() ).isEmpty() );
+    }
+
+    public void testCleaningCopyLeavesOriginal()
+        throws Exception
+    {
+        EnhancedConfiguration configuration =
+            new EnhancedConfiguration(
+                getConfigurationFromStream( getClass().getResourceAsStream( "/org/sonatype/security/realms/tools/cleaner-security.xml" ) ) );
+
+        CPrivilege priv = configuration.getPrivileges().get( 0 );
+        List<CRole> roles = configuration.getRolesByPrivilegeId( priv.getId() );
+        assertFalse( roles.isEmpty() );
+
+        EnhancedConfiguration copy = configuration.copy();
+        copy.removePrivilege( priv );
+        cleaner.privilegeRemoved( copy, priv.getId() );
+
+        assertTrue( copy.getRolesByPrivilegeId( priv.getId() ).isEmpty() );
+        assertEquals( roles, configuration.getRolesByPrivilegeId( priv.getId() ) );
+        for ( CRole role : roles )
+        {
+            assertTrue( role.getPrivileges().contains( priv.getId() ) );
+            assertSame( role, configuration.getRoleById( role.getId() ) );
+            assertNotSame( role, copy.getRoleById( role.getId() ) );
+        }
+    }
 }
@@ -0,0 +1,278 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.realms.tools;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.sonatype.security.model.CRole;
+import org.sonatype.security.model.CUser;
+import org.sonatype.security.model.CUserRoleMapping;
+import org.sonatype.security.model.Configuration;
+
+public class EnhancedConfigurationTest
+    extends TestCase
+{
+    private EnhancedConfiguration configuration;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        configuration = new EnhancedConfiguration( new Configuration() );
+    }
+
+    public void testUserChangedInPlaceIsReindexed()
+    {
+        CUser user = new CUser();
+        user.setId( "jcool" );
+        user.setEmail( "old@example.com" );
+        configuration.addUser( user );
+
+        // changed in place, then replaced like updateUser does
+        user.setEmail( "new@example.com" );
+        configuration.removeUserById( user.getId() );
+        configuration.addUser( user );
+
+        assertTrue( configuration.getUsersByEmail( "old@example.com" ).isEmpty() );
+        assertEquals( Collections.singletonList( user ), configuration.getUsersByEmail( "NEW@example.com" ) );
+    }
+
+    public void testRoleChangedInPlaceIsReindexed()
+    {
+        CRole role = new CRole();
+        role.setId( "role" );
+        role.addPrivilege( "old-priv" );
+        role.addRole( "old-role" );
+        configuration.addRole( role );
+
+        role.setPrivileges( Arrays.asList( "new-priv" ) );
+        role.getRoles().clear();
+        role.addRole( "new-role" );
+        configuration.removeRoleById( role.getId() );
+        configuration.addRole( role );
+
+        assertTrue( configuration.getRolesByPrivilegeId( "old-priv" ).isEmpty() );
+        assertTrue( configuration.getParentRoles( "old-role" ).isEmpty() );
+        assertEquals( Collections.singletonList( role ), configuration.getRolesByPrivilegeId( "new-priv" ) );
+        assertEquals( Collections.singletonList( role ), configuration.getParentRoles( "new-role" ) );
+    }
+
+    public void testUserRoleMappingChangedInPlaceIsReindexed()
+    {
+        CUserRoleMapping mapping = new CUserRoleMapping();
+        mapping.setUserId( "jcool" );
+        mapping.setSource( "default" );
+        mapping.addRole( "old-role" );
+        configuration.addUserRoleMapping( mapping );
+
+        mapping.getRoles().set( 0, "new-role" );
+        configuration.removeUserRoleMappingByUserId( "jcool", "default" );
+
+        assertTrue( configuration.getUserRoleMappingsByRoleId( "old-role" ).isEmpty() );
+        assertTrue( configuration.getUserRoleMappingsByRoleId( "new-role" ).isEmpty() );
+    }
+
+    public void testCopiesDoNotChangeEachOther()
+    {
+        CRole role = role( "role", "priv", "contained" );
+        configuration.addRole( role );
+        configuration.addUser( user( "jcool", "jcool@example.com" ) );
+        CUserRoleMapping mapping = mapping( "jcool", "role" );
+        configuration.addUserRoleMapping( mapping );
+
+        EnhancedConfiguration copy = configuration.copy();
+        CRole changedRole = copy.setRolePrivileges( copy.getRoleById( "role" ), Arrays.asList( "other-priv" ) );
+        copy.setUserRoleMappingRoles( mapping, Collections.<String> emptyList() );
+        copy.removeUserById( "jcool" );
+        copy.addRole( role( "copy-role", "priv" ) );
+
+        // the original and its model objects are unchanged
+        assertEquals( Arrays.asList( "priv" ), role.getPrivileges() );
+        assertEquals( Arrays.asList( "role" ), mapping.getRoles() );
+        assertEquals( Collections.singletonList( role ), configuration.getRoles() );
+        assertSame( role, configuration.getRoleById( "role" ) );
+        assertEquals( Collections.singletonList( role ), configuration.getRolesByPrivilegeId( "priv" ) );
+        assertTrue( configuration.getRolesByPrivilegeId( "other-priv" ).isEmpty() );
+        assertEquals( Collections.singletonList( mapping ), configuration.getUserRoleMappingsByRoleId( "role" ) );
+        assertNotNull( configuration.getUserById( "jcool" ) );
+        assertEquals( 1, configuration.getUsersByEmail( "jcool@example.com" ).size() );
+
+        // the copy has the changes
+        assertSame( changedRole, copy.getRoleById( "role" ) );
+        assertEquals( Arrays.asList( changedRole, copy.getRoleById( "copy-role" ) ), copy.getRoles() );
+        assertEquals( Collections.singletonList( changedRole ), copy.getRolesByPrivilegeId( "other-priv" ) );
+        assertEquals( Collections.singletonList( copy.getRoleById( "copy-role" ) ),
+                      copy.getRolesByPrivilegeId( "priv" ) );
+        assertEquals( Collections.singletonList( changedRole ), copy.getParentRoles( "contained" ) );
+        assertTrue( copy.getUserRoleMappingsByRoleId( "role" ).isEmpty() );
+        assertNull( copy.getUserById( "jcool" ) );
+        assertTrue( copy.getUsersByEmail( "jcool@example.com" ).isEmpty() );
+
+        // changing the original after copying leaves the copy alone
+        configuration.addUser( user( "other", "jcool@example.com" ) );
+        configuration.removeRoleById( "role" );
+        assertTrue( copy.getUsersByEmail( "jcool@example.com" ).isEmpty() );
+        assertSame( changedRole, copy.getRoleById( "role" ) );
+        assertEquals( Collections.singletonList( changedRole ), copy.getParentRoles( "contained" ) );
+        assertTrue( configuration.getParentRoles( "contained" ).isEmpty() );
+    }
+
+    public void testWriteAfterCopyDoesNotCopyTheMaps()
+    {
+        final int count = 50000;
+        List<CUser> users = new ArrayList<CUser>( count );
+        for ( int i = 0; i < count; i++ )
+        {
+            users.add( user( "user-" + i, "user-" + i + "@example.com" ) );
+        }
+        configuration.setUsers( users );
+
+        // best of several runs, to leave out warm-up and collections
+        long rebuild = Long.MAX_VALUE;
+        for ( int i = 0; i < 5; i++ )
+        {
+            long start = System.nanoTime();
+            configuration.setUsers( new ArrayList<CUser>( configuration.getUsers() ) );
+            rebuild = Math.min( rebuild, System.nanoTime() - start );
+        }
+
+        long write = Long.MAX_VALUE;
+        for ( int i = 0; i < 50; i++ )
+        {
+            long start = System.nanoTime();
+            configuration = configuration.copy();
+            CUser user = configuration.getUserById( "user-" + i );
+            configuration.removeUser( user );
+            configuration.addUser( user );
+            write = Math.min( write, System.nanoTime() - start );
+        }
+
+        // copying the whole maps of the users takes a fair share of rebuilding them
+        assertTrue( "write: " + write + "ns, rebuild: " + rebuild + "ns", write * 20 < rebuild );
+        assertEquals( count, configuration.getUsers().size() );
+        assertEquals( 1, configuration.getUsersByEmail( "user-0@example.com" ).size() );
+    }
+
+    public void testReplacedModelObjectsKeepTheirFields()
+        throws Exception
+    {
+        CRole role = new CRole();
+        fill( role );
+        configuration.addRole( role );
+        CUserRoleMapping mapping = new CUserRoleMapping();
+        fill( mapping );
+        configuration.addUserRoleMapping( mapping );
+
+        CRole changed = configuration.setRoleRoles( role, new ArrayList<String>( role.getRoles() ) );
+        assertNotSame( role, changed );
+        assertEqualFields( role, changed );
+
+        CUserRoleMapping changedMapping =
+            configuration.setUserRoleMappingRoles( mapping, new ArrayList<String>( mapping.getRoles() ) );
+        assertNotSame( mapping, changedMapping );
+        assertEqualFields( mapping, changedMapping );
+    }
+
+    private CRole role( String id, String privilege, String... roles )
+    {
+        CRole role = new CRole();
+        role.setId( id );
+        role.addPrivilege( privilege );
+        role.setRoles( new ArrayList<String>( Arrays.asList( roles ) ) );
+        return role;
+    }
+
+    private CUser user( String id, String email )
+    {
+        CUser user = new CUser();
+        user.setId( id );
+        user.setEmail( email );
+        return user;
+    }
+
+    private CUserRoleMapping mapping( String userId, String role )
+    {
+        CUserRoleMapping mapping = new CUserRoleMapping();
+        mapping.setUserId( userId );
+        mapping.setSource( "default" );
+        mapping.addRole( role );
+        return mapping;
+    }
+
+    // every field is set through reflection, so a field added to the model and not copied fails here
+
+    private void fill( Object object )
+        throws Exception
+    {
+        int counter = 0;
+        for ( Field field : instanceFields( object.getClass() ) )
+        {
+            Class<?> type = field.getType();
+
+            if ( type == String.class )
+            {
+                field.set( object, field.getName() + "-" + ( ++counter ) );
+            }
+            else if ( type == int.class )
+            {
+                field.setInt( object, ++counter );
+            }
+            else if ( type == boolean.class )
+            {
+                field.setBoolean( object, true );
+            }
+            else if ( type == List.class )
+            {
+                field.set( object, new ArrayList<String>( Arrays.asList( field.getName() + "-" + ( ++counter ) ) ) );
+            }
+            else
+            {
+                fail( "Field " + object.getClass().getSimpleName() + "." + field.getName() + " of type " + type
+                    + " is not filled by this test" );
+            }
+        }
+    }
+
+    private void assertEqualFields( Object expected, Object actual )
+        throws Exception
+    {
+        for ( Field field : instanceFields( expected.getClass() ) )
+        {
+            assertEquals( expected.getClass().getSimpleName() + "." + field.getName(), field.get( expected ),
+                          field.get( actual ) );
+        }
+    }
+
+    private static List<Field> instanceFields( Class<?> type )
+    {
+        List<Field> fields = new ArrayList<Field>();
+        for ( Field field : type.getDeclaredFields() )
+        {
+            if ( !Modifier.isStatic( field.getModifiers() ) && !field.isSynthetic() )
+            {
+                field.setAccessible( true );
+                fields.add( field );
+            }
+        }
+        return fields;
+    }
+}
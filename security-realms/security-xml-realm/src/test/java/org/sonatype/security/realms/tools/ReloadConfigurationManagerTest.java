@@ -0,0 +1,197 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.realms.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+import org.sonatype.guice.bean.containers.InjectedTestCase;
+import org.sonatype.plexus.appevents.ApplicationEventMulticaster;
+import org.sonatype.plexus.appevents.Event;
+import org.sonatype.plexus.appevents.EventListener;
+import org.sonatype.security.events.AuthorizationConfigurationReloadedEvent;
+import org.sonatype.security.model.CRole;
+import org.sonatype.security.model.Configuration;
+import org.sonatype.security.model.io.xpp3.SecurityConfigurationXpp3Reader;
+import org.sonatype.security.model.io.xpp3.SecurityConfigurationXpp3Writer;
+import org.sonatype.security.watch.SecurityFileWatcher;
+
+public class ReloadConfigurationManagerTest
+    extends InjectedTestCase
+{
+    private final File configDir = new File( "target/ReloadConfigurationManagerTest" );
+
+    private final File securityXml = new File( configDir, "security.xml" );
+
+    private DefaultConfigurationManager manager;
+
+    private final List<AuthorizationConfigurationReloadedEvent> events =
+        new ArrayList<AuthorizationConfigurationReloadedEvent>();
+
+    @Override
+    public void configure( Properties properties )
+    {
+        super.configure( properties );
+        properties.put( "security-xml-file", securityXml.getAbsolutePath() );
+        properties.put( "application-conf", configDir.getAbsolutePath() );
+    }
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        FileUtils.deleteDirectory( configDir );
+
+        super.setUp();
+
+        manager = (DefaultConfigurationManager) lookup( ConfigurationManager.class, "default" );
+
+        manager.createRole( role( "reload-1" ) );
+        manager.createRole( role( "reload-2" ) );
+        manager.save();
+
+        lookup( ApplicationEventMulticaster.class ).addEventListener( new EventListener()
+        {
+            public void onEvent( Event<?> evt )
+            {
+                if ( evt instanceof AuthorizationConfigurationReloadedEvent )
+                {
+                    events.add( (AuthorizationConfigurationReloadedEvent) evt );
+                }
+            }
+        } );
+    }
+
+    public void testOwnSaveIsNotReloaded()
+        throws Exception
+    {
+        manager.createRole( role( "reload-3" ) );
+        manager.save();
+
+        lookup( SecurityFileWatcher.class ).poll();
+
+        assertTrue( events.isEmpty() );
+    }
+
+    public void testExternalChangeIsReloaded()
+        throws Exception
+    {
+        CRole unchanged = manager.readRole( "reload-2" );
+
+        Configuration configuration = read();
+        for ( CRole role : configuration.getRoles() )
+        {
+            if ( "reload-1".equals( role.getId() ) )
+            {
+                role.setDescription( "changed" );
+            }
+        }
+        configuration.addRole( role( "reload-3" ) );
+        write( configuration );
+
+        lookup( SecurityFileWatcher.class ).poll();
+
+        assertEquals( "changed", manager.readRole( "reload-1" ).getDescription() );
+        assertNotNull( manager.readRole( "reload-3" ) );
+        // unchanged objects are kept
+        assertSame( unchanged, manager.readRole( "reload-2" ) );
+
+        assertEquals( 1, events.size() );
+        assertEquals( 2, events.get( 0 ).getRoleIds().size() );
+        assertTrue( events.get( 0 ).getRoleIds().contains( "reload-1" ) );
+        assertTrue( events.get( 0 ).getRoleIds().contains( "reload-3" ) );
+        assertTrue( events.get( 0 ).getUserIds().isEmpty() );
+        assertTrue( events.get( 0 ).getPrivilegeIds().isEmpty() );
+    }
+
+    public void testInvalidFileKeepsConfiguration()
+        throws Exception
+    {
+        long lastModified = securityXml.lastModified();
+        FileUtils.fileWrite( securityXml.getAbsolutePath(), "<security><roles>" );
+        securityXml.setLastModified( lastModified + 2000 );
+
+        lookup( SecurityFileWatcher.class ).poll();
+
+        assertNotNull( manager.readRole( "reload-1" ) );
+        assertTrue( events.isEmpty() );
+    }
+
+    public void testDiff()
+    {
+        Configuration oldConfiguration = new Configuration();
+        oldConfiguration.addRole( role( "a" ) );
+        oldConfiguration.addRole( role( "b" ) );
+
+        Configuration newConfiguration = new Configuration();
+        newConfiguration.addRole( role( "a" ) );
+
+        ConfigurationDiff diff = new ConfigurationDiff( oldConfiguration, newConfiguration );
+
+        assertEquals( Collections.singleton( "b" ), diff.getRoleIds() );
+        assertSame( oldConfiguration.getRoles().get( 0 ), diff.getMerged().getRoles().get( 0 ) );
+        assertTrue( new ConfigurationDiff( newConfiguration, newConfiguration ).isEmpty() );
+    }
+
+    private Configuration read()
+        throws Exception
+    {
+        InputStream in = new FileInputStream( securityXml );
+        try
+        {
+            return new SecurityConfigurationXpp3Reader().read( in );
+        }
+        finally
+        {
+            IOUtil.close( in );
+        }
+    }
+
+    private void write( Configuration configuration )
+        throws Exception
+    {
+        long lastModified = securityXml.lastModified();
+
+        OutputStream out = new FileOutputStream( securityXml );
+        try
+        {
+            new SecurityConfigurationXpp3Writer().write( out, configuration );
+        }
+        finally
+        {
+            IOUtil.close( out );
+        }
+
+        // the modification time may not change on coarse file systems
+        securityXml.setLastModified( lastModified + 2000 );
+    }
+
+    private CRole role( String id )
+    {
+        CRole role = new CRole();
+        role.setId( id );
+        role.setName( id );
+        role.setDescription( id );
+        role.setSessionTimeout( 60 );
+        return role;
+    }
+}
@@ -118,6 +118,54 @@ public class ResourceMergingConfigurationManagerTest
         assertEquals( "privs: " + this.privilegeListToStringList( privs ), 10, privs.size() );
     }
 
+    public void testMergedListsAreReadOnlyViews()
+        throws Exception
+    {
+        List<CRole> roles = manager.listRoles();
+        List<CPrivilege> privs = manager.listPrivileges();
+
+        int dynamicRoles = 0;
+        for ( CRole role : roles )
+        {
+            if ( role.isReadOnly() )
+            {
+                dynamicRoles++;
+            }
+            assertSame( role, roles.get( roles.indexOf( role ) ) );
+        }
+        assertTrue( dynamicRoles > 0 );
+        assertSame( manager.readRole( "other" ), roles.get( roles.indexOf( manager.readRole( "other" ) ) ) );
+        assertTrue( manager.readRole( "other" ).isReadOnly() );
+        assertTrue( manager.readPrivilege( "6-test" ).isReadOnly() );
+
+        // same instances on every call, nothing copied
+        List<CRole> again = manager.listRoles();
+        for ( int i = 0; i < roles.size(); i++ )
+        {
+            assertSame( roles.get( i ), again.get( i ) );
+        }
+
+        try
+        {
+            roles.add( new CRole() );
+            fail( "list of roles must not be modifiable" );
+        }
+        catch ( UnsupportedOperationException e )
+        {
+            // expected
+        }
+
+        try
+        {
+            privs.remove( 0 );
+            fail( "list of privileges must not be modifiable" );
+        }
+        catch ( UnsupportedOperationException e )
+        {
+            // expected
+        }
+    }
+
     private List<String> privilegeListToStringList( List<CPrivilege> privs )
     {
         List<String> ids = new ArrayList<String>();
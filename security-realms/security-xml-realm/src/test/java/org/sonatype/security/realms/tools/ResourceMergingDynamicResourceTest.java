@@ -0,0 +1,201 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.realms.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+
+import org.sonatype.guice.bean.containers.InjectedTestCase;
+import org.sonatype.plexus.appevents.ApplicationEventMulticaster;
+import org.sonatype.plexus.appevents.Event;
+import org.sonatype.plexus.appevents.EventListener;
+import org.sonatype.security.authorization.NoSuchPrivilegeException;
+import org.sonatype.security.events.AuthorizationConfigurationReloadedEvent;
+import org.sonatype.security.model.CPrivilege;
+import org.sonatype.security.model.CRole;
+import org.sonatype.security.model.Configuration;
+
+import com.google.inject.Binder;
+import com.google.inject.name.Names;
+
+public class ResourceMergingDynamicResourceTest
+    extends InjectedTestCase
+{
+    private final ChangingSecurityResource resourceA = new ChangingSecurityResource( "a-1", "a-2" );
+
+    private final ChangingSecurityResource resourceB = new ChangingSecurityResource( "b-1" );
+
+    private final List<AuthorizationConfigurationReloadedEvent> events =
+        new ArrayList<AuthorizationConfigurationReloadedEvent>();
+
+    private ConfigurationManager manager;
+
+    @Override
+    public void configure( Properties properties )
+    {
+        super.configure( properties );
+        properties.put( "security-xml-file",
+                        "target/test-classes/org/sonatype/security/configuration/static-merging/security.xml" );
+    }
+
+    @Override
+    public void configure( Binder binder )
+    {
+        super.configure( binder );
+        binder.bind( DynamicSecurityResource.class ).annotatedWith( Names.named( "a" ) ).toInstance( resourceA );
+        binder.bind( DynamicSecurityResource.class ).annotatedWith( Names.named( "b" ) ).toInstance( resourceB );
+    }
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        manager = lookup( ConfigurationManager.class, "resourceMerging" );
+
+        lookup( ApplicationEventMulticaster.class ).addEventListener( new EventListener()
+        {
+            public void onEvent( Event<?> evt )
+            {
+                if ( evt instanceof AuthorizationConfigurationReloadedEvent )
+                {
+                    events.add( (AuthorizationConfigurationReloadedEvent) evt );
+                }
+            }
+        } );
+    }
+
+    public void testUnchangedResourcesAreNotAskedAgain()
+        throws Exception
+    {
+        int privileges = manager.listPrivileges().size();
+        manager.listRoles();
+        manager.readPrivilege( "b-1" );
+
+        assertEquals( 1, resourceA.calls );
+        assertEquals( 1, resourceB.calls );
+        assertTrue( events.isEmpty() );
+
+        resourceA.change( "a-2", "a-3" );
+
+        assertEquals( privileges, manager.listPrivileges().size() );
+        assertEquals( 2, resourceA.calls );
+        assertEquals( 1, resourceB.calls );
+    }
+
+    public void testChangedContributionIsReplaced()
+        throws Exception
+    {
+        manager.listPrivileges();
+
+        resourceA.change( "a-3" );
+
+        assertTrue( manager.readPrivilege( "a-3" ).isReadOnly() );
+        assertNotNull( manager.readPrivilege( "b-1" ) );
+        try
+        {
+            manager.readPrivilege( "a-1" );
+            fail( "privilege a-1 is no longer contributed" );
+        }
+        catch ( NoSuchPrivilegeException e )
+        {
+            // expected
+        }
+
+        CRole shared = manager.readRole( "dynamic-shared" );
+        assertTrue( shared.isReadOnly() );
+        assertEquals( new HashSet<String>( Arrays.asList( "a-3", "b-1" ) ),
+                      new HashSet<String>( shared.getPrivileges() ) );
+
+        assertEquals( 1, events.size() );
+        assertEquals( new HashSet<String>( Arrays.asList( "dynamic-shared" ) ), events.get( 0 ).getRoleIds() );
+        assertEquals( new HashSet<String>( Arrays.asList( "a-1", "a-2", "a-3" ) ), events.get( 0 ).getPrivilegeIds() );
+        assertTrue( events.get( 0 ).getUserIds().isEmpty() );
+    }
+
+    public void testResourceAssigningDirtyFieldIsMergedAgain()
+        throws Exception
+    {
+        manager.listPrivileges();
+
+        resourceB.assign( "b-2" );
+
+        assertNotNull( manager.readPrivilege( "b-2" ) );
+        assertEquals( 2, resourceB.calls );
+        assertEquals( 1, resourceA.calls );
+        assertEquals( new HashSet<String>( Arrays.asList( "a-1", "a-2", "b-2" ) ),
+                      new HashSet<String>( manager.readRole( "dynamic-shared" ).getPrivileges() ) );
+    }
+
+    /**
+     * Contributes its privileges and a role holding them, shared with the other resources.
+     */
+    private static class ChangingSecurityResource
+        extends AbstractDynamicSecurityResource
+    {
+        private String[] privilegeIds;
+
+        private int calls;
+
+        private ChangingSecurityResource( String... privilegeIds )
+        {
+            this.privilegeIds = privilegeIds;
+        }
+
+        private void change( String... privilegeIds )
+        {
+            this.privilegeIds = privilegeIds;
+            setDirty( true );
+        }
+
+        /**
+         * Changes the privileges the way older subclasses do, not announcing the change.
+         */
+        @SuppressWarnings( "deprecation" )
+        private void assign( String... privilegeIds )
+        {
+            this.privilegeIds = privilegeIds;
+            dirty = true;
+        }
+
+        protected Configuration doGetConfiguration()
+        {
+            calls++;
+
+            Configuration config = new Configuration();
+
+            CRole role = new CRole();
+            role.setId( "dynamic-shared" );
+            role.setName( "Dynamic Shared" );
+
+            for ( String id : privilegeIds )
+            {
+                CPrivilege privilege = new CPrivilege();
+                privilege.setId( id );
+                privilege.setName( id );
+                privilege.setType( "method" );
+                config.addPrivilege( privilege );
+
+                role.addPrivilege( id );
+            }
+
+            config.addRole( role );
+
+            return config;
+        }
+    }
+}
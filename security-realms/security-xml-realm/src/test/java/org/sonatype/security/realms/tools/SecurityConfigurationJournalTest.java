@@ -0,0 +1,165 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.realms.tools;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.sonatype.guice.bean.containers.InjectedTestCase;
+import org.sonatype.security.model.CRole;
+import org.sonatype.security.realms.tools.SecurityConfigurationJournal.Entry;
+import org.sonatype.security.realms.tools.SecurityConfigurationJournal.Operation;
+
+public class SecurityConfigurationJournalTest
+    extends InjectedTestCase
+{
+    private final File configDir = new File( "target/SecurityConfigurationJournalTest" );
+
+    private final File securityXml = new File( configDir, "security.xml" );
+
+    private final File journalFile = new File( configDir, "security.xml.journal" );
+
+    @Override
+    public void configure( Properties properties )
+    {
+        super.configure( properties );
+        properties.put( "security-xml-file", securityXml.getAbsolutePath() );
+        properties.put( "security-xml-journal", "true" );
+    }
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        FileUtils.deleteDirectory( configDir );
+
+        super.setUp();
+    }
+
+    public void testAppendAndRead()
+        throws Exception
+    {
+        SecurityConfigurationJournal journal = new SecurityConfigurationJournal( journalFile );
+
+        journal.append( Arrays.asList( Entry.put( role( "role-1" ) ), Entry.of( Operation.DELETE_ROLE, "role-2" ) ) );
+        journal.append( Arrays.asList( Entry.deleteUserRoleMapping( "user", "source" ) ) );
+
+        List<Entry> entries = journal.read();
+        assertEquals( 3, entries.size() );
+        assertEquals( Operation.PUT_ROLE, entries.get( 0 ).getOperation() );
+        assertEquals( "role-1", entries.get( 0 ).getRole().getName() );
+        assertEquals( Operation.DELETE_ROLE, entries.get( 1 ).getOperation() );
+        assertEquals( "role-2", entries.get( 1 ).getId() );
+        assertEquals( "source", entries.get( 2 ).getSource() );
+
+        journal.clear();
+        assertFalse( journalFile.exists() );
+        assertTrue( journal.read().isEmpty() );
+    }
+
+    public void testTornRecordIsDropped()
+        throws Exception
+    {
+        SecurityConfigurationJournal journal = new SecurityConfigurationJournal( journalFile );
+
+        journal.append( Arrays.asList( Entry.put( role( "role-1" ) ) ) );
+        long length = journal.length();
+        journal.append( Arrays.asList( Entry.put( role( "role-2" ) ) ) );
+
+        // crash in the middle of the second append
+        RandomAccessFile raf = new RandomAccessFile( journalFile, "rw" );
+        raf.setLength( length + 10 );
+        raf.close();
+
+        List<Entry> entries = journal.read();
+        assertEquals( 1, entries.size() );
+        assertEquals( "role-1", entries.get( 0 ).getId() );
+        assertEquals( length, journal.length() );
+    }
+
+    public void testSaveAppendsToJournalAndLoadReplaysIt()
+        throws Exception
+    {
+        DefaultConfigurationManager manager =
+            (DefaultConfigurationManager) lookup( ConfigurationManager.class, "default" );
+
+        // make sure security.xml exists
+        manager.getConfiguration();
+        manager.compactJournal();
+        long securityXmlLength = securityXml.length();
+
+        manager.createRole( role( "journal-role-1" ) );
+        manager.createRole( role( "journal-role-2" ) );
+        manager.save();
+
+        CRole updated = manager.readRole( "journal-role-1" );
+        updated.setDescription( "updated" );
+        manager.updateRole( updated );
+        manager.deleteRole( "journal-role-2" );
+        manager.save();
+
+        assertEquals( securityXmlLength, securityXml.length() );
+        assertTrue( journalFile.length() > 0 );
+
+        List<CRole> expected = manager.listRoles();
+
+        manager.clearCache();
+        assertEquals( "updated", manager.readRole( "journal-role-1" ).getDescription() );
+        assertEquals( ids( expected ), ids( manager.listRoles() ) );
+
+        manager.compactJournal();
+        assertFalse( journalFile.exists() );
+
+        manager.clearCache();
+        assertEquals( "updated", manager.readRole( "journal-role-1" ).getDescription() );
+        assertEquals( ids( expected ), ids( manager.listRoles() ) );
+    }
+
+    public void testUnsavedChangesAreNotJournaled()
+        throws Exception
+    {
+        DefaultConfigurationManager manager =
+            (DefaultConfigurationManager) lookup( ConfigurationManager.class, "default" );
+
+        manager.createRole( role( "unsaved-role" ) );
+        manager.clearCache();
+        manager.save();
+
+        assertNull( manager.getConfiguration().getRoleById( "unsaved-role" ) );
+        assertTrue( new SecurityConfigurationJournal( journalFile ).read().isEmpty() );
+    }
+
+    private String ids( List<CRole> roles )
+    {
+        StringBuilder ids = new StringBuilder();
+        for ( CRole role : roles )
+        {
+            ids.append( role.getId() ).append( ',' );
+        }
+        return ids.toString();
+    }
+
+    private CRole role( String id )
+    {
+        CRole role = new CRole();
+        role.setId( id );
+        role.setName( id );
+        role.setDescription( id );
+        role.setSessionTimeout( 60 );
+        return role;
+    }
+}
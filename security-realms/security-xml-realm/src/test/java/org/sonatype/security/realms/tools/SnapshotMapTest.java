@@ -0,0 +1,64 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.realms.tools;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class SnapshotMapTest
+    extends TestCase
+{
+    public void testCopiesDoNotChangeEachOther()
+    {
+        SnapshotMap<String, Integer> map = new SnapshotMap<String, Integer>( false );
+        Map<String, Integer> expected = new HashMap<String, Integer>();
+        for ( int i = 0; i < 1000; i++ )
+        {
+            map.put( "key-" + i, i );
+            expected.put( "key-" + i, i );
+        }
+
+        SnapshotMap<String, Integer> copy = map.copy();
+        copy.put( "key-0", -1 );
+        copy.put( "new-key", 1000 );
+        copy.remove( "key-1" );
+        map.remove( "key-2" );
+        expected.remove( "key-2" );
+
+        assertEquals( expected, map );
+        assertEquals( 999, map.size() );
+        assertEquals( Integer.valueOf( 0 ), map.get( "key-0" ) );
+        assertFalse( map.containsKey( "new-key" ) );
+
+        assertEquals( 1000, copy.size() );
+        assertEquals( Integer.valueOf( -1 ), copy.get( "key-0" ) );
+        assertEquals( Integer.valueOf( 2 ), copy.get( "key-2" ) );
+        assertFalse( copy.containsKey( "key-1" ) );
+        assertNull( copy.remove( "key-1" ) );
+        assertEquals( 1000, copy.size() );
+    }
+
+    public void testIdentityKeys()
+    {
+        SnapshotMap<String, Integer> map = new SnapshotMap<String, Integer>( true );
+        String key = new String( "key" );
+        map.put( key, 1 );
+        map.put( new String( "key" ), 2 );
+
+        assertEquals( 2, map.size() );
+        assertEquals( Integer.valueOf( 1 ), map.get( key ) );
+        assertNull( map.get( "key" ) );
+    }
+}
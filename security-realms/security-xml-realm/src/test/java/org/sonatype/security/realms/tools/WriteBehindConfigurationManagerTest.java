@@ -0,0 +1,131 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.realms.tools;
+
+import java.io.File;
+import java.util.Properties;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.sonatype.guice.bean.containers.InjectedTestCase;
+import org.sonatype.security.SecuritySystem;
+import org.sonatype.security.model.CRole;
+import org.sonatype.sisu.ehcache.CacheManagerComponent;
+
+public class WriteBehindConfigurationManagerTest
+    extends InjectedTestCase
+{
+    private final File configDir = new File( "target/WriteBehindConfigurationManagerTest" );
+
+    private final File securityXml = new File( configDir, "security.xml" );
+
+    private DefaultConfigurationManager manager;
+
+    @Override
+    public void configure( Properties properties )
+    {
+        super.configure( properties );
+        properties.put( "security-xml-file", securityXml.getAbsolutePath() );
+        properties.put( "application-conf", configDir.getAbsolutePath() );
+        // long enough to never write during the test
+        properties.put( "security-xml-write-behind-interval", "600000" );
+    }
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        FileUtils.deleteDirectory( configDir );
+
+        super.setUp();
+
+        manager = (DefaultConfigurationManager) lookup( ConfigurationManager.class, "default" );
+
+        // make sure security.xml exists
+        manager.getConfiguration();
+    }
+
+    public void testSaveIsWrittenOnFlush()
+        throws Exception
+    {
+        manager.createRole( role( "write-behind-1" ) );
+        manager.save();
+        manager.createRole( role( "write-behind-2" ) );
+        manager.save();
+
+        assertFalse( FileUtils.fileRead( securityXml ).contains( "write-behind-1" ) );
+
+        manager.flush();
+
+        String content = FileUtils.fileRead( securityXml );
+        assertTrue( content.contains( "write-behind-1" ) );
+        assertTrue( content.contains( "write-behind-2" ) );
+    }
+
+    public void testClearCacheKeepsSavedChanges()
+        throws Exception
+    {
+        manager.createRole( role( "write-behind-1" ) );
+        manager.save();
+
+        manager.clearCache();
+
+        assertNotNull( manager.readRole( "write-behind-1" ) );
+    }
+
+    public void testReloadKeepsSavedChanges()
+        throws Exception
+    {
+        manager.createRole( role( "write-behind-1" ) );
+        manager.save();
+
+        manager.reload();
+
+        assertNotNull( manager.readRole( "write-behind-1" ) );
+        assertTrue( FileUtils.fileRead( securityXml ).contains( "write-behind-1" ) );
+    }
+
+    public void testSecuritySystemStopFlushes()
+        throws Exception
+    {
+        SecuritySystem securitySystem = lookup( SecuritySystem.class );
+        securitySystem.start();
+        try
+        {
+            manager.createRole( role( "write-behind-1" ) );
+            manager.save();
+            assertFalse( FileUtils.fileRead( securityXml ).contains( "write-behind-1" ) );
+        }
+        finally
+        {
+            securitySystem.stop();
+            lookup( CacheManagerComponent.class ).shutdown();
+        }
+
+        assertTrue( FileUtils.fileRead( securityXml ).contains( "write-behind-1" ) );
+
+        // the writer is stopped, saves are written synchronously
+        manager.createRole( role( "write-behind-2" ) );
+        manager.save();
+        assertTrue( FileUtils.fileRead( securityXml ).contains( "write-behind-2" ) );
+    }
+
+    private CRole role( String id )
+    {
+        CRole role = new CRole();
+        role.setId( id );
+        role.setName( id );
+        role.setDescription( id );
+        role.setSessionTimeout( 60 );
+        return role;
+    }
+}
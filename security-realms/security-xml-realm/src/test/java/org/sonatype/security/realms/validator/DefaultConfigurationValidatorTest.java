@@ -16,12 +16,20 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.sonatype.configuration.validation.ValidationRequest;
 import org.sonatype.configuration.validation.ValidationResponse;
 import org.sonatype.guice.bean.containers.InjectedTestCase;
 import org.sonatype.security.model.CPrivilege;
 import org.sonatype.security.model.CRole;
+import org.sonatype.security.model.CUser;
+import org.sonatype.security.model.CUserRoleMapping;
 import org.sonatype.security.model.Configuration;
 import org.sonatype.security.model.io.xpp3.SecurityConfigurationXpp3Reader;
 
@@ -155,6 +163,139 @@ public class DefaultConfigurationValidatorTest
 
     }
 
+    public void testRoleCycleBelowRole()
+        throws Exception
+    {
+        SecurityValidationContext context = new SecurityValidationContext();
+        context.addExistingRoleIds();
+
+        addRole( context, "role1", "role2" );
+        addRole( context, "role2", "role3" );
+        addRole( context, "role3", "role2", "missing" );
+
+        ValidationResponse vr = configurationValidator.validateRoleContainment( context );
+
+        assertEquals( 2, vr.getValidationErrors().size() );
+        assertEquals( "Role 'role2' contains itself through Role 'role3'.  This is not valid.",
+                      vr.getValidationErrors().get( 0 ).getMessage() );
+        assertEquals( "Role 'role3' contains itself through Role 'role2'.  This is not valid.",
+                      vr.getValidationErrors().get( 1 ).getMessage() );
+        assertEquals( 1, vr.getValidationWarnings().size() );
+    }
+
+    public void testDeepRoleCycle()
+        throws Exception
+    {
+        SecurityValidationContext context = new SecurityValidationContext();
+        context.addExistingRoleIds();
+
+        int count = 10000;
+        for ( int i = 0; i < count; i++ )
+        {
+            addRole( context, "role" + i, "role" + ( ( i + 1 ) % count ) );
+        }
+
+        ValidationResponse vr = configurationValidator.validateRoleContainment( context );
+
+        assertEquals( count, vr.getValidationErrors().size() );
+        assertEquals( 0, vr.getValidationWarnings().size() );
+    }
+
+    public void testLargeModel()
+        throws Exception
+    {
+        Configuration model = new Configuration();
+
+        CRole role = new CRole();
+        role.setId( "role" );
+        role.setName( "role" );
+        model.addRole( role );
+
+        int count = 20000;
+        for ( int i = 0; i < count; i++ )
+        {
+            CUser user = new CUser();
+            user.setId( "user" + i );
+            user.setPassword( "password" );
+            user.setEmail( "user" + i + "@example.com" );
+            user.setStatus( CUser.STATUS_ACTIVE );
+            model.addUser( user );
+
+            CUserRoleMapping mapping = new CUserRoleMapping();
+            mapping.setUserId( user.getId() );
+            mapping.setSource( "default" );
+            mapping.addRole( i == count - 1 ? "missing" : "role" );
+            model.addUserRoleMapping( mapping );
+        }
+
+        ValidationResponse response =
+            configurationValidator.validateModel( new ValidationRequest<Configuration>( model ) );
+
+        // the user and its mapping
+        assertEquals( 2, response.getValidationErrors().size() );
+        assertEquals( "User ID 'user" + ( count - 1 ) + "' Invalid role id 'missing' found.",
+                      response.getValidationErrors().get( 0 ).getMessage() );
+        assertEquals( count, ( (SecurityValidationContext) response.getContext() ).getExistingUserIds().size() );
+    }
+
+    public void testRoleUpdateReadsOnlyContainedRoles()
+        throws Exception
+    {
+        final Set<Object> read = new HashSet<Object>();
+        final Map<String, List<String>> containment = new HashMap<String, List<String>>()
+        {
+            @Override
+            public List<String> get( Object key )
+            {
+                read.add( key );
+                return super.get( key );
+            }
+        };
+
+        SecurityValidationContext context = new SecurityValidationContext()
+        {
+            @Override
+            public Map<String, List<String>> getRoleContainmentMap()
+            {
+                return containment;
+            }
+        };
+        context.addExistingPrivilegeIds();
+        context.addExistingRoleIds();
+
+        addRole( context, "role1" );
+        addRole( context, "role2", "role3" );
+        addRole( context, "role3" );
+        for ( int i = 4; i < 100; i++ )
+        {
+            addRole( context, "role" + i, "role" + ( i - 1 ) );
+        }
+
+        CRole role1 = new CRole();
+        role1.setId( "role1" );
+        role1.setName( "role1" );
+        role1.setDescription( "desc" );
+        role1.setSessionTimeout( 50 );
+        role1.addRole( "role2" );
+
+        read.clear();
+        ValidationResponse vr = configurationValidator.validateRole( context, role1, true );
+
+        assertTrue( vr.isValid() );
+        assertEquals( new HashSet<Object>( Arrays.asList( "role1", "role2", "role3" ) ), read );
+    }
+
+    private void addRole( SecurityValidationContext context, String roleId, String... containedRoleIds )
+    {
+        ArrayList<String> containedRoles = new ArrayList<String>();
+        for ( String containedRoleId : containedRoleIds )
+        {
+            containedRoles.add( containedRoleId );
+        }
+        context.getExistingRoleIds().add( roleId );
+        context.getRoleContainmentMap().put( roleId, containedRoles );
+    }
+
     /**
      * NEXUS-5040: Creating a role with an unknown privilege should not result in a validation error, just a warning.
      */
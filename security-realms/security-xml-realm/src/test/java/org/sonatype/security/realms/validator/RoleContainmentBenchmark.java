@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.realms.validator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.sonatype.configuration.validation.ValidationResponse;
+import org.sonatype.security.realms.privileges.PrivilegeDescriptor;
+
+/**
+ * Times the role containment validation on generated role graphs: a deep chain, a wide tree and a ring where every
+ * role is recursive. Not run by the build, run the main method with the role counts as arguments (default 10000).
+ */
+public class RoleContainmentBenchmark
+{
+    private static final int ROUNDS = 5;
+
+    public static void main( String[] args )
+    {
+        if ( args.length == 0 )
+        {
+            args = new String[] { "10000" };
+        }
+
+        DefaultConfigurationValidator validator =
+            new DefaultConfigurationValidator( Collections.<PrivilegeDescriptor> emptyList(), null );
+
+        for ( String arg : args )
+        {
+            int roles = Integer.parseInt( arg );
+
+            System.out.println( roles + " roles" );
+
+            for ( int round = 0; round < ROUNDS; round++ )
+            {
+                long chain = time( validator, chain( roles ) );
+                long tree = time( validator, tree( roles ) );
+                long ring = time( validator, ring( roles ) );
+                System.out.println( "  round " + round + ": chain " + chain + " ms, tree " + tree + " ms, ring " + ring
+                    + " ms" );
+            }
+        }
+    }
+
+    private static long time( SecurityConfigurationValidator validator, SecurityValidationContext context )
+    {
+        long start = System.nanoTime();
+
+        ValidationResponse response = validator.validateRoleContainment( context );
+
+        if ( response.getValidationWarnings().size() > 0 )
+        {
+            throw new IllegalStateException( "Unexpected warnings" );
+        }
+
+        return ( System.nanoTime() - start ) / 1000000;
+    }
+
+    /**
+     * Each role contains the next one.
+     */
+    private static SecurityValidationContext chain( int roles )
+    {
+        SecurityValidationContext context = context();
+
+        for ( int i = 0; i < roles; i++ )
+        {
+            add( context, i, i + 1 < roles ? new int[] { i + 1 } : new int[0] );
+        }
+
+        return context;
+    }
+
+    /**
+     * Each role contains the roles below it in a binary tree, and the roles below those.
+     */
+    private static SecurityValidationContext tree( int roles )
+    {
+        SecurityValidationContext context = context();
+
+        for ( int i = 0; i < roles; i++ )
+        {
+            List<Integer> contained = new ArrayList<Integer>();
+            for ( int child = 2 * i + 1; child <= 2 * i + 2; child++ )
+            {
+                if ( child < roles )
+                {
+                    contained.add( child );
+                }
+                if ( 2 * child + 1 < roles )
+                {
+                    contained.add( 2 * child + 1 );
+                }
+            }
+
+            int[] ids = new int[contained.size()];
+            for ( int j = 0; j < ids.length; j++ )
+            {
+                ids[j] = contained.get( j );
+            }
+            add( context, i, ids );
+        }
+
+        return context;
+    }
+
+    /**
+     * Each role contains the next one, the last one the first one.
+     */
+    private static SecurityValidationContext ring( int roles )
+    {
+        SecurityValidationContext context = context();
+
+        for ( int i = 0; i < roles; i++ )
+        {
+            add( context, i, new int[] { ( i + 1 ) % roles } );
+        }
+
+        return context;
+    }
+
+    private static SecurityValidationContext context()
+    {
+        SecurityValidationContext context = new SecurityValidationContext();
+        context.addExistingRoleIds();
+        return context;
+    }
+
+    private static void add( SecurityValidationContext context, int role, int[] containedRoles )
+    {
+        List<String> contained = new ArrayList<String>();
+        for ( int containedRole : containedRoles )
+        {
+            contained.add( "role-" + containedRole );
+        }
+        context.getExistingRoleIds().add( "role-" + role );
+        context.getRoleContainmentMap().put( "role-" + role, contained );
+    }
+}
@@ -16,6 +16,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -38,6 +40,7 @@ import org.sonatype.security.usermanagement.StringDigester;
 import org.sonatype.security.usermanagement.User;
 import org.sonatype.security.usermanagement.UserManager;
 import org.sonatype.security.usermanagement.UserNotFoundException;
+import org.sonatype.security.usermanagement.UserSearchCriteria;
 import org.sonatype.security.usermanagement.UserStatus;
 
 public class UserManagerTest
@@ -267,6 +270,27 @@ public class UserManagerTest
         }
     }
 
+    public void testSearchUsersByRoleAndEmail()
+        throws Exception
+    {
+        UserManager userManager = this.getUserManager();
+
+        UserSearchCriteria criteria = new UserSearchCriteria();
+        criteria.setOneOfRoleIds( Collections.singleton( "role1" ) );
+        Set<String> userIds = new HashSet<String>();
+        for ( User user : userManager.searchUsers( criteria ) )
+        {
+            userIds.add( user.getUserId() );
+        }
+        Assert.assertEquals( new HashSet<String>( Arrays.asList( "admin", "test-user" ) ), userIds );
+
+        criteria = new UserSearchCriteria();
+        criteria.setEmail( "CHANGEME1@yourcompany.com" );
+        Set<User> users = userManager.searchUsers( criteria );
+        Assert.assertEquals( 1, users.size() );
+        Assert.assertEquals( "test-user", users.iterator().next().getUserId() );
+    }
+
     public void testSetUsersRoles()
         throws Exception
     {
@@ -48,12 +48,25 @@ public class DefaultRealmSecurityManager
 
     private RolePermissionResolver rolePermissionResolver;
 
-    @Inject
+    private int decisionCacheSize;
+
     public DefaultRealmSecurityManager( @Nullable RolePermissionResolver rolePermissionResolver )
+    {
+        this( rolePermissionResolver, 0 );
+    }
+
+    /**
+     * @param decisionCacheSize see {@link ExceptionCatchingModularRealmAuthorizer#setDecisionCacheSize(int)}.
+     * @since 2.8
+     */
+    @Inject
+    public DefaultRealmSecurityManager( @Nullable RolePermissionResolver rolePermissionResolver,
+                                        @Named( "${security-decision-cache-size:-0}" ) int decisionCacheSize )
     {
         logger.info( "@Deprecated use shiro-guice with org.sonatype.security.guice.SecurityModule instead" );
 
         this.rolePermissionResolver = rolePermissionResolver;
+        this.decisionCacheSize = decisionCacheSize;
         init();
     }
 
@@ -66,6 +79,7 @@ public class DefaultRealmSecurityManager
         // Authorizer
         ExceptionCatchingModularRealmAuthorizer authorizer =
             new ExceptionCatchingModularRealmAuthorizer( this.getRealms() );
+        authorizer.setDecisionCacheSize( decisionCacheSize );
 
         // if we have a Role Permission Resolver, set it, if not, don't worry about it
         if ( rolePermissionResolver != null )
@@ -12,8 +12,10 @@
  */
 package org.sonatype.security;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -34,6 +36,8 @@ import org.apache.shiro.authc.AuthenticationToken;
 import org.apache.shiro.authc.UsernamePasswordToken;
 import org.apache.shiro.cache.Cache;
 import org.apache.shiro.cache.ehcache.EhCacheManager;
+import org.apache.shiro.mgt.AuthenticatingSecurityManager;
+import org.apache.shiro.mgt.AuthorizingSecurityManager;
 import org.apache.shiro.mgt.RealmSecurityManager;
 import org.apache.shiro.realm.AuthenticatingRealm;
 import org.apache.shiro.realm.AuthorizingRealm;
@@ -48,16 +52,22 @@ import org.sonatype.plexus.appevents.ApplicationEventMulticaster;
 import org.sonatype.plexus.appevents.Event;
 import org.sonatype.plexus.appevents.EventListener;
 import org.sonatype.security.authentication.AuthenticationException;
+import org.sonatype.security.authentication.FirstSuccessfulModularRealmAuthenticator;
 import org.sonatype.security.authorization.AuthorizationException;
 import org.sonatype.security.authorization.AuthorizationManager;
+import org.sonatype.security.authorization.ExceptionCatchingModularRealmAuthorizer;
 import org.sonatype.security.authorization.NoSuchAuthorizationManagerException;
 import org.sonatype.security.authorization.Privilege;
 import org.sonatype.security.authorization.Role;
 import org.sonatype.security.configuration.SecurityConfigurationManager;
+import org.sonatype.security.configuration.source.FileSecurityConfigurationSource;
+import org.sonatype.security.configuration.source.SecurityConfigurationSource;
 import org.sonatype.security.email.NullSecurityEmailer;
 import org.sonatype.security.email.SecurityEmailer;
 import org.sonatype.security.events.AuthorizationConfigurationChangedEvent;
+import org.sonatype.security.events.AuthorizationConfigurationReloadedEvent;
 import org.sonatype.security.events.SecurityConfigurationChangedEvent;
+import org.sonatype.security.events.SecuritySystemStoppingEvent;
 import org.sonatype.security.events.UserPrincipalsExpiredEvent;
 import org.sonatype.security.usermanagement.InvalidCredentialsException;
 import org.sonatype.security.usermanagement.NoSuchUserManagerException;
@@ -70,6 +80,7 @@ import org.sonatype.security.usermanagement.UserManagerFacade;
 import org.sonatype.security.usermanagement.UserNotFoundException;
 import org.sonatype.security.usermanagement.UserSearchCriteria;
 import org.sonatype.security.usermanagement.UserStatus;
+import org.sonatype.security.watch.SecurityFileWatcher;
 import org.sonatype.sisu.ehcache.CacheManagerComponent;
 
 /**
@@ -103,6 +114,13 @@ public class DefaultSecuritySystem
 
     private SecurityEmailer securityEmailer;
 
+    private SecurityFileWatcher fileWatcher;
+
+    /**
+     * The security-configuration.xml file, {@code null} if the configuration source is not file based.
+     */
+    private File securityConfigurationFile;
+
     private static final String ALL_ROLES_KEY = "all";
 
     @Inject
@@ -111,7 +129,9 @@ public class DefaultSecuritySystem
                                   Map<String, AuthorizationManager> authorizationManagers, Map<String, Realm> realmMap,
                                   SecurityConfigurationManager securityConfiguration,
                                   Map<String, RealmSecurityManager> securityManagers,
-                                  CacheManagerComponent cacheManagerComponent, UserManagerFacade userManagerFacade )
+                                  CacheManagerComponent cacheManagerComponent, UserManagerFacade userManagerFacade,
+                                  SecurityFileWatcher fileWatcher,
+                                  @Named( "file" ) SecurityConfigurationSource securityConfigurationSource )
     {
         this.securityEmailers = securityEmailers;
         this.eventMulticaster = eventMulticaster;
@@ -124,6 +144,13 @@ public class DefaultSecuritySystem
 
         this.eventMulticaster.addEventListener( this );
         this.userManagerFacade = userManagerFacade;
+        this.fileWatcher = fileWatcher;
+
+        if ( FileSecurityConfigurationSource.class.isInstance( securityConfigurationSource ) )
+        {
+            this.securityConfigurationFile =
+                ( (FileSecurityConfigurationSource) securityConfigurationSource ).getConfigurationFile();
+        }
         SecurityUtils.setSecurityManager( this.getSecurityManager() );
     }
 
@@ -327,6 +354,9 @@ public class DefaultSecuritySystem
 
         userManager.addUser( user, password );
 
+        // realms that did not know the user might now
+        this.clearRealmAffinity( Collections.singleton( user.getUserId() ) );
+
         // then save the users Roles
         for ( UserManager tmpUserManager : userManagerFacade.getUserManagers().values() )
         {
@@ -703,6 +733,10 @@ public class DefaultSecuritySystem
         {
             UserManager userManager = userManagerFacade.getUserManager( user.getSource() );
             userManager.changePassword( userId, newPassword );
+
+            // credentials verified with the old password are not valid anymore
+            this.eventMulticaster.notifyEventListeners( new UserPrincipalsExpiredEvent( null, userId,
+                                                                                        user.getSource() ) );
         }
         catch ( NoSuchUserManagerException e )
         {
@@ -888,10 +922,30 @@ public class DefaultSecuritySystem
             ( (org.apache.shiro.util.Initializable) this.getSecurityManager() ).init();
         }
         this.setSecurityManagerRealms();
+
+        if ( securityConfigurationFile != null )
+        {
+            fileWatcher.watch( securityConfigurationFile, new SecurityFileWatcher.Listener()
+            {
+                public void fileChanged( File file )
+                {
+                    reloadSecurityConfiguration();
+                }
+            } );
+        }
     }
 
     public void stop()
     {
+        if ( securityConfigurationFile != null )
+        {
+            fileWatcher.unwatch( securityConfigurationFile );
+        }
+        fileWatcher.stop();
+
+        // let components write out pending changes
+        this.eventMulticaster.notifyEventListeners( new SecuritySystemStoppingEvent( this ) );
+
         if ( getSecurityManager().getRealms() != null )
         {
             for ( Realm realm : getSecurityManager().getRealms() )
@@ -940,16 +994,159 @@ public class DefaultSecuritySystem
         }
     }
 
+    /**
+     * Drops the cached authentication and authorization info of the users only.
+     */
+    private void clearRealmCaches( Set<String> userIds )
+    {
+        if ( this.getSecurityManager().getRealms() != null )
+        {
+            for ( Realm realm : this.getSecurityManager().getRealms() )
+            {
+                if ( AuthenticatingRealm.class.isInstance( realm ) )
+                {
+                    Cache cache = ( (AuthenticatingRealm) realm ).getAuthenticationCache();
+                    if ( cache != null )
+                    {
+                        for ( String userId : userIds )
+                        {
+                            cache.remove( userId );
+                        }
+                    }
+                }
+
+                if ( AuthorizingRealm.class.isInstance( realm ) )
+                {
+                    Cache cache = ( (AuthorizingRealm) realm ).getAuthorizationCache();
+                    if ( cache != null )
+                    {
+                        for ( Object key : cache.keys() )
+                        {
+                            if ( PrincipalCollection.class.isInstance( key )
+                                && ( (PrincipalCollection) key ).getPrimaryPrincipal() != null
+                                && userIds.contains( ( (PrincipalCollection) key ).getPrimaryPrincipal().toString() ) )
+                            {
+                                cache.remove( key );
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reloads security-configuration.xml after it was edited, resetting the realms only if they changed.
+     */
+    private void reloadSecurityConfiguration()
+    {
+        List<String> realms = new ArrayList<String>( this.securityConfiguration.getRealms() );
+
+        this.securityConfiguration.clearCache();
+
+        if ( !realms.equals( this.securityConfiguration.getRealms() ) )
+        {
+            this.eventMulticaster.notifyEventListeners( new SecurityConfigurationChangedEvent( null ) );
+        }
+    }
+
+    private void clearAuthorizerDecisionCache()
+    {
+        if ( AuthorizingSecurityManager.class.isInstance( this.getSecurityManager() ) )
+        {
+            Object authorizer = ( (AuthorizingSecurityManager) this.getSecurityManager() ).getAuthorizer();
+
+            if ( ExceptionCatchingModularRealmAuthorizer.class.isInstance( authorizer ) )
+            {
+                ( (ExceptionCatchingModularRealmAuthorizer) authorizer ).clearDecisionCache();
+            }
+        }
+    }
+
+    private void clearAuthorizerDecisionCache( Set<String> userIds )
+    {
+        if ( AuthorizingSecurityManager.class.isInstance( this.getSecurityManager() ) )
+        {
+            Object authorizer = ( (AuthorizingSecurityManager) this.getSecurityManager() ).getAuthorizer();
+
+            if ( ExceptionCatchingModularRealmAuthorizer.class.isInstance( authorizer ) )
+            {
+                ( (ExceptionCatchingModularRealmAuthorizer) authorizer ).clearDecisionCache( userIds );
+            }
+        }
+    }
+
+    private void clearRealmAffinity()
+    {
+        if ( AuthenticatingSecurityManager.class.isInstance( this.getSecurityManager() ) )
+        {
+            Object authenticator = ( (AuthenticatingSecurityManager) this.getSecurityManager() ).getAuthenticator();
+
+            if ( FirstSuccessfulModularRealmAuthenticator.class.isInstance( authenticator ) )
+            {
+                ( (FirstSuccessfulModularRealmAuthenticator) authenticator ).clearRealmAffinity();
+            }
+        }
+    }
+
+    private void clearRealmAffinity( Set<String> userIds )
+    {
+        if ( AuthenticatingSecurityManager.class.isInstance( this.getSecurityManager() ) )
+        {
+            Object authenticator = ( (AuthenticatingSecurityManager) this.getSecurityManager() ).getAuthenticator();
+
+            if ( FirstSuccessfulModularRealmAuthenticator.class.isInstance( authenticator ) )
+            {
+                ( (FirstSuccessfulModularRealmAuthenticator) authenticator ).clearRealmAffinity( userIds );
+            }
+        }
+    }
+
     public void onEvent( Event<?> evt )
     {
         if ( AuthorizationConfigurationChangedEvent.class.isInstance( evt ) )
         {
             this.clearRealmCaches();
+            this.clearAuthorizerDecisionCache();
+        }
+
+        if ( UserPrincipalsExpiredEvent.class.isInstance( evt ) )
+        {
+            this.clearAuthorizerDecisionCache();
+
+            String userId = ( (UserPrincipalsExpiredEvent) evt ).getUserId();
+            if ( userId != null )
+            {
+                this.clearRealmAffinity( Collections.singleton( userId ) );
+            }
+            else
+            {
+                this.clearRealmAffinity();
+            }
+        }
+
+        if ( AuthorizationConfigurationReloadedEvent.class.isInstance( evt ) )
+        {
+            AuthorizationConfigurationReloadedEvent reloadedEvent = (AuthorizationConfigurationReloadedEvent) evt;
+
+            // cached realm info holds the roles of users, not the permissions of roles
+            this.clearRealmCaches( reloadedEvent.getUserIds() );
+
+            if ( reloadedEvent.getRoleIds().isEmpty() && reloadedEvent.getPrivilegeIds().isEmpty() )
+            {
+                this.clearAuthorizerDecisionCache( reloadedEvent.getUserIds() );
+            }
+            else
+            {
+                this.clearAuthorizerDecisionCache();
+            }
         }
 
         if ( SecurityConfigurationChangedEvent.class.isInstance( evt ) )
         {
             this.clearRealmCaches();
+            this.clearAuthorizerDecisionCache();
+            this.clearRealmAffinity();
             this.securityConfiguration.clearCache();
 
             this.setSecurityManagerRealms();
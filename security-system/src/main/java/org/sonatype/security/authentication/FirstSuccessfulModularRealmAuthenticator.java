@@ -13,14 +13,20 @@
 package org.sonatype.security.authentication;
 
 import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.shiro.authc.AuthenticationInfo;
 import org.apache.shiro.authc.AuthenticationToken;
+import org.apache.shiro.authc.UnknownAccountException;
 import org.apache.shiro.authc.pam.ModularRealmAuthenticator;
 import org.apache.shiro.realm.Realm;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.MapMaker;
+
 /**
  * This Authenticator will only try to authenticate with each realm. The first successful AuthenticationInfo found will
  * be returned and other realms will not be queried. <BR/>
@@ -28,6 +34,12 @@ import org.slf4j.LoggerFactory;
  * This makes for the performance short comings when using the {@link ModularRealmAuthenticator} and
  * {@link FirstSuccessfulAuthenticationStrategy} where all the realms will be queried, but only the first success is
  * returned.
+ * <p>
+ * The realm that last authenticated a principal is remembered (see {@link #setRealmAffinitySize(int)}) and tried first
+ * the next time, before the other realms in their configured order. Realms that reported a principal as unknown, by
+ * throwing {@link UnknownAccountException} or returning {@code null}, are not asked about that principal again for a
+ * while (see {@link #setUnknownPrincipalTimeout(long)}). Both should be cleared with
+ * {@link #clearRealmAffinity(Set)} when users are added, and with {@link #clearRealmAffinity()} when realms change.
  * 
  * @author Brian Demers
  * @see ModularRealmAuthenticator
@@ -36,48 +48,149 @@ import org.slf4j.LoggerFactory;
 public class FirstSuccessfulModularRealmAuthenticator
     extends ModularRealmAuthenticator
 {
+    public static final int DEFAULT_REALM_AFFINITY_SIZE = 1000;
+
+    public static final long DEFAULT_UNKNOWN_PRINCIPAL_TIMEOUT = TimeUnit.SECONDS.toMillis( 30 );
+
+    private static final int UNKNOWN_PRINCIPAL_CACHE_SIZE = 10000;
+
     private final Logger logger = LoggerFactory.getLogger( getClass() );
 
+    /**
+     * Principal to the realm that last authenticated it, {@code null} if not remembered.
+     */
+    private volatile ConcurrentMap<Object, Realm> realmAffinity;
+
+    /**
+     * Realm and principal pairs the realm reported as unknown, {@code null} if not remembered.
+     */
+    private volatile ConcurrentMap<UnknownPrincipal, Boolean> unknownPrincipals;
+
+    public FirstSuccessfulModularRealmAuthenticator()
+    {
+        setRealmAffinitySize( DEFAULT_REALM_AFFINITY_SIZE );
+        setUnknownPrincipalTimeout( DEFAULT_UNKNOWN_PRINCIPAL_TIMEOUT );
+    }
+
+    /**
+     * Sets the maximum count of principals having the realm that last authenticated them remembered, 0 disables it.
+     */
+    public void setRealmAffinitySize( int realmAffinitySize )
+    {
+        if ( realmAffinitySize > 0 )
+        {
+            this.realmAffinity = new MapMaker().maximumSize( realmAffinitySize ).makeMap();
+        }
+        else
+        {
+            this.realmAffinity = null;
+        }
+    }
+
+    /**
+     * Sets the milliseconds a realm is not asked again about a principal it reported as unknown, 0 disables it.
+     */
+    public void setUnknownPrincipalTimeout( long unknownPrincipalTimeout )
+    {
+        if ( unknownPrincipalTimeout > 0 )
+        {
+            this.unknownPrincipals =
+                new MapMaker().maximumSize( UNKNOWN_PRINCIPAL_CACHE_SIZE ).expireAfterWrite(
+                    unknownPrincipalTimeout, TimeUnit.MILLISECONDS ).makeMap();
+        }
+        else
+        {
+            this.unknownPrincipals = null;
+        }
+    }
+
+    /**
+     * Forgets the realms that last authenticated, or did not know, all the principals.
+     */
+    public void clearRealmAffinity()
+    {
+        final ConcurrentMap<Object, Realm> affinity = realmAffinity;
+        if ( affinity != null )
+        {
+            affinity.clear();
+        }
+
+        final ConcurrentMap<UnknownPrincipal, Boolean> unknown = unknownPrincipals;
+        if ( unknown != null )
+        {
+            unknown.clear();
+        }
+    }
+
+    /**
+     * Forgets the realms that last authenticated, or did not know, the principals with the given names only.
+     */
+    public void clearRealmAffinity( Set<String> principalNames )
+    {
+        final ConcurrentMap<Object, Realm> affinity = realmAffinity;
+        if ( affinity != null )
+        {
+            for ( Object principal : affinity.keySet() )
+            {
+                if ( principalNames.contains( principal.toString() ) )
+                {
+                    affinity.remove( principal );
+                }
+            }
+        }
+
+        final ConcurrentMap<UnknownPrincipal, Boolean> unknown = unknownPrincipals;
+        if ( unknown != null )
+        {
+            for ( UnknownPrincipal key : unknown.keySet() )
+            {
+                if ( principalNames.contains( key.principal.toString() ) )
+                {
+                    unknown.remove( key );
+                }
+            }
+        }
+    }
+
     @Override
     protected AuthenticationInfo doMultiRealmAuthentication( Collection<Realm> realms, AuthenticationToken token )
     {
         logger.trace( "Iterating through [" + realms.size() + "] realms for PAM authentication" );
 
+        final Object principal = token.getPrincipal();
+        final ConcurrentMap<Object, Realm> affinity = principal != null ? realmAffinity : null;
+
+        // try the realm that last authenticated the principal first
+        final Realm lastRealm = affinity != null ? affinity.get( principal ) : null;
+
+        if ( lastRealm != null && realms.contains( lastRealm ) && lastRealm.supports( token ) )
+        {
+            AuthenticationInfo info = authenticate( lastRealm, token );
+            if ( info != null )
+            {
+                return info;
+            }
+        }
+
         for ( Realm realm : realms )
         {
+            if ( realm == lastRealm )
+            {
+                continue;
+            }
+
             // check if the realm supports this token
             if ( realm.supports( token ) )
             {
-                if ( logger.isTraceEnabled() )
-                {
-                    logger.trace( "Attempting to authenticate token [" + token + "] " + "using realm of type [" + realm
-                        + "]" );
-                }
-
-                try
+                AuthenticationInfo info = authenticate( realm, token );
+                // return the first successful login.
+                if ( info != null )
                 {
-                    // try to login
-                    AuthenticationInfo info = realm.getAuthenticationInfo( token );
-                    // just make sure are ducks are in a row
-                    // return the first successful login.
-                    if ( info != null )
+                    if ( affinity != null )
                     {
-                        return info;
-                    }
-                    else if ( logger.isTraceEnabled() )
-                    {
-                        logger.trace( "Realm [" + realm + "] returned null when authenticating token " + "[" + token
-                            + "]" );
-                    }
-                }
-                catch ( Throwable t )
-                {
-                    if ( logger.isTraceEnabled() )
-                    {
-                        String msg =
-                            "Realm [" + realm + "] threw an exception during a multi-realm authentication attempt:";
-                        logger.trace( msg, t );
+                        affinity.put( principal, realm );
                     }
+                    return info;
                 }
             }
             else
@@ -93,4 +206,103 @@ public class FirstSuccessfulModularRealmAuthenticator
             + "] " + "could not be authenticated by any configured realms.  Please ensure that at least one realm can "
             + "authenticate these tokens." );
     }
+
+    /**
+     * @return the info of the realm, {@code null} if it did not authenticate the token, or is known not to know the
+     *         principal.
+     */
+    private AuthenticationInfo authenticate( Realm realm, AuthenticationToken token )
+    {
+        final Object principal = token.getPrincipal();
+        final ConcurrentMap<UnknownPrincipal, Boolean> unknown = principal != null ? unknownPrincipals : null;
+        final UnknownPrincipal key = unknown != null ? new UnknownPrincipal( realm, principal ) : null;
+
+        if ( key != null && unknown.containsKey( key ) )
+        {
+            if ( logger.isTraceEnabled() )
+            {
+                logger.trace( "Realm [" + realm + "] recently did not know the principal of token [" + token
+                    + "].  Skipping realm." );
+            }
+            return null;
+        }
+
+        if ( logger.isTraceEnabled() )
+        {
+            logger.trace( "Attempting to authenticate token [" + token + "] " + "using realm of type [" + realm + "]" );
+        }
+
+        try
+        {
+            // try to login
+            AuthenticationInfo info = realm.getAuthenticationInfo( token );
+            // just make sure are ducks are in a row
+            if ( info != null )
+            {
+                return info;
+            }
+
+            if ( logger.isTraceEnabled() )
+            {
+                logger.trace( "Realm [" + realm + "] returned null when authenticating token " + "[" + token + "]" );
+            }
+        }
+        catch ( UnknownAccountException e )
+        {
+            if ( logger.isTraceEnabled() )
+            {
+                logger.trace( "Realm [" + realm + "] does not know the principal of token [" + token + "]", e );
+            }
+        }
+        catch ( Throwable t )
+        {
+            if ( logger.isTraceEnabled() )
+            {
+                String msg = "Realm [" + realm + "] threw an exception during a multi-realm authentication attempt:";
+                logger.trace( msg, t );
+            }
+            return null;
+        }
+
+        // the realm returned null or threw UnknownAccountException
+        if ( key != null )
+        {
+            unknown.put( key, Boolean.TRUE );
+        }
+        return null;
+    }
+
+    private static final class UnknownPrincipal
+    {
+        private final Realm realm;
+
+        private final Object principal;
+
+        private UnknownPrincipal( final Realm realm, final Object principal )
+        {
+            this.realm = realm;
+            this.principal = principal;
+        }
+
+        @Override
+        public boolean equals( final Object obj )
+        {
+            if ( this == obj )
+            {
+                return true;
+            }
+            if ( !( obj instanceof UnknownPrincipal ) )
+            {
+                return false;
+            }
+            final UnknownPrincipal other = (UnknownPrincipal) obj;
+            return realm == other.realm && principal.equals( other.principal );
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * System.identityHashCode( realm ) + principal.hashCode();
+        }
+    }
 }
@@ -0,0 +1,179 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.authorization;
+
+import java.util.Collections;
+
+import org.apache.shiro.authz.AuthorizationException;
+import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.authz.Permission;
+import org.apache.shiro.authz.SimpleAuthorizationInfo;
+import org.apache.shiro.cache.Cache;
+import org.apache.shiro.realm.AuthorizingRealm;
+import org.apache.shiro.subject.PrincipalCollection;
+
+/**
+ * Base class for authorizing realms that implement {@link DecidingAuthorizer}. Subclasses implement
+ * {@link #doGetApplicableAuthorizationInfo(PrincipalCollection)}, returning {@code null} for subjects they do not
+ * manage. The plain Shiro {@link org.apache.shiro.authz.Authorizer} methods keep their old behavior for such subjects,
+ * given by {@link #getNotApplicableAuthorizationInfo(PrincipalCollection)}: an {@link AuthorizationException} unless
+ * overridden. When the authorization cache is enabled, the subjects not managed
+ * by the realm are cached too, so they are not looked up again until their cached authorization info is cleared.
+ * 
+ * @since 2.8
+ */
+public abstract class AbstractDecidingRealm
+    extends AuthorizingRealm
+    implements DecidingAuthorizer
+{
+    /**
+     * Cached for the subjects not managed by this realm, never handed out.
+     */
+    private static final AuthorizationInfo NOT_APPLICABLE = new SimpleAuthorizationInfo();
+
+    /**
+     * Returns {@code true}, subclasses that manage only some of the realms should override.
+     */
+    public boolean isAuthorizing( String realmName )
+    {
+        return true;
+    }
+
+    public AuthorizationDecision decidePermission( PrincipalCollection principals, String permission )
+    {
+        return decidePermission( principals, getPermissionResolver().resolvePermission( permission ) );
+    }
+
+    public AuthorizationDecision decidePermission( PrincipalCollection principals, Permission permission )
+    {
+        AuthorizationInfo info = getApplicableAuthorizationInfo( principals );
+
+        if ( info == null )
+        {
+            return AuthorizationDecision.NOT_APPLICABLE;
+        }
+
+        return isPermittedAll( Collections.singleton( permission ), info ) ? AuthorizationDecision.GRANTED
+                        : AuthorizationDecision.DENIED;
+    }
+
+    public AuthorizationDecision decideRole( PrincipalCollection principals, String roleIdentifier )
+    {
+        AuthorizationInfo info = getApplicableAuthorizationInfo( principals );
+
+        if ( info == null )
+        {
+            return AuthorizationDecision.NOT_APPLICABLE;
+        }
+
+        return hasRole( roleIdentifier, info ) ? AuthorizationDecision.GRANTED : AuthorizationDecision.DENIED;
+    }
+
+    /**
+     * Returns the authorization info of the subject, using the authorization cache if enabled, or {@code null} if the
+     * subject is not managed by this realm.
+     */
+    protected AuthorizationInfo getApplicableAuthorizationInfo( PrincipalCollection principals )
+    {
+        if ( principals == null || principals.isEmpty() )
+        {
+            return null;
+        }
+
+        Cache<Object, AuthorizationInfo> cache = getAuthorizationCache();
+        Object key = null;
+
+        if ( cache != null )
+        {
+            key = getAuthorizationCacheKey( principals );
+
+            AuthorizationInfo info = cache.get( key );
+
+            if ( info != null )
+            {
+                return info != NOT_APPLICABLE ? info : null;
+            }
+        }
+
+        AuthorizationInfo info = doGetApplicableAuthorizationInfo( principals );
+
+        if ( cache != null )
+        {
+            cache.put( key, info != null ? info : NOT_APPLICABLE );
+        }
+
+        return info;
+    }
+
+    /**
+     * Returns the authorization info of the subject from {@link #getApplicableAuthorizationInfo(PrincipalCollection)},
+     * as both share the authorization cache, or from {@link #getNotApplicableAuthorizationInfo(PrincipalCollection)} if
+     * the subject is not managed by this realm.
+     */
+    @Override
+    protected AuthorizationInfo getAuthorizationInfo( PrincipalCollection principals )
+    {
+        if ( principals == null )
+        {
+            return null;
+        }
+
+        AuthorizationInfo info = getApplicableAuthorizationInfo( principals );
+
+        if ( info == null )
+        {
+            return getNotApplicableAuthorizationInfo( principals );
+        }
+
+        return info;
+    }
+
+    /**
+     * Returns the authorization info the plain Shiro API uses for a subject not managed by this realm, never cached.
+     * Throws an {@link AuthorizationException}, realms that answered {@code false} for some of those subjects before
+     * should return an empty authorization info for them instead.
+     */
+    protected AuthorizationInfo getNotApplicableAuthorizationInfo( PrincipalCollection principals )
+    {
+        throw new AuthorizationException( "User for principals: " + principals.getPrimaryPrincipal()
+            + " is not managed by realm: " + getName() + "." );
+    }
+
+    @Override
+    protected AuthorizationInfo doGetAuthorizationInfo( PrincipalCollection principals )
+    {
+        if ( principals == null )
+        {
+            throw new AuthorizationException( "Cannot authorize with no principals." );
+        }
+
+        AuthorizationInfo info = doGetApplicableAuthorizationInfo( principals );
+
+        if ( info == null )
+        {
+            throw new AuthorizationException( "User for principals: " + principals.getPrimaryPrincipal()
+                + " is not managed by realm: " + getName() + "." );
+        }
+
+        return info;
+    }
+
+    /**
+     * Builds the authorization info of the subject, or returns {@code null} if the subject is not managed by this
+     * realm. Throws {@link AuthorizationException} if the authorization info could not be built, for example when a
+     * remote server failed, so that the failure is not cached as a subject not managed by this realm.
+     * 
+     * @param principals the principals of the subject, never {@code null}.
+     */
+    protected abstract AuthorizationInfo doGetApplicableAuthorizationInfo( PrincipalCollection principals );
+}
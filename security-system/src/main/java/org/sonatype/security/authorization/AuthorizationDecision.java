@@ -0,0 +1,41 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.authorization;
+
+/**
+ * The outcome of an authorization check made by a {@link DecidingAuthorizer}.
+ * 
+ * @since 2.8
+ */
+public enum AuthorizationDecision
+{
+    /**
+     * The realm manages the subject, and the subject is permitted.
+     */
+    GRANTED,
+
+    /**
+     * The realm manages the subject, but the subject is not permitted.
+     */
+    DENIED,
+
+    /**
+     * The realm does not manage the subject, so it has no say, and other realms should be asked.
+     */
+    NOT_APPLICABLE;
+
+    public boolean isGranted()
+    {
+        return this == GRANTED;
+    }
+}
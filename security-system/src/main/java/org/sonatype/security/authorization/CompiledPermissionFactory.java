@@ -0,0 +1,57 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.authorization;
+
+import java.util.Collection;
+
+import javax.enterprise.inject.Typed;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.shiro.authz.Permission;
+import org.apache.shiro.authz.permission.PermissionResolver;
+
+/**
+ * A permission factory that creates {@link CompiledWildcardPermission}s, and is able to merge a collection of them
+ * into one {@link WildcardPermissionTrie}, implying a permission in time proportional to the number of it's parts, no
+ * matter how many permissions were merged. To benefit from it, the checked permissions should be created by this
+ * factory too, hence it is a Shiro {@link PermissionResolver} as well.
+ * 
+ * @since 2.8
+ */
+@Named( "compiled" )
+@Singleton
+@Typed( PermissionFactory.class )
+public class CompiledPermissionFactory
+    implements PermissionFactory, PermissionResolver
+{
+    @Override
+    public Permission create( final String permission )
+    {
+        return new CompiledWildcardPermission( permission );
+    }
+
+    @Override
+    public Permission resolvePermission( final String permission )
+    {
+        return create( permission );
+    }
+
+    /**
+     * Merges the passed in permissions into one, implying everything any of them implies.
+     */
+    public Permission compile( final Collection<? extends Permission> permissions )
+    {
+        return new WildcardPermissionTrie( permissions );
+    }
+}
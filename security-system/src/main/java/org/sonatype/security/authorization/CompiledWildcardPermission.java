@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.authorization;
+
+import java.util.List;
+import java.util.Set;
+
+import org.apache.shiro.authz.permission.WildcardPermission;
+
+/**
+ * A {@link WildcardPermission} that keeps it's parsed parts as plain arrays too, so they can be walked without creating
+ * iterators or copying them into sets. Behaves exactly as a {@link WildcardPermission} does, but is understood by
+ * {@link WildcardPermissionTrie}, that is able to match it in time proportional to the number of it's parts.
+ * 
+ * @since 2.8
+ */
+public class CompiledWildcardPermission
+    extends WildcardPermission
+{
+    private static final long serialVersionUID = 1L;
+
+    private final String[][] tokens;
+
+    private final boolean singleValued;
+
+    public CompiledWildcardPermission( final String wildcardString )
+    {
+        super( wildcardString );
+
+        final List<Set<String>> parts = getParts();
+        boolean single = true;
+        this.tokens = new String[parts.size()][];
+        for ( int i = 0; i < tokens.length; i++ )
+        {
+            tokens[i] = parts.get( i ).toArray( new String[parts.get( i ).size()] );
+            single = single && tokens[i].length == 1;
+        }
+        this.singleValued = single;
+    }
+
+    /**
+     * Returns the parts of this permission, each part being the array of it's (comma separated) subparts.
+     */
+    String[][] getTokens()
+    {
+        return tokens;
+    }
+
+    /**
+     * Returns {@code true} if none of the parts of this permission has more than one subpart.
+     */
+    boolean isSingleValued()
+    {
+        return singleValued;
+    }
+}
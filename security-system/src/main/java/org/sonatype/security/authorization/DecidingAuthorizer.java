@@ -0,0 +1,40 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.authorization;
+
+import org.apache.shiro.authz.Permission;
+import org.apache.shiro.subject.PrincipalCollection;
+
+/**
+ * Authorizer that tells apart "not permitted" from "subject not managed by me" without throwing exceptions. Realms
+ * implementing this interface are asked by {@link ExceptionCatchingModularRealmAuthorizer} using these methods instead
+ * of the plain Shiro {@link org.apache.shiro.authz.Authorizer} ones. Implementations may still throw an
+ * {@link org.apache.shiro.authz.AuthorizationException} on a real failure (like a remote system being unavailable),
+ * that is handled the same as {@link AuthorizationDecision#NOT_APPLICABLE}.
+ * 
+ * @since 2.8
+ */
+public interface DecidingAuthorizer
+{
+    /**
+     * Returns {@code false} if principals issued by the named realm are never managed by this authorizer, in which
+     * case {@link ExceptionCatchingModularRealmAuthorizer} does not route their checks here at all.
+     */
+    boolean isAuthorizing( String realmName );
+
+    AuthorizationDecision decidePermission( PrincipalCollection principals, String permission );
+
+    AuthorizationDecision decidePermission( PrincipalCollection principals, Permission permission );
+
+    AuthorizationDecision decideRole( PrincipalCollection principals, String roleIdentifier );
+}
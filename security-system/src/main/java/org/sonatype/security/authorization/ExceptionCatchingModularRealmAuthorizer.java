@@ -12,10 +12,19 @@
  */
 package org.sonatype.security.authorization;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.inject.Inject;
+import javax.inject.Named;
 
 import org.apache.shiro.authz.AuthorizationException;
 import org.apache.shiro.authz.Authorizer;
@@ -28,25 +37,72 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonatype.inject.Nullable;
 
+import com.google.common.collect.MapMaker;
+
 /**
  * A implementation of the Shiro ModularRealmAuthorizer, that catches exceptions caused by individual realms and ignores
  * them. For example if a JDBC realm throws an exception while getting the list of users Roles (and is not caught, the
  * system should continue looking for permissions in other realms).
+ * <p>
+ * Realms implementing {@link DecidingAuthorizer} are asked for a decision instead, and realms reporting
+ * {@link AuthorizationDecision#NOT_APPLICABLE} are skipped without any exception being thrown. The exception catching
+ * path is kept for all the other realms.
+ * <p>
+ * Checks are routed by the realm names of the principals: the realm that issued the principals is asked first, and
+ * realms that are not {@link DecidingAuthorizer#isAuthorizing(String) authorizing} that realm are not asked at all.
+ * Principals issued by realms that are not configured here are checked against all the realms.
+ * <p>
+ * Optionally (see {@link #setDecisionCacheSize(int)}, or the {@code security-decision-cache-size} property when
+ * injected) the outcome of {@link #isPermitted(PrincipalCollection, String)} is cached per primary principal and
+ * permission string, keeping at most {@link #MAX_PERMISSIONS_PER_PRINCIPAL} permissions per principal. Cached
+ * decisions are stamped with an epoch, and are discarded once {@link #clearDecisionCache()} bumps it, which should
+ * happen whenever authorization configuration changes or user principals expire.
  */
 
 public class ExceptionCatchingModularRealmAuthorizer
     extends ModularRealmAuthorizer
 {
+    /**
+     * The maximum count of permission decisions cached per principal, so checks of ever changing permission strings
+     * (like ones carrying repository paths) do not fill the heap.
+     */
+    static final int MAX_PERMISSIONS_PER_PRINCIPAL = 1000;
+
     private final Logger logger = LoggerFactory.getLogger( getClass() );
 
+    /**
+     * Primary principal to permission decisions, {@code null} if decisions are not cached.
+     */
+    private volatile ConcurrentMap<Object, PrincipalDecisions> decisionCache;
+
+    private volatile long epoch;
+
+    private volatile int decisionCacheSize;
+
+    /**
+     * Realm name to the authorizing realms checks of principals issued by that realm are routed to, {@code null} until
+     * the realms are set.
+     */
+    private volatile Map<String, List<Realm>> realmRoutes;
+
     public ExceptionCatchingModularRealmAuthorizer( Collection<Realm> realms )
     {
         super( realms );
     }
 
-    @Inject
     public ExceptionCatchingModularRealmAuthorizer( Collection<Realm> realms,
                                                     @Nullable RolePermissionResolver rolePermissionResolver )
+    {
+        this( realms, rolePermissionResolver, 0 );
+    }
+
+    /**
+     * @since 2.8
+     */
+    @Inject
+    public ExceptionCatchingModularRealmAuthorizer( Collection<Realm> realms,
+                                                    @Nullable RolePermissionResolver rolePermissionResolver,
+                                                    @Named( "${security-decision-cache-size:-0}" ) int cacheSize )
     {
         super( realms );
 
@@ -54,6 +110,117 @@ public class ExceptionCatchingModularRealmAuthorizer
         {
             setRolePermissionResolver( rolePermissionResolver );
         }
+
+        setDecisionCacheSize( cacheSize );
+    }
+
+    /**
+     * Sets the maximum count of principals having their permission decisions cached, 0 disables the decision cache
+     * (the default).
+     */
+    public void setDecisionCacheSize( int decisionCacheSize )
+    {
+        this.decisionCacheSize = Math.max( 0, decisionCacheSize );
+
+        if ( decisionCacheSize > 0 )
+        {
+            this.decisionCache = new MapMaker().maximumSize( decisionCacheSize ).makeMap();
+        }
+        else
+        {
+            this.decisionCache = null;
+        }
+    }
+
+    /**
+     * @return the maximum count of principals having their permission decisions cached, 0 if the cache is disabled.
+     * @since 2.8
+     */
+    public int getDecisionCacheSize()
+    {
+        return decisionCacheSize;
+    }
+
+    /**
+     * Discards all the cached permission decisions.
+     */
+    public synchronized void clearDecisionCache()
+    {
+        epoch++;
+    }
+
+    /**
+     * Discards the cached permission decisions of the principals with the given names only.
+     */
+    public void clearDecisionCache( Set<String> principalNames )
+    {
+        final ConcurrentMap<Object, PrincipalDecisions> cache = decisionCache;
+
+        if ( cache != null )
+        {
+            for ( Object primaryPrincipal : cache.keySet() )
+            {
+                if ( principalNames.contains( primaryPrincipal.toString() ) )
+                {
+                    cache.remove( primaryPrincipal );
+                }
+            }
+        }
+    }
+
+    @Override
+    public void setRealms( Collection<Realm> realms )
+    {
+        super.setRealms( realms );
+
+        rebuildRealmRoutes();
+        clearDecisionCache();
+    }
+
+    /**
+     * Rebuilds the routing table of realm names to authorizing realms, from the currently set realms.
+     */
+    public void rebuildRealmRoutes()
+    {
+        Map<String, List<Realm>> routes = new HashMap<String, List<Realm>>();
+
+        if ( getRealms() != null )
+        {
+            for ( Realm owner : getRealms() )
+            {
+                if ( routes.containsKey( owner.getName() ) )
+                {
+                    continue;
+                }
+
+                List<Realm> route = new ArrayList<Realm>();
+                if ( isAuthorizing( owner, owner.getName() ) )
+                {
+                    route.add( owner );
+                }
+                for ( Realm realm : getRealms() )
+                {
+                    if ( realm != owner && isAuthorizing( realm, owner.getName() ) )
+                    {
+                        route.add( realm );
+                    }
+                }
+
+                routes.put( owner.getName(), Collections.unmodifiableList( route ) );
+            }
+        }
+
+        this.realmRoutes = routes;
+    }
+
+    /**
+     * Returns {@code true} if the named realm is one of the realms set on this authorizer.
+     */
+    public boolean isRoutedRealm( String realmName )
+    {
+        final Map<String, List<Realm>> routes = realmRoutes;
+
+        return routes != null && routes.containsKey( realmName );
     }
 
     // Authorization
@@ -134,7 +301,7 @@ public class ExceptionCatchingModularRealmAuthorizer
     @Override
     public boolean hasRole( PrincipalCollection subjectPrincipal, String roleIdentifier )
     {
-        for ( Realm realm : this.getRealms() )
+        for ( Realm realm : this.getAuthorizingRealms( subjectPrincipal ) )
         {
             if ( !( realm instanceof Authorizer ) )
             {
@@ -143,7 +310,14 @@ public class ExceptionCatchingModularRealmAuthorizer
             // need to catch an AuthorizationException, the user might only belong to on of the realms
             try
             {
-                if ( ( (Authorizer) realm ).hasRole( subjectPrincipal, roleIdentifier ) )
+                if ( realm instanceof DecidingAuthorizer )
+                {
+                    if ( ( (DecidingAuthorizer) realm ).decideRole( subjectPrincipal, roleIdentifier ).isGranted() )
+                    {
+                        return true;
+                    }
+                }
+                else if ( ( (Authorizer) realm ).hasRole( subjectPrincipal, roleIdentifier ) )
                 {
                     return true;
                 }
@@ -162,7 +336,7 @@ public class ExceptionCatchingModularRealmAuthorizer
     {
         boolean[] combinedResult = new boolean[roleIdentifiers.size()];
 
-        for ( Realm realm : this.getRealms() )
+        for ( Realm realm : this.getAuthorizingRealms( subjectPrincipal ) )
         {
             if ( !( realm instanceof Authorizer ) )
             {
@@ -170,7 +344,21 @@ public class ExceptionCatchingModularRealmAuthorizer
             }
             try
             {
-                boolean[] result = ( (Authorizer) realm ).hasRoles( subjectPrincipal, roleIdentifiers );
+                boolean[] result;
+                if ( realm instanceof DecidingAuthorizer )
+                {
+                    DecidingAuthorizer decidingAuthorizer = (DecidingAuthorizer) realm;
+                    result = new boolean[combinedResult.length];
+                    for ( int i = 0; i < result.length; i++ )
+                    {
+                        result[i] =
+                            decidingAuthorizer.decideRole( subjectPrincipal, roleIdentifiers.get( i ) ).isGranted();
+                    }
+                }
+                else
+                {
+                    result = ( (Authorizer) realm ).hasRoles( subjectPrincipal, roleIdentifiers );
+                }
 
                 for ( int i = 0; i < combinedResult.length; i++ )
                 {
@@ -190,7 +378,39 @@ public class ExceptionCatchingModularRealmAuthorizer
     @Override
     public boolean isPermitted( PrincipalCollection subjectPrincipal, String permission )
     {
-        for ( Realm realm : this.getRealms() )
+        final PrincipalDecisions decisions = getDecisions( subjectPrincipal );
+
+        if ( decisions == null )
+        {
+            return Boolean.TRUE.equals( doIsPermitted( subjectPrincipal, permission ) );
+        }
+
+        Boolean decision = decisions.permissions.get( permission );
+
+        if ( decision == null )
+        {
+            decision = doIsPermitted( subjectPrincipal, permission );
+
+            if ( decision == null )
+            {
+                return false;
+            }
+
+            decisions.permissions.put( permission, decision );
+        }
+
+        return decision;
+    }
+
+    /**
+     * Returns whether the subject is permitted, or {@code null} if it is not while a realm failed to decide, as that
+     * might have been a transient failure not to be cached.
+     */
+    private Boolean doIsPermitted( PrincipalCollection subjectPrincipal, String permission )
+    {
+        boolean failed = false;
+
+        for ( Realm realm : this.getAuthorizingRealms( subjectPrincipal ) )
         {
             if ( !( realm instanceof Authorizer ) )
             {
@@ -198,7 +418,7 @@ public class ExceptionCatchingModularRealmAuthorizer
             }
             try
             {
-                if ( ( (Authorizer) realm ).isPermitted( subjectPrincipal, permission ) )
+                if ( isPermitted( realm, subjectPrincipal, permission ) )
                 {
                     this.logger.trace( "Realm: " + realm.getName() + " user: " + subjectPrincipal.iterator().next()
                         + " has permisison: " + permission );
@@ -214,16 +434,17 @@ public class ExceptionCatchingModularRealmAuthorizer
             catch ( AuthorizationException e )
             {
                 logger.trace( "Realm: '" + realm.getName() + "', caused: " + e.getMessage(), e );
+                failed = true;
             }
         }
 
-        return false;
+        return failed ? null : Boolean.FALSE;
     }
 
     @Override
     public boolean isPermitted( PrincipalCollection subjectPrincipal, Permission permission )
     {
-        for ( Realm realm : this.getRealms() )
+        for ( Realm realm : this.getAuthorizingRealms( subjectPrincipal ) )
         {
             if ( !( realm instanceof Authorizer ) )
             {
@@ -231,7 +452,14 @@ public class ExceptionCatchingModularRealmAuthorizer
             }
             try
             {
-                if ( ( (Authorizer) realm ).isPermitted( subjectPrincipal, permission ) )
+                if ( realm instanceof DecidingAuthorizer )
+                {
+                    if ( ( (DecidingAuthorizer) realm ).decidePermission( subjectPrincipal, permission ).isGranted() )
+                    {
+                        return true;
+                    }
+                }
+                else if ( ( (Authorizer) realm ).isPermitted( subjectPrincipal, permission ) )
                 {
                     return true;
                 }
@@ -250,7 +478,7 @@ public class ExceptionCatchingModularRealmAuthorizer
     {
         boolean[] combinedResult = new boolean[permissions.length];
 
-        for ( Realm realm : this.getRealms() )
+        for ( Realm realm : this.getAuthorizingRealms( subjectPrincipal ) )
         {
             if ( !( realm instanceof Authorizer ) )
             {
@@ -258,7 +486,20 @@ public class ExceptionCatchingModularRealmAuthorizer
             }
             try
             {
-                boolean[] result = ( (Authorizer) realm ).isPermitted( subjectPrincipal, permissions );
+                boolean[] result;
+                if ( realm instanceof DecidingAuthorizer )
+                {
+                    DecidingAuthorizer decidingAuthorizer = (DecidingAuthorizer) realm;
+                    result = new boolean[combinedResult.length];
+                    for ( int i = 0; i < result.length; i++ )
+                    {
+                        result[i] = decidingAuthorizer.decidePermission( subjectPrincipal, permissions[i] ).isGranted();
+                    }
+                }
+                else
+                {
+                    result = ( (Authorizer) realm ).isPermitted( subjectPrincipal, permissions );
+                }
 
                 for ( int i = 0; i < combinedResult.length; i++ )
                 {
@@ -279,7 +520,7 @@ public class ExceptionCatchingModularRealmAuthorizer
     {
         boolean[] combinedResult = new boolean[permissions.size()];
 
-        for ( Realm realm : this.getRealms() )
+        for ( Realm realm : this.getAuthorizingRealms( subjectPrincipal ) )
         {
             if ( !( realm instanceof Authorizer ) )
             {
@@ -287,7 +528,21 @@ public class ExceptionCatchingModularRealmAuthorizer
             }
             try
             {
-                boolean[] result = ( (Authorizer) realm ).isPermitted( subjectPrincipal, permissions );
+                boolean[] result;
+                if ( realm instanceof DecidingAuthorizer )
+                {
+                    DecidingAuthorizer decidingAuthorizer = (DecidingAuthorizer) realm;
+                    result = new boolean[combinedResult.length];
+                    for ( int i = 0; i < result.length; i++ )
+                    {
+                        result[i] =
+                            decidingAuthorizer.decidePermission( subjectPrincipal, permissions.get( i ) ).isGranted();
+                    }
+                }
+                else
+                {
+                    result = ( (Authorizer) realm ).isPermitted( subjectPrincipal, permissions );
+                }
 
                 for ( int i = 0; i < combinedResult.length; i++ )
                 {
@@ -335,4 +590,115 @@ public class ExceptionCatchingModularRealmAuthorizer
         return true;
     }
 
+    // ==
+
+    /**
+     * Returns the realms to ask when authorizing the subject, in the order they should be asked.
+     */
+    protected Collection<Realm> getAuthorizingRealms( PrincipalCollection subjectPrincipal )
+    {
+        final Map<String, List<Realm>> routes = realmRoutes;
+
+        if ( routes == null || subjectPrincipal == null || subjectPrincipal.isEmpty() )
+        {
+            return getRealms();
+        }
+
+        Set<String> realmNames = subjectPrincipal.getRealmNames();
+
+        if ( realmNames.size() == 1 )
+        {
+            List<Realm> route = routes.get( realmNames.iterator().next() );
+
+            return route != null ? route : getRealms();
+        }
+
+        // principals issued by several realms
+        Set<Realm> realms = new LinkedHashSet<Realm>();
+        for ( String realmName : realmNames )
+        {
+            List<Realm> route = routes.get( realmName );
+            if ( route == null )
+            {
+                return getRealms();
+            }
+            realms.addAll( route );
+        }
+
+        return realms;
+    }
+
+    private boolean isAuthorizing( Realm realm, String realmName )
+    {
+        if ( !( realm instanceof Authorizer ) )
+        {
+            return false; // ignore non-authorizing realms
+        }
+
+        return !( realm instanceof DecidingAuthorizer ) || ( (DecidingAuthorizer) realm ).isAuthorizing( realmName );
+    }
+
+    private boolean isPermitted( Realm realm, PrincipalCollection subjectPrincipal, String permission )
+    {
+        if ( realm instanceof DecidingAuthorizer )
+        {
+            AuthorizationDecision decision =
+                ( (DecidingAuthorizer) realm ).decidePermission( subjectPrincipal, permission );
+
+            if ( decision == AuthorizationDecision.NOT_APPLICABLE )
+            {
+                this.logger.trace( "Realm: " + realm.getName() + " does not manage user: "
+                    + subjectPrincipal.iterator().next() );
+            }
+
+            return decision.isGranted();
+        }
+
+        return ( (Authorizer) realm ).isPermitted( subjectPrincipal, permission );
+    }
+
+    private PrincipalDecisions getDecisions( PrincipalCollection subjectPrincipal )
+    {
+        final ConcurrentMap<Object, PrincipalDecisions> cache = decisionCache;
+
+        if ( cache == null || subjectPrincipal == null || subjectPrincipal.getPrimaryPrincipal() == null )
+        {
+            return null;
+        }
+
+        final long currentEpoch = epoch;
+
+        PrincipalDecisions decisions = cache.get( subjectPrincipal.getPrimaryPrincipal() );
+
+        // same principal might come from different realms, having different permissions
+        if ( decisions == null || decisions.epoch != currentEpoch
+            || !decisions.realmNames.equals( subjectPrincipal.getRealmNames() ) )
+        {
+            decisions = new PrincipalDecisions( currentEpoch, subjectPrincipal.getRealmNames() );
+
+            cache.put( subjectPrincipal.getPrimaryPrincipal(), decisions );
+        }
+
+        return decisions;
+    }
+
+    /**
+     * Permission decisions of one principal made in one epoch. Decisions made while the epoch is bumped end up in an
+     * instance that is not handed out anymore, so they are never used.
+     */
+    private static final class PrincipalDecisions
+    {
+        private final long epoch;
+
+        private final Set<String> realmNames;
+
+        private final ConcurrentMap<String, Boolean> permissions =
+            new MapMaker().maximumSize( MAX_PERMISSIONS_PER_PRINCIPAL ).makeMap();
+
+        private PrincipalDecisions( long epoch, Set<String> realmNames )
+        {
+            this.epoch = epoch;
+            this.realmNames = new HashSet<String>( realmNames );
+        }
+    }
 }
@@ -0,0 +1,226 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.authorization;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.shiro.authz.Permission;
+
+/**
+ * A permission merging a collection of permissions into one, that implies a permission if any of the merged ones
+ * implies it. The {@link CompiledWildcardPermission}s are merged into a prefix tree over their parts (having distinct
+ * nodes for wildcards), hence checking a {@link CompiledWildcardPermission} having one subpart per part costs time
+ * proportional to the number of it's parts, no matter how many permissions were merged. Any other permission is
+ * checked against the merged permissions one by one, exactly as it would be without merging them.
+ * 
+ * @since 2.8
+ */
+public class WildcardPermissionTrie
+    implements Permission, Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Wildcard permissions expanding into more paths than this are not put into the tree (as a permission having
+     * comma separated subparts in several of it's parts is expanded into the product of them).
+     */
+    private static final int MAX_PATHS = 1024;
+
+    private static final String WILDCARD_TOKEN = "*";
+
+    private final List<Permission> permissions;
+
+    private final List<Permission> uncompiled;
+
+    private final Node root;
+
+    public WildcardPermissionTrie( final Collection<? extends Permission> permissions )
+    {
+        this.permissions = Collections.unmodifiableList( new ArrayList<Permission>( permissions ) );
+        this.uncompiled = new ArrayList<Permission>();
+        this.root = new Node();
+
+        for ( Permission permission : this.permissions )
+        {
+            if ( permission instanceof CompiledWildcardPermission
+                && paths( ( (CompiledWildcardPermission) permission ).getTokens() ) <= MAX_PATHS )
+            {
+                insert( root, ( (CompiledWildcardPermission) permission ).getTokens(), 0 );
+            }
+            else
+            {
+                uncompiled.add( permission );
+            }
+        }
+
+        root.computeWildcardTail();
+    }
+
+    /**
+     * Returns the permissions merged into this one.
+     */
+    public List<Permission> getPermissions()
+    {
+        return permissions;
+    }
+
+    public boolean implies( final Permission p )
+    {
+        if ( p instanceof CompiledWildcardPermission && ( (CompiledWildcardPermission) p ).isSingleValued() )
+        {
+            if ( root.implies( ( (CompiledWildcardPermission) p ).getTokens(), 0 ) )
+            {
+                return true;
+            }
+
+            for ( Permission permission : uncompiled )
+            {
+                if ( permission.implies( p ) )
+                {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        // a subpart list in the checked permission has to be implied by one single merged permission, the tree does
+        // not tell that, so fall back to check them one by one
+        for ( Permission permission : permissions )
+        {
+            if ( permission.implies( p ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public String toString()
+    {
+        return permissions.toString();
+    }
+
+    // ==
+
+    private static long paths( final String[][] tokens )
+    {
+        long result = 1;
+        for ( String[] part : tokens )
+        {
+            result = result * part.length;
+            if ( result > MAX_PATHS )
+            {
+                break;
+            }
+        }
+        return result;
+    }
+
+    private static void insert( final Node node, final String[][] tokens, final int depth )
+    {
+        if ( depth == tokens.length )
+        {
+            node.terminal = true;
+            return;
+        }
+
+        for ( String token : tokens[depth] )
+        {
+            insert( node.getOrCreateChild( token ), tokens, depth + 1 );
+        }
+    }
+
+    private static final class Node
+        implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Map<String, Node> children = new HashMap<String, Node>();
+
+        private Node wildcard;
+
+        /**
+         * A merged permission ends at this node.
+         */
+        private boolean terminal;
+
+        /**
+         * A merged permission ends at this node, or is reachable from it by wildcard parts only.
+         */
+        private boolean wildcardTail;
+
+        private Node getOrCreateChild( final String token )
+        {
+            if ( WILDCARD_TOKEN.equals( token ) )
+            {
+                if ( wildcard == null )
+                {
+                    wildcard = new Node();
+                }
+                return wildcard;
+            }
+
+            Node child = children.get( token );
+            if ( child == null )
+            {
+                child = new Node();
+                children.put( token, child );
+            }
+            return child;
+        }
+
+        private boolean computeWildcardTail()
+        {
+            for ( Node child : children.values() )
+            {
+                child.computeWildcardTail();
+            }
+
+            wildcardTail = ( wildcard != null && wildcard.computeWildcardTail() ) || terminal;
+
+            return wildcardTail;
+        }
+
+        private boolean implies( final String[][] tokens, final int depth )
+        {
+            // a shorter permission implies all the remaining parts
+            if ( terminal )
+            {
+                return true;
+            }
+
+            // a longer permission has to have wildcards in all the remaining parts
+            if ( depth == tokens.length )
+            {
+                return wildcardTail;
+            }
+
+            final Node child = children.get( tokens[depth][0] );
+            if ( child != null && child.implies( tokens, depth + 1 ) )
+            {
+                return true;
+            }
+
+            return wildcard != null && wildcard.implies( tokens, depth + 1 );
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.events;
+
+import java.util.Collections;
+import java.util.Set;
+
+import org.sonatype.plexus.appevents.AbstractEvent;
+
+/**
+ * An event fired when the authorization configuration was reloaded from a file edited outside of the application.
+ * Unlike {@link AuthorizationConfigurationChangedEvent}, it tells which users, roles and privileges were added, changed
+ * or removed, so caches can drop only what is affected.
+ * 
+ * @since 2.8
+ */
+public class AuthorizationConfigurationReloadedEvent
+    extends AbstractEvent<Object>
+{
+    private final Set<String> userIds;
+
+    private final Set<String> roleIds;
+
+    private final Set<String> privilegeIds;
+
+    /**
+     * @param component The sending component
+     * @param userIds The ids of the users whose details or role mappings changed
+     * @param roleIds The ids of the changed roles
+     * @param privilegeIds The ids of the changed privileges
+     */
+    public AuthorizationConfigurationReloadedEvent( Object component, Set<String> userIds, Set<String> roleIds,
+                                                    Set<String> privilegeIds )
+    {
+        super( component );
+
+        this.userIds = Collections.unmodifiableSet( userIds );
+        this.roleIds = Collections.unmodifiableSet( roleIds );
+        this.privilegeIds = Collections.unmodifiableSet( privilegeIds );
+    }
+
+    public Set<String> getUserIds()
+    {
+        return userIds;
+    }
+
+    public Set<String> getRoleIds()
+    {
+        return roleIds;
+    }
+
+    public Set<String> getPrivilegeIds()
+    {
+        return privilegeIds;
+    }
+}
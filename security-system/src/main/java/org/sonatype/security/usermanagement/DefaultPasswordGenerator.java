@@ -15,6 +15,7 @@ package org.sonatype.security.usermanagement;
 import java.util.Random;
 
 import javax.enterprise.inject.Typed;
+import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 
@@ -27,6 +28,14 @@ import javax.inject.Singleton;
 public class DefaultPasswordGenerator
     implements PasswordGenerator
 {
+    private final PasswordService passwordService;
+
+    @Inject
+    public DefaultPasswordGenerator( PasswordService passwordService )
+    {
+        this.passwordService = passwordService;
+    }
+
     private int getRandom( int min, int max )
     {
         Random random = new Random();
@@ -59,6 +68,6 @@ public class DefaultPasswordGenerator
 
     public String hashPassword( String password )
     {
-        return StringDigester.getSha1Digest( password );
+        return passwordService.hashPassword( password );
     }
 }
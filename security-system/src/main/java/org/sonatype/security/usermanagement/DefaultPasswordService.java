@@ -0,0 +1,275 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.usermanagement;
+
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.enterprise.inject.Typed;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Default implementation of {@link PasswordService}.
+ * <p>
+ * When the {@code security-password-iterations} property is positive, passwords are hashed with PBKDF2 (HMAC SHA-1), a
+ * random salt and that count of iterations, stored as {@code $pbkdf2-sha1$<iterations>$<salt>$<hash>}. The count of
+ * iterations is kept in each hash, so raising the property does not invalidate the stored hashes, they are reported by
+ * {@link #needsRehash(String)} until hashed again. When the property is 0 (the default) passwords are hashed with
+ * unsalted SHA-1, as older releases did and still read.
+ * <p>
+ * Unsalted SHA-1 and MD5 hashes are verified on the calling thread. PBKDF2 hashes are verified on a pool of
+ * {@code security-password-verifiers} threads (the count of processors by default), with at most
+ * {@code security-password-verifications-queued} verifications waiting (100 by default), beyond which verifications
+ * are rejected rather than holding more request threads.
+ * 
+ * @since 2.8
+ */
+@Singleton
+@Typed( PasswordService.class )
+@Named( "default" )
+public class DefaultPasswordService
+    implements PasswordService
+{
+    private static final String PBKDF2_PREFIX = "$pbkdf2-sha1$";
+
+    private static final String PBKDF2_ALGORITHM = "PBKDF2WithHmacSHA1";
+
+    private static final int SALT_LENGTH = 16;
+
+    private static final int HASH_LENGTH = 20;
+
+    private static final int SHA1_LENGTH = 20;
+
+    private static final int MD5_LENGTH = 16;
+
+    private final int iterations;
+
+    private final SecureRandom random = new SecureRandom();
+
+    private final ThreadPoolExecutor verifiers;
+
+    @Inject
+    public DefaultPasswordService( @Named( "${security-password-iterations:-0}" ) int iterations,
+                                   @Named( "${security-password-verifiers:-0}" ) int verifierCount,
+                                   @Named( "${security-password-verifications-queued:-100}" ) int queueSize )
+    {
+        this.iterations = Math.max( 0, iterations );
+
+        final int threads = verifierCount > 0 ? verifierCount : Runtime.getRuntime().availableProcessors();
+
+        final ThreadFactory threadFactory = new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread( final Runnable r )
+            {
+                final Thread thread = new Thread( r, "security-password-verifier-" + count.incrementAndGet() );
+                thread.setDaemon( true );
+                return thread;
+            }
+        };
+
+        this.verifiers =
+            new ThreadPoolExecutor( threads, threads, 60, TimeUnit.SECONDS,
+                                    new ArrayBlockingQueue<Runnable>( Math.max( 1, queueSize ) ), threadFactory );
+        this.verifiers.allowCoreThreadTimeOut( true );
+    }
+
+    public String hashPassword( String password )
+    {
+        if ( iterations == 0 )
+        {
+            return StringDigester.getSha1Digest( password );
+        }
+
+        final byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes( salt );
+
+        return PBKDF2_PREFIX + iterations + "$" + new String( Hex.encodeHex( salt ) ) + "$"
+            + new String( Hex.encodeHex( pbkdf2( password.toCharArray(), salt, iterations ) ) );
+    }
+
+    public boolean passwordsMatch( final char[] password, final String hashedPassword )
+        throws RejectedExecutionException
+    {
+        if ( hashedPassword == null )
+        {
+            return false;
+        }
+
+        if ( !hashedPassword.startsWith( PBKDF2_PREFIX ) )
+        {
+            return legacyPasswordsMatch( password, hashedPassword );
+        }
+
+        final Future<Boolean> verification = verifiers.submit( new Callable<Boolean>()
+        {
+            public Boolean call()
+            {
+                return pbkdf2PasswordsMatch( password, hashedPassword );
+            }
+        } );
+
+        try
+        {
+            return verification.get();
+        }
+        catch ( InterruptedException e )
+        {
+            verification.cancel( true );
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        catch ( ExecutionException e )
+        {
+            if ( e.getCause() instanceof RuntimeException )
+            {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException( "Could not verify password", e.getCause() );
+        }
+    }
+
+    public boolean needsRehash( String hashedPassword )
+    {
+        if ( iterations == 0 )
+        {
+            return false;
+        }
+
+        return hashedPassword == null || !hashedPassword.startsWith( PBKDF2_PREFIX )
+            || getIterations( hashedPassword ) < iterations;
+    }
+
+    /**
+     * @return the count of iterations of a PBKDF2 hash, 0 if it cannot be parsed.
+     */
+    private static int getIterations( final String hashedPassword )
+    {
+        final int end = hashedPassword.indexOf( '$', PBKDF2_PREFIX.length() );
+
+        try
+        {
+            return end < 0 ? 0 : Integer.parseInt( hashedPassword.substring( PBKDF2_PREFIX.length(), end ) );
+        }
+        catch ( NumberFormatException e )
+        {
+            return 0;
+        }
+    }
+
+    private static boolean pbkdf2PasswordsMatch( final char[] password, final String hashedPassword )
+    {
+        final String[] parts = hashedPassword.substring( PBKDF2_PREFIX.length() ).split( "\\$" );
+        final int hashIterations = getIterations( hashedPassword );
+
+        if ( parts.length != 3 || hashIterations <= 0 )
+        {
+            return false;
+        }
+
+        try
+        {
+            final byte[] salt = Hex.decodeHex( parts[1].toCharArray() );
+            final byte[] hash = Hex.decodeHex( parts[2].toCharArray() );
+
+            return isEqual( hash, pbkdf2( password, salt, hashIterations ) );
+        }
+        catch ( DecoderException e )
+        {
+            return false;
+        }
+    }
+
+    private static boolean legacyPasswordsMatch( final char[] password, final String hashedPassword )
+    {
+        final String algorithm;
+
+        if ( hashedPassword.length() == 2 * SHA1_LENGTH )
+        {
+            algorithm = "SHA1";
+        }
+        else if ( hashedPassword.length() == 2 * MD5_LENGTH )
+        {
+            algorithm = "MD5";
+        }
+        else
+        {
+            return false;
+        }
+
+        try
+        {
+            return StringDigester.matchesDigest( algorithm, password, hashedPassword );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( algorithm + " is not available", e );
+        }
+    }
+
+    private static byte[] pbkdf2( final char[] password, final byte[] salt, final int iterations )
+    {
+        final PBEKeySpec spec = new PBEKeySpec( password, salt, iterations, HASH_LENGTH * 8 );
+
+        try
+        {
+            return SecretKeyFactory.getInstance( PBKDF2_ALGORITHM ).generateSecret( spec ).getEncoded();
+        }
+        catch ( GeneralSecurityException e )
+        {
+            throw new IllegalStateException( PBKDF2_ALGORITHM + " is not available", e );
+        }
+        finally
+        {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * Compares the arrays in time depending on their length only.
+     */
+    private static boolean isEqual( final byte[] a, final byte[] b )
+    {
+        if ( a.length != b.length )
+        {
+            return false;
+        }
+
+        int result = 0;
+
+        for ( int i = 0; i < a.length; i++ )
+        {
+            result |= a[i] ^ b[i];
+        }
+
+        return result == 0;
+    }
+}
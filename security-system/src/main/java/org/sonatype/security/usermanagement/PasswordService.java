@@ -0,0 +1,52 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.usermanagement;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Hashes passwords to be stored, and verifies passwords against stored hashes. Stored hashes may have been made with
+ * another algorithm or cost than the current one, they keep validating, and {@link #needsRehash(String)} tells when the
+ * password should be hashed again, the next time it is known in clear.
+ * 
+ * @since 2.8
+ */
+public interface PasswordService
+{
+    /**
+     * Hashes a password with the current algorithm and cost.
+     * 
+     * @param password the password in clear.
+     * @return the hash to store.
+     */
+    String hashPassword( String password );
+
+    /**
+     * Verifies a password against a stored hash, made by this service or by an older release.
+     * 
+     * @param password the password in clear.
+     * @param hashedPassword the stored hash.
+     * @return {@code true} if the password matches.
+     * @throws RejectedExecutionException if too many verifications are already pending.
+     */
+    boolean passwordsMatch( char[] password, String hashedPassword )
+        throws RejectedExecutionException;
+
+    /**
+     * Tells if a stored hash was made with another algorithm or a lower cost than the current ones.
+     * 
+     * @param hashedPassword the stored hash.
+     * @return {@code true} if the password should be hashed again.
+     */
+    boolean needsRehash( String hashedPassword );
+}
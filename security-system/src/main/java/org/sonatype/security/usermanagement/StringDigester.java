@@ -12,21 +12,33 @@
  */
 package org.sonatype.security.usermanagement;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStream;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-
-import org.apache.commons.codec.binary.Hex;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * A util class to calculate various digests on Strings. Usaful for some simple password management.
+ * <p>
+ * The digests are calculated with {@link MessageDigest} instances kept per thread, fed with the UTF-8 encoded content
+ * through a buffer kept per thread too, so calculating a digest allocates nothing but the returned String, and
+ * {@link #matchesDigest(String, char[], String)} allocates nothing at all.
  * 
  * @author cstamas
  */
 public class StringDigester
 {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<DigestState> STATES = new ThreadLocal<DigestState>()
+    {
+        @Override
+        protected DigestState initialValue()
+        {
+            return new DigestState();
+        }
+    };
 
     /**
      * Calculates a digest for a String user the requested algorithm.
@@ -39,44 +51,58 @@ public class StringDigester
     public static String getDigest( String alg, String content )
         throws NoSuchAlgorithmException
     {
-        String result = null;
+        final DigestState state = STATES.get();
+        final int length = state.digest( alg, content, null );
 
-        try
+        final char[] hex = state.hex;
+        for ( int i = 0; i < length; i++ )
         {
-            InputStream fis = new ByteArrayInputStream( content.getBytes( "UTF-8" ) );
-
-            try
-            {
-                byte[] buffer = new byte[1024];
-
-                MessageDigest md = MessageDigest.getInstance( alg );
+            hex[2 * i] = HEX[( state.result[i] >> 4 ) & 0x0f];
+            hex[2 * i + 1] = HEX[state.result[i] & 0x0f];
+        }
 
-                int numRead;
+        return new String( hex, 0, 2 * length );
+    }
 
-                do
-                {
-                    numRead = fis.read( buffer );
-                    if ( numRead > 0 )
-                    {
-                        md.update( buffer, 0, numRead );
-                    }
-                }
-                while ( numRead != -1 );
+    /**
+     * Tells if the digest of a content, calculated with the requested algorithm, is the given hex encoded digest, in
+     * either case. The comparison takes a time depending on the length of the digest only.
+     * 
+     * @param alg
+     * @param content
+     * @param hexDigest
+     * @return
+     * @throws NoSuchAlgorithmException
+     * @since 2.8
+     */
+    public static boolean matchesDigest( String alg, char[] content, String hexDigest )
+        throws NoSuchAlgorithmException
+    {
+        final DigestState state = STATES.get();
+        final int length = state.digest( alg, null, content );
 
-                result = new String( Hex.encodeHex( md.digest() ) );
-            }
-            finally
-            {
-                fis.close();
-            }
+        if ( hexDigest == null || hexDigest.length() != 2 * length )
+        {
+            return false;
         }
-        catch ( IOException e )
+
+        int diff = 0;
+        for ( int i = 0; i < length; i++ )
         {
-            // hrm
-            result = null;
+            diff |= hexDiff( hexDigest.charAt( 2 * i ), HEX[( state.result[i] >> 4 ) & 0x0f] );
+            diff |= hexDiff( hexDigest.charAt( 2 * i + 1 ), HEX[state.result[i] & 0x0f] );
         }
 
-        return result;
+        return diff == 0;
+    }
+
+    /**
+     * @return 0 if the character is the expected lower case hex digit, or its upper case.
+     */
+    private static int hexDiff( final int c, final int expected )
+    {
+        // or-ing 0x20 lower cases A-F, but also maps control characters onto digits, those never match
+        return ( ( c | 0x20 ) ^ expected ) | ( ( c - 0x20 ) >>> 31 ) | ( c >>> 7 );
     }
 
     /**
@@ -117,4 +143,103 @@ public class StringDigester
         }
     }
 
+    /**
+     * The digests, buffers and result of one thread.
+     */
+    private static final class DigestState
+    {
+        private static final int MAX_DIGEST_LENGTH = 64;
+
+        private final Map<String, MessageDigest> digests = new HashMap<String, MessageDigest>();
+
+        private final byte[] buffer = new byte[1024];
+
+        private final byte[] result = new byte[MAX_DIGEST_LENGTH];
+
+        private final char[] hex = new char[2 * MAX_DIGEST_LENGTH];
+
+        /**
+         * Digests the UTF-8 encoding of either content into {@link #result}, unpaired surrogates being encoded as
+         * {@code '?'} like {@link String#getBytes(String)} does.
+         * 
+         * @return the length of the digest.
+         */
+        private int digest( final String alg, final String string, final char[] chars )
+            throws NoSuchAlgorithmException
+        {
+            final MessageDigest md = getMessageDigest( alg );
+            final int length = string != null ? string.length() : chars.length;
+            final byte[] buf = buffer;
+
+            int pos = 0;
+            for ( int i = 0; i < length; i++ )
+            {
+                // room for the longest encoding
+                if ( pos > buf.length - 4 )
+                {
+                    md.update( buf, 0, pos );
+                    pos = 0;
+                }
+
+                final char c = string != null ? string.charAt( i ) : chars[i];
+
+                if ( c < 0x80 )
+                {
+                    buf[pos++] = (byte) c;
+                }
+                else if ( c < 0x800 )
+                {
+                    buf[pos++] = (byte) ( 0xc0 | ( c >> 6 ) );
+                    buf[pos++] = (byte) ( 0x80 | ( c & 0x3f ) );
+                }
+                else if ( Character.isHighSurrogate( c ) && i + 1 < length
+                    && Character.isLowSurrogate( string != null ? string.charAt( i + 1 ) : chars[i + 1] ) )
+                {
+                    final int cp = Character.toCodePoint( c, string != null ? string.charAt( ++i ) : chars[++i] );
+                    buf[pos++] = (byte) ( 0xf0 | ( cp >> 18 ) );
+                    buf[pos++] = (byte) ( 0x80 | ( ( cp >> 12 ) & 0x3f ) );
+                    buf[pos++] = (byte) ( 0x80 | ( ( cp >> 6 ) & 0x3f ) );
+                    buf[pos++] = (byte) ( 0x80 | ( cp & 0x3f ) );
+                }
+                else if ( Character.isHighSurrogate( c ) || Character.isLowSurrogate( c ) )
+                {
+                    buf[pos++] = '?';
+                }
+                else
+                {
+                    buf[pos++] = (byte) ( 0xe0 | ( c >> 12 ) );
+                    buf[pos++] = (byte) ( 0x80 | ( ( c >> 6 ) & 0x3f ) );
+                    buf[pos++] = (byte) ( 0x80 | ( c & 0x3f ) );
+                }
+            }
+            md.update( buf, 0, pos );
+
+            try
+            {
+                return md.digest( result, 0, result.length );
+            }
+            catch ( DigestException e )
+            {
+                throw new IllegalStateException( alg + " digests are longer than " + result.length + " bytes", e );
+            }
+        }
+
+        private MessageDigest getMessageDigest( final String alg )
+            throws NoSuchAlgorithmException
+        {
+            MessageDigest md = digests.get( alg );
+
+            if ( md == null )
+            {
+                md = MessageDigest.getInstance( alg );
+                digests.put( alg, md );
+            }
+            else
+            {
+                md.reset();
+            }
+
+            return md;
+        }
+    }
 }
@@ -0,0 +1,182 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.watch;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.enterprise.inject.Typed;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Polling {@link SecurityFileWatcher}, that checks the size and modification time of the watched files every
+ * {@code security-file-watch-interval} milliseconds. Watching is disabled when the interval is 0 (the default), then
+ * only explicit {@link #poll()} calls check the files.
+ * 
+ * @since 2.8
+ */
+@Singleton
+@Typed( SecurityFileWatcher.class )
+@Named( "default" )
+public class DefaultSecurityFileWatcher
+    implements SecurityFileWatcher
+{
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final Map<File, WatchedFile> watchedFiles = new ConcurrentHashMap<File, WatchedFile>();
+
+    private final long interval;
+
+    private ScheduledExecutorService executor;
+
+    @Inject
+    public DefaultSecurityFileWatcher( @Named( "${security-file-watch-interval:-0}" ) long interval )
+    {
+        this.interval = interval;
+    }
+
+    public void watch( File file, Listener listener )
+    {
+        watchedFiles.put( file.getAbsoluteFile(), new WatchedFile( file, listener ) );
+
+        startPolling();
+    }
+
+    public void unwatch( File file )
+    {
+        watchedFiles.remove( file.getAbsoluteFile() );
+    }
+
+    public void acknowledge( File file )
+    {
+        WatchedFile watchedFile = watchedFiles.get( file.getAbsoluteFile() );
+
+        if ( watchedFile != null )
+        {
+            watchedFile.acknowledge();
+        }
+    }
+
+    public synchronized void poll()
+    {
+        for ( WatchedFile watchedFile : watchedFiles.values() )
+        {
+            if ( watchedFile.changed() )
+            {
+                logger.info( "Security configuration file {} changed, reloading it.", watchedFile.file );
+
+                try
+                {
+                    watchedFile.listener.fileChanged( watchedFile.file );
+                }
+                catch ( RuntimeException e )
+                {
+                    logger.error( "Failed to reload security configuration file " + watchedFile.file, e );
+                }
+            }
+        }
+    }
+
+    public synchronized void stop()
+    {
+        // synchronized as poll(), a running check is finished once stopped
+        if ( executor != null )
+        {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    private synchronized void startPolling()
+    {
+        if ( interval > 0 && executor == null )
+        {
+            executor = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+            {
+                public Thread newThread( final Runnable r )
+                {
+                    final Thread thread = new Thread( r, "security-file-watcher" );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+
+            executor.scheduleWithFixedDelay( new Runnable()
+            {
+                public void run()
+                {
+                    poll();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS );
+        }
+    }
+
+    private static class WatchedFile
+    {
+        private final File file;
+
+        private final Listener listener;
+
+        private long length;
+
+        private long lastModified;
+
+        private WatchedFile( File file, Listener listener )
+        {
+            this.file = file;
+            this.listener = listener;
+
+            acknowledge();
+        }
+
+        private synchronized void acknowledge()
+        {
+            length = file.length();
+            lastModified = file.lastModified();
+        }
+
+        /**
+         * Returns true if the file changed since last checked or acknowledged, a deleted file is not a change.
+         */
+        private synchronized boolean changed()
+        {
+            if ( !file.isFile() )
+            {
+                return false;
+            }
+
+            long currentLength = file.length();
+            long currentLastModified = file.lastModified();
+
+            if ( currentLength == length && currentLastModified == lastModified )
+            {
+                return false;
+            }
+
+            length = currentLength;
+            lastModified = currentLastModified;
+
+            return true;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.watch;
+
+import java.io.File;
+
+/**
+ * Watches security configuration files edited outside of the application, and notifies listeners of changes from a
+ * background thread, so the changed file can be parsed off the request path.
+ * 
+ * @since 2.8
+ */
+public interface SecurityFileWatcher
+{
+    /**
+     * Listener of a watched file.
+     */
+    interface Listener
+    {
+        /**
+         * Called from the watcher thread when the file changed.
+         */
+        void fileChanged( File file );
+    }
+
+    /**
+     * Starts watching the file, its current state is considered known.
+     */
+    void watch( File file, Listener listener );
+
+    /**
+     * Stops watching the file.
+     */
+    void unwatch( File file );
+
+    /**
+     * Marks the current state of the file as known, should be called after the application wrote the file itself.
+     */
+    void acknowledge( File file );
+
+    /**
+     * Checks the watched files right away, notifying the listeners of the changed ones from the calling thread.
+     */
+    void poll();
+
+    /**
+     * Stops the background thread, the watched files stay known and polling starts again with the next
+     * {@link #watch(File, Listener)}.
+     */
+    void stop();
+}
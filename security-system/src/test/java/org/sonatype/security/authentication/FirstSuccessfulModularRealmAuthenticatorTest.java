@@ -0,0 +1,208 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.authentication;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.shiro.authc.AuthenticationException;
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.authc.AuthenticationToken;
+import org.apache.shiro.authc.IncorrectCredentialsException;
+import org.apache.shiro.authc.SimpleAuthenticationInfo;
+import org.apache.shiro.authc.UnknownAccountException;
+import org.apache.shiro.authc.UsernamePasswordToken;
+import org.apache.shiro.realm.Realm;
+
+public class FirstSuccessfulModularRealmAuthenticatorTest
+    extends TestCase
+{
+    private final CountingRealm realmA = new CountingRealm( "A" );
+
+    private final CountingRealm realmB = new CountingRealm( "B" );
+
+    private final CountingRealm realmC = new CountingRealm( "C" );
+
+    private final FirstSuccessfulModularRealmAuthenticator authenticator =
+        new FirstSuccessfulModularRealmAuthenticator();
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        authenticator.setRealms( Arrays.<Realm> asList( realmA, realmB, realmC ) );
+    }
+
+    public void testLastSuccessfulRealmIsTriedFirst()
+    {
+        realmC.users.put( "user", "password" );
+
+        assertEquals( "C", login( "user", "password" ) );
+        assertCounts( 1, 1, 1 );
+
+        assertEquals( "C", login( "user", "password" ) );
+        assertCounts( 1, 1, 2 );
+    }
+
+    public void testUnknownPrincipalsAreRemembered()
+    {
+        authenticator.setRealmAffinitySize( 0 );
+        realmC.users.put( "user", "password" );
+
+        assertEquals( "C", login( "user", "password" ) );
+        assertEquals( "C", login( "user", "password" ) );
+        assertCounts( 1, 1, 2 );
+
+        // a wrong password is not an unknown principal
+        try
+        {
+            login( "user", "wrong" );
+            fail( "Authentication should have failed" );
+        }
+        catch ( AuthenticationException e )
+        {
+            // good
+        }
+        assertEquals( "C", login( "user", "password" ) );
+        assertCounts( 1, 1, 4 );
+    }
+
+    public void testFallbackWhenLastSuccessfulRealmFails()
+    {
+        realmB.users.put( "user", "passwordB" );
+        realmC.users.put( "user", "passwordC" );
+
+        assertEquals( "C", login( "user", "passwordC" ) );
+        assertEquals( "B", login( "user", "passwordB" ) );
+        assertEquals( "B", login( "user", "passwordB" ) );
+        assertCounts( 1, 3, 2 );
+    }
+
+    public void testClearRealmAffinity()
+    {
+        realmC.users.put( "user", "password" );
+        assertEquals( "C", login( "user", "password" ) );
+
+        // moved to a realm that did not know the user
+        realmC.users.clear();
+        realmA.users.put( "user", "password" );
+
+        try
+        {
+            login( "user", "password" );
+            fail( "Realm A should not have been asked again" );
+        }
+        catch ( AuthenticationException e )
+        {
+            // good
+        }
+
+        authenticator.clearRealmAffinity( Collections.singleton( "other" ) );
+        try
+        {
+            login( "user", "password" );
+            fail( "Realm A should not have been asked again" );
+        }
+        catch ( AuthenticationException e )
+        {
+            // good
+        }
+
+        authenticator.clearRealmAffinity( Collections.singleton( "user" ) );
+        assertEquals( "A", login( "user", "password" ) );
+
+        realmA.users.clear();
+        realmB.users.put( "user", "password" );
+        authenticator.clearRealmAffinity();
+        assertEquals( "B", login( "user", "password" ) );
+    }
+
+    public void testUnknownPrincipalsExpire()
+        throws Exception
+    {
+        authenticator.setUnknownPrincipalTimeout( 1 );
+        realmC.users.put( "user", "password" );
+
+        assertEquals( "C", login( "user", "password" ) );
+        realmC.users.clear();
+        realmA.users.put( "user", "password" );
+
+        Thread.sleep( 50 );
+
+        assertEquals( "A", login( "user", "password" ) );
+    }
+
+    private String login( String username, String password )
+    {
+        AuthenticationInfo info = authenticator.authenticate( new UsernamePasswordToken( username, password ) );
+        return info.getPrincipals().getRealmNames().iterator().next();
+    }
+
+    private void assertCounts( int a, int b, int c )
+    {
+        assertEquals( "realm A", a, realmA.count );
+        assertEquals( "realm B", b, realmB.count );
+        assertEquals( "realm C", c, realmC.count );
+    }
+
+    private static class CountingRealm
+        implements Realm
+    {
+        private final String name;
+
+        private final Map<String, String> users = new HashMap<String, String>();
+
+        private int count;
+
+        private CountingRealm( String name )
+        {
+            this.name = name;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public boolean supports( AuthenticationToken token )
+        {
+            return token instanceof UsernamePasswordToken;
+        }
+
+        public AuthenticationInfo getAuthenticationInfo( AuthenticationToken token )
+            throws AuthenticationException
+        {
+            count++;
+
+            UsernamePasswordToken upToken = (UsernamePasswordToken) token;
+            String password = users.get( upToken.getUsername() );
+
+            if ( password == null )
+            {
+                throw new UnknownAccountException( upToken.getUsername() );
+            }
+            if ( !password.equals( new String( upToken.getPassword() ) ) )
+            {
+                throw new IncorrectCredentialsException( upToken.getUsername() );
+            }
+
+            return new SimpleAuthenticationInfo( upToken.getUsername(), password, name );
+        }
+    }
+}
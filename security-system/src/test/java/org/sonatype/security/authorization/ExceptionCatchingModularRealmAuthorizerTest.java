@@ -0,0 +1,288 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.authorization;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.authc.AuthenticationToken;
+import org.apache.shiro.authz.AuthorizationException;
+import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.authz.SimpleAuthorizationInfo;
+import org.apache.shiro.cache.MemoryConstrainedCacheManager;
+import org.apache.shiro.realm.AuthorizingRealm;
+import org.apache.shiro.realm.Realm;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+
+public class ExceptionCatchingModularRealmAuthorizerTest
+    extends TestCase
+{
+    private CountingRealm realm;
+
+    private ExceptionCatchingModularRealmAuthorizer authorizer;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        realm = new CountingRealm();
+        authorizer = new ExceptionCatchingModularRealmAuthorizer( Collections.<Realm> singletonList( realm ) );
+    }
+
+    public void testDecisionCacheDisabledByDefault()
+    {
+        PrincipalCollection principals = new SimplePrincipalCollection( "jcool", realm.getName() );
+
+        assertTrue( authorizer.isPermitted( principals, "test:read" ) );
+        assertTrue( authorizer.isPermitted( principals, "test:read" ) );
+        assertEquals( 2, realm.checks );
+    }
+
+    public void testDecisionCache()
+    {
+        authorizer.setDecisionCacheSize( 10 );
+
+        PrincipalCollection principals = new SimplePrincipalCollection( "jcool", realm.getName() );
+
+        assertTrue( authorizer.isPermitted( principals, "test:read" ) );
+        assertTrue( authorizer.isPermitted( principals, "test:read" ) );
+        assertFalse( authorizer.isPermitted( principals, "other:read" ) );
+        assertFalse( authorizer.isPermitted( principals, "other:read" ) );
+        assertEquals( 2, realm.checks );
+
+        // same principal from another realm is a different user
+        assertFalse( authorizer.isPermitted( new SimplePrincipalCollection( "jcool", "other" ), "test:read" ) );
+        assertEquals( 3, realm.checks );
+
+        authorizer.clearDecisionCache();
+
+        assertTrue( authorizer.isPermitted( principals, "test:read" ) );
+        assertEquals( 4, realm.checks );
+    }
+
+    public void testDecisionCacheIsBoundedPerPrincipal()
+    {
+        authorizer.setDecisionCacheSize( 10 );
+
+        PrincipalCollection principals = new SimplePrincipalCollection( "jcool", realm.getName() );
+
+        final int count = 2 * ExceptionCatchingModularRealmAuthorizer.MAX_PERMISSIONS_PER_PRINCIPAL;
+        for ( int i = 0; i < count; i++ )
+        {
+            authorizer.isPermitted( principals, "test:read:" + i );
+        }
+        assertEquals( count, realm.checks );
+
+        // at most the maximum count of decisions are kept, the others are asked again
+        for ( int i = 0; i < count; i++ )
+        {
+            authorizer.isPermitted( principals, "test:read:" + i );
+        }
+        assertTrue( realm.checks >= count + ExceptionCatchingModularRealmAuthorizer.MAX_PERMISSIONS_PER_PRINCIPAL );
+    }
+
+    public void testDecidingRealms()
+    {
+        ManagingRealm realmA = new ManagingRealm( "realmA", "a:*" );
+        ManagingRealm realmB = new ManagingRealm( "realmB", "b:*" );
+        authorizer = new ExceptionCatchingModularRealmAuthorizer( Arrays.<Realm> asList( realmA, realmB ) );
+
+        PrincipalCollection principals = new SimplePrincipalCollection( "jcool", "realmB" );
+
+        assertEquals( AuthorizationDecision.NOT_APPLICABLE, realmA.decidePermission( principals, "b:read" ) );
+        assertEquals( AuthorizationDecision.GRANTED, realmB.decidePermission( principals, "b:read" ) );
+        assertEquals( AuthorizationDecision.DENIED, realmB.decidePermission( principals, "a:read" ) );
+        assertEquals( AuthorizationDecision.GRANTED, realmB.decideRole( principals, "realmB-role" ) );
+        assertEquals( AuthorizationDecision.NOT_APPLICABLE, realmA.decideRole( principals, "realmB-role" ) );
+
+        assertTrue( authorizer.isPermitted( principals, "b:read" ) );
+        assertFalse( authorizer.isPermitted( principals, "a:read" ) );
+        assertTrue( authorizer.hasRole( principals, "realmB-role" ) );
+        assertFalse( authorizer.hasRole( principals, "realmA-role" ) );
+        assertTrue( Arrays.equals( new boolean[] { false, true },
+                                   authorizer.isPermitted( principals, "a:read", "b:read" ) ) );
+
+        // plain Shiro API of the realm keeps throwing for subjects it does not manage
+        try
+        {
+            realmA.isPermitted( principals, "b:read" );
+            fail( "Expected AuthorizationException" );
+        }
+        catch ( AuthorizationException e )
+        {
+            // expected
+        }
+    }
+
+    public void testNotApplicableIsCached()
+    {
+        ManagingRealm realmA = new ManagingRealm( "realmA", "a:*" );
+        realmA.setCacheManager( new MemoryConstrainedCacheManager() );
+
+        PrincipalCollection principals = new SimplePrincipalCollection( "jcool", "realmB" );
+
+        assertEquals( AuthorizationDecision.NOT_APPLICABLE, realmA.decidePermission( principals, "b:read" ) );
+        assertEquals( AuthorizationDecision.NOT_APPLICABLE, realmA.decideRole( principals, "realmA-role" ) );
+        assertEquals( 1, realmA.decisions );
+
+        // plain Shiro API of the realm keeps throwing, even when the subject is cached as not managed
+        try
+        {
+            realmA.isPermitted( principals, "b:read" );
+            fail( "Expected AuthorizationException" );
+        }
+        catch ( AuthorizationException e )
+        {
+            // expected
+        }
+        assertEquals( 1, realmA.decisions );
+
+        // invalidated with the rest of the cache
+        realmA.getAuthorizationCache().clear();
+
+        assertEquals( AuthorizationDecision.NOT_APPLICABLE, realmA.decidePermission( principals, "b:read" ) );
+        assertEquals( 2, realmA.decisions );
+    }
+
+    public void testFailureIsNotCached()
+    {
+        ManagingRealm realmA = new ManagingRealm( "realmA", "a:*" );
+        realmA.setCacheManager( new MemoryConstrainedCacheManager() );
+        realmA.failures = 1;
+        authorizer = new ExceptionCatchingModularRealmAuthorizer( Collections.<Realm> singletonList( realmA ) );
+        authorizer.setDecisionCacheSize( 10 );
+
+        PrincipalCollection principals = new SimplePrincipalCollection( "jcool", "realmA" );
+
+        // a transient failure denies, but is neither cached by the realm nor by the decision cache
+        assertFalse( authorizer.isPermitted( principals, "a:read" ) );
+        assertTrue( authorizer.isPermitted( principals, "a:read" ) );
+        assertTrue( authorizer.isPermitted( principals, "a:read" ) );
+        assertEquals( 2, realmA.decisions );
+    }
+
+    public void testRealmRouting()
+    {
+        ManagingRealm realmA = new ManagingRealm( "realmA", "a:*" );
+        ManagingRealm realmB = new ManagingRealm( "realmB", "b:*" );
+        realmA.ownPrincipalsOnly = true;
+        authorizer = new ExceptionCatchingModularRealmAuthorizer( Arrays.<Realm> asList( realmA, realmB ) );
+
+        assertTrue( authorizer.isRoutedRealm( "realmA" ) );
+        assertTrue( authorizer.isRoutedRealm( "realmB" ) );
+        assertFalse( authorizer.isRoutedRealm( "other" ) );
+
+        // realmA is not authorizing principals of realmB, so it is not asked
+        assertTrue( authorizer.isPermitted( new SimplePrincipalCollection( "jcool", "realmB" ), "b:read" ) );
+        assertEquals( 0, realmA.decisions );
+        assertEquals( 1, realmB.decisions );
+
+        // the issuing realm is asked first
+        assertTrue( authorizer.isPermitted( new SimplePrincipalCollection( "jcool", "realmA" ), "a:read" ) );
+        assertEquals( 1, realmA.decisions );
+        assertEquals( 1, realmB.decisions );
+
+        // unknown realms are checked against all realms
+        assertFalse( authorizer.isPermitted( new SimplePrincipalCollection( "jcool", "other" ), "a:read" ) );
+        assertEquals( 2, realmA.decisions );
+        assertEquals( 2, realmB.decisions );
+
+        // routes are rebuilt with the realms
+        authorizer.setRealms( Collections.<Realm> singletonList( realmB ) );
+        assertFalse( authorizer.isRoutedRealm( "realmA" ) );
+        assertTrue( authorizer.isRoutedRealm( "realmB" ) );
+    }
+
+    private static class ManagingRealm
+        extends AbstractDecidingRealm
+    {
+        private final String permission;
+
+        private boolean ownPrincipalsOnly;
+
+        private int decisions;
+
+        private int failures;
+
+        private ManagingRealm( String name, String permission )
+        {
+            setName( name );
+            this.permission = permission;
+        }
+
+        @Override
+        public boolean isAuthorizing( String realmName )
+        {
+            return !ownPrincipalsOnly || getName().equals( realmName );
+        }
+
+        @Override
+        protected AuthorizationInfo doGetApplicableAuthorizationInfo( PrincipalCollection principals )
+        {
+            decisions++;
+            if ( failures > 0 )
+            {
+                failures--;
+                throw new AuthorizationException( "Transient failure" );
+            }
+            if ( principals.fromRealm( getName() ).isEmpty() )
+            {
+                return null;
+            }
+
+            SimpleAuthorizationInfo info = new SimpleAuthorizationInfo();
+            info.addRole( getName() + "-role" );
+            info.addStringPermission( permission );
+            return info;
+        }
+
+        @Override
+        protected AuthenticationInfo doGetAuthenticationInfo( AuthenticationToken token )
+        {
+            return null;
+        }
+    }
+
+    private static class CountingRealm
+        extends AuthorizingRealm
+    {
+        private int checks;
+
+        @Override
+        public boolean isPermitted( PrincipalCollection principals, String permission )
+        {
+            checks++;
+            return principals.fromRealm( getName() ).size() > 0 && super.isPermitted( principals, permission );
+        }
+
+        @Override
+        protected AuthorizationInfo doGetAuthorizationInfo( PrincipalCollection principals )
+        {
+            SimpleAuthorizationInfo info = new SimpleAuthorizationInfo();
+            info.addStringPermission( "test:*" );
+            return info;
+        }
+
+        @Override
+        protected AuthenticationInfo doGetAuthenticationInfo( AuthenticationToken token )
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.authorization;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.shiro.authz.Permission;
+import org.apache.shiro.authz.permission.PermissionResolver;
+import org.apache.shiro.authz.permission.WildcardPermissionResolver;
+
+/**
+ * Times permission checks of a user granted many permissions, with the "caching" factory (a list of wildcard
+ * permissions, each asked in turn, checked permissions resolved by Shiro's {@link WildcardPermissionResolver}) and the
+ * "compiled" factory (the permissions merged into one {@link WildcardPermissionTrie}, checked permissions resolved by
+ * the factory itself). Half the checked permissions are granted. Not run by the build, run the main method with the
+ * counts of granted permissions as arguments (default 10, 100 and 1000).
+ */
+public class PermissionFactoryBenchmark
+{
+    private static final int ROUNDS = 5;
+
+    private static final int CHECKS = 200000;
+
+    public static void main( String[] args )
+    {
+        if ( args.length == 0 )
+        {
+            args = new String[] { "10", "100", "1000" };
+        }
+
+        for ( String arg : args )
+        {
+            int granted = Integer.parseInt( arg );
+
+            List<String> grantedPermissions = permissions( granted, "read" );
+            List<String> checkedPermissions = new ArrayList<String>( grantedPermissions );
+            checkedPermissions.addAll( permissions( granted, "delete" ) );
+            Collections.shuffle( checkedPermissions, new Random( 0 ) );
+
+            PermissionFactory caching = new InstanceCachingPermissionFactory( new WildcardPermissionFactory() );
+            List<Permission> cachingPermissions = create( caching, grantedPermissions );
+
+            CompiledPermissionFactory compiled = new CompiledPermissionFactory();
+            List<Permission> compiledPermissions =
+                Collections.singletonList( compiled.compile( create( compiled, grantedPermissions ) ) );
+
+            System.out.println( granted + " granted permissions" );
+
+            for ( int round = 0; round < ROUNDS; round++ )
+            {
+                long cachingTime = time( new WildcardPermissionResolver(), cachingPermissions, checkedPermissions );
+                long compiledTime = time( compiled, compiledPermissions, checkedPermissions );
+
+                System.out.println( "  round " + round + ": caching " + cachingTime + " ns/check, compiled "
+                    + compiledTime + " ns/check" );
+            }
+        }
+    }
+
+    /**
+     * @return the mean time of resolving a checked permission and asking the granted ones if they imply it.
+     */
+    private static long time( PermissionResolver resolver, Collection<Permission> grantedPermissions,
+                              List<String> checkedPermissions )
+    {
+        int permitted = 0;
+        long start = System.nanoTime();
+
+        for ( int i = 0; i < CHECKS; i++ )
+        {
+            Permission checked = resolver.resolvePermission( checkedPermissions.get( i % checkedPermissions.size() ) );
+
+            for ( Permission permission : grantedPermissions )
+            {
+                if ( permission.implies( checked ) )
+                {
+                    permitted++;
+                    break;
+                }
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+
+        // when all the checked permissions are checked equally often, half the checks are permitted
+        if ( CHECKS % checkedPermissions.size() == 0 && permitted != CHECKS / 2 )
+        {
+            throw new IllegalStateException( permitted + " of " + CHECKS + " checks permitted" );
+        }
+
+        return elapsed / CHECKS;
+    }
+
+    private static List<String> permissions( int count, String action )
+    {
+        List<String> permissions = new ArrayList<String>( count );
+        for ( int i = 0; i < count; i++ )
+        {
+            // shaped like the repository target privileges of Nexus
+            permissions.add( "nexus:target:target-" + ( i % 10 ) + ":repository-" + i + ":" + action );
+        }
+        return permissions;
+    }
+
+    private static List<Permission> create( PermissionFactory factory, List<String> permissions )
+    {
+        List<Permission> result = new ArrayList<Permission>( permissions.size() );
+        for ( String permission : permissions )
+        {
+            result.add( factory.create( permission ) );
+        }
+        return result;
+    }
+}
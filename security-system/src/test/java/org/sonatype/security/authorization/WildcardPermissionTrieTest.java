@@ -0,0 +1,138 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.authorization;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.shiro.authz.Permission;
+import org.apache.shiro.authz.permission.WildcardPermission;
+
+public class WildcardPermissionTrieTest
+    extends TestCase
+{
+    private final CompiledPermissionFactory factory = new CompiledPermissionFactory();
+
+    public void testImplies()
+    {
+        Permission trie =
+            compile( "nexus:repositories:read", "nexus:target:1:repo1:*", "nexus:status", "nexus:logs:*:*",
+                     "app:a,b:read,update" );
+
+        assertTrue( trie.implies( factory.create( "nexus:repositories:read" ) ) );
+        assertTrue( trie.implies( factory.create( "Nexus:Repositories:Read" ) ) );
+        assertFalse( trie.implies( factory.create( "nexus:repositories:create" ) ) );
+        assertFalse( trie.implies( factory.create( "nexus:repositories" ) ) );
+
+        assertTrue( trie.implies( factory.create( "nexus:target:1:repo1:read" ) ) );
+        assertFalse( trie.implies( factory.create( "nexus:target:1:repo2:read" ) ) );
+
+        // shorter permission implies the remaining parts
+        assertTrue( trie.implies( factory.create( "nexus:status:read" ) ) );
+
+        // longer permission implies missing parts only if they are wildcards
+        assertTrue( trie.implies( factory.create( "nexus:logs" ) ) );
+        assertTrue( trie.implies( factory.create( "nexus:target:1:repo1" ) ) );
+        assertFalse( trie.implies( factory.create( "nexus:target:1" ) ) );
+
+        assertTrue( trie.implies( factory.create( "app:b:update" ) ) );
+        assertFalse( trie.implies( factory.create( "app:c:update" ) ) );
+
+        // subpart lists are checked against the merged permissions one by one
+        assertTrue( trie.implies( factory.create( "app:a,b:read" ) ) );
+        assertFalse( compile( "app:a:read", "app:b:read" ).implies( factory.create( "app:a,b:read" ) ) );
+
+        // plain permissions too
+        assertTrue( trie.implies( new WildcardPermission( "nexus:repositories:read" ) ) );
+        assertFalse( trie.implies( new WildcardPermission( "nexus:repositories:create" ) ) );
+    }
+
+    public void testWildcards()
+    {
+        assertTrue( compile( "*" ).implies( factory.create( "nexus:repositories:read" ) ) );
+        assertTrue( compile( "nexus:*:read" ).implies( factory.create( "nexus:repositories:read" ) ) );
+        assertFalse( compile( "nexus:*:read" ).implies( factory.create( "nexus:repositories:create" ) ) );
+        assertFalse( compile( "nexus:repositories:read" ).implies( factory.create( "nexus:*:read" ) ) );
+        assertTrue( compile( "nexus:*:read", "nexus:repositories:*" ).implies( factory.create( "nexus:repositories:create" ) ) );
+    }
+
+    public void testSameAsWildcardPermission()
+    {
+        final String[][] tokens = { { "a", "b", "c", "*" }, { "x", "y", "*" }, { "read", "create", "*" }, { "1", "*" } };
+        final Random random = new Random( 1234 );
+
+        for ( int round = 0; round < 200; round++ )
+        {
+            List<Permission> compiled = new ArrayList<Permission>();
+            List<WildcardPermission> plain = new ArrayList<WildcardPermission>();
+            for ( int i = 0; i < 1 + random.nextInt( 10 ); i++ )
+            {
+                String permission = randomPermission( random, tokens, 2 );
+                compiled.add( factory.create( permission ) );
+                plain.add( new WildcardPermission( permission ) );
+            }
+
+            Permission trie = factory.compile( compiled );
+
+            for ( int i = 0; i < 50; i++ )
+            {
+                String permission = randomPermission( random, tokens, 1 );
+                boolean expected = false;
+                for ( WildcardPermission p : plain )
+                {
+                    expected = expected || p.implies( new WildcardPermission( permission ) );
+                }
+
+                assertEquals( plain + " implies " + permission, expected,
+                              trie.implies( factory.create( permission ) ) );
+            }
+        }
+    }
+
+    private Permission compile( String... permissions )
+    {
+        List<Permission> result = new ArrayList<Permission>();
+        for ( String permission : Arrays.asList( permissions ) )
+        {
+            result.add( factory.create( permission ) );
+        }
+        return factory.compile( result );
+    }
+
+    private String randomPermission( Random random, String[][] tokens, int maxSubparts )
+    {
+        StringBuilder buf = new StringBuilder();
+        int parts = 1 + random.nextInt( tokens.length );
+        for ( int i = 0; i < parts; i++ )
+        {
+            if ( i > 0 )
+            {
+                buf.append( ':' );
+            }
+            int subparts = 1 + random.nextInt( maxSubparts );
+            for ( int j = 0; j < subparts; j++ )
+            {
+                if ( j > 0 )
+                {
+                    buf.append( ',' );
+                }
+                buf.append( tokens[i][random.nextInt( tokens[i].length )] );
+            }
+        }
+        return buf.toString();
+    }
+}
@@ -13,12 +13,14 @@
 package org.sonatype.security.guice;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.sameInstance;
 
 import java.util.HashMap;
 import java.util.Map;
 
+import org.apache.shiro.authz.Authorizer;
 import org.apache.shiro.mgt.DefaultSecurityManager;
 import org.apache.shiro.mgt.RealmSecurityManager;
 import org.apache.shiro.mgt.SecurityManager;
@@ -33,6 +35,7 @@ import org.sonatype.guice.bean.binders.WireModule;
 import org.sonatype.guice.bean.reflect.URLClassSpace;
 import org.sonatype.inject.BeanScanning;
 import org.sonatype.security.SecuritySystem;
+import org.sonatype.security.authorization.ExceptionCatchingModularRealmAuthorizer;
 import org.sonatype.sisu.ehcache.CacheManagerComponent;
 
 import com.google.inject.AbstractModule;
@@ -73,6 +76,10 @@ public class SecurityModuleTest
         assertThat( defaultSecurityManager.getSessionManager(), instanceOf( DefaultSessionManager.class ) );
         DefaultSessionManager sessionManager = (DefaultSessionManager) defaultSecurityManager.getSessionManager();
         assertThat( sessionManager.getSessionDAO(), instanceOf( EnterpriseCacheSessionDAO.class ) );
+
+        Authorizer authorizer = defaultSecurityManager.getAuthorizer();
+        assertThat( authorizer, instanceOf( ExceptionCatchingModularRealmAuthorizer.class ) );
+        assertThat( ( (ExceptionCatchingModularRealmAuthorizer) authorizer ).getDecisionCacheSize(), equalTo( 100 ) );
     }
 
     @After
@@ -104,6 +111,7 @@ public class SecurityModuleTest
                 Map<String, Object> properties = new HashMap<String, Object>();
                 properties.put( "security-xml-file", "target/foo/security.xml" );
                 properties.put( "application-conf", "target/plexus-home/conf" );
+                properties.put( "security-decision-cache-size", "100" );
                 binder().bind( ParameterKeys.PROPERTIES ).toInstance( properties );
             }
         };
@@ -0,0 +1,76 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.usermanagement;
+
+import junit.framework.TestCase;
+
+public class DefaultPasswordServiceTest
+    extends TestCase
+{
+    private final PasswordService legacy = new DefaultPasswordService( 0, 1, 10 );
+
+    private final PasswordService iterated = new DefaultPasswordService( 1000, 2, 10 );
+
+    public void testLegacyHashesKeepValidating()
+    {
+        for ( PasswordService service : new PasswordService[] { legacy, iterated } )
+        {
+            assertTrue( service.passwordsMatch( "secret".toCharArray(), StringDigester.getSha1Digest( "secret" ) ) );
+            assertTrue( service.passwordsMatch( "secret".toCharArray(), StringDigester.getMd5Digest( "secret" ) ) );
+            assertTrue( service.passwordsMatch( "secret".toCharArray(),
+                                                StringDigester.getSha1Digest( "secret" ).toUpperCase() ) );
+            assertFalse( service.passwordsMatch( "other".toCharArray(), StringDigester.getSha1Digest( "secret" ) ) );
+            assertFalse( service.passwordsMatch( "other".toCharArray(), StringDigester.getMd5Digest( "secret" ) ) );
+            assertFalse( service.passwordsMatch( "secret".toCharArray(), "not a hash" ) );
+            assertFalse( service.passwordsMatch( "secret".toCharArray(), null ) );
+        }
+    }
+
+    public void testLegacyHashing()
+    {
+        assertEquals( StringDigester.getSha1Digest( "secret" ), legacy.hashPassword( "secret" ) );
+        assertFalse( legacy.needsRehash( StringDigester.getSha1Digest( "secret" ) ) );
+        assertFalse( legacy.needsRehash( iterated.hashPassword( "secret" ) ) );
+    }
+
+    public void testIteratedHashing()
+    {
+        String hash = iterated.hashPassword( "secret" );
+
+        assertTrue( hash, hash.startsWith( "$pbkdf2-sha1$1000$" ) );
+        assertFalse( hash.equals( iterated.hashPassword( "secret" ) ) );
+
+        assertTrue( iterated.passwordsMatch( "secret".toCharArray(), hash ) );
+        assertFalse( iterated.passwordsMatch( "other".toCharArray(), hash ) );
+        assertTrue( legacy.passwordsMatch( "secret".toCharArray(), hash ) );
+
+        assertFalse( iterated.passwordsMatch( "secret".toCharArray(), "$pbkdf2-sha1$1000$00" ) );
+        assertFalse( iterated.passwordsMatch( "secret".toCharArray(), "$pbkdf2-sha1$x$00$00" ) );
+    }
+
+    public void testCostIsKeptPerHash()
+    {
+        PasswordService stronger = new DefaultPasswordService( 2000, 1, 10 );
+
+        String weakHash = iterated.hashPassword( "secret" );
+        String strongHash = stronger.hashPassword( "secret" );
+
+        assertTrue( stronger.passwordsMatch( "secret".toCharArray(), weakHash ) );
+        assertTrue( iterated.passwordsMatch( "secret".toCharArray(), strongHash ) );
+
+        assertTrue( stronger.needsRehash( weakHash ) );
+        assertTrue( stronger.needsRehash( StringDigester.getSha1Digest( "secret" ) ) );
+        assertFalse( stronger.needsRehash( strongHash ) );
+        assertFalse( iterated.needsRehash( strongHash ) );
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.usermanagement;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Finds the {@code security-password-iterations} value making one password verification take the target latency on
+ * this host, then measures the login throughput of {@link DefaultPasswordService} with that cost. Not run by the build,
+ * run the main method with the target latency in milliseconds (default 50) and the count of concurrent logins (default
+ * 4 times the count of processors) as arguments.
+ */
+public class PasswordHashingBenchmark
+{
+    private static final int ROUNDS = 5;
+
+    private static final char[] PASSWORD = "benchmark-password".toCharArray();
+
+    public static void main( String[] args )
+        throws Exception
+    {
+        final int target = args.length > 0 ? Integer.parseInt( args[0] ) : 50;
+        final int logins =
+            args.length > 1 ? Integer.parseInt( args[1] ) : 4 * Runtime.getRuntime().availableProcessors();
+
+        // double the cost until it reaches the target, then scale it linearly
+        int iterations = 1000;
+        double millis = time( iterations );
+
+        while ( millis < target / 2.0 )
+        {
+            iterations *= 2;
+            millis = time( iterations );
+        }
+
+        iterations = (int) ( iterations * target / millis );
+
+        System.out.println( "security-password-iterations=" + iterations + " (" + time( iterations )
+            + " ms per login)" );
+
+        final DefaultPasswordService service = new DefaultPasswordService( iterations, 0, 10 * logins );
+        final String hash = service.hashPassword( new String( PASSWORD ) );
+
+        ExecutorService requests = Executors.newFixedThreadPool( logins );
+        try
+        {
+            for ( int round = 0; round < ROUNDS; round++ )
+            {
+                long start = System.nanoTime();
+
+                List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+                for ( int i = 0; i < logins * 4; i++ )
+                {
+                    results.add( requests.submit( new Callable<Boolean>()
+                    {
+                        public Boolean call()
+                        {
+                            return service.passwordsMatch( PASSWORD, hash );
+                        }
+                    } ) );
+                }
+                for ( Future<Boolean> result : results )
+                {
+                    if ( !result.get() )
+                    {
+                        throw new IllegalStateException( "Password did not match" );
+                    }
+                }
+
+                long elapsed = ( System.nanoTime() - start ) / 1000000;
+                System.out.println( "  round " + round + ": " + results.size() + " logins from " + logins
+                    + " threads in " + elapsed + " ms, " + ( results.size() * 1000L / Math.max( 1, elapsed ) )
+                    + " logins/s" );
+            }
+        }
+        finally
+        {
+            requests.shutdown();
+        }
+    }
+
+    /**
+     * @return the median time of one verification, in milliseconds.
+     */
+    private static double time( int iterations )
+    {
+        DefaultPasswordService service = new DefaultPasswordService( iterations, 1, 1 );
+        String hash = service.hashPassword( new String( PASSWORD ) );
+
+        double[] times = new double[ROUNDS];
+        for ( int round = 0; round < ROUNDS; round++ )
+        {
+            long start = System.nanoTime();
+            service.passwordsMatch( PASSWORD, hash );
+            times[round] = ( System.nanoTime() - start ) / 1000000.0;
+        }
+
+        Arrays.sort( times );
+        return times[ROUNDS / 2];
+    }
+}
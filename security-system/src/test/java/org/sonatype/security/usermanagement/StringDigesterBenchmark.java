@@ -0,0 +1,131 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.usermanagement;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.security.MessageDigest;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Measures the time and the bytes allocated per SHA-1 digest of a password, by the former
+ * {@code StringDigester.getDigest} (stream, buffer and {@link MessageDigest} per call, commons-codec hex encoding), by
+ * {@link StringDigester#getSha1Digest(String)} and by {@link StringDigester#matchesDigest(String, char[], String)}. Not
+ * run by the build, run the main method with the count of digests per round as argument (default 1000000). The
+ * allocated bytes are read from the HotSpot thread MXBean.
+ */
+public class StringDigesterBenchmark
+{
+    private static final int ROUNDS = 5;
+
+    private static final String PASSWORD = "benchmark-password";
+
+    private static final String HASH = StringDigester.getSha1Digest( PASSWORD );
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private interface Digest
+    {
+        boolean run()
+            throws Exception;
+    }
+
+    public static void main( String[] args )
+        throws Exception
+    {
+        final int count = args.length > 0 ? Integer.parseInt( args[0] ) : 1000000;
+        final char[] password = PASSWORD.toCharArray();
+
+        for ( int round = 0; round < ROUNDS; round++ )
+        {
+            System.out.println( "round " + round );
+
+            measure( "  former getDigest   ", count, new Digest()
+            {
+                public boolean run()
+                    throws Exception
+                {
+                    return HASH.equals( formerDigest( "SHA1", PASSWORD ) );
+                }
+            } );
+            measure( "  getSha1Digest      ", count, new Digest()
+            {
+                public boolean run()
+                {
+                    return HASH.equals( StringDigester.getSha1Digest( PASSWORD ) );
+                }
+            } );
+            measure( "  matchesDigest      ", count, new Digest()
+            {
+                public boolean run()
+                    throws Exception
+                {
+                    return StringDigester.matchesDigest( "SHA1", password, HASH );
+                }
+            } );
+        }
+    }
+
+    private static void measure( String name, int count, Digest digest )
+        throws Exception
+    {
+        final long thread = Thread.currentThread().getId();
+        final long allocated = THREADS.getThreadAllocatedBytes( thread );
+        final long start = System.nanoTime();
+
+        for ( int i = 0; i < count; i++ )
+        {
+            if ( !digest.run() )
+            {
+                throw new IllegalStateException( "Digest did not match" );
+            }
+        }
+
+        final long elapsed = System.nanoTime() - start;
+        final long bytes = THREADS.getThreadAllocatedBytes( thread ) - allocated;
+
+        System.out.println( name + ( elapsed / count ) + " ns/op, " + ( bytes / count ) + " bytes/op" );
+    }
+
+    /**
+     * The former implementation of {@link StringDigester#getDigest(String, String)}.
+     */
+    private static String formerDigest( String alg, String content )
+        throws Exception
+    {
+        InputStream fis = new ByteArrayInputStream( content.getBytes( "UTF-8" ) );
+        try
+        {
+            byte[] buffer = new byte[1024];
+            MessageDigest md = MessageDigest.getInstance( alg );
+            int numRead;
+            do
+            {
+                numRead = fis.read( buffer );
+                if ( numRead > 0 )
+                {
+                    md.update( buffer, 0, numRead );
+                }
+            }
+            while ( numRead != -1 );
+            return new String( Hex.encodeHex( md.digest() ) );
+        }
+        finally
+        {
+            fis.close();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.usermanagement;
+
+import java.security.MessageDigest;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.codec.binary.Hex;
+
+public class StringDigesterTest
+    extends TestCase
+{
+    public void testKnownDigests()
+    {
+        assertEquals( "a9993e364706816aba3e25717850c26c9cd0d89d", StringDigester.getSha1Digest( "abc" ) );
+        assertEquals( "900150983cd24fb0d6963f7d28e17f72", StringDigester.getMd5Digest( "abc" ) );
+        assertEquals( "da39a3ee5e6b4b0d3255bfef95601890afd80709", StringDigester.getSha1Digest( "" ) );
+    }
+
+    public void testEncodedAsUtf8()
+        throws Exception
+    {
+        StringBuilder longContent = new StringBuilder();
+        for ( int i = 0; i < 1000; i++ )
+        {
+            longContent.append( "p\u00e4ss\u20ac\ud83d\ude00" );
+        }
+
+        String[] contents =
+            { "password", "p\u00e4ssw\u00f6rd", "\u20ac\u4e2d", "\ud83d\ude00", "unpaired \ud83d",
+                "unpaired \ude00 too", longContent.toString() };
+
+        for ( String content : contents )
+        {
+            byte[] digest = MessageDigest.getInstance( "SHA1" ).digest( content.getBytes( "UTF-8" ) );
+            String expected = new String( Hex.encodeHex( digest ) );
+
+            assertEquals( content, expected, StringDigester.getSha1Digest( content ) );
+            assertTrue( content, StringDigester.matchesDigest( "SHA1", content.toCharArray(), expected ) );
+        }
+    }
+
+    public void testMatchesDigest()
+        throws Exception
+    {
+        String sha1 = StringDigester.getSha1Digest( "secret" );
+
+        assertTrue( StringDigester.matchesDigest( "SHA1", "secret".toCharArray(), sha1 ) );
+        assertTrue( StringDigester.matchesDigest( "SHA1", "secret".toCharArray(), sha1.toUpperCase() ) );
+        assertTrue( StringDigester.matchesDigest( "MD5", "secret".toCharArray(),
+                                                  StringDigester.getMd5Digest( "secret" ) ) );
+
+        assertFalse( StringDigester.matchesDigest( "SHA1", "other".toCharArray(), sha1 ) );
+        assertFalse( StringDigester.matchesDigest( "MD5", "secret".toCharArray(), sha1 ) );
+        assertFalse( StringDigester.matchesDigest( "SHA1", "secret".toCharArray(), sha1.substring( 1 ) ) );
+        assertFalse( StringDigester.matchesDigest( "SHA1", "secret".toCharArray(), null ) );
+
+        // characters lower casing to hex digits are not hex digits
+        char[] mangled = sha1.toCharArray();
+        for ( int i = 0; i < mangled.length; i++ )
+        {
+            if ( Character.isDigit( mangled[i] ) )
+            {
+                mangled[i] = (char) ( mangled[i] - 0x20 );
+                break;
+            }
+        }
+        assertFalse( StringDigester.matchesDigest( "SHA1", "secret".toCharArray(), new String( mangled ) ) );
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.security.watch;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.codehaus.plexus.util.FileUtils;
+
+public class DefaultSecurityFileWatcherTest
+    extends TestCase
+{
+    private File file;
+
+    // filled from the watcher thread too
+    private final List<File> changed = Collections.synchronizedList( new ArrayList<File>() );
+
+    private final SecurityFileWatcher.Listener listener = new SecurityFileWatcher.Listener()
+    {
+        public void fileChanged( File file )
+        {
+            changed.add( file );
+        }
+    };
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        file = File.createTempFile( "security", ".xml" );
+        FileUtils.fileWrite( file.getAbsolutePath(), "<security/>" );
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception
+    {
+        file.delete();
+
+        super.tearDown();
+    }
+
+    public void testExternalChangeIsNotified()
+        throws IOException
+    {
+        SecurityFileWatcher watcher = new DefaultSecurityFileWatcher( 0 );
+        watcher.watch( file, listener );
+
+        watcher.poll();
+        assertTrue( changed.isEmpty() );
+
+        edit( "<security><users/></security>" );
+
+        watcher.poll();
+        assertEquals( 1, changed.size() );
+        assertEquals( file, changed.get( 0 ) );
+
+        // notified once per change
+        watcher.poll();
+        assertEquals( 1, changed.size() );
+    }
+
+    public void testAcknowledgedChangeIsNotNotified()
+        throws IOException
+    {
+        SecurityFileWatcher watcher = new DefaultSecurityFileWatcher( 0 );
+        watcher.watch( file, listener );
+
+        edit( "<security><users/></security>" );
+        watcher.acknowledge( file );
+
+        watcher.poll();
+        assertTrue( changed.isEmpty() );
+    }
+
+    public void testUnwatchedAndDeletedFilesAreNotNotified()
+        throws IOException
+    {
+        SecurityFileWatcher watcher = new DefaultSecurityFileWatcher( 0 );
+        watcher.watch( file, listener );
+
+        file.delete();
+        watcher.poll();
+        assertTrue( changed.isEmpty() );
+
+        edit( "<security><users/></security>" );
+        watcher.unwatch( file );
+        watcher.poll();
+        assertTrue( changed.isEmpty() );
+    }
+
+    public void testListenerFailureDoesNotStopPolling()
+        throws IOException
+    {
+        SecurityFileWatcher watcher = new DefaultSecurityFileWatcher( 0 );
+        watcher.watch( file, new SecurityFileWatcher.Listener()
+        {
+            public void fileChanged( File file )
+            {
+                changed.add( file );
+                throw new IllegalStateException( "invalid file" );
+            }
+        } );
+
+        edit( "<security><users/></security>" );
+        watcher.poll();
+
+        edit( "<security><roles/></security>" );
+        watcher.poll();
+
+        assertEquals( 2, changed.size() );
+    }
+
+    public void testStoppedWatcherDoesNotPoll()
+        throws Exception
+    {
+        SecurityFileWatcher watcher = new DefaultSecurityFileWatcher( 10 );
+        watcher.watch( file, listener );
+        watcher.stop();
+
+        edit( "<security><users/></security>" );
+        Thread.sleep( 200 );
+        assertTrue( changed.isEmpty() );
+
+        // watching again restarts polling
+        watcher.watch( new File( file.getParentFile(), "other.xml" ), listener );
+        for ( int i = 0; i < 100 && changed.isEmpty(); i++ )
+        {
+            Thread.sleep( 50 );
+        }
+        watcher.stop();
+        assertEquals( 1, changed.size() );
+    }
+
+    private void edit( String content )
+        throws IOException
+    {
+        // the length changes for sure, the modification time may not on coarse file systems
+        long lastModified = file.lastModified();
+        FileUtils.fileWrite( file.getAbsolutePath(), content );
+        file.setLastModified( lastModified + 2000 );
+    }
+}
@@ -51,12 +51,25 @@ public class WebRealmSecurityManager
 
     private Map<String, RolePermissionResolver> rolePermissionResolverMap;
 
-    @Inject
+    private int decisionCacheSize;
+
     public WebRealmSecurityManager( Map<String, RolePermissionResolver> rolePermissionResolverMap )
+    {
+        this( rolePermissionResolverMap, 0 );
+    }
+
+    /**
+     * @param decisionCacheSize see {@link ExceptionCatchingModularRealmAuthorizer#setDecisionCacheSize(int)}.
+     * @since 2.8
+     */
+    @Inject
+    public WebRealmSecurityManager( Map<String, RolePermissionResolver> rolePermissionResolverMap,
+                                    @Named( "${security-decision-cache-size:-0}" ) int decisionCacheSize )
     {
         logger.info( "@Deprecated use shiro-guice with org.sonatype.security.web.guice.SecurityWebModule instead" );
 
         this.rolePermissionResolverMap = rolePermissionResolverMap;
+        this.decisionCacheSize = decisionCacheSize;
 
         // set the realm authenticator, that will automatically deligate the authentication to all the realms.
         FirstSuccessfulModularRealmAuthenticator realmAuthenticator = new FirstSuccessfulModularRealmAuthenticator();
@@ -74,6 +87,7 @@ public class WebRealmSecurityManager
         // Authorizer
         ExceptionCatchingModularRealmAuthorizer authorizer =
             new ExceptionCatchingModularRealmAuthorizer( this.getRealms() );
+        authorizer.setDecisionCacheSize( decisionCacheSize );
 
         // if we have a Role Permission Resolver, set it, if not, don't worry about it
         if ( !rolePermissionResolverMap.isEmpty() )